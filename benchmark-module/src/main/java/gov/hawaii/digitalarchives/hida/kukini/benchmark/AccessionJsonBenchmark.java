@@ -0,0 +1,72 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.hawaii.digitalarchives.hida.core.model.accession.Accession;
+import gov.hawaii.digitalarchives.hida.core.model.record.Agent;
+import gov.hawaii.digitalarchives.hida.core.model.record.ProducerInfo;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks serializing the accession metadata sip tag, accession.json,
+ * which is created once for every SIP. The accession is filled in the way
+ * {@code SipUploaderImpl} fills it, with a fixed user and machine.
+ *
+ * @author Keone Hiraide
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessionJsonBenchmark {
+
+    private Accession accession;
+
+     // Shared between invocations, as it is by the uploader.
+    private ObjectMapper mapper;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> machineInfo = new LinkedHashMap<>();
+        machineInfo.put("os.name", "Windows 7");
+        machineInfo.put("os.version", "6.1");
+        machineInfo.put("os.arch", "amd64");
+        machineInfo.put("user.name", "kukini");
+        machineInfo.put("java.version", "1.7.0_51");
+        accession = new Accession();
+        accession.setRtpId("ark:/0000/Stub");
+        accession.setMachineInfo(machineInfo);
+        accession.setProducerInfo(new ProducerInfo("Accounting and General Services", 
+                "Archives", "Records Management"));
+        accession.setPreserver(new Agent("Hawaii State Archives", "Accessioning of Records"));
+        accession.setTransfererName("Keone Hiraide");
+        accession.setAccessionCreationDate(new Date());
+        accession.setTransferMethod("Kukini HTTPS");
+        accession.setCreator(new Agent("Accounting and General Services, Archives", 
+                "Records submitted to HIDA"));
+        mapper = new ObjectMapper();
+    }
+
+    /**
+     * Serializes the accession to JSON.
+     */
+    @Benchmark
+    public byte[] writeValueAsBytes() throws IOException {
+        return mapper.writeValueAsBytes(accession);
+    }
+}
@@ -0,0 +1,118 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import gov.hawaii.digitalarchives.hida.bag.BagUtilImpl;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.BagManifest;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.BagTagFiles;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadFile;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadStagingEngine;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferListener;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmarks completing a staged bag: writing bagit.txt, bag-info.txt, the
+ * payload manifests and the tag manifests. {@code BagUtil.makeComplete},
+ * which SIPs were once completed with, reads every payload file again to 
+ * hash it; {@link BagTagFiles} reuses the checksums computed while the
+ * files were staged, so both are measured to keep the difference in view.
+ *
+ * @author Keone Hiraide
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BagBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "MIXED"})
+    public Corpus corpus;
+
+     // The bag, staged once for every invocation.
+    private Path rootDirectory;
+
+     // The checksums computed while the bag was staged.
+    private List<BagManifest> manifests;
+
+    private BagUtilImpl bagUtil;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<PayloadFile> payload = PayloadFile.fromPaths(
+                Collections.singletonList(corpus.create()));
+        rootDirectory = Files.createTempDirectory("kukini-bag").resolve("accession");
+        PayloadStagingEngine stagingEngine = new PayloadStagingEngine(4);
+        try {
+            manifests = stagingEngine.stage(payload, rootDirectory, Arrays.asList("md5"), 
+                    TransferListener.NONE);
+        } finally {
+            stagingEngine.shutdown();
+        }
+        bagUtil = new BagUtilImpl();
+        bagUtil.setLogger(LoggerFactory.getLogger(BagUtilImpl.class));
+    }
+
+    /**
+     * Deletes the tag files written by the previous invocation, leaving
+     * only the payload.
+     */
+    @Setup(Level.Invocation)
+    public void deleteTagFiles() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(rootDirectory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    Files.delete(entry);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(rootDirectory.getParent().toFile());
+    }
+
+    /**
+     * Completes the bag with the checksums of the staging engine.
+     */
+    @Benchmark
+    public void bagTagFiles() throws IOException {
+        Map<String, byte[]> tagFiles = BagTagFiles.create(manifests, 
+                Collections.<String, byte[]>emptyMap(), new Date());
+        for (Map.Entry<String, byte[]> tagFile : tagFiles.entrySet()) {
+            Files.write(rootDirectory.resolve(tagFile.getKey()), tagFile.getValue());
+        }
+    }
+
+    /**
+     * Completes the bag with the bag module, which hashes the payload.
+     */
+    @Benchmark
+    public void makeComplete() {
+        bagUtil.makeComplete(rootDirectory);
+    }
+}
@@ -0,0 +1,138 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * The synthetic payloads that the benchmarks transfer. Each corpus is 
+ * generated once, from a fixed seed, into ".kukini-benchmark" within the
+ * temporary directory and reused by later runs, since writing it takes far
+ * longer than most of the benchmarks.
+ *
+ * Text files hold words, so they compress about as well as reports and 
+ * spreadsheets do. Image files hold random bytes, so they do not compress
+ * at all, as with scans that are already compressed.
+ *
+ * @author Keone Hiraide
+ */
+public enum Corpus {
+
+    /**
+     * Many small text files, as in a folder of correspondence.
+     */
+    SMALL_FILES(new Batch(5000, 8 * 1024, ".txt")),
+
+    /**
+     * A few huge files, as in a set of video recordings or disk images.
+     */
+    HUGE_FILES(new Batch(2, 256 * 1024 * 1024, ".tif"),
+            new Batch(1, 128 * 1024 * 1024, ".csv")),
+
+    /**
+     * Text files, scans and a large export of all sizes.
+     */
+    MIXED(new Batch(2000, 16 * 1024, ".txt"),
+            new Batch(200, 512 * 1024, ".jpg"),
+            new Batch(20, 4 * 1024 * 1024, ".pdf"),
+            new Batch(1, 64 * 1024 * 1024, ".csv"));
+
+     // The words of the text files.
+    private static final String[] WORDS = {"archives", "record", "series", "department",
+        "division", "branch", "transmittal", "accession", "Hawaii", "State", "the", "of",
+        "and", "to", "in", "report", "annual", "budget", "minutes", "meeting", "2014",
+        "county", "permit", "application", "approved", "pending", "board", "committee"};
+
+     // Marks a corpus that has been completely written.
+    private static final String COMPLETE = ".complete";
+
+    private final Batch[] batches;
+
+    private Corpus(Batch... batches) {
+        this.batches = batches;
+    }
+
+    /**
+     * @return The size of the corpus in bytes.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Batch batch : batches) {
+            size += (long) batch.count * batch.size;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the corpus, unless a previous run has.
+     *
+     * @return The folder holding the corpus.
+     */
+    public Path create() throws IOException {
+        Path folder = Paths.get(System.getProperty("java.io.tmpdir"), ".kukini-benchmark", 
+                name());
+        if (Files.exists(folder.resolve(COMPLETE))) {
+            return folder;
+        }
+        Random random = new Random(ordinal());
+        byte[] buffer = new byte[64 * 1024];
+        for (int i = 0; i < batches.length; i++) {
+            Batch batch = batches[i];
+            Path batchFolder = Files.createDirectories(folder.resolve("batch" + i));
+            for (int file = 0; file < batch.count; file++) {
+                // Folders of a hundred files each, as a scanner would write
+                // them.
+                Path parent = Files.createDirectories(batchFolder.resolve("box" + file / 100));
+                try (OutputStream out = Files.newOutputStream(parent.resolve(
+                        "file" + file + batch.extension))) {
+                    write(out, batch, random, buffer);
+                }
+            }
+        }
+        Files.write(folder.resolve(COMPLETE), new byte[0]);
+        return folder;
+    }
+
+    private static void write(OutputStream out, Batch batch, Random random, byte[] buffer)
+            throws IOException {
+        boolean text = batch.extension.equals(".txt") || batch.extension.equals(".csv");
+        long remaining = batch.size;
+        while (remaining > 0) {
+            int length = (int) Math.min(buffer.length, remaining);
+            if (text) {
+                int filled = 0;
+                while (filled < length) {
+                    byte[] word = (WORDS[random.nextInt(WORDS.length)] 
+                            + (random.nextInt(12) == 0 ? "\n" : " "))
+                            .getBytes(StandardCharsets.US_ASCII);
+                    int copied = Math.min(word.length, length - filled);
+                    System.arraycopy(word, 0, buffer, filled, copied);
+                    filled += copied;
+                }
+            } else {
+                random.nextBytes(buffer);
+            }
+            out.write(buffer, 0, length);
+            remaining -= length;
+        }
+    }
+
+    /**
+     * Files of the same size and kind.
+     */
+    private static class Batch {
+        final int count;
+        final int size;
+        final String extension;
+
+        Batch(int count, int size, String extension) {
+            this.count = count;
+            this.size = size;
+            this.extension = extension;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.BagManifest;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.DigestEngine;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadFile;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadStagingEngine;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferListener;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks hashing the selected files in place, as is done before asking
+ * the archive which of them it already holds. No checksums are cached, so
+ * every file is read.
+ *
+ * @author Keone Hiraide
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DigestBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "MIXED"})
+    public Corpus corpus;
+
+     // The manifest algorithms, separated by commas.
+    @Param({"md5", "md5,sha256"})
+    public String algorithms;
+
+     // The number of threads hashing blocks with the other algorithms; 1 
+     // hashes with one algorithm after another.
+    @Param({"1", "0"})
+    public int digestThreads;
+
+    private List<PayloadFile> payload;
+    private List<String> algorithmList;
+    private PayloadStagingEngine stagingEngine;
+    private DigestEngine digestEngine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = PayloadFile.fromPaths(Collections.singletonList(corpus.create()));
+        algorithmList = Arrays.asList(algorithms.split(","));
+        digestEngine = new DigestEngine(digestThreads);
+        stagingEngine = new PayloadStagingEngine(4);
+        stagingEngine.setDigestEngine(digestEngine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stagingEngine.shutdown();
+        digestEngine.shutdown();
+    }
+
+    /**
+     * Hashes every file of the corpus with every algorithm.
+     */
+    @Benchmark
+    public List<BagManifest> checksum() {
+        return stagingEngine.checksum(payload, algorithmList, TransferListener.NONE);
+    }
+}
@@ -0,0 +1,275 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import gov.hawaii.digitalarchives.hida.kukini.provenance.UserInformation;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.SipUploaderImpl;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.UploadSipAction;
+import gov.hawaii.digitalarchives.hida.kukini.springservice.SpringServiceProvider;
+import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.openide.filesystems.LocalFileSystem;
+import org.openide.loaders.DataObject;
+import org.openide.util.Lookup;
+
+/**
+ * Transfers each {@link Corpus} the way the Upload action does, with the
+ * beans of the spring context, to a {@link SinkServer} that stands in for
+ * the SIP uploader servlet, and fails when the throughput or the peak heap
+ * of a transfer has regressed beyond the stored baselines. It is run by the
+ * "perf" profile of this module, in a JVM of its own so that the heap of
+ * Maven is not measured:
+ *
+ * <pre>
+ * mvn -Pperf verify
+ * </pre>
+ *
+ * Each corpus is sent in a single multipart request over a link of the
+ * configured bandwidth and latency, and again in resumable mode with a
+ * share of its chunks failing. Each is transferred once to warm up, then
+ * measured over several runs: the throughput is the median of the runs, in
+ * bytes of the corpus per second, and the peak heap the most used by any
+ * run. These system properties configure the suite:
+ *
+ * <ul>
+ * <li>kukini.perf.port: The port of the servlet URLs within the spring
+ *     context, on which the sink listens. Defaults to 8080.</li>
+ * <li>kukini.perf.bandwidth: The bandwidth of the link in bytes per second,
+ *     or 0 for none. Defaults to 0.</li>
+ * <li>kukini.perf.latency: The latency of each request in milliseconds.
+ *     Defaults to 0.</li>
+ * <li>kukini.perf.failureRate: The share of the chunks and segments of
+ *     resumable uploads that fail. Defaults to 0.02.</li>
+ * <li>kukini.perf.runs: The measured runs of each transfer. Defaults to
+ *     3.</li>
+ * <li>kukini.perf.corpora: The corpora to transfer, separated by commas.
+ *     Defaults to every corpus.</li>
+ * <li>kukini.perf.baselines: The properties file of baselines, which holds
+ *     [corpus].[mode].throughput and [corpus].[mode].peakHeap in bytes per
+ *     second and bytes. Once it holds any baseline, a transfer without
+ *     one fails the suite, unless the results are being recorded; until
+ *     then, the missing baselines are only reported.</li>
+ * <li>kukini.perf.tolerance: How far a result may fall behind its baseline
+ *     before it has regressed. Defaults to 0.2, i.e. 20%.</li>
+ * <li>kukini.perf.record: A properties file to write the results to, in the
+ *     form of baselines, so that they can be stored once reviewed.
+ *     Transfers without a baseline are reported only while recording.</li>
+ * </ul>
+ *
+ * The exit status is 0 if nothing regressed, 1 if something did, a
+ * transfer failed or a transfer has no baseline to be checked against
+ * while others do.
+ *
+ * @author Keone Hiraide
+ */
+public final class PerformanceSuite {
+
+    /**
+     * How a SIP is uploaded.
+     */
+    enum UploadMode {
+
+        /**
+         * In a single multipart request.
+         */
+        MULTIPART,
+
+        /**
+         * In chunks or segments that are retried when they fail.
+         */
+        RESUMABLE
+    }
+
+    private PerformanceSuite() {
+    }
+
+    /**
+     * Runs the suite and exits.
+     *
+     * @param args Ignored; the suite is configured by system properties.
+     */
+    public static void main(String[] args) throws IOException, PropertyVetoException {
+        int port = Integer.getInteger("kukini.perf.port", 8080);
+        long bandwidth = Long.getLong("kukini.perf.bandwidth", 0);
+        long latency = Long.getLong("kukini.perf.latency", 0);
+        double failureRate = Double.parseDouble(System.getProperty("kukini.perf.failureRate",
+                "0.02"));
+        int runs = Math.max(Integer.getInteger("kukini.perf.runs", 3), 1);
+        double tolerance = Double.parseDouble(System.getProperty("kukini.perf.tolerance", "0.2"));
+        Properties baselines = load(System.getProperty("kukini.perf.baselines"));
+        String record = System.getProperty("kukini.perf.record");
+        boolean recording = record != null && !record.isEmpty();
+        List<Corpus> corpora = new ArrayList<>();
+        for (String name : System.getProperty("kukini.perf.corpora", 
+                "SMALL_FILES,HUGE_FILES,MIXED").split(",")) {
+            corpora.add(Corpus.valueOf(name.trim()));
+        }
+
+        // The accession is created from the user that is logged in.
+        UserInformation user = Lookup.getDefault().lookup(UserInformation.class);
+        user.setFullName("Performance Suite");
+        user.setDepartment("department");
+        user.setDivision("division");
+        user.setBranch("branch");
+
+        SpringServiceProvider ssp = Lookup.getDefault().lookup(SpringServiceProvider.class);
+        SipUploaderImpl sipUploader = (SipUploaderImpl) ssp.getBean("upload");
+        SinkServer sink = new SinkServer(port);
+        sink.setBytesPerSecond(bandwidth);
+        sink.setLatencyMillis(latency);
+        sink.setFailureRate(failureRate);
+
+        Properties results = new Properties();
+        List<String> regressions = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        try {
+            for (Corpus corpus : corpora) {
+                List<DataObject> selectedContext = select(corpus.create());
+                for (UploadMode mode : UploadMode.values()) {
+                    sipUploader.setResumableUploadURL(mode == UploadMode.RESUMABLE 
+                            ? sink.getUploadsURL() : null);
+                    String key = corpus + "." + mode;
+
+                    transfer(selectedContext, sink, key);
+                    long[] throughputs = new long[runs];
+                    long peakHeap = 0;
+                    for (int i = 0; i < runs; i++) {
+                        System.gc();
+                        resetPeakHeap();
+                        long start = System.nanoTime();
+                        transfer(selectedContext, sink, key);
+                        long elapsed = Math.max(System.nanoTime() - start, 1);
+                        throughputs[i] = (long) (corpus.getSize() * 1e9 / elapsed);
+                        peakHeap = Math.max(peakHeap, getPeakHeap());
+                    }
+                    Arrays.sort(throughputs);
+                    long throughput = throughputs[runs / 2];
+                    results.setProperty(key + ".throughput", Long.toString(throughput));
+                    results.setProperty(key + ".peakHeap", Long.toString(peakHeap));
+
+                    System.out.println(String.format("%-24s %10.1f MB/s %10.1f MB peak heap",
+                            key, throughput / 1e6, peakHeap / 1e6));
+                    String baseline = baselines.getProperty(key + ".throughput");
+                    if (baseline == null) {
+                        missing.add(key + ".throughput");
+                    } else if (throughput < Long.parseLong(baseline) * (1 - tolerance)) {
+                        regressions.add(key + ": the throughput of " + throughput
+                                + " bytes/s is below its baseline of " + baseline);
+                    }
+                    baseline = baselines.getProperty(key + ".peakHeap");
+                    if (baseline == null) {
+                        missing.add(key + ".peakHeap");
+                    } else if (peakHeap > Long.parseLong(baseline) * (1 + tolerance)) {
+                        regressions.add(key + ": the peak heap of " + peakHeap
+                                + " bytes is above its baseline of " + baseline);
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            sink.stop();
+        }
+
+        if (recording) {
+            try (OutputStream out = Files.newOutputStream(Paths.get(record))) {
+                results.store(out, "Kukini performance baselines");
+            }
+        }
+        for (String regression : regressions) {
+            System.err.println("Regressed: " + regression);
+        }
+        // A result without a baseline cannot regress, so the suite would
+        // pass whatever it measured. Until the first baselines have been
+        // recorded, every result lacks one, and the suite only warns.
+        boolean failMissing = !missing.isEmpty() && !recording && !baselines.isEmpty();
+        for (String key : missing) {
+            System.err.println((failMissing ? "No baseline: " : "No baseline yet: ") + key);
+        }
+        if (!missing.isEmpty() && !recording) {
+            System.err.println("Record the baselines with -Dperf.record=[file] and copy"
+                    + " them into perf-baselines.properties once reviewed.");
+        }
+        System.exit(regressions.isEmpty() && !failMissing ? 0 : 1);
+    }
+
+    /**
+     * Transfers the selected files with the Upload action and waits for the
+     * transfer to finish.
+     *
+     * @throws IllegalStateException If the sink did not receive the SIP.
+     */
+    private static void transfer(List<DataObject> selectedContext, SinkServer sink, String key) {
+        int received = sink.getSipsReceived();
+        new UploadSipAction(selectedContext).transfer().waitFinished();
+        if (sink.getSipsReceived() != received + 1) {
+            throw new IllegalStateException("The transfer of " + key
+                    + " failed; see the log for why");
+        }
+    }
+
+    /**
+     * Selects a folder the way the user selects it within Kukini.
+     *
+     * @return The selected context, holding the folder.
+     */
+    private static List<DataObject> select(Path folder) throws IOException,
+            PropertyVetoException {
+        LocalFileSystem fileSystem = new LocalFileSystem();
+        fileSystem.setRootDirectory(folder.getParent().toFile());
+        return Collections.singletonList(DataObject.find(fileSystem.findResource(
+                folder.getFileName().toString())));
+    }
+
+    /**
+     * Resets the peak usage of every memory pool of the heap.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return The sum of the peak usage of every memory pool of the heap
+     *         since it was last reset, in bytes.
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @param file A properties file, or null.
+     * @return The properties within the file, or none if it is null or does
+     *         not exist.
+     */
+    private static Properties load(String file) throws IOException {
+        Properties properties = new Properties();
+        if (file != null && Files.exists(Paths.get(file))) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,377 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A local stand-in for the SIP uploader servlet that reads and discards
+ * whatever is posted to it. It accepts SIPs posted in a single multipart
+ * request, which it answers with 201 Created, and SIPs uploaded in chunks
+ * or segments with the protocol of {@code ResumableUploader}, of which it
+ * keeps only the offsets received. Nothing is checked or kept, so that it
+ * takes next to no memory or CPU from the transfer it runs beside.
+ *
+ * It runs on an embedded HTTP server, and can be made to act as a slow or
+ * unreliable link: the request bodies of every connection together are
+ * read no faster than a bandwidth, each answer is delayed by a latency, and
+ * a share of the chunks and segments fail with 503 Service Unavailable once
+ * they have been read, which the uploaders retry.
+ *
+ * @author Keone Hiraide
+ */
+public class SinkServer implements HttpHandler {
+
+     // The path to which SIPs are posted in a single request.
+    private static final String ACCESSIONS_PATH = "/sipuploader/accessions";
+
+     // The path to which upload sessions are created.
+    private static final String UPLOADS_PATH = "/sipuploader/uploads";
+
+     // Header holding the position of a chunk, or the number of contiguous
+     // bytes received.
+    private static final String OFFSET_HEADER = "Upload-Offset";
+
+     // The HTTP server the sink runs on.
+    private final HttpServer server;
+
+     // Handles the requests, several at a time.
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+     // The upload sessions, keyed by their IDs.
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+     // Used to number the upload sessions.
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+     // The number of bytes of request bodies that have been read.
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+     // The number of SIPs received whole, and of failures injected.
+    private final AtomicInteger sipsReceived = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+     // The bytes per second at which request bodies are read; 0 reads them
+     // as fast as they arrive.
+    private volatile long bytesPerSecond;
+
+     // How long to wait before answering each request.
+    private volatile long latencyMillis;
+
+     // The share of chunks and segments that fail, between 0 and 1.
+    private volatile double failureRate;
+
+     // Chooses the requests that fail, from a fixed seed so that runs can
+     // be compared.
+    private final Random random = new Random(0);
+
+     // When the link is next free to carry a byte, in nanoseconds.
+    private long linkFreeAt;
+
+    /**
+     * Starts the sink on a free port of the loopback interface.
+     */
+    public SinkServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts the sink on a port of the loopback interface, e.g. the port of
+     * the servlet URLs within the spring context.
+     *
+     * @param port The port, or 0 for a free one.
+     */
+    public SinkServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(ACCESSIONS_PATH, this);
+        server.createContext(UPLOADS_PATH, this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return The URL to which SIPs are posted in a single request.
+     */
+    public String getAccessionsURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + ACCESSIONS_PATH;
+    }
+
+    /**
+     * @return The URL to which upload sessions are created.
+     */
+    public String getUploadsURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + UPLOADS_PATH;
+    }
+
+    /**
+     * Limits the rate at which request bodies are read, as if the sink were
+     * at the far end of a link of this bandwidth.
+     *
+     * @param bytesPerSecond The bandwidth, or 0 for no limit.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Delays every answer, as if the server were far away.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Makes a share of the chunks and segments fail with 503 Service
+     * Unavailable once they have been read. A failed chunk is not kept.
+     *
+     * @param failureRate The share of chunks and segments that fail,
+     *                    between 0 and 1.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @return The number of bytes of request bodies that have been read,
+     *         including those of requests that failed.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return The number of SIPs that have been received whole.
+     */
+    public int getSipsReceived() {
+        return sipsReceived.get();
+    }
+
+    /**
+     * @return The number of chunks and segments that were made to fail.
+     */
+    public int getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String uri = exchange.getRequestURI().getPath();
+            byte[] form = null;
+            long length;
+            if (uri.equals(UPLOADS_PATH) && method.equals("POST")) {
+                // The fields of a new session are small, and are needed.
+                form = readForm(exchange);
+                length = form.length;
+            } else {
+                length = drain(exchange.getRequestBody());
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (method.equals("PUT") && shouldFail()) {
+                failures.incrementAndGet();
+                respond(exchange, 503);
+            } else if (uri.equals(ACCESSIONS_PATH)) {
+                sipsReceived.incrementAndGet();
+                respond(exchange, 201, "Accession created");
+            } else if (form != null) {
+                createSession(exchange, form);
+            } else {
+                handleSession(exchange, method, uri.substring(UPLOADS_PATH.length() + 1),
+                        length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers the offset of a session, receives a chunk or segment, or
+     * completes the upload.
+     */
+    private void handleSession(HttpExchange exchange, String method, String path, long length)
+            throws IOException {
+        String id = path.split("/", 2)[0];
+        Session session = sessions.get(id);
+        if (session == null) {
+            respond(exchange, 404);
+        } else if (path.endsWith("/complete") && method.equals("POST")) {
+            if (session.getContiguous() != session.size) {
+                respond(exchange, 400);
+                return;
+            }
+            sessions.remove(id);
+            sipsReceived.incrementAndGet();
+            respond(exchange, 201, "Accession " + id + " created");
+        } else if (method.equals("HEAD")) {
+            exchange.getResponseHeaders().set(OFFSET_HEADER,
+                    Long.toString(session.getContiguous()));
+            respond(exchange, 200);
+        } else if (method.equals("PUT")) {
+            long offset = Long.parseLong(exchange.getRequestHeaders().getFirst(OFFSET_HEADER));
+            if (!session.receive(offset, length, !path.endsWith("/segments"))) {
+                respond(exchange, 409);
+                return;
+            }
+            exchange.getResponseHeaders().set(OFFSET_HEADER,
+                    Long.toString(session.getContiguous()));
+            respond(exchange, 204);
+        } else {
+            respond(exchange, 405);
+        }
+    }
+
+    private void createSession(HttpExchange exchange, byte[] body) throws IOException {
+        Map<String, String> form = new HashMap<>();
+        for (String field : new String(body, StandardCharsets.UTF_8).split("&")) {
+            String[] pair = field.split("=", 2);
+            form.put(URLDecoder.decode(pair[0], "UTF-8"),
+                    pair.length > 1 ? URLDecoder.decode(pair[1], "UTF-8") : "");
+        }
+        String id = Integer.toString(sessionCount.incrementAndGet());
+        sessions.put(id, new Session(Long.parseLong(form.get("size"))));
+        exchange.getResponseHeaders().set("Location", UPLOADS_PATH + "/" + id);
+        respond(exchange, 201);
+    }
+
+    /**
+     * Reads a request body and discards it, no faster than the bandwidth.
+     *
+     * @return The number of bytes read.
+     */
+    private long drain(InputStream in) throws IOException, InterruptedException {
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                throttle(read);
+                length += read;
+                bytesReceived.addAndGet(read);
+            }
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+
+    private byte[] readForm(HttpExchange exchange) throws IOException, InterruptedException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = IOUtils.toByteArray(in);
+            throttle(body.length);
+            bytesReceived.addAndGet(body.length);
+            return body;
+        }
+    }
+
+    /**
+     * Waits until the link has carried the bytes, which share the link with
+     * the bytes of every other request.
+     */
+    private void throttle(int bytes) throws InterruptedException {
+        long bandwidth = bytesPerSecond;
+        if (bandwidth <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFreeAt = Math.max(linkFreeAt, now)
+                    + TimeUnit.SECONDS.toNanos(bytes) / bandwidth;
+            wait = linkFreeAt - now;
+        }
+        TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private boolean shouldFail() {
+        double rate = failureRate;
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] answer = message.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, answer.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(answer);
+        }
+    }
+
+    /**
+     * Stops the sink.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The ranges of a SIP received by an upload session.
+     */
+    private static class Session {
+        private final long size;
+
+         // The ends of the ranges received, keyed by their starts. Adjacent
+         // ranges are merged.
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        Session(long size) {
+            this.size = size;
+        }
+
+        synchronized long getContiguous() {
+            Long end = ranges.get(0L);
+            return end == null ? 0 : end;
+        }
+
+        synchronized boolean receive(long offset, long length, boolean sequential) {
+            if ((sequential && offset != getContiguous()) || offset < 0
+                    || offset + length > size) {
+                return false;
+            }
+            long start = offset;
+            long end = offset + length;
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> after;
+            while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+            }
+            ranges.put(start, end);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.BagManifest;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.DigestEngine;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadFile;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadStagingEngine;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferListener;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks copying the selected files into a bag directory while they 
+ * are hashed, as {@code SipUploaderImpl.copySelectedFilesToDirectory} does
+ * when SIPs are staged. Files are copied rather than hard linked, which is
+ * what happens when the files reside on another volume, e.g. a network
+ * share.
+ *
+ * @author Keone Hiraide
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StagingBenchmark {
+
+     // The manifest algorithms of the SIPs sent to the archive.
+    private static final List<String> ALGORITHMS = Arrays.asList("md5", "sha256");
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "MIXED"})
+    public Corpus corpus;
+
+     // The number of files copied at the same time.
+    @Param({"1", "4"})
+    public int concurrency;
+
+    private List<PayloadFile> payload;
+    private PayloadStagingEngine stagingEngine;
+    private DigestEngine digestEngine;
+
+     // The bag directory of the current invocation.
+    private Path rootDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = PayloadFile.fromPaths(Collections.singletonList(corpus.create()));
+        digestEngine = new DigestEngine();
+        stagingEngine = new PayloadStagingEngine(concurrency);
+        stagingEngine.setLinking(false);
+        stagingEngine.setDigestEngine(digestEngine);
+    }
+
+    @Setup(Level.Invocation)
+    public void createBagDirectory() throws IOException {
+        rootDirectory = Files.createTempDirectory("kukini-staging").resolve("accession");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteBagDirectory() throws IOException {
+        FileUtils.deleteDirectory(rootDirectory.getParent().toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stagingEngine.shutdown();
+        digestEngine.shutdown();
+    }
+
+    /**
+     * Copies and hashes every file of the corpus.
+     */
+    @Benchmark
+    public List<BagManifest> stage() {
+        return stagingEngine.stage(payload, rootDirectory, ALGORITHMS, TransferListener.NONE);
+    }
+}
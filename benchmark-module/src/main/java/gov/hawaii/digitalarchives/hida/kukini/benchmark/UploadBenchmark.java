@@ -0,0 +1,109 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.ChannelClientHttpRequestFactory;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.StreamingMultipartRequest;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Benchmarks posting a SIP to the SIP uploader servlet in a single
+ * request, the way {@code SipUploaderImpl} uploads SIPs when no resumable
+ * upload URL is set, against a local {@link SinkServer}. The SIP is random
+ * bytes, as compressed SIPs nearly are.
+ *
+ * @author Keone Hiraide
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+
+     // The size of the SIP, in megabytes.
+    @Param({"16", "256"})
+    public int sipMegabytes;
+
+     // SIMPLE sends through HttpURLConnection, CHANNEL through the
+     // connections of ChannelClientHttpRequestFactory.
+    @Param({"SIMPLE", "CHANNEL"})
+    public String requestFactory;
+
+    private SinkServer server;
+    private RestTemplate restTemplate;
+    private Path sipPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new SinkServer();
+        sipPath = Files.createTempFile("kukini-upload", ".zip");
+        Random random = new Random(sipMegabytes);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(sipPath)) {
+            for (int i = 0; i < sipMegabytes; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        restTemplate = new RestTemplate(createRequestFactory());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (restTemplate.getRequestFactory() instanceof ChannelClientHttpRequestFactory) {
+            ((ChannelClientHttpRequestFactory) restTemplate.getRequestFactory()).shutdown();
+        }
+        server.stop();
+        Files.deleteIfExists(sipPath);
+    }
+
+    /**
+     * Posts the SIP along with its RTP ID.
+     */
+    @Benchmark
+    public ResponseEntity<String> upload() throws IOException {
+        try (FileChannel sip = FileChannel.open(sipPath, StandardOpenOption.READ)) {
+            StreamingMultipartRequest request = new StreamingMultipartRequest();
+            request.addFile("file", sipPath.getFileName().toString(), sip, sip.size());
+            request.addField("rtpId", "ark:/0000/Stub");
+            return request.post(restTemplate, server.getAccessionsURL());
+        }
+    }
+
+    /**
+     * @return The factory named by {@link #requestFactory}, configured as
+     *         it is within the spring context.
+     */
+    private ClientHttpRequestFactory createRequestFactory() {
+        if ("CHANNEL".equals(requestFactory)) {
+            return new ChannelClientHttpRequestFactory();
+        }
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setBufferRequestBody(false);
+        return factory;
+    }
+}
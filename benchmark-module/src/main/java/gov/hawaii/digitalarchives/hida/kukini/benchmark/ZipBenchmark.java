@@ -0,0 +1,131 @@
+package gov.hawaii.digitalarchives.hida.kukini.benchmark;
+
+import gov.hawaii.digitalarchives.hida.core.util.ZipUtil;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.CompressionPolicyImpl;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.ParallelDeflater;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadFile;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.PayloadStagingEngine;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.SipArchiveWriter;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.StreamingSipBuilder;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferListener;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks compressing a SIP. The staged bag is compressed both by
+ * {@code ZipUtil.compress}, which SIPs were once compressed with, and by
+ * {@link SipArchiveWriter}; {@link StreamingSipBuilder} builds the same SIP
+ * straight from the selected files, without staging them.
+ *
+ * @author Keone Hiraide
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZipBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "MIXED"})
+    public Corpus corpus;
+
+     // The number of threads deflating blocks.
+    @Param({"1", "4"})
+    public int concurrency;
+
+    private List<PayloadFile> payload;
+
+     // Holds the destination directory and the SIP of each invocation.
+    private Path workspace;
+
+     // The directory compressed into the SIP, holding the staged bag.
+    private Path destinationDirectory;
+
+     // The SIP of the current invocation, which is where ZipUtil places
+     // it.
+    private Path sipPath;
+
+    private ParallelDeflater deflater;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = PayloadFile.fromPaths(Collections.singletonList(corpus.create()));
+        workspace = Files.createTempDirectory("kukini-zip");
+        destinationDirectory = workspace.resolve("sip");
+        Path rootDirectory = destinationDirectory.resolve(StreamingSipBuilder.BAG_DIRECTORY);
+        PayloadStagingEngine stagingEngine = new PayloadStagingEngine(4);
+        try {
+            stagingEngine.stage(payload, rootDirectory, Arrays.asList("md5"), 
+                    TransferListener.NONE);
+        } finally {
+            stagingEngine.shutdown();
+        }
+        deflater = new ParallelDeflater(concurrency);
+        sipPath = workspace.resolve("sip.zip");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteSip() throws IOException {
+        Files.deleteIfExists(sipPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        deflater.shutdown();
+        FileUtils.deleteDirectory(workspace.toFile());
+    }
+
+    /**
+     * Compresses the staged bag with the archive writer.
+     */
+    @Benchmark
+    public Path sipArchiveWriter() throws IOException {
+        try (SipArchiveWriter writer = new SipArchiveWriter(sipPath, deflater)) {
+            writer.setCompressionPolicy(new CompressionPolicyImpl());
+            writer.writeDirectory(destinationDirectory);
+            writer.finish();
+        }
+        return sipPath;
+    }
+
+    /**
+     * Builds the SIP from the selected files, hashing them as they are
+     * compressed.
+     */
+    @Benchmark
+    public Path streamingSipBuilder() {
+        return new StreamingSipBuilder(Arrays.asList("md5"), deflater, 
+                new CompressionPolicyImpl()).build(payload, 
+                        Collections.<String, byte[]>emptyMap(), sipPath);
+    }
+
+    /**
+     * Compresses the staged bag with the zip utility of the core library,
+     * which compresses every entry on the calling thread.
+     */
+    @Benchmark
+    public Path zipUtil() {
+        return ZipUtil.compress(destinationDirectory);
+    }
+}
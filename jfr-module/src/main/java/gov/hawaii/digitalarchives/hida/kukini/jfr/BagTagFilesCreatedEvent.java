@@ -0,0 +1,16 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the {@code BAG_TAG_FILES_CREATED} transfer events.
+ *
+ * @author Keone Hiraide
+ */
+@Name("gov.hawaii.digitalarchives.hida.kukini.BagTagFilesCreated")
+@Label("Bag Tag Files Created")
+@Description("The BagIt tag files and tag manifests of a bag were created.")
+class BagTagFilesCreatedEvent extends KukiniEvent {
+}
@@ -0,0 +1,17 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the {@code CHUNK_SENT} transfer events.
+ *
+ * @author Keone Hiraide
+ */
+@Name("gov.hawaii.digitalarchives.hida.kukini.ChunkSent")
+@Label("Chunk Sent")
+@Description("A chunk or segment of a SIP, or a chunk of a large payload file, "
+        + "was sent and acknowledged.")
+class ChunkSentEvent extends KukiniEvent {
+}
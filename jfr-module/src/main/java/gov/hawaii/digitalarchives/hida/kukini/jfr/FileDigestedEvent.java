@@ -0,0 +1,16 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the {@code FILE_DIGESTED} transfer events.
+ *
+ * @author Keone Hiraide
+ */
+@Name("gov.hawaii.digitalarchives.hida.kukini.FileDigested")
+@Label("File Digested")
+@Description("A payload file was read only to checksum it, before the SIP was built.")
+class FileDigestedEvent extends KukiniEvent {
+}
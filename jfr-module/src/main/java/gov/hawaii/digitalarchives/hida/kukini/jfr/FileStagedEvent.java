@@ -0,0 +1,17 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the {@code FILE_STAGED} transfer events.
+ *
+ * @author Keone Hiraide
+ */
+@Name("gov.hawaii.digitalarchives.hida.kukini.FileStaged")
+@Label("File Staged")
+@Description("A payload file was copied, or hard linked, into the bag directory "
+        + "while being checksummed.")
+class FileStagedEvent extends KukiniEvent {
+}
@@ -0,0 +1,75 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferEvent;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferEventSink;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferEventType;
+import jdk.jfr.EventType;
+
+/**
+ * Records the events of the transfers into the flight recordings of the
+ * JVM. Events of a type that no recording has enabled are not created, so a
+ * transfer that is not being recorded pays for little more than the check.
+ *
+ * Start a recording with e.g. -XX:StartFlightRecording=filename=kukini.jfr
+ * or from JDK Mission Control, and find the events under Kukini/Transfer.
+ *
+ * @author Keone Hiraide
+ */
+public class FlightRecorderEventSink implements TransferEventSink {
+
+     // The flight recorder types of the events, indexed by the ordinal of
+     // their transfer event types. Whether a type is enabled follows the
+     // recordings that are running.
+    private final EventType[] eventTypes = new EventType[TransferEventType.values().length];
+
+    public FlightRecorderEventSink() {
+        for (TransferEventType type : TransferEventType.values()) {
+            eventTypes[type.ordinal()] = EventType.getEventType(getEventClass(type));
+        }
+    }
+
+    @Override
+    public TransferEvent begin(TransferEventType type) {
+        if (!eventTypes[type.ordinal()].isEnabled()) {
+            return null;
+        }
+        KukiniEvent event;
+        switch (type) {
+            case FILE_STAGED:
+                event = new FileStagedEvent();
+                break;
+            case FILE_DIGESTED:
+                event = new FileDigestedEvent();
+                break;
+            case ZIP_ENTRY_WRITTEN:
+                event = new ZipEntryWrittenEvent();
+                break;
+            case CHUNK_SENT:
+                event = new ChunkSentEvent();
+                break;
+            default:
+                event = new BagTagFilesCreatedEvent();
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param type The type of a transfer event.
+     * @return The flight recorder event that records it.
+     */
+    private static Class<? extends KukiniEvent> getEventClass(TransferEventType type) {
+        switch (type) {
+            case FILE_STAGED:
+                return FileStagedEvent.class;
+            case FILE_DIGESTED:
+                return FileDigestedEvent.class;
+            case ZIP_ENTRY_WRITTEN:
+                return ZipEntryWrittenEvent.class;
+            case CHUNK_SENT:
+                return ChunkSentEvent.class;
+            default:
+                return BagTagFilesCreatedEvent.class;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferEvent;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event of a transfer. The recorder adds the thread that
+ * did the work, and when it started and how long it took; the event adds 
+ * what the work was done to and its size. Stack traces are left out, since
+ * there is an event for every file.
+ *
+ * @author Keone Hiraide
+ */
+@Category({"Kukini", "Transfer"})
+@StackTrace(false)
+abstract class KukiniEvent extends Event implements TransferEvent {
+
+    @Label("Name")
+    String name;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    @Override
+    public void end(String name, long size) {
+        this.name = name;
+        this.size = size;
+        commit();
+    }
+}
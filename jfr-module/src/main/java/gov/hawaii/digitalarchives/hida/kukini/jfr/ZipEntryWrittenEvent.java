@@ -0,0 +1,16 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the {@code ZIP_ENTRY_WRITTEN} transfer events.
+ *
+ * @author Keone Hiraide
+ */
+@Name("gov.hawaii.digitalarchives.hida.kukini.ZipEntryWritten")
+@Label("Zip Entry Written")
+@Description("A file was read into the SIP and handed to the deflater.")
+class ZipEntryWrittenEvent extends KukiniEvent {
+}
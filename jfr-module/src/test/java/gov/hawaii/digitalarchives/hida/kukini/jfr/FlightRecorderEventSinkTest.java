@@ -0,0 +1,107 @@
+package gov.hawaii.digitalarchives.hida.kukini.jfr;
+
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferEvent;
+import gov.hawaii.digitalarchives.hida.kukini.sipcreation.TransferEventType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link FlightRecorderEventSink} class by recording transfer
+ * events and reading them back from the recording.
+ *
+ * @author Keone Hiraide
+ */
+public class FlightRecorderEventSinkTest {
+
+    private static final String FILE_STAGED = "gov.hawaii.digitalarchives.hida.kukini.FileStaged";
+    private static final String CHUNK_SENT = "gov.hawaii.digitalarchives.hida.kukini.ChunkSent";
+
+     // The file the recording is dumped to.
+    private Path recordingPath;
+
+    private FlightRecorderEventSink sink;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        recordingPath = Files.createTempFile("kukini_", ".jfr");
+        sink = new FlightRecorderEventSink();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(recordingPath);
+    }
+
+    /**
+     * Tests that the events of the types a recording has enabled are recorded
+     * with their names and sizes, and that no event is created for the 
+     * others.
+     */
+    @Test
+    public void recordTest() throws IOException {
+        try (Recording recording = new Recording()) {
+            recording.enable(FILE_STAGED).withoutThreshold();
+            recording.disable(CHUNK_SENT);
+            recording.start();
+            TransferEvent staged = sink.begin(TransferEventType.FILE_STAGED);
+            Assert.assertNotNull(staged);
+            staged.end("data/report.pdf", 1234567);
+            Assert.assertNull(sink.begin(TransferEventType.CHUNK_SENT));
+            recording.stop();
+            recording.dump(recordingPath);
+        }
+
+        List<RecordedEvent> events = getKukiniEvents();
+        Assert.assertEquals(events.size(), 1);
+        RecordedEvent event = events.get(0);
+        Assert.assertEquals(event.getEventType().getName(), FILE_STAGED);
+        Assert.assertEquals(event.getString("name"), "data/report.pdf");
+        Assert.assertEquals(event.getLong("size"), 1234567);
+        Assert.assertEquals(event.getThread().getJavaName(), Thread.currentThread().getName());
+    }
+
+    /**
+     * Tests that a type is recorded once a recording enables it after the 
+     * sink has been created.
+     */
+    @Test
+    public void enableTest() throws IOException {
+        Assert.assertNull(sink.begin(TransferEventType.CHUNK_SENT));
+        try (Recording recording = new Recording()) {
+            recording.enable(CHUNK_SENT).withoutThreshold();
+            recording.start();
+            sink.begin(TransferEventType.CHUNK_SENT).end("record_series_1.zip#0", 8388608);
+            recording.stop();
+            recording.dump(recordingPath);
+        }
+        Assert.assertNull(sink.begin(TransferEventType.CHUNK_SENT));
+
+        List<RecordedEvent> events = getKukiniEvents();
+        Assert.assertEquals(events.size(), 1);
+        Assert.assertEquals(events.get(0).getEventType().getName(), CHUNK_SENT);
+        Assert.assertEquals(events.get(0).getLong("size"), 8388608);
+    }
+
+    /**
+     * @return The Kukini events of the recording.
+     */
+    private List<RecordedEvent> getKukiniEvents() throws IOException {
+        List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingPath)) {
+            if (event.getEventType().getName().startsWith("gov.hawaii.digitalarchives")) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,179 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the checksums of the payload files of a bag so that the BagIt
+ * manifest ("manifest-[algorithm].txt") can be written without having to
+ * read the payload a second time.
+ *
+ * @author Keone Hiraide
+ */
+public class BagManifest {
+
+     // Characters used to hex encode checksums.
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+     // The BagIt name of the checksum algorithm. E.g: md5
+    private final String algorithm;
+
+     // Maps the path of each payload file within the bag to its checksum.
+    private final Map<String, String> checksums = new LinkedHashMap<>();
+
+     // The total number of payload bytes.
+    private long payloadByteCount;
+
+    /**
+     * @param algorithm The BagIt name of the checksum algorithm. E.g: md5
+     */
+    public BagManifest(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Records the checksum of a payload file.
+     *
+     * @param bagPath The path of the file relative to the root of the bag.
+     * @param digest The checksum of the file.
+     * @param size The size of the file in bytes.
+     */
+    public synchronized void add(String bagPath, byte[] digest, long size) {
+        checksums.put(bagPath, toHex(digest));
+        payloadByteCount += size;
+    }
+
+    /**
+     * Records the hex encoded checksum of a payload file, e.g. as it was
+     * read from another manifest.
+     *
+     * @param bagPath The path of the file relative to the root of the bag.
+     * @param checksum The lower case hex encoded checksum of the file.
+     * @param size The size of the file in bytes.
+     */
+    public synchronized void add(String bagPath, String checksum, long size) {
+        checksums.put(bagPath, checksum);
+        payloadByteCount += size;
+    }
+
+    /**
+     * @return The BagIt name of the checksum algorithm. E.g: md5
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return The Java Cryptography Architecture name of the checksum
+     *         algorithm. E.g: MD5
+     */
+    public String getJavaAlgorithm() {
+        return toJavaAlgorithm(algorithm);
+    }
+
+    /**
+     * @return The name of the manifest file. E.g: manifest-md5.txt
+     */
+    public String getFileName() {
+        return "manifest-" + algorithm + ".txt";
+    }
+
+    /**
+     * @return The checksums of the payload files keyed by their paths
+     *         within the bag.
+     */
+    public synchronized Map<String, String> getChecksums() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(checksums));
+    }
+
+    /**
+     * @param bagPath The path of a payload file within the bag.
+     * @return The hex encoded checksum of the file, or null if it is not
+     *         listed.
+     */
+    public synchronized String getChecksum(String bagPath) {
+        return checksums.get(bagPath);
+    }
+
+    /**
+     * @return The total number of payload bytes.
+     */
+    public synchronized long getPayloadByteCount() {
+        return payloadByteCount;
+    }
+
+    /**
+     * @return The number of payload files.
+     */
+    public synchronized int getPayloadFileCount() {
+        return checksums.size();
+    }
+
+    /**
+     * @return The Payload-Oxum of the bag. E.g: "279164409832.1198"
+     */
+    public synchronized String getPayloadOxum() {
+        return payloadByteCount + "." + checksums.size();
+    }
+
+    /**
+     * @return The contents of the manifest file.
+     */
+    public synchronized byte[] toBytes() {
+        return toManifestBytes(checksums);
+    }
+
+    /**
+     * Formats checksums as the lines of a BagIt manifest.
+     *
+     * @param checksums Checksums keyed by the path of the file within the bag.
+     * @return The contents of the manifest file.
+     */
+    static byte[] toManifestBytes(Map<String, String> checksums) {
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, String> entry : checksums.entrySet()) {
+            manifest.append(entry.getValue()).append("  ")
+                    .append(entry.getKey()).append('\n');
+        }
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Maps a BagIt algorithm name to a Java Cryptography Architecture
+     * algorithm name.
+     *
+     * @param algorithm The BagIt algorithm name. E.g: sha256
+     * @return The name understood by {@link java.security.MessageDigest}.
+     *         E.g: SHA-256
+     */
+    public static String toJavaAlgorithm(String algorithm) {
+        switch (algorithm) {
+            case "md5":
+                return "MD5";
+            case "sha1":
+                return "SHA-1";
+            case "sha256":
+                return "SHA-256";
+            case "sha512":
+                return "SHA-512";
+            default:
+                throw new IllegalArgumentException("Unsupported BagIt checksum "
+                        + "algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * @param bytes The bytes to hex encode.
+     * @return The lower case hex encoding of the bytes.
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
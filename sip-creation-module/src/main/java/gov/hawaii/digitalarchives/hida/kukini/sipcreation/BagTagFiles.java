@@ -0,0 +1,162 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Creates the BagIt tag files of a SIP bag from the checksums that were
+ * computed while its payload was being written. The tag files produced are
+ * the same ones that {@code BagUtil.makeComplete} writes: bagit.txt,
+ * bag-info.txt, the payload manifests and the tag manifests. Apart from the
+ * Bagging-Date, they hold the same bytes, except that the files of each
+ * manifest are listed in the order they were checksummed rather than in
+ * the order of a hash map.
+ *
+ * @author Keone Hiraide
+ */
+public final class BagTagFiles {
+
+     // Version of the BagIt specification that Kukini bags conform to.
+    public static final String BAGIT_VERSION = "0.97";
+
+    private static final String[] SIZE_UNITS = {"KB", "MB", "GB", "TB"};
+
+    private BagTagFiles() {
+    }
+
+    /**
+     * Creates the tag files of a bag.
+     *
+     * @param manifest The checksums of the payload files.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name. These are listed within the tag manifest.
+     * @param baggingDate The date that the bag was created.
+     *
+     * @return The contents of every tag file keyed by the name of the file,
+     *         in the order that they should be written. The tag manifest
+     *         is always last.
+     */
+    public static Map<String, byte[]> create(BagManifest manifest,
+            Map<String, byte[]> sipTags, Date baggingDate) {
+        return create(Collections.singletonList(manifest), sipTags, baggingDate);
+    }
+
+    /**
+     * Creates the tag files of a bag that has a payload manifest for each
+     * of several algorithms, along with a tag manifest for each of them.
+     * Each tag file is hashed with every algorithm in a single pass.
+     *
+     * @param manifests The checksums of the payload files, one manifest
+     *                  per algorithm. There must be at least one.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name. These are listed within the tag manifests.
+     * @param baggingDate The date that the bag was created.
+     *
+     * @return The contents of every tag file keyed by the name of the file,
+     *         in the order that they should be written. The tag manifests
+     *         are always last.
+     */
+    public static Map<String, byte[]> create(List<BagManifest> manifests,
+            Map<String, byte[]> sipTags, Date baggingDate) {
+        TransferEvent event = TransferEvents.begin(TransferEventType.BAG_TAG_FILES_CREATED);
+        Map<String, byte[]> tagFiles = new LinkedHashMap<>();
+        tagFiles.put("bagit.txt", bagitTxt());
+        tagFiles.put("bag-info.txt", bagInfoTxt(manifests.get(0), baggingDate));
+        tagFiles.putAll(sipTags);
+        List<String> algorithms = new ArrayList<>(manifests.size());
+        for (BagManifest manifest : manifests) {
+            tagFiles.put(manifest.getFileName(), manifest.toBytes());
+            algorithms.add(manifest.getAlgorithm());
+        }
+
+        try {
+            MultiDigest digest = new MultiDigest(algorithms);
+            Map<String, Map<String, String>> tagChecksums = new LinkedHashMap<>();
+            for (String algorithm : algorithms) {
+                tagChecksums.put(algorithm, new LinkedHashMap<String, String>());
+            }
+            for (Map.Entry<String, byte[]> tagFile : tagFiles.entrySet()) {
+                byte[] contents = tagFile.getValue();
+                digest.update(contents, 0, contents.length);
+                for (Map.Entry<String, byte[]> checksum : digest.digest().entrySet()) {
+                    tagChecksums.get(checksum.getKey()).put(tagFile.getKey(),
+                            BagManifest.toHex(checksum.getValue()));
+                }
+            }
+            for (BagManifest manifest : manifests) {
+                tagFiles.put("tag" + manifest.getFileName(), BagManifest.toManifestBytes(
+                        tagChecksums.get(manifest.getAlgorithm())));
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new HidaIOException("Failed to checksum the tag files of the bag", e);
+        }
+        if (event != null) {
+            long size = 0;
+            for (byte[] contents : tagFiles.values()) {
+                size += contents.length;
+            }
+            event.end(manifests.get(0).getPayloadOxum(), size);
+        }
+        return tagFiles;
+    }
+
+    /**
+     * @return The contents of the bag declaration, bagit.txt.
+     */
+    static byte[] bagitTxt() {
+        return ("BagIt-Version: " + BAGIT_VERSION + "\n"
+                + "Tag-File-Character-Encoding: UTF-8\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param manifest The checksums of the payload files.
+     * @param baggingDate The date that the bag was created.
+     * @return The contents of bag-info.txt.
+     */
+    static byte[] bagInfoTxt(BagManifest manifest, Date baggingDate) {
+        return ("Payload-Oxum: " + manifest.getPayloadOxum() + "\n"
+                + "Bagging-Date: " + new SimpleDateFormat("yyyy-MM-dd").format(baggingDate) + "\n"
+                + "Bag-Size: " + toBagSize(manifest.getPayloadByteCount()) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Formats a size as the bag module does, in the largest unit that it
+     * reaches, or in KB below a megabyte, with decimal places added while
+     * the last one would be a zero.
+     *
+     * @param bytes A number of bytes.
+     * @return A human readable size. E.g: "1.6 KB" or "10.25 MB"
+     */
+    static String toBagSize(long bytes) {
+        double size = bytes / 1024.0;
+        int unit = 0;
+        while (size >= 1024 && unit < SIZE_UNITS.length - 1) {
+            size /= 1024;
+            unit++;
+        }
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.US);
+        String pattern = "#.#";
+        String formatted = new DecimalFormat(pattern, symbols).format(size);
+        // The bag module never finishes for a whole number that ends with 
+        // a zero, such as exactly 10 MB; it is written as is.
+        while (formatted.endsWith("0") && size != Math.rint(size)) {
+            pattern += "#";
+            formatted = new DecimalFormat(pattern, symbols).format(size);
+        }
+        return formatted + " " + SIZE_UNITS[unit];
+    }
+}
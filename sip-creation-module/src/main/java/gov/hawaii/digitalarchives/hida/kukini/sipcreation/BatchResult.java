@@ -0,0 +1,140 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpStatusCodeException;
+
+/**
+ * The outcome of transferring one SIP of a batch, in a form that scripts can
+ * read once it has been written out as JSON.
+ *
+ * @author Keone Hiraide
+ */
+public class BatchResult {
+
+     // The files and folders placed within the SIP.
+    private final List<String> sources;
+
+     // Whether the SIP was created and uploaded.
+    private final boolean succeeded;
+
+     // The HTTP status of the response, or 0 if there was none.
+    private final int httpStatus;
+
+     // The body of the response, or null if there was none.
+    private final String response;
+
+     // Why the transfer failed, or null if it succeeded.
+    private final String error;
+
+     // How long the transfer took.
+    private final long durationMillis;
+
+     // The bytes processed by each stage, keyed by the name of the stage.
+    private final Map<String, Long> stageBytes;
+
+    private BatchResult(List<Path> sources, boolean succeeded, int httpStatus, String response,
+            String error, long durationMillis, Map<String, Long> stageBytes) {
+        List<String> names = new ArrayList<>(sources.size());
+        for (Path source : sources) {
+            names.add(source.toString());
+        }
+        this.sources = Collections.unmodifiableList(names);
+        this.succeeded = succeeded;
+        this.httpStatus = httpStatus;
+        this.response = response;
+        this.error = error;
+        this.durationMillis = durationMillis;
+        this.stageBytes = Collections.unmodifiableMap(stageBytes);
+    }
+
+    /**
+     * @param sources The files and folders placed within the SIP.
+     * @param response The response to the upload.
+     * @param durationMillis How long the transfer took.
+     * @param stageBytes The bytes processed by each stage.
+     *
+     * @return The result of a SIP that was uploaded.
+     */
+    static BatchResult uploaded(List<Path> sources, ResponseEntity<String> response,
+            long durationMillis, Map<String, Long> stageBytes) {
+        return new BatchResult(sources, true, response.getStatusCode().value(), 
+                response.getBody(), null, durationMillis, stageBytes);
+    }
+
+    /**
+     * @param sources The files and folders placed within the SIP.
+     * @param e Why the transfer failed.
+     * @param durationMillis How long the transfer took.
+     * @param stageBytes The bytes processed by each stage.
+     *
+     * @return The result of a SIP that failed to be created or uploaded.
+     */
+    static BatchResult failed(List<Path> sources, Exception e, long durationMillis,
+            Map<String, Long> stageBytes) {
+        int httpStatus = 0;
+        String response = null;
+        if (e instanceof HttpStatusCodeException) {
+            HttpStatusCodeException statusException = (HttpStatusCodeException) e;
+            httpStatus = statusException.getStatusCode().value();
+            response = statusException.getResponseBodyAsString();
+        }
+        String error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+        return new BatchResult(sources, false, httpStatus, response, error, durationMillis, 
+                stageBytes);
+    }
+
+    /**
+     * @return The files and folders placed within the SIP.
+     */
+    public List<String> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return Whether the SIP was created and uploaded.
+     */
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return The HTTP status of the response, or 0 if there was none.
+     */
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    /**
+     * @return The body of the response, or null if there was none.
+     */
+    public String getResponse() {
+        return response;
+    }
+
+    /**
+     * @return Why the transfer failed, or null if it succeeded.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return How long the transfer took.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return The bytes processed by each stage that processed any, keyed
+     *         by the name of the stage.
+     */
+    public Map<String, Long> getStageBytes() {
+        return stageBytes;
+    }
+}
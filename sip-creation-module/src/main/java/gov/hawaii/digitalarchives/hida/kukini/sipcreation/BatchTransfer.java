@@ -0,0 +1,170 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Creates and uploads many SIPs at the same time without a user at hand,
+ * e.g. from a nightly script. Every SIP is transferred by the same 
+ * {@link SipUploader} as in the application, and all of them share a
+ * {@link TransferBudget} so that together they stay within the CPU and I/O
+ * the machine can spare.
+ *
+ * A SIP that fails does not stop the others: its failure is recorded in its
+ * result.
+ *
+ * @author Keone Hiraide
+ */
+public class BatchTransfer {
+
+     // For logging.
+    private static final Logger log = LoggerFactory.getLogger(BatchTransfer.class);
+
+    private final SipUploader sipUploader;
+    private final RestTemplate restTemplate;
+
+     // The most SIPs transferred at the same time.
+    private final int concurrency;
+
+     // The CPU and I/O shared by every SIP.
+    private final TransferBudget budget;
+
+    /**
+     * @param sipUploader Creates and uploads each SIP.
+     * @param restTemplate The {@link RestTemplate} used to upload each SIP.
+     * @param concurrency The most SIPs transferred at the same time.
+     * @param budget The CPU and I/O shared by every SIP.
+     */
+    public BatchTransfer(SipUploader sipUploader, RestTemplate restTemplate, int concurrency,
+            TransferBudget budget) {
+        Assert.notNull(sipUploader);
+        Assert.notNull(restTemplate);
+        Assert.isTrue(concurrency > 0, "The concurrency must be positive");
+        Assert.notNull(budget);
+        this.sipUploader = sipUploader;
+        this.restTemplate = restTemplate;
+        this.concurrency = concurrency;
+        this.budget = budget;
+    }
+
+    /**
+     * @return The most SIPs transferred at the same time.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Creates and uploads every SIP, and waits until all of them have been
+     * transferred or have failed. If the calling thread is interrupted, the 
+     * transfers still running are interrupted too.
+     *
+     * @param sips The files and folders to place within each SIP.
+     *
+     * @return The result of each SIP, in the order of the SIPs.
+     */
+    public List<BatchResult> run(List<List<Path>> sips) {
+        log.debug("Entering run(sips={})", sips.size());
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.min(concurrency, Math.max(1, sips.size())), new WorkerThreadFactory());
+        List<Future<BatchResult>> transfers = new ArrayList<>(sips.size());
+        try {
+            for (List<Path> sources : sips) {
+                transfers.add(workers.submit(new Transfer(sources)));
+            }
+            List<BatchResult> results = new ArrayList<>(sips.size());
+            for (Future<BatchResult> transfer : transfers) {
+                results.add(transfer.get());
+            }
+            log.debug("Exiting run(): {} results", results.size());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HidaIOException("Interrupted while transferring the batch", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to transfer the batch", e.getCause());
+        } finally {
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Creates and uploads one SIP on the calling thread, within the budget
+     * shared with the other SIPs of this batch.
+     *
+     * @param sources The files and folders to place within the SIP.
+     *
+     * @return The result of the SIP.
+     */
+    public BatchResult transfer(List<Path> sources) {
+        BudgetedTransferListener listener = new BudgetedTransferListener(budget);
+        long start = System.nanoTime();
+        try {
+            ResponseEntity<String> response = sipUploader.createAndUploadSipFromPaths(
+                    sources, restTemplate, listener);
+            log.info("Uploaded the SIP of {}: {}", sources, response.getStatusCode());
+            return BatchResult.uploaded(sources, response, elapsedMillis(start), 
+                    listener.getStageBytes());
+        } catch (RuntimeException e) {
+            log.error("Failed to transfer the SIP of " + sources, e);
+            return BatchResult.failed(sources, e, elapsedMillis(start), 
+                    listener.getStageBytes());
+        } finally {
+            listener.releaseCpu();
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Creates and uploads one SIP of the batch.
+     */
+    private class Transfer implements Callable<BatchResult> {
+        private final List<Path> sources;
+
+        Transfer(List<Path> sources) {
+            this.sources = sources;
+        }
+
+        @Override
+        public BatchResult call() {
+            return transfer(sources);
+        }
+    }
+
+    /**
+     * Creates the daemon threads that transfer the SIPs.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "kukini-batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
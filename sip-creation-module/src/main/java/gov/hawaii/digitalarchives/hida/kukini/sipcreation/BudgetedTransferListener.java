@@ -0,0 +1,95 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds a SIP of a batch transfer to a {@link TransferBudget}: it takes a
+ * CPU slot when a stage that uses the CPU starts, gives it back once the
+ * stage has finished, and spends the I/O budget for every byte reported.
+ * It also counts the bytes of each stage for the result of the transfer.
+ *
+ * Stages are started and finished by the thread that transfers the SIP,
+ * and only bytes may be reported by other threads.
+ *
+ * @author Keone Hiraide
+ */
+class BudgetedTransferListener implements TransferListener {
+
+     // The budget shared by every SIP of the batch.
+    private final TransferBudget budget;
+
+     // Whether a CPU slot is held.
+    private boolean holdingCpu;
+
+     // The bytes processed by each stage.
+    private final Map<TransferStage, AtomicLong> stageBytes = new EnumMap<>(TransferStage.class);
+
+    /**
+     * @param budget The budget shared by every SIP of the batch.
+     */
+    BudgetedTransferListener(TransferBudget budget) {
+        this.budget = budget;
+        for (TransferStage stage : TransferStage.values()) {
+            stageBytes.put(stage, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void stageStarted(TransferStage stage, long totalBytes) {
+        boolean cpu = stage != TransferStage.UPLOADING;
+        if (cpu && !holdingCpu) {
+            try {
+                budget.acquireCpu();
+                holdingCpu = true;
+            } catch (InterruptedException e) {
+                // The stage checks for the interruption itself, and stops.
+                Thread.currentThread().interrupt();
+            }
+        } else if (!cpu) {
+            releaseCpu();
+        }
+    }
+
+    @Override
+    public void transferred(TransferStage stage, long count) {
+        stageBytes.get(stage).addAndGet(count);
+        try {
+            budget.consume(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void stageFinished(TransferStage stage) {
+        releaseCpu();
+    }
+
+    /**
+     * Gives back the CPU slot, if it is held, e.g. once a transfer that
+     * failed in the middle of a stage has stopped.
+     */
+    void releaseCpu() {
+        if (holdingCpu) {
+            holdingCpu = false;
+            budget.releaseCpu();
+        }
+    }
+
+    /**
+     * @return The bytes processed by each stage that processed any, keyed
+     *         by the name of the stage.
+     */
+    Map<String, Long> getStageBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        for (Map.Entry<TransferStage, AtomicLong> entry : stageBytes.entrySet()) {
+            if (entry.getValue().get() > 0) {
+                bytes.put(entry.getKey().name(), entry.getValue().get());
+            }
+        }
+        return bytes;
+    }
+}
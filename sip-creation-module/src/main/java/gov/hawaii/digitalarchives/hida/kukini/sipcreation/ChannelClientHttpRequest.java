@@ -0,0 +1,181 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * An HTTP/1.1 request sent over a {@link ChannelConnection}, whose body is a
+ * {@link ChannelOutputStream}. The connection is taken from the pool of the
+ * factory, or opened, when the body is first written or when a request
+ * without a body is executed, and is given back when the response is
+ * closed.
+ *
+ * A connection taken from the pool may have been closed by the server
+ * since its last response. If sending the headers over it fails, or if a
+ * request without a body that may safely be repeated gets no response, the
+ * request is sent again over another connection.
+ *
+ * @author Keone Hiraide
+ */
+class ChannelClientHttpRequest implements ClientHttpRequest {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+     // Where the request is sent.
+    private final URI uri;
+    private final HttpMethod method;
+
+     // Provides the connection.
+    private final ChannelClientHttpRequestFactory factory;
+
+    private final HttpHeaders headers = new HttpHeaders();
+
+     // The connection, and whether it had carried a request before.
+    private ChannelConnection connection;
+    private boolean reused;
+
+     // The body, once it has been started.
+    private ChannelOutputStream body;
+
+    ChannelClientHttpRequest(URI uri, HttpMethod method,
+            ChannelClientHttpRequestFactory factory) {
+        this.uri = uri;
+        this.method = method;
+        this.factory = factory;
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    @Override
+    public URI getURI() {
+        return uri;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public OutputStream getBody() throws IOException {
+        if (body == null) {
+            boolean chunked = headers.getContentLength() < 0;
+            if (chunked) {
+                headers.set("Transfer-Encoding", "chunked");
+            }
+            connect();
+            body = new ChannelOutputStream(connection.getChannel(), connection.isZeroCopy(),
+                    chunked);
+        }
+        return body;
+    }
+
+    @Override
+    public ClientHttpResponse execute() throws IOException {
+        try {
+            if (body != null) {
+                body.finish();
+                return new ChannelClientHttpResponse(connection, method, factory);
+            }
+            if (method == HttpMethod.POST || method == HttpMethod.PUT
+                    || method == HttpMethod.PATCH) {
+                headers.setContentLength(0);
+            }
+            while (true) {
+                connect();
+                try {
+                    return new ChannelClientHttpResponse(connection, method, factory);
+                } catch (EOFException e) {
+                    if (!reused || !isIdempotent()) {
+                        throw e;
+                    }
+                    // The server closed the idle connection as the request
+                    // was sent.
+                    factory.discard(connection);
+                    connection = null;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a connection, and sends the request line and the headers over
+     * it.
+     */
+    private void connect() throws IOException {
+        StringBuilder head = new StringBuilder(method.name()).append(' ')
+                .append(uri.getRawPath() == null || uri.getRawPath().isEmpty()
+                        ? "/" : uri.getRawPath());
+        if (uri.getRawQuery() != null) {
+            head.append('?').append(uri.getRawQuery());
+        }
+        head.append(" HTTP/1.1\r\n");
+        if (!headers.containsKey("Host")) {
+            head.append("Host: ").append(uri.getHost());
+            if (uri.getPort() != -1) {
+                head.append(':').append(uri.getPort());
+            }
+            head.append("\r\n");
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        byte[] bytes = head.toString().getBytes(ISO_8859_1);
+
+        while (true) {
+            connection = factory.getConnection(uri);
+            reused = connection.startRequest();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    connection.getChannel().write(buffer);
+                }
+                return;
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+                // The server closed the idle connection; nothing of the
+                // request has reached it.
+                factory.discard(connection);
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * @return Whether the request may be sent again without effect, should
+     *         it be lost.
+     */
+    private boolean isIdempotent() {
+        return method == HttpMethod.GET || method == HttpMethod.HEAD
+                || method == HttpMethod.OPTIONS || method == HttpMethod.DELETE
+                || method == HttpMethod.TRACE;
+    }
+
+    private void close() {
+        if (connection != null) {
+            factory.discard(connection);
+            connection = null;
+        }
+    }
+}
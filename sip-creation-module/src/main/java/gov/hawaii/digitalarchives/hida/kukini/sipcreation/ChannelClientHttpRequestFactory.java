@@ -0,0 +1,307 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+/**
+ * Creates requests that are sent over {@link java.nio.channels.SocketChannel}s
+ * instead of HttpURLConnections, so that the file parts of a
+ * {@link StreamingMultipartRequest} reach the socket without being copied
+ * through byte arrays. Over plain HTTP files are sent with
+ * {@link java.nio.channels.FileChannel#transferTo}; over HTTPS they are
+ * encrypted from direct buffers.
+ *
+ * Connections are kept alive and reused by later requests to the same host
+ * and port once their responses have been read, so that requests after the
+ * first skip the TCP and TLS handshakes. A connection is closed once it has
+ * been idle for the keep-alive timeout, when the server asks for it to be
+ * closed, or when its response is closed before it has been read. The
+ * number of connections open to each host, and in all, is limited; requests
+ * wait for a connection when they are reached. New connections to a host
+ * resume the TLS session of an earlier one where the server allows it,
+ * since they share the SSL context. The factory is shared by every module
+ * through the Spring context, and {@link #shutdown()} closes its
+ * connections.
+ *
+ * Requests to a URI that the default {@link ProxySelector} sends through a
+ * proxy are sent over HttpURLConnections instead, which go through the
+ * proxy, so that the factory can back every request of Kukini. Their bodies
+ * are streamed rather than buffered, but they are neither pooled nor sent
+ * without copies.
+ *
+ * @author Keone Hiraide
+ */
+public class ChannelClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+     // How long to wait for a connection, and for data from the server, in
+     // milliseconds; 0 waits forever.
+    private int connectTimeout = 0;
+    private int readTimeout = 0;
+
+     // Secures https connections.
+    private SSLContext sslContext;
+
+     // The most connections open at once to each host and port, unless it
+     // has its own limit, and to all of them together.
+    private int maxConnectionsPerRoute = 8;
+    private int maxConnections = 20;
+
+     // The limits of particular hosts, keyed by host:port.
+    private Map<String, Integer> routeLimits = Collections.emptyMap();
+
+     // How long an idle connection is kept open, in milliseconds.
+    private long keepAliveTimeout = 30000;
+
+     // The idle connections, and the count of those in use.
+    private final ChannelConnectionPool pool = new ChannelConnectionPool(this);
+
+     // Sends the requests that must go through a proxy.
+    private final SimpleClientHttpRequestFactory proxiedRequestFactory =
+            new SimpleClientHttpRequestFactory();
+
+    /**
+     * Creates a factory whose requests through a proxy stream their bodies
+     * in chunks of 64 KB when their length is unknown.
+     */
+    public ChannelClientHttpRequestFactory() {
+        proxiedRequestFactory.setBufferRequestBody(false);
+        proxiedRequestFactory.setChunkSize(65536);
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        if (isProxied(uri)) {
+            return proxiedRequestFactory.createRequest(uri, httpMethod);
+        }
+        return new ChannelClientHttpRequest(uri, httpMethod, this);
+    }
+
+    /**
+     * @return Whether the default proxy selector sends requests to a URI
+     *         through a proxy.
+     */
+    private static boolean isProxied(URI uri) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return false;
+        }
+        List<Proxy> proxies = proxySelector.select(uri);
+        return !proxies.isEmpty() && proxies.get(0).type() != Proxy.Type.DIRECT;
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed once their
+     * responses are closed, and no more requests can be sent.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @return The number of connections that are open, whether idle or in
+     *         use.
+     */
+    public int getOpenConnections() {
+        return pool.getOpenConnections();
+    }
+
+    /**
+     * @param connectTimeout How long to wait for a connection, in
+     *                       milliseconds; 0 waits forever.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        proxiedRequestFactory.setConnectTimeout(connectTimeout);
+    }
+
+    /**
+     * @return How long to wait for a connection, in milliseconds.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param readTimeout How long to wait for data from the server, in
+     *                    milliseconds; 0 waits forever.
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        proxiedRequestFactory.setReadTimeout(readTimeout);
+    }
+
+    /**
+     * @return How long to wait for data from the server, in milliseconds.
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @param sslContext Secures https connections. The default context of
+     *                   the JVM is used when unset.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * @return The context that secures https connections.
+     */
+    public SSLContext getSslContext() throws IOException {
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("TLS is not available", e);
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * @param maxConnectionsPerRoute The most connections open at once to a
+     *                               host and port without a limit of its
+     *                               own.
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return The most connections open at once to a host and port without
+     *         a limit of its own.
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * @param maxConnections The most connections open at once to all hosts.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return The most connections open at once to all hosts.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param routeLimits The most connections open at once to particular
+     *                    hosts, keyed by host:port, e.g.
+     *                    archives.hawaii.gov:443.
+     */
+    public void setRouteLimits(Map<String, Integer> routeLimits) {
+        Map<String, Integer> limits = new HashMap<>();
+        for (Map.Entry<String, Integer> limit : routeLimits.entrySet()) {
+            limits.put(limit.getKey().toLowerCase(), limit.getValue());
+        }
+        this.routeLimits = limits;
+    }
+
+    /**
+     * @param keepAliveTimeout How long an idle connection is kept open, in
+     *                         milliseconds; 0 closes every connection along
+     *                         with its response.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * @return How long an idle connection is kept open, in milliseconds.
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * @return The most connections open at once to a host and port.
+     */
+    int getMaxConnectionsPerRoute(String route) {
+        Integer limit = routeLimits.get(route);
+        return limit != null ? limit : maxConnectionsPerRoute;
+    }
+
+    /**
+     * Takes an idle connection to the host of a URI, or opens a new one,
+     * waiting while too many are open.
+     *
+     * @param uri The URI the request is sent to.
+     */
+    ChannelConnection getConnection(URI uri) throws IOException {
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+        String route = uri.getHost().toLowerCase() + ":" + port;
+        ChannelConnection connection = pool.acquire(route);
+        if (connection != null) {
+            return connection;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setSoTimeout(readTimeout);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(uri.getHost(), port),
+                    connectTimeout);
+            TlsChannel tlsChannel = null;
+            if (secure) {
+                // Engines created for the same host and port resume the
+                // sessions cached by the context.
+                SSLEngine engine = getSslContext().createSSLEngine(uri.getHost(), port);
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                tlsChannel = new TlsChannel(channel, engine);
+                tlsChannel.handshake();
+            }
+            return new ChannelConnection(route, channel, tlsChannel);
+        } catch (IOException | RuntimeException e) {
+            pool.discard(route, null);
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection whose response has been read entirely, so that
+     * it can carry another request.
+     */
+    void release(ChannelConnection connection) {
+        if (keepAliveTimeout > 0) {
+            pool.release(connection);
+        } else {
+            pool.discard(connection.getRoute(), connection);
+        }
+    }
+
+    /**
+     * Closes a connection that cannot carry another request.
+     */
+    void discard(ChannelConnection connection) {
+        pool.discard(connection.getRoute(), connection);
+    }
+}
@@ -0,0 +1,274 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * The response to a {@link ChannelClientHttpRequest}. Its status line and
+ * headers are read when it is created; its body is read on demand and may
+ * be delimited by its Content-Length, the chunked transfer coding, or the
+ * end of the connection.
+ *
+ * Once its body has been read, the connection is given back to the pool of
+ * the factory when it is closed, unless the server asked for the connection
+ * to be closed or delimited the body by closing it. A body that is not read
+ * to its end, e.g. the last bytes of an error page, is skipped when it is
+ * short; otherwise the connection is closed.
+ *
+ * @author Keone Hiraide
+ */
+class ChannelClientHttpResponse implements ClientHttpResponse {
+
+     // The longest status or header line accepted.
+    private static final int MAX_LINE_LENGTH = 8192;
+
+     // The most unread bytes of a body skipped to keep its connection.
+    private static final int MAX_SKIPPED = 64 * 1024;
+
+     // The connection, which is given back or closed along with the
+     // response, and its factory.
+    private final ChannelConnection connection;
+    private final ChannelClientHttpRequestFactory factory;
+
+     // Whether the connection can carry another request once the body has
+     // been read.
+    private final boolean keepAlive;
+
+     // Whether the response has been closed.
+    private boolean closed;
+
+    private final int statusCode;
+    private final String statusText;
+    private final HttpHeaders headers = new HttpHeaders();
+    private final InputStream body;
+
+    /**
+     * Reads the status line and headers of the response.
+     *
+     * @param connection The connection the request was sent over.
+     * @param method The method of the request, since the response to a HEAD
+     *               request has no body.
+     * @param factory Takes the connection back once the response is closed.
+     */
+    ChannelClientHttpResponse(ChannelConnection connection, HttpMethod method,
+            ChannelClientHttpRequestFactory factory) throws IOException {
+        this.connection = connection;
+        this.factory = factory;
+        InputStream buffered = connection.getInputStream();
+        String statusLine;
+        do {
+            // Interim responses, e.g. 100 Continue, are skipped along with
+            // their headers.
+            statusLine = readLine(buffered);
+            headers.clear();
+            String line;
+            while (!(line = readLine(buffered)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+            }
+        } while (statusLine.startsWith("HTTP/1.1 1") || statusLine.startsWith("HTTP/1.0 1"));
+
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Received an invalid status line: " + statusLine);
+        }
+        try {
+            statusCode = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Received an invalid status line: " + statusLine, e);
+        }
+        statusText = status.length > 2 ? status[2] : "";
+
+        String transferEncoding = headers.getFirst("Transfer-Encoding");
+        String connectionHeader = headers.getFirst("Connection");
+        boolean persistent = statusLine.startsWith("HTTP/1.1")
+                ? !"close".equalsIgnoreCase(connectionHeader)
+                : "keep-alive".equalsIgnoreCase(connectionHeader);
+        if (method == HttpMethod.HEAD || statusCode == 204 || statusCode == 304) {
+            body = new LengthInputStream(buffered, 0);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            body = new ChunkedInputStream(buffered);
+        } else if (headers.getContentLength() >= 0) {
+            body = new LengthInputStream(buffered, headers.getContentLength());
+        } else {
+            // The body ends when the server closes the connection.
+            body = buffered;
+            persistent = false;
+        }
+        keepAlive = persistent;
+    }
+
+    @Override
+    public HttpStatus getStatusCode() throws IOException {
+        return HttpStatus.valueOf(statusCode);
+    }
+
+    @Override
+    public int getRawStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public String getStatusText() {
+        return statusText;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public InputStream getBody() {
+        return body;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (keepAlive && skipBody()) {
+            factory.release(connection);
+        } else {
+            factory.discard(connection);
+        }
+    }
+
+    /**
+     * Reads what is left of the body, if it is short.
+     *
+     * @return Whether the end of the body was reached.
+     */
+    private boolean skipBody() {
+        try {
+            byte[] buffer = new byte[4096];
+            int skipped = 0;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                skipped += read;
+                if (skipped > MAX_SKIPPED) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a line ended by CRLF or LF, without its end.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("The server closed the connection before the end "
+                        + "of the response headers");
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Received a response line longer than "
+                        + MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        String text = line.toString("ISO-8859-1");
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Reads a body of a known length.
+     */
+    private static class LengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("The server closed the connection " + remaining
+                        + " bytes before the end of the response");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Decodes a body sent with the chunked transfer coding.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+
+         // The bytes left in the current chunk, or -1 after the last one.
+        private long remaining;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                String size = readLine(in);
+                int extension = size.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension == -1 ? size
+                            : size.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Received an invalid chunk size: " + size, e);
+                }
+                if (remaining == 0) {
+                    // Skip the trailers.
+                    while (!readLine(in).isEmpty()) {
+                    }
+                    remaining = -1;
+                }
+            }
+            if (remaining == -1) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("The server closed the connection within a chunk");
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                readLine(in);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A connection to a server, over which {@link ChannelClientHttpRequest}s
+ * are sent one after another. Plain connections are written straight to
+ * the socket; secure connections through a {@link TlsChannel}.
+ *
+ * @author Keone Hiraide
+ */
+class ChannelConnection {
+
+     // The host and port the connection was opened to.
+    private final String route;
+
+     // The connection, and the TLS channel over it for https URLs.
+    private final SocketChannel channel;
+    private final TlsChannel tlsChannel;
+
+     // The responses sent by the server, which outlives each response so
+     // that bytes read ahead are not lost.
+    private final InputStream in;
+
+     // When the connection was last returned to its pool, in milliseconds.
+    private long idleSince;
+
+     // How many requests have been sent over the connection.
+    private int requests;
+
+    /**
+     * @param route The host and port the connection was opened to.
+     * @param channel A connected, blocking channel.
+     * @param tlsChannel The TLS channel over it, or null for plain
+     *                   connections.
+     */
+    ChannelConnection(String route, SocketChannel channel, TlsChannel tlsChannel)
+            throws IOException {
+        this.route = route;
+        this.channel = channel;
+        this.tlsChannel = tlsChannel;
+        this.in = new BufferedInputStream(tlsChannel != null ? tlsChannel.getInputStream()
+                : channel.socket().getInputStream());
+    }
+
+    /**
+     * @return The host and port the connection was opened to.
+     */
+    String getRoute() {
+        return route;
+    }
+
+    /**
+     * @return The channel that requests are written to.
+     */
+    WritableByteChannel getChannel() {
+        return tlsChannel != null ? tlsChannel : channel;
+    }
+
+    /**
+     * @return Whether files may be transferred straight to the channel,
+     *         i.e. the connection is not secured.
+     */
+    boolean isZeroCopy() {
+        return tlsChannel == null;
+    }
+
+    /**
+     * @return The responses sent by the server.
+     */
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Counts a request sent over the connection.
+     *
+     * @return Whether the connection has carried a request before, i.e. it
+     *         came from the pool.
+     */
+    boolean startRequest() {
+        return requests++ > 0;
+    }
+
+    /**
+     * Marks the connection as idle.
+     */
+    void idle() {
+        idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @return How long the connection has been idle, in milliseconds.
+     */
+    long getIdleTime() {
+        return System.currentTimeMillis() - idleSince;
+    }
+
+    /**
+     * Checks, without blocking, whether the server has closed the connection
+     * or sent anything on it while it was idle. Either way it cannot carry
+     * another request.
+     *
+     * @return Whether the connection is still usable.
+     */
+    boolean isUsable() {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        try {
+            if (in.available() > 0) {
+                return false;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connection, sending the TLS close notification first if it
+     * is secure.
+     */
+    void close() {
+        try {
+            if (tlsChannel != null) {
+                tlsChannel.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // The connection is no longer wanted.
+        }
+    }
+}
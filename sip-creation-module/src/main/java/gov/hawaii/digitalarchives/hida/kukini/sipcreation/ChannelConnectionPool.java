@@ -0,0 +1,230 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the connections of a {@link ChannelClientHttpRequestFactory} alive
+ * between requests. Each route, i.e. host and port, has at most a given
+ * number of connections open at once, and all routes together at most
+ * another; a request that would open one more waits until a connection is
+ * released.
+ *
+ * Connections are reused most recently released first, and closed once
+ * they have been idle longer than the keep-alive timeout.
+ *
+ * @author Keone Hiraide
+ */
+class ChannelConnectionPool {
+
+     // The idle connections of each route, most recently released first.
+    private final Map<String, Deque<ChannelConnection>> idle = new HashMap<>();
+
+     // The number of connections of each route that are open, idle or not.
+    private final Map<String, Integer> open = new HashMap<>();
+
+     // The number of connections that are open, idle or not.
+    private int totalOpen;
+
+     // Whether the pool has been shut down.
+    private boolean shutdown;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+     // Provides the limits and the keep-alive timeout.
+    private final ChannelClientHttpRequestFactory factory;
+
+    ChannelConnectionPool(ChannelClientHttpRequestFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Takes an idle connection to a route, or reserves room to open a new
+     * one, waiting while the route or the pool is full.
+     *
+     * @param route The host and port.
+     *
+     * @return An idle connection, or null if the caller must open a new one
+     *         and later release it with {@link #release} or
+     *         {@link #discard}.
+     */
+    ChannelConnection acquire(String route) throws IOException {
+        List<ChannelConnection> stale = new ArrayList<>();
+        lock.lock();
+        try {
+            while (true) {
+                if (shutdown) {
+                    throw new IOException("The connection pool has been shut down");
+                }
+                Deque<ChannelConnection> connections = idle.get(route);
+                while (connections != null && !connections.isEmpty()) {
+                    ChannelConnection connection = connections.pollFirst();
+                    if (connection.getIdleTime() < factory.getKeepAliveTimeout()
+                            && connection.isUsable()) {
+                        return connection;
+                    }
+                    closed(route);
+                    stale.add(connection);
+                }
+                if (count(route) < factory.getMaxConnectionsPerRoute(route)) {
+                    if (totalOpen < factory.getMaxConnections()) {
+                        opened(route);
+                        return null;
+                    }
+                    // Make room by closing the connection of another route
+                    // that has been idle longest.
+                    ChannelConnection eldest = evictEldest();
+                    if (eldest != null) {
+                        stale.add(eldest);
+                        continue;
+                    }
+                }
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a "
+                            + "connection to " + route);
+                }
+            }
+        } finally {
+            lock.unlock();
+            for (ChannelConnection connection : stale) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a connection whose last response has been read entirely, so
+     * that it can carry another request.
+     */
+    void release(ChannelConnection connection) {
+        lock.lock();
+        try {
+            if (!shutdown) {
+                connection.idle();
+                Deque<ChannelConnection> connections = idle.get(connection.getRoute());
+                if (connections == null) {
+                    connections = new ArrayDeque<>();
+                    idle.put(connection.getRoute(), connections);
+                }
+                connections.addFirst(connection);
+                released.signalAll();
+                return;
+            }
+            closed(connection.getRoute());
+        } finally {
+            lock.unlock();
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes a connection that cannot carry another request, or gives back
+     * the room reserved for one that could not be opened.
+     *
+     * @param route The route of the connection.
+     * @param connection The connection, or null if it was never opened.
+     */
+    void discard(String route, ChannelConnection connection) {
+        lock.lock();
+        try {
+            closed(route);
+        } finally {
+            lock.unlock();
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed when they
+     * are released, and no more are opened.
+     */
+    void shutdown() {
+        List<ChannelConnection> connections = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Map.Entry<String, Deque<ChannelConnection>> route : idle.entrySet()) {
+                for (ChannelConnection connection : route.getValue()) {
+                    closed(route.getKey());
+                    connections.add(connection);
+                }
+            }
+            idle.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (ChannelConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return The number of connections that are open, idle or not.
+     */
+    int getOpenConnections() {
+        lock.lock();
+        try {
+            return totalOpen;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the connection that has been idle longest from the pool.
+     *
+     * @return The connection, which the caller closes, or null if no
+     *         connection is idle.
+     */
+    private ChannelConnection evictEldest() {
+        ChannelConnection eldest = null;
+        for (Deque<ChannelConnection> connections : idle.values()) {
+            ChannelConnection last = connections.peekLast();
+            if (last != null && (eldest == null
+                    || last.getIdleTime() > eldest.getIdleTime())) {
+                eldest = last;
+            }
+        }
+        if (eldest != null) {
+            idle.get(eldest.getRoute()).pollLast();
+            closed(eldest.getRoute());
+        }
+        return eldest;
+    }
+
+    private int count(String route) {
+        Integer count = open.get(route);
+        return count == null ? 0 : count;
+    }
+
+    private void opened(String route) {
+        open.put(route, count(route) + 1);
+        totalOpen++;
+    }
+
+    private void closed(String route) {
+        int count = count(route) - 1;
+        if (count > 0) {
+            open.put(route, count);
+        } else {
+            open.remove(route);
+        }
+        totalOpen--;
+        released.signalAll();
+    }
+}
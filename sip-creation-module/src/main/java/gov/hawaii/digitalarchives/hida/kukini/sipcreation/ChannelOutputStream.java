@@ -0,0 +1,145 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The body of a {@link ChannelClientHttpRequest}, which can send a region of
+ * a file without copying it through the heap. Over a plain connection the
+ * file is sent with {@link FileChannel#transferTo}, which the operating
+ * system carries out without copying the bytes into the process at all
+ * (e.g. with sendfile on Linux). Over TLS the file is read into a direct
+ * buffer, which the {@link TlsChannel} encrypts into another direct buffer.
+ *
+ * A body whose length is unknown is sent with the chunked transfer coding.
+ *
+ * @author Keone Hiraide
+ */
+class ChannelOutputStream extends OutputStream {
+
+     // The size of the direct buffer through which files are sent over TLS.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = "\r\n".getBytes(ASCII);
+
+     // The connection, or the TLS channel over it.
+    private final WritableByteChannel channel;
+
+     // Whether files may be transferred straight to the channel.
+    private final boolean zeroCopy;
+
+     // Whether the body is sent with the chunked transfer coding.
+    private final boolean chunked;
+
+     // The buffer through which files are sent over TLS.
+    private ByteBuffer directBuffer;
+
+    /**
+     * @param channel The connection, or the TLS channel over it.
+     * @param zeroCopy Whether files may be transferred straight to the
+     *                 channel, i.e. the channel is a plain socket.
+     * @param chunked Whether the body is sent with the chunked transfer
+     *                coding.
+     */
+    ChannelOutputStream(WritableByteChannel channel, boolean zeroCopy, boolean chunked) {
+        this.channel = channel;
+        this.zeroCopy = zeroCopy;
+        this.chunked = chunked;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        startChunk(len);
+        writeFully(ByteBuffer.wrap(b, off, len));
+        endChunk();
+    }
+
+    /**
+     * Sends a region of a file.
+     *
+     * @param file The file.
+     * @param position The offset of the region within the file.
+     * @param count The size of the region.
+     */
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        startChunk(count);
+        long end = position + count;
+        if (zeroCopy) {
+            while (position < end) {
+                long transferred = file.transferTo(position, end - position, channel);
+                if (transferred == 0 && position >= file.size()) {
+                    throw new IOException("The file is " + (end - position)
+                            + " bytes shorter than the region being sent");
+                }
+                position += transferred;
+            }
+        } else {
+            if (directBuffer == null) {
+                directBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            while (position < end) {
+                directBuffer.clear();
+                directBuffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = file.read(directBuffer, position);
+                if (read == -1) {
+                    throw new IOException("The file is " + (end - position)
+                            + " bytes shorter than the region being sent");
+                }
+                directBuffer.flip();
+                writeFully(directBuffer);
+                position += read;
+            }
+        }
+        endChunk();
+    }
+
+    /**
+     * Ends the body. The connection is left open for the response.
+     */
+    void finish() throws IOException {
+        if (chunked) {
+            writeFully(ByteBuffer.wrap("0\r\n\r\n".getBytes(ASCII)));
+        }
+    }
+
+    /**
+     * Does nothing; the body is ended when the request is executed.
+     */
+    @Override
+    public void close() {
+    }
+
+    private void startChunk(long size) throws IOException {
+        if (chunked) {
+            writeFully(ByteBuffer.wrap((Long.toHexString(size) + "\r\n").getBytes(ASCII)));
+        }
+    }
+
+    private void endChunk() throws IOException {
+        if (chunked) {
+            writeFully(ByteBuffer.wrap(CRLF));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Sends a large payload file to HiDA as content-defined chunks, of which
+ * only those the archive has not seen are uploaded. A database export or
+ * mailbox that changed by a few kilobytes since it was last sent only
+ * costs the few chunks around the changes. The archive rebuilds the file
+ * from its chunks and checks it against the checksum of the payload
+ * manifest, after which the file is listed in the fetch.txt of the bag
+ * rather than sent within the SIP.
+ *
+ * The protocol:
+ * <ul>
+ * <li>POST [chunks URL] with the SHA-256 checksums of the chunks of a file
+ *     as a text/plain body, one per line. The server answers 200 OK with
+ *     the checksums of the chunks it does not hold, one per line.</li>
+ * <li>PUT [chunks URL]/[checksum] sends a chunk. The server answers 204 No
+ *     Content, or 400 Bad Request if the chunk does not have the checksum.</li>
+ * <li>POST [chunks URL]/files with the checksums of every chunk of the file
+ *     in order as a text/plain body, the BagIt name of a manifest algorithm
+ *     in the Manifest-Algorithm header and the checksum of the whole file
+ *     in the Content-Checksum header. The server rebuilds the file and
+ *     answers 201 Created, with the URL from which it fetches the file in
+ *     the Location header, or 422 Unprocessable Entity if the rebuilt file
+ *     does not have the checksum.</li>
+ * </ul>
+ *
+ * @author Keone Hiraide
+ */
+public class ChunkedUploader {
+
+     // Header holding the hex encoded checksum of the whole file.
+    public static final String CONTENT_CHECKSUM_HEADER = "Content-Checksum";
+
+     // The URL to the servlet that receives chunks.
+    private final String chunksURL;
+
+     // Splits files into chunks.
+    private ContentDefinedChunker chunker = new ContentDefinedChunker();
+
+     // Receives the number of bytes of chunks that are sent.
+    private TransferListener listener = TransferListener.NONE;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(ChunkedUploader.class);
+
+    /**
+     * @param chunksURL The URL to the servlet that receives chunks.
+     */
+    public ChunkedUploader(String chunksURL) {
+        this.chunksURL = chunksURL;
+    }
+
+    /**
+     * @param chunker Splits files into chunks.
+     */
+    public void setChunker(ContentDefinedChunker chunker) {
+        this.chunker = chunker;
+    }
+
+    /**
+     * @param listener Receives the number of bytes of chunks that are sent,
+     *                 as the {@link TransferStage#UPLOADING} stage.
+     */
+    public void setTransferListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sends the chunks of a file that the archive does not hold, and has the
+     * archive rebuild the file from its chunks.
+     *
+     * @param payloadFile The file to send.
+     * @param algorithm The BagIt name of the algorithm of the checksum.
+     * @param checksum The hex encoded checksum of the file, as it is listed
+     *                 within the payload manifest.
+     * @param restTemplate Sends the requests.
+     *
+     * @return The URL from which the archive fetches the rebuilt file.
+     */
+    public String upload(PayloadFile payloadFile, String algorithm, String checksum,
+            RestTemplate restTemplate) {
+        log.debug("Entering upload(payloadFile={})", payloadFile);
+        Path source = payloadFile.getSource();
+        try {
+            List<ContentDefinedChunker.Chunk> chunks = chunker.split(source);
+            StringBuilder recipe = new StringBuilder();
+            for (ContentDefinedChunker.Chunk chunk : chunks) {
+                recipe.append(chunk.getChecksum()).append('\n');
+            }
+            byte[] checksums = recipe.toString().getBytes(StandardCharsets.UTF_8);
+            Set<String> missing = findMissing(checksums, restTemplate);
+
+            long sent = 0;
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                for (ContentDefinedChunker.Chunk chunk : chunks) {
+                    if (missing.remove(chunk.getChecksum())) {
+                        sendChunk(channel, chunk, restTemplate);
+                        sent += chunk.getLength();
+                    }
+                }
+            }
+            log.info("Sent {} of {} bytes of {} as chunks", sent, payloadFile.getSize(), 
+                    source);
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.TEXT_PLAIN);
+            headers.set(DeltaNegotiator.ALGORITHM_HEADER, algorithm);
+            headers.set(CONTENT_CHECKSUM_HEADER, checksum);
+            ResponseEntity<String> response = restTemplate.postForEntity(chunksURL + "/files",
+                    new HttpEntity<>(checksums, headers), String.class);
+            URI location = response.getHeaders().getLocation();
+            if (response.getStatusCode() != HttpStatus.CREATED || location == null) {
+                throw new HidaIOException("Failed to rebuild " + source 
+                        + " from its chunks, the server responded with " 
+                        + response.getStatusCode());
+            }
+            String url = URI.create(chunksURL).resolve(location).toString();
+            log.debug("Exiting upload(): {}", url);
+            return url;
+        } catch (IOException e) {
+            String errorMessage = "Failed to send the chunks of " + source;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Asks the server which chunks it does not hold.
+     *
+     * @return The checksums of the chunks to send.
+     */
+    private Set<String> findMissing(byte[] checksums, RestTemplate restTemplate) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
+        ResponseEntity<byte[]> response = restTemplate.postForEntity(chunksURL,
+                new HttpEntity<>(checksums, headers), byte[].class);
+        Set<String> missing = new HashSet<>();
+        if (response.getBody() != null) {
+            for (String line : new String(response.getBody(), StandardCharsets.UTF_8)
+                    .split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    missing.add(line.trim());
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Reads a chunk of a file and sends it.
+     */
+    private void sendChunk(FileChannel channel, ContentDefinedChunker.Chunk chunk,
+            RestTemplate restTemplate) throws IOException {
+        TransferEvent event = TransferEvents.begin(TransferEventType.CHUNK_SENT);
+        ByteBuffer body = ByteBuffer.allocate(chunk.getLength());
+        while (body.hasRemaining()) {
+            if (channel.read(body, chunk.getOffset() + body.position()) == -1) {
+                throw new IOException("The file became shorter while its chunks were sent");
+            }
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        restTemplate.exchange(chunksURL + "/" + chunk.getChecksum(), HttpMethod.PUT,
+                new HttpEntity<>(body.array(), headers), Void.class);
+        listener.transferred(TransferStage.UPLOADING, chunk.getLength());
+        if (event != null) {
+            event.end(chunk.getChecksum(), chunk.getLength());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * Decides whether a file is worth deflating when it is added to a SIP.
+ * Files that are already compressed (JPEG images, PDFs, Office documents,
+ * nested zips, etc.) barely shrink when they are deflated again, so they
+ * are stored within the SIP as they are, which saves most of the CPU time
+ * spent zipping them.
+ *
+ * @author Keone Hiraide
+ */
+public interface CompressionPolicy {
+
+    /**
+     * Decides whether a file should be deflated.
+     *
+     * @param name The name of the file within the SIP.
+     * @param header The first bytes of the file.
+     * @param length The number of bytes of the header that were read. Less
+     *               than the length of the array if the file is shorter.
+     * @return True if the file should be deflated, false if it should be
+     *         stored as it is.
+     */
+    public boolean isCompressible(String name, byte[] header, int length);
+}
@@ -0,0 +1,198 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recognizes already-compressed files by their magic numbers (the first few
+ * bytes of a file, which identify its format), rather than by their
+ * extension, so that misnamed files are still handled correctly. Files of
+ * any format that is not recognized, such as text, XML and CSV files, are
+ * deflated.
+ *
+ * TIFF images are only stored when their first image is compressed (e.g.
+ * with LZW, JPEG or CCITT), since uncompressed TIFFs deflate well.
+ *
+ * @author Keone Hiraide
+ */
+public class CompressionPolicyImpl implements CompressionPolicy {
+
+     // The magic numbers of the compressed formats that are recognized.
+    private static final List<Signature> SIGNATURES = new ArrayList<>();
+
+    static {
+        SIGNATURES.add(new Signature("jpeg", 0, new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}));
+        SIGNATURES.add(new Signature("jpeg2000", 0, new byte[] {0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50,
+                0x20, 0x20, 0x0D, 0x0A, (byte) 0x87, 0x0A}));
+        SIGNATURES.add(new Signature("jpeg2000", 0, new byte[] {(byte) 0xFF, 0x4F, (byte) 0xFF, 0x51}));
+        SIGNATURES.add(new Signature("png", 0, new byte[] {(byte) 0x89, 0x50, 0x4E, 0x47,
+                0x0D, 0x0A, 0x1A, 0x0A}));
+        SIGNATURES.add(new Signature("gif", 0, ascii("GIF8")));
+        SIGNATURES.add(new Signature("webp", 8, ascii("WEBPVP8")));
+        SIGNATURES.add(new Signature("tiff", 0, ascii("II*\0")));
+        SIGNATURES.add(new Signature("tiff", 0, ascii("MM\0*")));
+        SIGNATURES.add(new Signature("pdf", 0, ascii("%PDF-")));
+        // Zip based formats include DOCX, XLSX, PPTX, ODF, EPUB and JAR.
+        SIGNATURES.add(new Signature("zip", 0, new byte[] {0x50, 0x4B, 0x03, 0x04}));
+        SIGNATURES.add(new Signature("zip", 0, new byte[] {0x50, 0x4B, 0x05, 0x06}));
+        SIGNATURES.add(new Signature("gzip", 0, new byte[] {0x1F, (byte) 0x8B}));
+        SIGNATURES.add(new Signature("bzip2", 0, ascii("BZh")));
+        SIGNATURES.add(new Signature("xz", 0, new byte[] {(byte) 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00}));
+        SIGNATURES.add(new Signature("7z", 0, new byte[] {0x37, 0x7A, (byte) 0xBC, (byte) 0xAF,
+                0x27, 0x1C}));
+        SIGNATURES.add(new Signature("rar", 0, ascii("Rar!\u001A\u0007")));
+        SIGNATURES.add(new Signature("zstd", 0, new byte[] {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD}));
+        SIGNATURES.add(new Signature("mp3", 0, ascii("ID3")));
+        // MP4, MOV, M4A and HEIC files.
+        SIGNATURES.add(new Signature("mp4", 4, ascii("ftyp")));
+        SIGNATURES.add(new Signature("ogg", 0, ascii("OggS")));
+        SIGNATURES.add(new Signature("flac", 0, ascii("fLaC")));
+        // MKV and WebM files.
+        SIGNATURES.add(new Signature("matroska", 0, new byte[] {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3}));
+    }
+
+     // The TIFF tag holding the compression scheme of an image.
+    private static final int TIFF_COMPRESSION_TAG = 259;
+
+     // The TIFF compression scheme of an uncompressed image.
+    private static final int TIFF_UNCOMPRESSED = 1;
+
+     // The formats that are stored rather than deflated.
+    private Set<String> storedFormats = getKnownFormats();
+
+    /**
+     * Sets the formats that are stored within SIPs rather than deflated.
+     * Every known format is stored by default.
+     *
+     * @param storedFormats The names of the formats. E.g: jpeg, pdf, zip
+     */
+    public void setStoredFormats(Collection<String> storedFormats) {
+        Set<String> formats = new LinkedHashSet<>();
+        Set<String> knownFormats = getKnownFormats();
+        for (String format : storedFormats) {
+            String name = format.trim().toLowerCase();
+            if (!knownFormats.contains(name)) {
+                throw new IllegalArgumentException("Unknown format: " + format
+                        + ". The known formats are " + knownFormats);
+            }
+            formats.add(name);
+        }
+        this.storedFormats = formats;
+    }
+
+    /**
+     * @return The names of the formats that are stored within SIPs rather
+     *         than deflated.
+     */
+    public Set<String> getStoredFormats() {
+        return Collections.unmodifiableSet(storedFormats);
+    }
+
+    /**
+     * @return The names of every format that can be recognized.
+     */
+    public static Set<String> getKnownFormats() {
+        Set<String> formats = new LinkedHashSet<>();
+        for (Signature signature : SIGNATURES) {
+            formats.add(signature.format);
+        }
+        return formats;
+    }
+
+    @Override
+    public boolean isCompressible(String name, byte[] header, int length) {
+        String format = getFormat(header, length);
+        if (format == null || !storedFormats.contains(format)) {
+            return true;
+        }
+        if (format.equals("tiff")) {
+            return isUncompressedTiff(header, length);
+        }
+        return false;
+    }
+
+    /**
+     * Recognizes the format of a file.
+     *
+     * @return The name of the format, or null if the format is not one of
+     *         the known compressed formats.
+     */
+    static String getFormat(byte[] header, int length) {
+        for (Signature signature : SIGNATURES) {
+            if (signature.matches(header, length)) {
+                return signature.format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the compression scheme of the first image of a TIFF file.
+     *
+     * @return True if the image is uncompressed, or if its compression
+     *         scheme is not within the header, in which case deflating the
+     *         file is the safe choice.
+     */
+    private static boolean isUncompressedTiff(byte[] header, int length) {
+        boolean littleEndian = header[0] == 'I';
+        long directoryOffset = readUnsigned(header, 4, 4, littleEndian);
+        if (directoryOffset + 2 > length) {
+            return true;
+        }
+        int offset = (int) directoryOffset;
+        int count = (int) readUnsigned(header, offset, 2, littleEndian);
+        offset += 2;
+        for (int i = 0; i < count && offset + 12 <= length; i++, offset += 12) {
+            if (readUnsigned(header, offset, 2, littleEndian) == TIFF_COMPRESSION_TAG) {
+                // The value is a SHORT stored at the start of the value field.
+                return readUnsigned(header, offset + 8, 2, littleEndian) == TIFF_UNCOMPRESSED;
+            }
+        }
+        return true;
+    }
+
+    private static long readUnsigned(byte[] bytes, int offset, int size, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            int b = bytes[offset + (littleEndian ? size - 1 - i : i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static byte[] ascii(String magic) {
+        return magic.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The magic number of a format.
+     */
+    private static class Signature {
+        private final String format;
+        private final int offset;
+        private final byte[] magic;
+
+        Signature(String format, int offset, byte[] magic) {
+            this.format = format;
+            this.offset = offset;
+            this.magic = magic;
+        }
+
+        boolean matches(byte[] header, int length) {
+            if (offset + magic.length > length) {
+                return false;
+            }
+            for (int i = 0; i < magic.length; i++) {
+                if (header[offset + i] != magic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits files into chunks whose boundaries depend on their contents rather
+ * than on their offsets, so that a few bytes inserted into, or removed from,
+ * a large file only change the chunks around them. The chunks of the rest of
+ * the file keep their checksums, and need not be sent again.
+ *
+ * A boundary is placed where a rolling "gear" hash of the last 64 bytes
+ * matches a mask, as in FastCDC: a stricter mask below the average chunk
+ * size and a looser one above it keep the chunk sizes close to the
+ * average. No boundary is placed before the minimum size, and one is
+ * always placed at the maximum size. The gear table is fixed, so a file is
+ * split the same way on every run of every Kukini.
+ *
+ * @author Keone Hiraide
+ */
+public class ContentDefinedChunker {
+
+     // The default smallest, average and largest chunk sizes.
+    public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+    public static final int DEFAULT_AVERAGE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+     // The number of bytes that the rolling hash depends on.
+    private static final int WINDOW_SIZE = 64;
+
+     // Size of the buffer used to read a file.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+     // A random value for each byte, from a generator with a fixed seed.
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x4b554b494e494344L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9e3779b97f4a7c15L;
+            long value = (seed ^ (seed >>> 30)) * 0xbf58476d1ce4e5b9L;
+            value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+
+     // The masks that the hash is matched against below and above the
+     // average chunk size. They select the high bits of the hash, which
+     // depend on the whole window.
+    private final long smallMask;
+    private final long largeMask;
+
+    /**
+     * Creates a chunker with chunks of 1 MB on average, and from 256 KB to
+     * 4 MB.
+     */
+    public ContentDefinedChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param minSize The smallest chunk, except for the last of a file.
+     * @param averageSize The average chunk size, which is rounded down to a
+     *                    power of two.
+     * @param maxSize The largest chunk.
+     */
+    public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+        if (minSize <= WINDOW_SIZE || averageSize < minSize || maxSize < averageSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes: " + minSize + ", "
+                    + averageSize + ", " + maxSize);
+        }
+        this.minSize = minSize;
+        this.averageSize = Integer.highestOneBit(averageSize);
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(this.averageSize);
+        this.smallMask = -1L << (64 - (bits + 1));
+        this.largeMask = -1L << (64 - (bits - 1));
+    }
+
+    /**
+     * @return The largest chunk.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Splits a file into chunks, reading it once.
+     *
+     * @param file The file to split.
+     * @return The chunks of the file, in order, along with their SHA-256
+     *         checksums.
+     */
+    public List<Chunk> split(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long offset = 0;
+        int length = 0;
+        long hash = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int start = 0;
+                int i = 0;
+                while (i < read) {
+                    // The bytes before the last window of the minimum size
+                    // cannot affect the hash at the first possible boundary.
+                    int skip = Math.min(read - i, minSize - WINDOW_SIZE - length);
+                    if (skip > 0) {
+                        i += skip;
+                        length += skip;
+                        continue;
+                    }
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    i++;
+                    length++;
+                    if (length >= minSize && ((hash & (length < averageSize ? smallMask 
+                            : largeMask)) == 0 || length >= maxSize)) {
+                        digest.update(buffer, start, i - start);
+                        chunks.add(new Chunk(offset, length, BagManifest.toHex(digest.digest())));
+                        offset += length;
+                        length = 0;
+                        hash = 0;
+                        start = i;
+                    }
+                }
+                digest.update(buffer, start, read - start);
+            }
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(offset, length, BagManifest.toHex(digest.digest())));
+        }
+        return chunks;
+    }
+
+    /**
+     * A chunk of a file.
+     */
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final String checksum;
+
+        Chunk(long offset, int length, String checksum) {
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return The position of the chunk within the file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The number of bytes of the chunk.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return The hex encoded SHA-256 checksum of the chunk.
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Asks HiDA which of the payload files of a SIP it already holds, so that
+ * only the others are sent. Agencies that accession a revised series again
+ * mostly send files that the archive received before; those are left out
+ * of the SIP and listed in its fetch.txt instead.
+ *
+ * The protocol:
+ * <ul>
+ * <li>POST [delta URL] with the payload manifest of the strongest of the
+ *     manifest algorithms as a text/plain body, in the format of a BagIt
+ *     manifest, and the BagIt name of the algorithm in the
+ *     Manifest-Algorithm header.</li>
+ * <li>The server answers 200 OK with a text/plain line of the form
+ *     "[checksum] [url]" for each checksum whose contents it holds, where
+ *     the URL is the one from which it fetches them.</li>
+ * </ul>
+ * A server that does not answer, or does not support the protocol, is
+ * sent every file.
+ *
+ * @author Keone Hiraide
+ */
+public class DeltaNegotiator {
+
+     // Header holding the BagIt name of the algorithm of the manifest.
+    public static final String ALGORITHM_HEADER = "Manifest-Algorithm";
+
+     // The manifest algorithms from the weakest to the strongest. The
+     // contents of a file are only matched by the strongest one, since a
+     // collision would leave the file out of the SIP.
+    private static final List<String> STRENGTH = Arrays.asList("md5", "sha1", "sha256",
+            "sha512");
+
+     // The URL to the servlet that answers which checksums it holds.
+    private final String deltaURL;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(DeltaNegotiator.class);
+
+    /**
+     * @param deltaURL The URL to the servlet that answers which checksums
+     *                 it holds.
+     */
+    public DeltaNegotiator(String deltaURL) {
+        this.deltaURL = deltaURL;
+    }
+
+    /**
+     * @return The URL to the servlet that answers which checksums it holds.
+     */
+    public String getDeltaURL() {
+        return deltaURL;
+    }
+
+    /**
+     * Finds the payload files whose contents the archive already holds.
+     *
+     * @param payload The payload of the SIP.
+     * @param manifests The checksums of the payload files, one manifest per
+     *                  algorithm.
+     * @param restTemplate Sends the manifest.
+     *
+     * @return The files that the archive fetches rather than receiving them
+     *         within the SIP. Empty if the archive holds none of them, or
+     *         could not be asked.
+     */
+    public FetchList negotiate(List<PayloadFile> payload, List<BagManifest> manifests,
+            RestTemplate restTemplate) {
+        log.debug("Entering negotiate(payload={})", payload.size());
+        BagManifest manifest = strongest(manifests);
+        FetchList fetchList = new FetchList();
+        Map<String, String> held;
+        try {
+            held = findHeld(manifest, restTemplate);
+        } catch (RestClientException e) {
+            log.warn("Sending every file, since " + deltaURL
+                    + " could not tell which files it holds", e);
+            return fetchList;
+        }
+
+        for (PayloadFile payloadFile : payload) {
+            String url = held.get(manifest.getChecksum(payloadFile.getBagPath()));
+            if (url != null) {
+                fetchList.add(payloadFile, url, manifests);
+            }
+        }
+        log.info("The archive holds {} of {} files ({} bytes), which are not sent", 
+                fetchList.getFileCount(), payload.size(), fetchList.getByteCount());
+        log.debug("Exiting negotiate(): {}", fetchList.getFileCount());
+        return fetchList;
+    }
+
+    /**
+     * Sends a manifest to the server.
+     *
+     * @return The URLs of the contents that the server holds, keyed by their
+     *         checksum.
+     */
+    private Map<String, String> findHeld(BagManifest manifest, RestTemplate restTemplate) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
+        headers.set(ALGORITHM_HEADER, manifest.getAlgorithm());
+        ResponseEntity<byte[]> response = restTemplate.postForEntity(deltaURL,
+                new HttpEntity<>(manifest.toBytes(), headers), byte[].class);
+        Map<String, String> held = new LinkedHashMap<>();
+        if (response.getBody() == null) {
+            return held;
+        }
+        for (String line : new String(response.getBody(), StandardCharsets.UTF_8)
+                .split("\n")) {
+            String[] fields = line.trim().split("\\s+", 2);
+            if (fields.length == 2) {
+                held.put(fields[0].toLowerCase(Locale.ROOT), fields[1]);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * @param manifests Payload manifests.
+     * @return The manifest of the strongest algorithm.
+     */
+    static BagManifest strongest(List<BagManifest> manifests) {
+        BagManifest strongest = manifests.get(0);
+        for (BagManifest manifest : manifests) {
+            if (STRENGTH.indexOf(manifest.getAlgorithm()) 
+                    > STRENGTH.indexOf(strongest.getAlgorithm())) {
+                strongest = manifest;
+            }
+        }
+        return strongest;
+    }
+}
@@ -0,0 +1,41 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * Remembers the checksums of payload files from one SIP to the next, and
+ * across restarts of Kukini, so that files that are sent again unchanged
+ * do not have to be hashed again.
+ *
+ * A checksum is keyed by the path of the file and the algorithm, and is
+ * only returned while the file still has the size, last modified time and
+ * file key (e.g. device and inode) that it had when it was hashed. These
+ * are the attributes read when the payload was listed, so a lookup costs
+ * no file system access at all. Since a file may still change after it was
+ * listed, callers check that it has not with {@link PayloadFile#isUnchanged()}
+ * once they are done with it.
+ *
+ * @author Keone Hiraide
+ */
+public interface DigestCache {
+
+    /**
+     * Looks up the checksum of a file.
+     *
+     * @param file The file, along with the attributes it was listed with.
+     * @param algorithm The BagIt name of the algorithm. E.g: md5
+     * @return The checksum, or null if the file has not been hashed with
+     *         the algorithm or has changed since.
+     */
+    public byte[] get(PayloadFile file, String algorithm);
+
+    /**
+     * Remembers the checksum of a file. Nothing is remembered for files
+     * whose identity is unknown, or that were modified so recently that a
+     * later change might not alter their last modified time.
+     *
+     * @param file The file, along with the attributes it was listed with,
+     *             which must still be its attributes once it was hashed.
+     * @param algorithm The BagIt name of the algorithm. E.g: md5
+     * @param digest The checksum of the file.
+     */
+    public void put(PayloadFile file, String algorithm, byte[] digest);
+}
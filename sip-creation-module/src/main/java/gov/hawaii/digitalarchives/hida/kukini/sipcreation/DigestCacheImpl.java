@@ -0,0 +1,318 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DigestCache} held in a file that is mapped into memory as a
+ * fixed-size hash table, so that looking up a checksum only reads a few
+ * bytes of memory, and remembering one only writes a few, which the
+ * operating system saves to the file in the background.
+ *
+ * Each slot of the table holds two independent 64-bit hashes of the path
+ * and algorithm, the size, last modified time and file key of the file,
+ * its checksum, and a check over all of these. A slot torn by a crash, or
+ * that holds the checksum of another file, fails the check or the
+ * comparison and is a miss. When the slots that a key may occupy are all
+ * taken, one of them is overwritten, so the table never grows.
+ *
+ * The file is locked while it is open. If another Kukini holds it, or it
+ * cannot be opened, checksums are not cached, and files are hashed as if
+ * the cache were empty.
+ *
+ * @author Keone Hiraide
+ */
+public class DigestCacheImpl implements DigestCache {
+
+     // The default number of checksums the table holds, and the most it
+     // may hold.
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+    public static final int MAX_CAPACITY = 1 << 22;
+
+     // Identifies the file and the layout of its table.
+    private static final long MAGIC = 0x4b554b494e494443L;
+    private static final int VERSION = 1;
+
+     // The size of the header, and of each slot, in bytes.
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 128;
+
+     // The offsets of the fields of a slot.
+    private static final int KEY = 0;
+    private static final int KEY_CHECK = 8;
+    private static final int SIZE = 16;
+    private static final int MODIFIED = 24;
+    private static final int FILE_KEY = 32;
+    private static final int CHECK = 40;
+    private static final int LENGTH = 48;
+    private static final int DIGEST = 52;
+
+     // The longest checksum held, which is that of SHA-512.
+    private static final int MAX_DIGEST_LENGTH = SLOT_SIZE - DIGEST;
+
+     // The number of slots a key may occupy.
+    private static final int MAX_PROBES = 8;
+
+     // Files modified more recently than this before they are hashed are
+     // not cached, since the file system may not record a change made in
+     // the same tick of its clock as the modification before it.
+    private static final long RACY_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+     // The file holding the table, and the lock that keeps other Kukinis
+     // out of it.
+    private final Path file;
+    private FileChannel channel;
+    private FileLock lock;
+
+     // The table, or null if checksums are not cached.
+    private MappedByteBuffer table;
+
+     // The number of slots, a power of two.
+    private final int capacity;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(DigestCacheImpl.class);
+
+    /**
+     * Opens the cache of the user, ".kukini/digest-cache" within their home
+     * directory.
+     */
+    public DigestCacheImpl() {
+        this(Paths.get(System.getProperty("user.home"), ".kukini", "digest-cache"));
+    }
+
+    /**
+     * @param file The file holding the cache. It is created if it does not
+     *             exist.
+     */
+    public DigestCacheImpl(Path file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param file The file holding the cache. It is created if it does not
+     *             exist, and emptied if it was created with another capacity.
+     * @param capacity The number of checksums the cache holds, which is
+     *                 rounded up to a power of two, and at most
+     *                 {@link #MAX_CAPACITY}.
+     */
+    public DigestCacheImpl(Path file, int capacity) {
+        this.file = file;
+        this.capacity = Integer.highestOneBit(Math.max(MAX_PROBES,
+                Math.min(MAX_CAPACITY, capacity) - 1) << 1);
+        open();
+    }
+
+    @Override
+    public synchronized byte[] get(PayloadFile payloadFile, String algorithm) {
+        if (table == null || payloadFile.getLastModified() == -1) {
+            return null;
+        }
+        String key = algorithm + '\0' + payloadFile.getSource();
+        long hash = hash(key, 0xcbf29ce484222325L);
+        long keyCheck = hash(key, hash);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slot(hash, probe);
+            long slotKey = table.getLong(slot + KEY);
+            if (slotKey == 0) {
+                return null;
+            }
+            if (slotKey == hash && table.getLong(slot + KEY_CHECK) == keyCheck) {
+                int length = table.getInt(slot + LENGTH);
+                if (table.getLong(slot + CHECK) != check(slot)
+                        || length < 0 || length > MAX_DIGEST_LENGTH
+                        || table.getLong(slot + SIZE) != payloadFile.getSize()
+                        || table.getLong(slot + MODIFIED) != payloadFile.getLastModified()
+                        || table.getLong(slot + FILE_KEY) != fileKey(payloadFile)) {
+                    return null;
+                }
+                byte[] digest = new byte[length];
+                for (int i = 0; i < digest.length; i++) {
+                    digest[i] = table.get(slot + DIGEST + i);
+                }
+                return digest;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void put(PayloadFile payloadFile, String algorithm, byte[] digest) {
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (table == null || payloadFile.getLastModified() == -1
+                || now - payloadFile.getLastModified() < RACY_INTERVAL
+                || digest.length > MAX_DIGEST_LENGTH) {
+            return;
+        }
+        String key = algorithm + '\0' + payloadFile.getSource();
+        long hash = hash(key, 0xcbf29ce484222325L);
+        long keyCheck = hash(key, hash);
+
+        // Take the slot of the key, or the first free one, or else evict
+        // one of the slots the key may occupy.
+        int slot = slot(hash, (int) (keyCheck & (MAX_PROBES - 1)));
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int candidate = slot(hash, probe);
+            long slotKey = table.getLong(candidate + KEY);
+            if (slotKey == 0 || (slotKey == hash
+                    && table.getLong(candidate + KEY_CHECK) == keyCheck)) {
+                slot = candidate;
+                break;
+            }
+        }
+
+        table.putLong(slot + KEY, hash);
+        table.putLong(slot + KEY_CHECK, keyCheck);
+        table.putLong(slot + SIZE, payloadFile.getSize());
+        table.putLong(slot + MODIFIED, payloadFile.getLastModified());
+        table.putLong(slot + FILE_KEY, fileKey(payloadFile));
+        table.putInt(slot + LENGTH, digest.length);
+        for (int i = 0; i < digest.length; i++) {
+            table.put(slot + DIGEST + i, digest[i]);
+        }
+        table.putLong(slot + CHECK, check(slot));
+    }
+
+    /**
+     * @return The number of checksums the cache holds.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Saves the table to its file and closes it. Checksums are no longer
+     * cached. Called when the spring context is closed.
+     */
+    public synchronized void close() {
+        if (table != null) {
+            table.force();
+            table = null;
+        }
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close the checksum cache " + file, e);
+        }
+    }
+
+    /**
+     * Maps the table, creating or emptying it if its file does not hold a
+     * table of the same layout and capacity.
+     */
+    private void open() {
+        long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                log.warn("Checksums are not cached, since {} is in use by another Kukini", file);
+                channel.close();
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            boolean valid = channel.size() == length && header.getLong(0) == MAGIC
+                    && header.getInt(8) == VERSION && header.getInt(12) == capacity
+                    && header.getInt(16) == SLOT_SIZE;
+            if (!valid) {
+                // The table is extended with zeros, i.e. free slots, when
+                // it is mapped.
+                log.debug("Creating the checksum cache {}", file);
+                channel.truncate(0);
+            }
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (!valid) {
+                table.putLong(0, MAGIC);
+                table.putInt(8, VERSION);
+                table.putInt(12, capacity);
+                table.putInt(16, SLOT_SIZE);
+                table.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Checksums are not cached, since " + file + " could not be opened", e);
+            table = null;
+            close();
+        }
+    }
+
+    /**
+     * @return The offset of a slot that a key may occupy.
+     */
+    private int slot(long hash, int probe) {
+        int index = (int) ((mix(hash) + probe) & (capacity - 1));
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    /**
+     * @return A check over the fields of a slot.
+     */
+    private long check(int slot) {
+        long check = 0x9e3779b97f4a7c15L;
+        for (int offset = 0; offset < CHECK; offset += 8) {
+            check = mix(check ^ table.getLong(slot + offset));
+        }
+        int length = table.getInt(slot + LENGTH);
+        check = mix(check ^ length);
+        for (int i = 0; i < length && i < MAX_DIGEST_LENGTH; i++) {
+            check = check * 31 + table.get(slot + DIGEST + i);
+        }
+        return mix(check);
+    }
+
+    /**
+     * @return A hash of the key that identifies a file on its volume, or 0
+     *         if it has none.
+     */
+    private static long fileKey(PayloadFile payloadFile) {
+        Object fileKey = payloadFile.getFileKey();
+        return fileKey == null ? 0 : hash(fileKey.toString(), 0xcbf29ce484222325L);
+    }
+
+    /**
+     * Hashes a string with FNV-1a, which gives the same hash on every run.
+     * A second, independent hash is had by seeding it with the first.
+     *
+     * @return A hash that is never 0, which marks a free slot.
+     */
+    private static long hash(String key, long seed) {
+        long hash = seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Spreads the bits of a hash, as the finalizer of SplitMix64 does.
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
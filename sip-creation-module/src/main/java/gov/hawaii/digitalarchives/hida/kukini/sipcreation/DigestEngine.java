@@ -0,0 +1,85 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the {@link MultiDigest}s that compute every manifest checksum of
+ * a payload file from a single read of it. The digests share a pool of
+ * worker threads, on which each block of a file is hashed by every
+ * algorithm at the same time, so that adding an algorithm costs neither
+ * another read of the payload nor, on a machine with cores to spare, much
+ * more time.
+ *
+ * @author Keone Hiraide
+ */
+public class DigestEngine {
+
+     // The workers which hash blocks with all but one of the algorithms.
+     // Null if blocks are hashed on the calling thread.
+    private final ExecutorService workers;
+
+    /**
+     * Creates an engine that hashes blocks on every available core.
+     */
+    public DigestEngine() {
+        this(0);
+    }
+
+    /**
+     * @param threads The number of worker threads. 0 or less uses every
+     *                available core, 1 hashes blocks on the calling thread.
+     */
+    public DigestEngine(int threads) {
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.workers = count == 1 ? null
+                : Executors.newFixedThreadPool(count, new WorkerThreadFactory());
+    }
+
+    /**
+     * Creates a digest that computes several checksums at once.
+     *
+     * @param algorithms The BagIt names of the algorithms. E.g: md5, sha256
+     *
+     * @return The digest.
+     */
+    public MultiDigest create(List<String> algorithms) throws NoSuchAlgorithmException {
+        return new MultiDigest(algorithms, workers);
+    }
+
+    /**
+     * @return The number of blocks waiting for a worker to hash them.
+     */
+    public int getQueueDepth() {
+        return workers == null ? 0 : ((ThreadPoolExecutor) workers).getQueue().size();
+    }
+
+    /**
+     * Stops the workers. Called when the spring context is closed.
+     */
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates daemon worker threads so that a pending checksum never keeps
+     * Kukini from exiting.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "kukini-digest-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The payload files of a bag that are not sent within its SIP, since HiDA
+ * already holds their contents. They are listed in the fetch.txt tag file
+ * of the bag, each with the URL from which the archive fetches it, and
+ * remain listed within the payload manifests, so that the bag is complete
+ * once the archive has fetched them.
+ *
+ * @author Keone Hiraide
+ */
+public class FetchList {
+
+     // The name of the tag file listing the files to fetch.
+    public static final String FILE_NAME = "fetch.txt";
+
+     // The files to fetch, keyed by their paths within the bag.
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+     // The total number of bytes of the files to fetch.
+    private long byteCount;
+
+    /**
+     * Records a payload file that the archive fetches instead of receiving
+     * it within the SIP.
+     *
+     * @param payloadFile The file.
+     * @param url The URL from which the archive fetches the contents.
+     * @param checksums The hex encoded checksums of the file, keyed by the
+     *                  BagIt name of their algorithm.
+     */
+    public void add(PayloadFile payloadFile, String url, Map<String, String> checksums) {
+        entries.put(payloadFile.getBagPath(), new Entry(url, payloadFile.getSize(),
+                new LinkedHashMap<>(checksums)));
+        byteCount += payloadFile.getSize();
+    }
+
+    /**
+     * Records a payload file that the archive fetches instead of receiving
+     * it within the SIP, along with its checksums from the manifests.
+     *
+     * @param payloadFile The file.
+     * @param url The URL from which the archive fetches the contents.
+     * @param manifests The payload manifests listing the file.
+     */
+    public void add(PayloadFile payloadFile, String url, List<BagManifest> manifests) {
+        Map<String, String> checksums = new LinkedHashMap<>();
+        for (BagManifest manifest : manifests) {
+            checksums.put(manifest.getAlgorithm(), 
+                    manifest.getChecksum(payloadFile.getBagPath()));
+        }
+        add(payloadFile, url, checksums);
+    }
+
+    /**
+     * @return True if every payload file is sent within the SIP.
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return The number of files to fetch.
+     */
+    public int getFileCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The total number of bytes of the files to fetch, which are
+     *         not sent.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @param payloadFile A payload file.
+     * @return True if the file is fetched rather than sent.
+     */
+    public boolean contains(PayloadFile payloadFile) {
+        return entries.containsKey(payloadFile.getBagPath());
+    }
+
+    /**
+     * @param payload The payload of the bag.
+     * @return The payload files that are sent within the SIP, in the order
+     *         of the payload.
+     */
+    public List<PayloadFile> exclude(List<PayloadFile> payload) {
+        List<PayloadFile> sent = new ArrayList<>(payload.size() - entries.size());
+        for (PayloadFile payloadFile : payload) {
+            if (!contains(payloadFile)) {
+                sent.add(payloadFile);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Lists the files to fetch within the payload manifests of the bag.
+     *
+     * @param manifests The payload manifests, which must be of algorithms
+     *                  whose checksums the files were recorded with.
+     */
+    public void addTo(List<BagManifest> manifests) {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry fetched = entry.getValue();
+            for (BagManifest manifest : manifests) {
+                String checksum = fetched.checksums.get(manifest.getAlgorithm());
+                if (checksum == null) {
+                    throw new IllegalArgumentException("No " + manifest.getAlgorithm()
+                            + " checksum is known for " + entry.getKey());
+                }
+                manifest.add(entry.getKey(), checksum, fetched.size);
+            }
+        }
+    }
+
+    /**
+     * @return The contents of fetch.txt: a line of the form 
+     *         "[url] [length] [path]" for each file.
+     */
+    public byte[] toBytes() {
+        StringBuilder fetch = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            fetch.append(entry.getValue().url).append(' ')
+                    .append(entry.getValue().size).append(' ')
+                    .append(entry.getKey()).append('\n');
+        }
+        return fetch.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The tag files describing the files to fetch, keyed by their
+     *         name: fetch.txt, or none if there is nothing to fetch.
+     */
+    public Map<String, byte[]> toTagFiles() {
+        return isEmpty() ? Collections.<String, byte[]>emptyMap()
+                : Collections.singletonMap(FILE_NAME, toBytes());
+    }
+
+    /**
+     * A file to fetch.
+     */
+    private static class Entry {
+        private final String url;
+        private final long size;
+        private final Map<String, String> checksums;
+
+        Entry(String url, long size, Map<String, String> checksums) {
+            this.url = url;
+            this.size = size;
+            this.checksums = checksums;
+        }
+    }
+}
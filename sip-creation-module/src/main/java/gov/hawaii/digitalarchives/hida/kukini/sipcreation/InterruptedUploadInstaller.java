@@ -0,0 +1,93 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.kukini.springservice.SpringServiceProvider;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.openide.DialogDisplayer;
+import org.openide.NotifyDescriptor;
+import org.openide.modules.ModuleInstall;
+import org.openide.util.Lookup;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Resumes, in the background, the SIP uploads that were interrupted the 
+ * last time Kukini was running, and tells the user how each transfer that
+ * was resumed ended.
+ * 
+ * @author Keone Hiraide
+ */
+@Messages({
+    "# {0} - selected files",
+    "resumedMessage=Your interrupted transfer of {0} has been completed.",
+    "# {0} - selected files",
+    "# {1} - response",
+    "resumeUnsuccessfulMessage=Your interrupted transfer of {0} could not be completed. "
+            + "\n Response: {1}",
+    "# {0} - selected files",
+    "resumeFailedMessage=Your interrupted transfer of {0} could not be resumed at this time. "
+            + "\n It will be resumed the next time Kukini starts."
+})
+public class InterruptedUploadInstaller extends ModuleInstall {
+    
+    private final Logger log = LoggerFactory.getLogger(InterruptedUploadInstaller.class);
+    
+    @Override
+    public void restored() {
+        log.debug("Entering restored()");
+        // Resuming an upload may take a while, so it must not hold up the
+        // startup of Kukini.
+        RequestProcessor.getDefault().post(new Runnable() {
+            @Override
+            public void run() {
+                SpringServiceProvider ssp = Lookup.getDefault()
+                        .lookup(SpringServiceProvider.class);
+                SipUploader sipUploader = (SipUploader) ssp.getBean("upload");
+                RestTemplate restTemplate = (RestTemplate) ssp.getBean("restTemplate");
+                Map<List<Path>, ResponseEntity<String>> transfers = sipUploader
+                        .resumeInterruptedTransfers(restTemplate);
+                for (Map.Entry<List<Path>, ResponseEntity<String>> transfer 
+                        : transfers.entrySet()) {
+                    log.info("Resumed the transfer of {}: {}", transfer.getKey(), 
+                            transfer.getValue());
+                    notifyUser(transfer.getKey(), transfer.getValue());
+                }
+                Map<Path, ResponseEntity<String>> responses = sipUploader
+                        .resumeInterruptedUploads(restTemplate);
+                for (Map.Entry<Path, ResponseEntity<String>> response : responses.entrySet()) {
+                    log.info("Resumed the upload of {}: {}", response.getKey(), 
+                            response.getValue());
+                }
+            }
+        });
+        log.debug("Exiting restored()");
+    }
+    
+    /**
+     * Tells the user how a transfer that was resumed ended.
+     * 
+     * @param sources The files and folders that were selected for it.
+     * @param response The response to its upload, or null if it failed 
+     *                 again and is kept to be resumed the next time.
+     */
+    private void notifyUser(List<Path> sources, ResponseEntity<String> response) {
+        NotifyDescriptor.Message message;
+        if (response == null) {
+            message = new NotifyDescriptor.Message(Bundle.resumeFailedMessage(sources), 
+                    NotifyDescriptor.WARNING_MESSAGE);
+        } else if (response.getStatusCode() == HttpStatus.CREATED) {
+            message = new NotifyDescriptor.Message(Bundle.resumedMessage(sources), 
+                    NotifyDescriptor.INFORMATION_MESSAGE);
+        } else {
+            message = new NotifyDescriptor.Message(Bundle.resumeUnsuccessfulMessage(sources, 
+                    response), NotifyDescriptor.ERROR_MESSAGE);
+        }
+        DialogDisplayer.getDefault().notifyLater(message);
+    }
+}
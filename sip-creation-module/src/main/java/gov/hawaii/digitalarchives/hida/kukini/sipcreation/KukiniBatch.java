@@ -0,0 +1,329 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.hawaii.digitalarchives.hida.kukini.provenance.UserInformation;
+import gov.hawaii.digitalarchives.hida.kukini.springservice.SpringServiceProvider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openide.util.Lookup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Transfers SIPs from the command line, without the application's windows,
+ * so that archivists can script nightly transfers. It uses the same Spring
+ * context, and so the same uploader, endpoints and pools, as the 
+ * application.
+ *
+ * <pre>
+ * KukiniBatch PROVENANCE [--jobs N] [--cpu N] [--io-rate BYTES_PER_SECOND] [--output FILE]
+ *             SOURCE...
+ * KukiniBatch PROVENANCE [--jobs N] [--cpu N] [--io-rate BYTES_PER_SECOND] [--output FILE]
+ *             [--quiet-period SECONDS] --watch FOLDER...
+ *
+ * PROVENANCE: --transferer NAME --department NAME --division NAME --branch NAME
+ * </pre>
+ *
+ * The provenance options name the archivist who transfers the records and
+ * the agency that produced them, as the login of the application does; 
+ * they are recorded in the accession of every SIP, and are required.
+ *
+ * Each SOURCE is a file or folder placed within a SIP of its own. A SOURCE
+ * of {@code @FILE} reads the SIPs from a file instead: one SIP per line, 
+ * with the files and folders of the SIP separated by tabs.
+ *
+ * The result of each SIP is written as a line of JSON, in the order of the
+ * SIPs, to the output file or else to the standard output. The exit status
+ * is 0 if every SIP was uploaded, 1 if any failed and 2 if the arguments
+ * are wrong.
+ *
+ * With {@code --watch}, the folders are watched instead until the process
+ * is stopped, and every batch dropped into them is transferred once it has
+ * been left alone for the quiet period. See {@link WatchFolderIngest}. The
+ * result of each batch is written as soon as it is known.
+ *
+ * @author Keone Hiraide
+ */
+public final class KukiniBatch {
+
+     // The SIPs transferred at the same time, unless told otherwise.
+    private static final int DEFAULT_JOBS = 2;
+
+     // How long a dropped batch must be left alone before it is 
+     // transferred, unless told otherwise.
+    private static final long DEFAULT_QUIET_SECONDS = 5;
+
+    private static final String USAGE = "Usage: KukiniBatch PROVENANCE [--jobs N] [--cpu N] "
+            + "[--io-rate BYTES_PER_SECOND] [--output FILE] SOURCE...\n"
+            + "       KukiniBatch PROVENANCE [--jobs N] [--cpu N] [--io-rate BYTES_PER_SECOND] "
+            + "[--output FILE] [--quiet-period SECONDS] --watch FOLDER...\n"
+            + "PROVENANCE: --transferer NAME --department NAME --division NAME --branch NAME";
+
+    private KukiniBatch() {
+    }
+
+    /**
+     * Transfers the SIPs named by the arguments and exits.
+     *
+     * @param args The options and sources. See {@link KukiniBatch}.
+     */
+    public static void main(String[] args) {
+        int jobs = DEFAULT_JOBS;
+        int cpuSlots = -1;
+        long bytesPerSecond = 0;
+        Path output = null;
+        List<Path> watchFolders = new ArrayList<>();
+        long quietSeconds = DEFAULT_QUIET_SECONDS;
+        List<List<Path>> sips = new ArrayList<>();
+        String transferer = null;
+        String department = null;
+        String division = null;
+        String branch = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--jobs":
+                        jobs = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--cpu":
+                        cpuSlots = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--io-rate":
+                        bytesPerSecond = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--output":
+                        output = Paths.get(value(args, ++i));
+                        break;
+                    case "--watch":
+                        watchFolders.add(Paths.get(value(args, ++i)));
+                        break;
+                    case "--quiet-period":
+                        quietSeconds = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--transferer":
+                        transferer = value(args, ++i);
+                        break;
+                    case "--department":
+                        department = value(args, ++i);
+                        break;
+                    case "--division":
+                        division = value(args, ++i);
+                        break;
+                    case "--branch":
+                        branch = value(args, ++i);
+                        break;
+                    default:
+                        if (args[i].startsWith("@")) {
+                            sips.addAll(readSips(Paths.get(args[i].substring(1))));
+                        } else {
+                            sips.add(Collections.singletonList(Paths.get(args[i])));
+                        }
+                }
+            }
+            if (sips.isEmpty() == watchFolders.isEmpty()) {
+                throw new IllegalArgumentException("Either SIPs or folders to watch are needed");
+            }
+            if (jobs < 1 || quietSeconds < 0) {
+                throw new IllegalArgumentException("--jobs must be at least 1 and "
+                        + "--quiet-period at least 0");
+            }
+            if (isBlank(transferer) || isBlank(department) || isBlank(division) 
+                    || isBlank(branch)) {
+                throw new IllegalArgumentException("--transferer, --department, --division "
+                        + "and --branch are needed for the provenance of the SIPs");
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (cpuSlots < 1) {
+            cpuSlots = jobs;
+        }
+
+        // The accession of each SIP is created from the user, who would 
+        // otherwise be filled in by logging in to the application.
+        UserInformation user = Lookup.getDefault().lookup(UserInformation.class);
+        user.setFullName(transferer);
+        user.setDepartment(department);
+        user.setDivision(division);
+        user.setBranch(branch);
+
+        SpringServiceProvider ssp = Lookup.getDefault().lookup(SpringServiceProvider.class);
+        SipUploader sipUploader = (SipUploader) ssp.getBean("upload");
+        RestTemplate restTemplate = (RestTemplate) ssp.getBean("restTemplate");
+
+        // A previous run may have been stopped part way, so its transfers
+        // are finished before new SIPs are sent.
+        Map<List<Path>, ResponseEntity<String>> resumedTransfers = sipUploader
+                .resumeInterruptedTransfers(restTemplate);
+        Set<List<Path>> resumedSources = new HashSet<>();
+        for (Map.Entry<List<Path>, ResponseEntity<String>> response 
+                : resumedTransfers.entrySet()) {
+            if (response.getValue() == null) {
+                System.err.println("Failed to resume the transfer of " + response.getKey()
+                        + ", it will be resumed the next time");
+            } else {
+                resumedSources.add(response.getKey());
+                System.err.println("Resumed the transfer of " + response.getKey() + ": " 
+                        + response.getValue().getStatusCode());
+            }
+        }
+        Map<Path, ResponseEntity<String>> resumed = sipUploader
+                .resumeInterruptedUploads(restTemplate);
+        for (Map.Entry<Path, ResponseEntity<String>> response : resumed.entrySet()) {
+            System.err.println("Resumed the upload of " + response.getKey() + ": " 
+                    + response.getValue().getStatusCode());
+        }
+
+        BatchTransfer batchTransfer = new BatchTransfer(sipUploader, restTemplate, jobs,
+                new TransferBudget(cpuSlots, bytesPerSecond));
+        if (!watchFolders.isEmpty()) {
+            watch(batchTransfer, watchFolders, quietSeconds, output, 
+                    resumedSources);
+            System.exit(1);
+        }
+        List<BatchResult> results = batchTransfer.run(sips);
+        boolean succeeded = true;
+        try {
+            writeResults(results, output);
+        } catch (IOException e) {
+            System.err.println("Failed to write the results: " + e.getMessage());
+            succeeded = false;
+        }
+        for (BatchResult result : results) {
+            succeeded &= result.isSucceeded();
+        }
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    /**
+     * Transfers the batches dropped into the folders until the process is
+     * stopped, writing the result of each batch as soon as it is known.
+     *
+     * @param batchTransfer Transfers each batch.
+     * @param folders The folders that batches are dropped into.
+     * @param quietSeconds How long nothing within a batch must change
+     *                     before it is complete.
+     * @param output The file the results are appended to, or null for the
+     *               standard output.
+     * @param resumed The sources of the transfers that were resumed, whose
+     *                batches are not transferred again.
+     */
+    private static void watch(BatchTransfer batchTransfer, List<Path> folders, long quietSeconds,
+            Path output, Set<List<Path>> resumed) {
+        final ObjectMapper mapper = new ObjectMapper();
+        final PrintStream printer;
+        try {
+            printer = output == null ? System.out : new PrintStream(Files.newOutputStream(output, 
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), true, "UTF-8");
+        } catch (IOException e) {
+            System.err.println("Failed to open " + output + ": " + e.getMessage());
+            return;
+        }
+        WatchFolderIngest ingest = new WatchFolderIngest(batchTransfer, folders, 
+                TimeUnit.SECONDS.toMillis(quietSeconds), new WatchFolderIngest.Listener() {
+            @Override
+            public void batchTransferred(Path batch, BatchResult result) {
+                try {
+                    String line = mapper.writeValueAsString(result);
+                    synchronized (printer) {
+                        printer.println(line);
+                        printer.flush();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to write the result of " + batch + ": " 
+                            + e.getMessage());
+                }
+            }
+        });
+        for (List<Path> sources : resumed) {
+            try {
+                if (sources.size() == 1) {
+                    ingest.retire(sources.get(0));
+                }
+            } catch (RuntimeException e) {
+                System.err.println(e.getMessage() + ", so it will be transferred again");
+            }
+        }
+        ingest.run();
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    /**
+     * @return The value of the option at the given index.
+     */
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(args[index - 1] + " needs a value");
+        }
+        return args[index];
+    }
+
+    /**
+     * Reads a list of SIPs: one SIP per line, with the files and folders of
+     * the SIP separated by tabs. Blank lines are skipped.
+     *
+     * @param listPath The list of SIPs.
+     *
+     * @return The files and folders of each SIP.
+     */
+    static List<List<Path>> readSips(Path listPath) throws IOException {
+        List<List<Path>> sips = new ArrayList<>();
+        for (String line : Files.readAllLines(listPath, StandardCharsets.UTF_8)) {
+            List<Path> sources = new ArrayList<>();
+            for (String source : line.split("\t")) {
+                if (!source.trim().isEmpty()) {
+                    sources.add(Paths.get(source.trim()));
+                }
+            }
+            if (!sources.isEmpty()) {
+                sips.add(sources);
+            }
+        }
+        return sips;
+    }
+
+    /**
+     * Writes each result as a line of JSON.
+     *
+     * @param results The results of the SIPs.
+     * @param output The file to write, or null for the standard output.
+     */
+    static void writeResults(List<BatchResult> results, Path output) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        OutputStream out = output == null ? System.out : Files.newOutputStream(output);
+        PrintStream printer = new PrintStream(out, false, "UTF-8");
+        try {
+            for (BatchResult result : results) {
+                printer.println(mapper.writeValueAsString(result));
+            }
+        } finally {
+            if (output == null) {
+                printer.flush();
+            } else {
+                printer.close();
+            }
+        }
+        if (printer.checkError()) {
+            throw new IOException("Failed to write to " + (output == null ? "the output" : output));
+        }
+    }
+}
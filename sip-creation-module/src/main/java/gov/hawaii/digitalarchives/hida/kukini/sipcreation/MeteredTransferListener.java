@@ -0,0 +1,85 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the stages of a single transfer into its {@link TransferMetrics},
+ * and passes the progress on to the listener of the transfer.
+ *
+ * @author Keone Hiraide
+ */
+class MeteredTransferListener implements TransferListener {
+
+    private final TransferMetrics metrics;
+    private final TransferListener listener;
+
+     // When each stage in progress started, in nanoseconds, guarded by 
+     // itself.
+    private final Map<TransferStage, Long> started = new EnumMap<>(TransferStage.class);
+
+     // The bytes processed by each stage of this transfer.
+    private final Map<TransferStage, AtomicLong> bytes = new EnumMap<>(TransferStage.class);
+
+     // Whether the failure of the transfer has been counted.
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    MeteredTransferListener(TransferMetrics metrics, TransferListener listener) {
+        this.metrics = metrics;
+        this.listener = listener;
+        for (TransferStage stage : TransferStage.values()) {
+            bytes.put(stage, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void stageStarted(TransferStage stage, long totalBytes) {
+        boolean running;
+        synchronized (started) {
+            running = started.put(stage, System.nanoTime()) != null;
+        }
+        if (!running) {
+            bytes.get(stage).set(0);
+            metrics.getStage(stage).started();
+        }
+        listener.stageStarted(stage, totalBytes);
+    }
+
+    @Override
+    public void transferred(TransferStage stage, long count) {
+        bytes.get(stage).addAndGet(count);
+        metrics.getStage(stage).transferred(count);
+        listener.transferred(stage, count);
+    }
+
+    @Override
+    public void stageFinished(TransferStage stage) {
+        Long start;
+        synchronized (started) {
+            start = started.remove(stage);
+        }
+        if (start != null) {
+            metrics.getStage(stage).finished(System.nanoTime() - start, bytes.get(stage).get());
+        }
+        listener.stageFinished(stage);
+    }
+
+    /**
+     * Counts the failure of the transfer, and of the stages in progress. 
+     * Only the first call is counted.
+     */
+    void failed() {
+        if (!failed.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.failed();
+        synchronized (started) {
+            for (TransferStage stage : started.keySet()) {
+                metrics.getStage(stage).failed();
+            }
+            started.clear();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the checksums of several algorithms from the same bytes, which
+ * are read once into a shared buffer. Large blocks are hashed by every
+ * algorithm at the same time: by the calling thread with the first
+ * algorithm, and by the workers of a {@link DigestEngine} with the others.
+ * Each update returns once every algorithm has hashed the block, so the
+ * caller may then reuse its buffer.
+ *
+ * @author Keone Hiraide
+ */
+public class MultiDigest {
+
+     // Blocks smaller than this are hashed on the calling thread, since
+     // handing them to a worker would cost more than it saves.
+    private static final int PARALLEL_THRESHOLD = 16 * 1024;
+
+     // The BagIt names of the algorithms, in the order of the digests.
+    private final List<String> algorithms;
+    private final MessageDigest[] digests;
+
+     // Hashes blocks with all but the first algorithm, or null to hash them
+     // on the calling thread.
+    private final ExecutorService workers;
+
+    /**
+     * Creates a digest that hashes every block on the calling thread.
+     *
+     * @param algorithms The BagIt names of the algorithms. E.g: md5, sha256
+     */
+    public MultiDigest(List<String> algorithms) throws NoSuchAlgorithmException {
+        this(algorithms, null);
+    }
+
+    /**
+     * @param algorithms The BagIt names of the algorithms. E.g: md5, sha256
+     * @param workers Hashes blocks with all but the first algorithm, or null
+     *                to hash them on the calling thread.
+     */
+    MultiDigest(List<String> algorithms, ExecutorService workers)
+            throws NoSuchAlgorithmException {
+        this.algorithms = Collections.unmodifiableList(new ArrayList<>(algorithms));
+        this.digests = new MessageDigest[algorithms.size()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = MessageDigest.getInstance(BagManifest.toJavaAlgorithm(
+                    algorithms.get(i)));
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * @return The BagIt names of the algorithms.
+     */
+    public List<String> getAlgorithms() {
+        return algorithms;
+    }
+
+    /**
+     * Hashes a block with every algorithm. The block is not read once this
+     * method has returned.
+     *
+     * @param block The bytes to hash.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    public void update(final byte[] block, final int offset, final int length)
+            throws InterruptedIOException {
+        if (workers == null || digests.length == 1 || length < PARALLEL_THRESHOLD) {
+            for (MessageDigest digest : digests) {
+                digest.update(block, offset, length);
+            }
+            return;
+        }
+        List<Future<?>> updates = new ArrayList<>(digests.length - 1);
+        for (int i = 1; i < digests.length; i++) {
+            final MessageDigest digest = digests[i];
+            updates.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    digest.update(block, offset, length);
+                }
+            }));
+        }
+        digests[0].update(block, offset, length);
+        try {
+            for (Future<?> update : updates) {
+                update.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> update : updates) {
+                update.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing the payload");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to hash the payload", e.getCause());
+        }
+    }
+
+    /**
+     * Finishes every checksum and resets the digest.
+     *
+     * @return The checksums keyed by the BagIt name of their algorithm.
+     */
+    public Map<String, byte[]> digest() {
+        Map<String, byte[]> checksums = new LinkedHashMap<>();
+        for (int i = 0; i < digests.length; i++) {
+            checksums.put(algorithms.get(i), digests[i].digest());
+        }
+        return checksums;
+    }
+}
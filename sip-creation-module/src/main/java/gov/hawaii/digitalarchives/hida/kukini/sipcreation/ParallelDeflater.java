@@ -0,0 +1,199 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates blocks of a file on a pool of worker threads so that a SIP is
+ * compressed on every core of the machine rather than on a single one.
+ *
+ * Each block is compressed into a raw deflate stream of its own. Every
+ * block except the last one of a file is ended with a sync flush instead of
+ * being finished, so the compressed blocks of a file can simply be
+ * concatenated into a single deflate stream that any zip reader can
+ * inflate. The last 32 KB of the previous block are used as the dictionary
+ * of each block, so splitting a file costs very little compression.
+ *
+ * @author Keone Hiraide
+ */
+public class ParallelDeflater {
+
+     // The default number of bytes of a file that are compressed by a task.
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+     // The size of the deflate window, which is the most of the previous
+     // block that can be referred to by a block.
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+     // The number of blocks that are compressed at the same time.
+    private final int concurrency;
+
+     // The workers which compress the blocks. Null if blocks are compressed
+     // on the calling thread.
+    private final ExecutorService workers;
+
+     // The number of bytes of a file that are compressed by a task.
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+     // The deflate compression level, from 0 to 9.
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * @param concurrency The number of blocks that are compressed at the
+     *                    same time. 0 or less uses every available core, 1
+     *                    compresses the blocks on the calling thread.
+     */
+    public ParallelDeflater(int concurrency) {
+        this.concurrency = concurrency > 0 ? concurrency
+                : Runtime.getRuntime().availableProcessors();
+        this.workers = this.concurrency == 1 ? null
+                : Executors.newFixedThreadPool(this.concurrency, new WorkerThreadFactory());
+    }
+
+    /**
+     * @param blockSize The number of bytes of a file that are compressed by
+     *                  a task. Larger blocks compress slightly better,
+     *                  smaller ones spread small files over more cores.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("The block size must be at least "
+                    + DICTIONARY_SIZE + " bytes");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return The number of bytes of a file that are compressed by a task.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param level The deflate compression level, from 0 (none) to 9 (best),
+     *              or -1 for the default level.
+     */
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * @return The deflate compression level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The number of blocks that are compressed at the same time.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Compresses a block of a file. The arrays must not be modified until
+     * the block has been compressed.
+     *
+     * @param block The bytes to compress.
+     * @param length The number of bytes of the block to compress.
+     * @param previous The previous block of the same file, or null if this is
+     *                 the first block.
+     * @param previousLength The number of bytes of the previous block.
+     * @param last Whether this is the last block of the file.
+     *
+     * @return The compressed block. The future fails with an
+     *         ExecutionException if the block could not be compressed.
+     */
+    public Future<byte[]> deflate(final byte[] block, final int length,
+            final byte[] previous, final int previousLength, final boolean last) {
+        Callable<byte[]> task = new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return compress(block, length, previous, previousLength, last);
+            }
+        };
+        if (workers == null) {
+            FutureTask<byte[]> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+        return workers.submit(task);
+    }
+
+    /**
+     * @return The number of blocks waiting for a worker to compress them.
+     */
+    public int getQueueDepth() {
+        return workers == null ? 0 : ((ThreadPoolExecutor) workers).getQueue().size();
+    }
+
+    /**
+     * Stops the workers. Called when the spring context is closed.
+     */
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    private byte[] compress(byte[] block, int length, byte[] previous,
+            int previousLength, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (previous != null && previousLength > 0) {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, previousLength);
+                deflater.setDictionary(previous, previousLength - dictionaryLength,
+                        dictionaryLength);
+            }
+            deflater.setInput(block, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(length / 4, 4096)];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, count);
+                }
+            } else {
+                // A sync flush ends the block on a byte boundary without
+                // marking it as the final block of the stream.
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Creates daemon worker threads so that a pending compression never
+     * keeps Kukini from exiting.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "kukini-deflate-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openide.filesystems.FileUtil;
+import org.openide.loaders.DataObject;
+
+/**
+ * A single file that will be placed within the payload ("data") directory
+ * of a SIP bag. Holds the location of the file on the user's machine along
+ * with the path that the file will have within the bag, and the attributes
+ * it had when it was listed, which identify the version of the file whose
+ * checksum a {@link DigestCache} may hold.
+ *
+ * @author Keone Hiraide
+ */
+public final class PayloadFile {
+
+     // Name of the payload directory within a bag.
+    public static final String DATA_DIRECTORY = "data";
+
+     // The file on the user's machine.
+    private final Path source;
+
+     // The path of the file relative to the root of the bag.
+     // E.g: data/home/user/records/report.pdf
+    private final String bagPath;
+
+     // The size of the source file in bytes.
+    private final long size;
+
+     // The last modified time of the source file in nanoseconds, or -1 if
+     // it is unknown.
+    private final long lastModified;
+
+     // Identifies the source file on its volume (e.g. its device and inode),
+     // or null if the file system has no such key or it is unknown.
+    private final Object fileKey;
+
+    /**
+     * Creates a payload file whose attributes, besides its size, are
+     * unknown. Its checksum is never cached.
+     *
+     * @param source The file on the user's machine.
+     * @param bagPath The path of the file relative to the root of the bag.
+     * @param size The size of the source file in bytes.
+     */
+    public PayloadFile(Path source, String bagPath, long size) {
+        this.source = source;
+        this.bagPath = bagPath;
+        this.size = size;
+        this.lastModified = -1;
+        this.fileKey = null;
+    }
+
+    /**
+     * @param source The file on the user's machine.
+     * @param bagPath The path of the file relative to the root of the bag.
+     * @param attributes The attributes of the source file.
+     */
+    public PayloadFile(Path source, String bagPath, BasicFileAttributes attributes) {
+        this.source = source;
+        this.bagPath = bagPath;
+        this.size = attributes.size();
+        this.lastModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        this.fileKey = attributes.fileKey();
+    }
+
+    /**
+     * @return The file on the user's machine.
+     */
+    public Path getSource() {
+        return source;
+    }
+
+    /**
+     * @return The path of the file relative to the root of the bag, using
+     *         forward slashes as separators. E.g: data/home/user/report.pdf
+     */
+    public String getBagPath() {
+        return bagPath;
+    }
+
+    /**
+     * @return The size of the source file in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The last modified time of the source file when it was listed,
+     *         in nanoseconds, or -1 if it is unknown.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The key that identified the source file on its volume when it
+     *         was listed, or null if there is none.
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * Checks whether the source file still has the attributes it was listed
+     * with, i.e. whether a checksum computed from it, or cached for it, is
+     * still its checksum.
+     *
+     * @return False if the file has changed, or its attributes were not
+     *         known.
+     */
+    public boolean isUnchanged() throws IOException {
+        if (lastModified == -1) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(source, 
+                BasicFileAttributes.class);
+        return attributes.size() == size
+                && attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) == lastModified
+                && (fileKey == null ? attributes.fileKey() == null 
+                        : fileKey.equals(attributes.fileKey()));
+    }
+
+    /**
+     * Resolves the location of this file within a bag directory.
+     *
+     * @param bagDirectory The root directory of the bag.
+     * @return The path that this file will have within the bag directory.
+     */
+    public Path resolveIn(Path bagDirectory) {
+        return bagDirectory.resolve(bagPath);
+    }
+
+    @Override
+    public String toString() {
+        return source + " -> " + bagPath;
+    }
+
+    /**
+     * Creates the payload files for the files that the user currently has
+     * selected. Selected folders are walked and every file beneath them
+     * is included.
+     *
+     * @param selectedContext The list of DataObjects which represent the files
+     *                        that the user currently has selected.
+     * @return The payload files, in the order that they were selected.
+     */
+    public static List<PayloadFile> fromDataObjects(List<DataObject> selectedContext) {
+        return fromPaths(toPaths(selectedContext));
+    }
+
+    /**
+     * @param selectedContext The list of DataObjects which represent the files
+     *                        that the user currently has selected.
+     * @return The paths of the selected files and folders.
+     */
+    static List<Path> toPaths(List<DataObject> selectedContext) {
+        List<Path> sources = new ArrayList<>();
+        for (DataObject dataObject : selectedContext) {
+            sources.add(FileUtil.toFile(dataObject.getPrimaryFile()).toPath());
+        }
+        return sources;
+    }
+
+    /**
+     * Creates the payload files for a list of files and folders. Folders
+     * are walked and every file beneath them is included.
+     *
+     * @param sources The files and folders to place within the payload.
+     * @return The payload files, in the order that they were given.
+     */
+    public static List<PayloadFile> fromPaths(List<Path> sources) {
+        final List<PayloadFile> payload = new ArrayList<>();
+        for (Path source : sources) {
+            try {
+                Files.walkFileTree(source.toAbsolutePath(), new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            payload.add(new PayloadFile(file, toBagPath(file), attrs));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                throw new HidaIOException("Failed to read the selected file " + source, e);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Maps a file to its path within the bag. The absolute path of the file
+     * is kept beneath the "data" directory so that the archive knows where
+     * the record came from. Windows drive letters are replaced with a
+     * "[letter]_Hida_Volume" folder. E.g: "C:\Users\report.pdf" becomes
+     * "data/C_Hida_Volume/Users/report.pdf".
+     *
+     * @param file The absolute path of the file.
+     * @return The path of the file relative to the root of the bag.
+     */
+    static String toBagPath(Path file) {
+        String normalized = file.toAbsolutePath().normalize().toString()
+                .replace('\\', '/')
+                .replaceFirst("^([a-zA-Z]):", "/$1_Hida_Volume");
+        if (!normalized.startsWith("/")) {
+            normalized = "/" + normalized;
+        }
+        return DATA_DIRECTORY + normalized;
+    }
+}
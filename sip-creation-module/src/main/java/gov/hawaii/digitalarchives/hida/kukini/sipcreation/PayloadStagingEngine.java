@@ -0,0 +1,535 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies payload files into a temporary bag directory using a bounded pool
+ * of worker threads, so that one slow file (e.g. on a network share) does
+ * not hold up the files behind it. The checksum of each file is computed
+ * while it is being copied.
+ *
+ * When a file resides on the same volume as the bag directory, it is hard
+ * linked into the bag instead of being copied, and is only read once to 
+ * compute its checksum. The file is copied whenever it cannot be linked,
+ * e.g. because it resides on another volume or the file system does not
+ * support hard links.
+ *
+ * A file may be checksummed with several algorithms, one manifest each. It
+ * is still read once, and each block is hashed with every algorithm, on
+ * several cores when a {@link DigestEngine} is set.
+ *
+ * With a {@link DigestCache}, files whose checksums are cached from an
+ * earlier SIP, and that have not changed since, are not hashed: a linked
+ * file is not read at all, and a copied one is only copied.
+ *
+ * Errors are reported deterministically: if several files fail to copy,
+ * the failure of the file that comes first within the payload is the one
+ * that is thrown, regardless of which worker failed first.
+ *
+ * @author Keone Hiraide
+ */
+public class PayloadStagingEngine {
+
+     // Size of the buffer used by each worker to copy a file.
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+     // The number of files that are copied at the same time.
+    private final int concurrency;
+
+     // The workers which copy the files. Shared by every SIP that is staged.
+    private final ExecutorService workers;
+
+     // Whether files are hard linked into the bag when possible.
+    private boolean linking;
+
+     // Remembers the checksums of files across SIPs, or null to hash every
+     // file.
+    private DigestCache digestCache;
+
+     // Hashes files with several algorithms at the same time, or null to
+     // hash them on the worker that copies them.
+    private DigestEngine digestEngine;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(PayloadStagingEngine.class);
+
+    /**
+     * @param concurrency The number of files that are copied at the same
+     *                    time. A concurrency of 1 copies the files one after
+     *                    another on the calling thread.
+     */
+    public PayloadStagingEngine(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        this.workers = this.concurrency == 1 ? null
+                : Executors.newFixedThreadPool(this.concurrency, new WorkerThreadFactory());
+    }
+
+    /**
+     * Sets whether files that reside on the same volume as the bag directory
+     * are hard linked into the bag instead of being copied. A linked file 
+     * shares its contents with the original, so a selected file modified 
+     * while a SIP is being built, or before an interrupted transfer is 
+     * resumed, changes the bag as well. Linking is off unless turned on.
+     * 
+     * @param linking True to hard link files when possible.
+     */
+    public void setLinking(boolean linking) {
+        this.linking = linking;
+    }
+
+    /**
+     * @return True if files are hard linked into the bag when possible.
+     */
+    public boolean isLinking() {
+        return linking;
+    }
+
+    /**
+     * Sets the cache that checksums are looked up in before files are
+     * hashed, and that the checksums of hashed files are added to.
+     * 
+     * @param digestCache The cache, or null to hash every file.
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Sets the engine that hashes each block of a file with every algorithm
+     * at the same time.
+     * 
+     * @param digestEngine The engine, or null to hash files on the worker
+     *                     that copies them.
+     */
+    public void setDigestEngine(DigestEngine digestEngine) {
+        this.digestEngine = digestEngine;
+    }
+
+    /**
+     * @return The number of files that are copied at the same time.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Copies the payload files beneath the root directory of a bag.
+     *
+     * @param payload The files to copy.
+     * @param rootDirectory The root directory of the bag.
+     * @param algorithm The BagIt name of the checksum algorithm. E.g: md5
+     *
+     * @return The checksums of the copied files, in the order of the payload.
+     */
+    public BagManifest stage(List<PayloadFile> payload, Path rootDirectory, String algorithm) {
+        return stage(payload, rootDirectory, algorithm, TransferListener.NONE);
+    }
+
+    /**
+     * Copies the payload files beneath the root directory of a bag, 
+     * reporting the bytes copied as the {@link TransferStage#STAGING} stage.
+     * The staging stops as soon as possible if the calling thread is 
+     * interrupted.
+     *
+     * @param payload The files to copy.
+     * @param rootDirectory The root directory of the bag.
+     * @param algorithm The BagIt name of the checksum algorithm. E.g: md5
+     * @param listener Receives the number of bytes copied.
+     *
+     * @return The checksums of the copied files, in the order of the payload.
+     */
+    public BagManifest stage(List<PayloadFile> payload, Path rootDirectory, String algorithm,
+            TransferListener listener) {
+        return stage(payload, rootDirectory, Collections.singletonList(algorithm), 
+                listener).get(0);
+    }
+
+    /**
+     * Copies the payload files beneath the root directory of a bag while
+     * checksumming them with several algorithms, reporting the bytes copied
+     * as the {@link TransferStage#STAGING} stage. The staging stops as soon
+     * as possible if the calling thread is interrupted.
+     *
+     * @param payload The files to copy.
+     * @param rootDirectory The root directory of the bag.
+     * @param algorithms The BagIt names of the checksum algorithms. 
+     *                   E.g: md5, sha256
+     * @param listener Receives the number of bytes copied.
+     *
+     * @return The checksums of the copied files, in the order of the payload,
+     *         one manifest per algorithm.
+     */
+    public List<BagManifest> stage(List<PayloadFile> payload, Path rootDirectory, 
+            List<String> algorithms, TransferListener listener) {
+        log.debug("Entering stage(payload={}, rootDirectory={}, algorithms={})", 
+                payload.size(), rootDirectory, algorithms);
+        List<BagManifest> manifests = process(payload, rootDirectory, algorithms, listener);
+        log.debug("Exiting stage()");
+        return manifests;
+    }
+
+    /**
+     * Checksums the payload files without copying them, reporting the bytes
+     * read as the {@link TransferStage#CHECKSUMMING} stage. The files are 
+     * hashed by the same workers that copy files, and checksums are looked
+     * up in, and added to, the digest cache, so that files which are staged
+     * or zipped afterwards are not hashed again. The checksumming stops as 
+     * soon as possible if the calling thread is interrupted.
+     *
+     * @param payload The files to checksum.
+     * @param algorithms The BagIt names of the checksum algorithms. 
+     *                   E.g: md5, sha256
+     * @param listener Receives the number of bytes read.
+     *
+     * @return The checksums of the files, in the order of the payload, one
+     *         manifest per algorithm.
+     */
+    public List<BagManifest> checksum(List<PayloadFile> payload, List<String> algorithms,
+            TransferListener listener) {
+        log.debug("Entering checksum(payload={}, algorithms={})", payload.size(), algorithms);
+        List<BagManifest> manifests = process(payload, null, algorithms, listener);
+        log.debug("Exiting checksum()");
+        return manifests;
+    }
+
+    /**
+     * Copies the payload files while checksumming them, or only checksums
+     * them if there is no root directory.
+     */
+    private List<BagManifest> process(List<PayloadFile> payload, Path rootDirectory, 
+            List<String> algorithms, TransferListener listener) {
+        List<BagManifest> manifests = new ArrayList<>(algorithms.size());
+        for (String algorithm : algorithms) {
+            manifests.add(new BagManifest(algorithm));
+        }
+        Set<Path> unlinkable = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+        if (workers == null) {
+            for (PayloadFile payloadFile : payload) {
+                add(manifests, copy(payloadFile, rootDirectory, algorithms, 
+                        unlinkable, null, listener));
+            }
+            return manifests;
+        }
+
+        AtomicBoolean aborted = new AtomicBoolean();
+        List<Future<StagedFile>> copies = new ArrayList<>(payload.size());
+        for (PayloadFile payloadFile : payload) {
+            copies.add(workers.submit(new CopyTask(payloadFile, rootDirectory, 
+                    algorithms, unlinkable, aborted, listener)));
+        }
+        try {
+            for (Future<StagedFile> copy : copies) {
+                add(manifests, copy.get());
+            }
+        } catch (ExecutionException e) {
+            abort(copies, aborted);
+            Throwable cause = e.getCause();
+            if (cause instanceof HidaIOException) {
+                throw (HidaIOException) cause;
+            }
+            throw new HidaIOException("Failed to stage the payload", cause);
+        } catch (InterruptedException e) {
+            abort(copies, aborted);
+            Thread.currentThread().interrupt();
+            throw new HidaIOException("Interrupted while staging the payload", e);
+        }
+        return manifests;
+    }
+
+    /**
+     * @return The number of files waiting for a worker to copy or hash
+     *         them.
+     */
+    public int getQueueDepth() {
+        return workers == null ? 0 : ((ThreadPoolExecutor) workers).getQueue().size();
+    }
+
+    /**
+     * Stops the workers. Called when the spring context is closed.
+     */
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Copies, or hard links, a single payload file while computing its 
+     * checksums, except for those that are cached.
+     * 
+     * @param rootDirectory The root directory of the bag, or null to only
+     *                      checksum the file.
+     * @param algorithms The BagIt names of the checksum algorithms.
+     * @param unlinkable Source directories whose files could not be linked
+     *                   into the bag. Their files are copied straight away.
+     * @param aborted Set when the staging has failed, in which case the copy
+     *                stops as soon as possible. May be null.
+     * @param listener Receives the number of bytes copied.
+     */
+    private StagedFile copy(PayloadFile payloadFile, Path rootDirectory, 
+            List<String> algorithms, Set<Path> unlinkable, AtomicBoolean aborted,
+            TransferListener listener) {
+        Path source = payloadFile.getSource();
+        Path target = rootDirectory != null ? payloadFile.resolveIn(rootDirectory) : source;
+        TransferStage stage = rootDirectory != null ? TransferStage.STAGING 
+                : TransferStage.CHECKSUMMING;
+        TransferEvent event = TransferEvents.begin(rootDirectory != null 
+                ? TransferEventType.FILE_STAGED : TransferEventType.FILE_DIGESTED);
+        try {
+            checkAborted(aborted);
+            
+            // Create the parent folder of the file within the bag. The
+            // parent folders of the parent folder are also created if they
+            // don't exist.
+            if (rootDirectory != null) {
+                Files.createDirectories(target.getParent());
+            }
+
+            Map<String, byte[]> cached = new HashMap<>();
+            List<String> missing = new ArrayList<>(algorithms.size());
+            for (String algorithm : algorithms) {
+                byte[] checksum = digestCache != null 
+                        ? digestCache.get(payloadFile, algorithm) : null;
+                if (checksum != null) {
+                    cached.put(algorithm, checksum);
+                } else {
+                    missing.add(algorithm);
+                }
+            }
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long size;
+            MultiDigest digest;
+            if (rootDirectory == null || link(source, target, unlinkable)) {
+                if (missing.isEmpty() && payloadFile.isUnchanged()) {
+                    // The link, or the file itself, has the contents whose 
+                    // checksums are cached.
+                    listener.transferred(stage, payloadFile.getSize());
+                    return new StagedFile(payloadFile, cached, payloadFile.getSize());
+                }
+                // The file is read once, for every algorithm.
+                cached.clear();
+                digest = createDigest(algorithms);
+                size = transfer(source, null, digest, buffer, aborted, stage, listener);
+            } else {
+                digest = missing.isEmpty() ? null : createDigest(missing);
+                try (OutputStream out = Files.newOutputStream(target, 
+                        StandardOpenOption.CREATE_NEW)) {
+                    size = transfer(source, out, digest, buffer, aborted, stage, listener);
+                }
+            }
+            boolean unchanged = size == payloadFile.getSize() && payloadFile.isUnchanged();
+            if (!cached.isEmpty() && !unchanged) {
+                // The file changed while it was being copied, so the copy is
+                // hashed instead.
+                digest = createDigest(algorithms);
+                transfer(target, null, digest, buffer, aborted, stage, TransferListener.NONE);
+                return new StagedFile(payloadFile, digest.digest(), size);
+            }
+            Map<String, byte[]> checksums = new HashMap<>(cached);
+            if (digest != null) {
+                for (Map.Entry<String, byte[]> checksum : digest.digest().entrySet()) {
+                    if (digestCache != null && unchanged) {
+                        digestCache.put(payloadFile, checksum.getKey(), checksum.getValue());
+                    }
+                    checksums.put(checksum.getKey(), checksum.getValue());
+                }
+            }
+            return new StagedFile(payloadFile, checksums, size);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            String errorMessage = rootDirectory != null 
+                    ? "Failed to copy the file " + source + " to " + rootDirectory
+                    : "Failed to checksum the file " + source;
+            if (aborted == null || !aborted.get()) {
+                log.error(errorMessage, e);
+            }
+            throw new HidaIOException(errorMessage, e);
+        } finally {
+            if (event != null) {
+                event.end(source.toString(), payloadFile.getSize());
+            }
+        }
+    }
+
+    /**
+     * @return A digest that computes the checksums of the algorithms.
+     */
+    private MultiDigest createDigest(List<String> algorithms) throws NoSuchAlgorithmException {
+        return digestEngine != null ? digestEngine.create(algorithms)
+                : new MultiDigest(algorithms);
+    }
+
+    /**
+     * Attempts to hard link a source file into the bag.
+     * 
+     * @return True if the file was linked, false if it has to be copied.
+     */
+    private boolean link(Path source, Path target, Set<Path> unlinkable) {
+        Path sourceDirectory = source.getParent();
+        if (!linking || unlinkable.contains(sourceDirectory)) {
+            return false;
+        }
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (UnsupportedOperationException | IOException | SecurityException e) {
+            // Most likely the source resides on another volume. Every file
+            // within the same directory is copied rather than retrying.
+            log.debug("Copying the files of {} since they could not be linked: {}", 
+                    sourceDirectory, e.toString());
+            unlinkable.add(sourceDirectory);
+            return false;
+        }
+    }
+
+    /**
+     * Reads a source file, computing its checksum and writing it to an 
+     * output stream.
+     * 
+     * @param out Where to write the file. Null if the file only needs to be
+     *            checksummed.
+     * @param digest Updated with the contents of the file. Null if the file
+     *               only needs to be copied.
+     * @param stage The stage that the bytes read are reported as.
+     * @return The size of the file.
+     */
+    private long transfer(Path source, OutputStream out, MultiDigest digest, 
+            byte[] buffer, AtomicBoolean aborted, TransferStage stage, 
+            TransferListener listener) throws IOException {
+        long size = 0;
+        try (InputStream in = Files.newInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                size += read;
+                listener.transferred(stage, read);
+                checkAborted(aborted);
+            }
+        }
+        return size;
+    }
+
+    private void add(List<BagManifest> manifests, StagedFile stagedFile) {
+        for (BagManifest manifest : manifests) {
+            manifest.add(stagedFile.payloadFile.getBagPath(), 
+                    stagedFile.checksums.get(manifest.getAlgorithm()), stagedFile.size);
+        }
+    }
+
+    private void checkAborted(AtomicBoolean aborted) throws IOException {
+        if (aborted != null && aborted.get()) {
+            throw new IOException("The staging of the payload was aborted");
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("The staging of the payload was cancelled");
+        }
+    }
+
+    /**
+     * Stops the copies that are still queued or running and waits for the
+     * running ones to finish, so that no file within the bag directory is
+     * still open once the failure is reported.
+     */
+    private void abort(List<Future<StagedFile>> copies, AtomicBoolean aborted) {
+        aborted.set(true);
+        for (Future<StagedFile> copy : copies) {
+            try {
+                copy.get();
+            } catch (ExecutionException e) {
+                // The copy failed or was aborted; either way it has stopped.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies a payload file on a worker thread.
+     */
+    private class CopyTask implements Callable<StagedFile> {
+        private final PayloadFile payloadFile;
+        private final Path rootDirectory;
+        private final List<String> algorithms;
+        private final Set<Path> unlinkable;
+        private final AtomicBoolean aborted;
+        private final TransferListener listener;
+
+        CopyTask(PayloadFile payloadFile, Path rootDirectory, List<String> algorithms,
+                Set<Path> unlinkable, AtomicBoolean aborted, TransferListener listener) {
+            this.payloadFile = payloadFile;
+            this.rootDirectory = rootDirectory;
+            this.algorithms = algorithms;
+            this.unlinkable = unlinkable;
+            this.aborted = aborted;
+            this.listener = listener;
+        }
+
+        @Override
+        public StagedFile call() {
+            return copy(payloadFile, rootDirectory, algorithms, unlinkable, aborted,
+                    listener);
+        }
+    }
+
+    /**
+     * The result of copying a payload file.
+     */
+    private static class StagedFile {
+        private final PayloadFile payloadFile;
+        private final Map<String, byte[]> checksums;
+        private final long size;
+
+        StagedFile(PayloadFile payloadFile, Map<String, byte[]> checksums, long size) {
+            this.payloadFile = payloadFile;
+            this.checksums = checksums;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Creates daemon worker threads so that a pending copy never keeps
+     * Kukini from exiting.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "kukini-staging-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.netbeans.api.progress.ProgressHandle;
+import org.openide.util.NbBundle.Messages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shows the progress and throughput of each stage of a transfer in a
+ * NetBeans progress bar. The progress bar is updated a few times a second
+ * at most, however often the bytes are reported.
+ *
+ * @author Keone Hiraide
+ */
+@Messages({
+    "# {0} - stage",
+    "# {1} - bytes processed",
+    "# {2} - total bytes",
+    "# {3} - bytes per second",
+    "stageProgress={0}: {1} of {2} ({3}/s)",
+    "# {0} - stage",
+    "# {1} - bytes processed",
+    "# {2} - bytes per second",
+    "stageProgressUnknownSize={0}: {1} ({2}/s)"
+})
+public class ProgressHandleListener implements TransferListener {
+
+     // The number of work units of the progress bar of each stage.
+    private static final int WORK_UNITS = 1000;
+
+     // The shortest time between two updates of the progress bar.
+    private static final long UPDATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+     // The progress bar.
+    private final ProgressHandle handle;
+
+     // The stage in progress.
+    private volatile TransferStage stage;
+
+     // The number of bytes that the stage in progress is expected to
+     // process, or -1 if unknown.
+    private volatile long totalBytes;
+
+     // The number of bytes processed by the stage in progress.
+    private final AtomicLong bytes = new AtomicLong();
+
+     // When the stage in progress started.
+    private volatile long startNanos;
+
+     // When the progress bar was last updated.
+    private final AtomicLong lastUpdateNanos = new AtomicLong();
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(ProgressHandleListener.class);
+
+    /**
+     * @param handle The progress bar. It must have been started.
+     */
+    public ProgressHandleListener(ProgressHandle handle) {
+        this.handle = handle;
+    }
+
+    @Override
+    public synchronized void stageStarted(TransferStage stage, long totalBytes) {
+        this.stage = stage;
+        this.totalBytes = totalBytes;
+        bytes.set(0);
+        startNanos = System.nanoTime();
+        lastUpdateNanos.set(startNanos);
+        if (totalBytes > 0) {
+            handle.switchToDeterminate(WORK_UNITS);
+        } else {
+            handle.switchToIndeterminate();
+        }
+        handle.progress(stage.getDisplayName());
+    }
+
+    @Override
+    public void transferred(TransferStage stage, long count) {
+        if (stage != this.stage) {
+            return;
+        }
+        bytes.addAndGet(count);
+        long now = System.nanoTime();
+        long lastUpdate = lastUpdateNanos.get();
+        if (now - lastUpdate >= UPDATE_INTERVAL_NANOS
+                && lastUpdateNanos.compareAndSet(lastUpdate, now)) {
+            update(stage, now);
+        }
+    }
+
+    @Override
+    public synchronized void stageFinished(TransferStage stage) {
+        if (stage != this.stage) {
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        log.info("{} processed {} bytes in {} ms ({}/s)", stage, bytes.get(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                formatBytes(throughput(bytes.get(), elapsedNanos)));
+        this.stage = null;
+    }
+
+    /**
+     * Shows the bytes processed by a stage, and its throughput.
+     */
+    private synchronized void update(TransferStage stage, long now) {
+        if (stage != this.stage) {
+            return;
+        }
+        long processed = bytes.get();
+        String throughput = formatBytes(throughput(processed, now - startNanos));
+        if (totalBytes > 0) {
+            int units = (int) Math.min(WORK_UNITS, processed * WORK_UNITS / totalBytes);
+            handle.progress(Bundle.stageProgress(stage.getDisplayName(), formatBytes(processed),
+                    formatBytes(totalBytes), throughput), units);
+        } else {
+            handle.progress(Bundle.stageProgressUnknownSize(stage.getDisplayName(),
+                    formatBytes(processed), throughput));
+        }
+    }
+
+    private static long throughput(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : (long) (bytes * 1e9 / nanos);
+    }
+
+    /**
+     * @return The number of bytes in a human readable form. E.g: 12.3 MB
+     */
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+}
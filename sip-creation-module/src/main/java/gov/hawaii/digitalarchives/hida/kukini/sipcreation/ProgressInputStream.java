@@ -0,0 +1,69 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Reports the bytes read from a stream to a {@link TransferListener}, and
+ * stops the reading as soon as the reading thread is interrupted, e.g. when
+ * the user cancels a transfer.
+ *
+ * @author Keone Hiraide
+ */
+public class ProgressInputStream extends FilterInputStream {
+
+     // The stage that the bytes read are reported as.
+    private final TransferStage stage;
+
+     // Receives the number of bytes read.
+    private final TransferListener listener;
+
+    /**
+     * @param in The stream to read.
+     * @param stage The stage that the bytes read are reported as.
+     * @param listener Receives the number of bytes read.
+     */
+    public ProgressInputStream(InputStream in, TransferStage stage, TransferListener listener) {
+        super(in);
+        this.stage = stage;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkInterrupted();
+        int b = super.read();
+        if (b != -1) {
+            listener.transferred(stage, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkInterrupted();
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            listener.transferred(stage, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkInterrupted();
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            listener.transferred(stage, skipped);
+        }
+        return skipped;
+    }
+
+    private void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("The transfer was cancelled");
+        }
+    }
+}
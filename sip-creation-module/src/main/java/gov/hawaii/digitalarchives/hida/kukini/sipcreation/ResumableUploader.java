@@ -0,0 +1,353 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Uploads a SIP in chunks so that an upload that fails part way resumes
+ * where it stopped rather than starting over. The state of each upload is
+ * kept in an {@link UploadSession} next to the SIP, so an upload can also
+ * be resumed after Kukini is restarted.
+ *
+ * The upload protocol:
+ * <ul>
+ * <li>POST [uploads URL] with the form fields fileName, size and rtpId
+ *     creates a session. The server answers 201 Created, with the URL of
+ *     the session in the Location header.</li>
+ * <li>HEAD [session URL] answers the number of bytes received in the
+ *     Upload-Offset header, or 404 Not Found if the session has expired.</li>
+ * <li>PUT [session URL] sends a chunk. The Upload-Offset header holds the
+ *     position of the chunk within the SIP, and the Chunk-MD5 header its
+ *     hex encoded MD5 checksum. The server answers 204 No Content with the
+ *     new Upload-Offset, or 409 Conflict if the offset is not the number of
+ *     bytes it has received.</li>
+ * <li>POST [session URL]/complete once every byte has been sent. The server
+ *     answers the same way that it answers a multipart upload of the whole
+ *     SIP.</li>
+ * </ul>
+ *
+ * @author Keone Hiraide
+ */
+public class ResumableUploader {
+
+     // Header holding the number of bytes of the SIP received by the server.
+    public static final String OFFSET_HEADER = "Upload-Offset";
+
+     // Header holding the hex encoded MD5 checksum of a chunk.
+    public static final String CHUNK_MD5_HEADER = "Chunk-MD5";
+
+     // The default number of bytes sent by each request.
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+     // The default number of times that a failed request is retried before
+     // the upload is given up. The upload can still be resumed later.
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+     // The longest wait between two attempts.
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+     // The URL to the servlet that creates upload sessions.
+    private final String uploadsURL;
+
+     // The number of bytes sent by each request.
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+     // The number of times that a failed request is retried.
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+     // How long to wait before the first retry. Doubled with every retry.
+    private long retryDelayMillis = 1000;
+
+     // Receives the number of bytes acknowledged by the server.
+    private TransferListener listener = TransferListener.NONE;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(ResumableUploader.class);
+
+    /**
+     * @param uploadsURL The URL to the servlet that creates upload sessions.
+     */
+    public ResumableUploader(String uploadsURL) {
+        this.uploadsURL = uploadsURL;
+    }
+
+    /**
+     * @return The URL to the servlet that creates upload sessions.
+     */
+    public String getUploadsURL() {
+        return uploadsURL;
+    }
+
+    /**
+     * @return The number of bytes sent by each request.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize The number of bytes sent by each request.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return The number of times that a failed request is retried before
+     *         the upload is given up.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries The number of times that a failed request is
+     *                   retried before the upload is given up.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryDelayMillis How long to wait before the first retry of a
+     *                         failed request. Doubled with every retry.
+     */
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Sets the listener which receives the number of bytes acknowledged by
+     * the server, as the {@link TransferStage#UPLOADING} stage. The bytes
+     * that were acknowledged before an upload is resumed are reported when
+     * it resumes.
+     *
+     * @param listener The listener.
+     */
+    public void setTransferListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The listener which receives the number of bytes acknowledged
+     *         by the server.
+     */
+    public TransferListener getTransferListener() {
+        return listener;
+    }
+
+    /**
+     * Uploads a SIP, resuming its previous upload if it was interrupted.
+     * The upload stops between two chunks if the calling thread is 
+     * interrupted.
+     *
+     * @param sipPath The SIP to upload.
+     * @param rtpId The ID of the records transmittal plan of the SIP.
+     * @param restTemplate Sends the requests.
+     *
+     * @return The response of the server to the completion of the upload.
+     *         If the upload fails, its state is kept so that it can be
+     *         resumed, and the failure is thrown.
+     */
+    public ResponseEntity<String> upload(Path sipPath, String rtpId, RestTemplate restTemplate) {
+        log.debug("Entering upload(sipPath={})", sipPath);
+        try (FileChannel sip = FileChannel.open(sipPath, StandardOpenOption.READ)) {
+            UploadSession session = UploadSession.load(sipPath);
+            if (session != null) {
+                session = resume(session, restTemplate);
+            }
+            if (session == null) {
+                session = createSession(sipPath, rtpId, restTemplate);
+            }
+            listener.transferred(TransferStage.UPLOADING, session.getOffset());
+
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize,
+                    Math.max(session.getSipSize(), 1)));
+            int failures = 0;
+            boolean resynchronize = false;
+            while (session.getOffset() < session.getSipSize()) {
+                checkInterrupted(sipPath);
+                try {
+                    if (resynchronize) {
+                        // The server may have received the last chunk 
+                        // before the connection failed.
+                        long offset = session.getOffset();
+                        UploadSession resumed = resume(session, restTemplate);
+                        session = resumed != null ? resumed 
+                                : createSession(sipPath, rtpId, restTemplate);
+                        listener.transferred(TransferStage.UPLOADING, 
+                                session.getOffset() - offset);
+                        resynchronize = false;
+                        continue;
+                    }
+                    sendChunk(sip, session, chunk, restTemplate);
+                    session.save();
+                    failures = 0;
+                } catch (ResourceAccessException | HttpStatusCodeException e) {
+                    if (!isRetryable(e) || failures >= maxRetries) {
+                        throw e;
+                    }
+                    failures++;
+                    log.warn("Failed to send a chunk of {} at offset {}, retrying ({}/{}): {}",
+                            sipPath, session.getOffset(), failures, maxRetries, e.toString());
+                    sleep(failures);
+                    resynchronize = true;
+                }
+            }
+
+            ResponseEntity<String> response = restTemplate.postForEntity(
+                    session.getSessionUri() + "/complete", null, String.class);
+            session.delete();
+            log.debug("Exiting upload(): {}", response);
+            return response;
+        } catch (IOException e) {
+            String errorMessage = "Failed to read the SIP " + sipPath;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Creates a new upload session on the server.
+     */
+    protected UploadSession createSession(Path sipPath, String rtpId,
+            RestTemplate restTemplate) throws IOException {
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("fileName", sipPath.getFileName().toString());
+        form.add("size", Long.toString(sipPath.toFile().length()));
+        form.add("rtpId", rtpId);
+        ResponseEntity<String> response = restTemplate.postForEntity(uploadsURL, form,
+                String.class);
+        URI location = response.getHeaders().getLocation();
+        if (response.getStatusCode() != HttpStatus.CREATED || location == null) {
+            throw new HidaIOException("Failed to create an upload session for " + sipPath
+                    + ", the server responded with " + response.getStatusCode());
+        }
+        UploadSession session = new UploadSession(sipPath, URI.create(uploadsURL)
+                .resolve(location));
+        session.save();
+        log.info("Created the upload session {} for {}", session.getSessionUri(), sipPath);
+        return session;
+    }
+
+    /**
+     * Asks the server how much of the SIP it has received.
+     *
+     * @return The session, or null if it has expired on the server.
+     */
+    protected UploadSession resume(UploadSession session, RestTemplate restTemplate) {
+        try {
+            HttpHeaders headers = restTemplate.headForHeaders(session.getSessionUri()
+                    .toString());
+            session.setOffset(Long.parseLong(headers.getFirst(OFFSET_HEADER)));
+            log.info("Resuming the upload of {} at offset {}", session.getSipPath(),
+                    session.getOffset());
+            return session;
+        } catch (HttpStatusCodeException e) {
+            if (e.getStatusCode() != HttpStatus.NOT_FOUND
+                    && e.getStatusCode() != HttpStatus.GONE) {
+                throw e;
+            }
+            log.info("The upload session {} has expired, starting over",
+                    session.getSessionUri());
+            session.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Sends the chunk of the SIP at the current offset of the session, and
+     * moves the offset past it once the server has acknowledged it.
+     */
+    private void sendChunk(FileChannel sip, UploadSession session, ByteBuffer chunk,
+            RestTemplate restTemplate) throws IOException {
+        TransferEvent event = TransferEvents.begin(TransferEventType.CHUNK_SENT);
+        long offset = session.getOffset();
+        chunk.clear();
+        chunk.limit((int) Math.min(chunk.capacity(), session.getSipSize() - offset));
+        while (chunk.hasRemaining()) {
+            if (sip.read(chunk, offset + chunk.position()) == -1) {
+                throw new IOException("The SIP " + session.getSipPath()
+                        + " is shorter than when its upload began");
+            }
+        }
+        byte[] body = chunk.limit() == chunk.capacity() ? chunk.array()
+                : Arrays.copyOf(chunk.array(), chunk.limit());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(OFFSET_HEADER, Long.toString(offset));
+        headers.set(CHUNK_MD5_HEADER, md5(body));
+        ResponseEntity<String> response = restTemplate.exchange(session.getSessionUri()
+                .toString(), HttpMethod.PUT, new HttpEntity<>(body, headers), String.class);
+        long acknowledged = Long.parseLong(response.getHeaders().getFirst(OFFSET_HEADER));
+        if (acknowledged != offset + body.length) {
+            throw new HidaIOException("The server acknowledged offset " + acknowledged
+                    + " of " + session.getSipPath() + " instead of " + (offset + body.length));
+        }
+        session.setOffset(acknowledged);
+        listener.transferred(TransferStage.UPLOADING, body.length);
+        if (event != null) {
+            event.end(session.getSipPath().getFileName() + "@" + offset, body.length);
+        }
+    }
+
+    /**
+     * Stops the upload if the calling thread has been interrupted, e.g.
+     * because the user cancelled the transfer. The saved state is kept.
+     */
+    protected void checkInterrupted(Path sipPath) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new HidaIOException("The upload of " + sipPath + " was cancelled");
+        }
+    }
+
+    /**
+     * @return True if a request that failed this way might succeed if it is
+     *         sent again.
+     */
+    protected boolean isRetryable(RuntimeException e) {
+        if (e instanceof HttpStatusCodeException) {
+            HttpStatus status = ((HttpStatusCodeException) e).getStatusCode();
+            return status.value() >= 500 || status == HttpStatus.CONFLICT
+                    || status == HttpStatus.REQUEST_TIMEOUT;
+        }
+        return true;
+    }
+
+    protected void sleep(int failures) {
+        try {
+            Thread.sleep(Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis << (failures - 1)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HidaIOException("Interrupted while waiting to resume the upload", e);
+        }
+    }
+
+    protected static String md5(byte[] bytes) {
+        try {
+            return BagManifest.toHex(MessageDigest.getInstance("MD5").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new HidaIOException("MD5 is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the size of the segments of a SIP, and the number of connections
+ * that send them at the same time, to the link they are sent over.
+ *
+ * Segments are sized so that each one takes many round trips to send, which
+ * keeps the time lost between two requests small next to the time spent
+ * sending. Connections are added one at a time for as long as each one
+ * raises the total throughput, and are halved whenever a segment fails,
+ * since failures usually mean that the link or the server is overloaded.
+ *
+ * @author Keone Hiraide
+ */
+public class SegmentTuner {
+
+     // The number of round trips that sending a segment should take.
+    private static final int ROUND_TRIPS_PER_SEGMENT = 16;
+
+     // Segment sizes are rounded down to a multiple of this.
+    private static final int SEGMENT_ALIGNMENT = 64 * 1024;
+
+     // A connection is kept if it raises the total throughput by more than
+     // this fraction.
+    private static final double IMPROVEMENT_THRESHOLD = 0.10;
+
+     // The weight of the latest segment in the average throughput of a
+     // connection.
+    private static final double SMOOTHING = 0.3;
+
+     // The most connections that may be used at the same time.
+    private final int maxConnections;
+
+     // The bounds of the segment size.
+    private final int minSegmentSize;
+    private final int maxSegmentSize;
+
+     // The number of connections to use now.
+    private int connections;
+
+     // The size of the next segments.
+    private int segmentSize;
+
+     // The shortest round trip measured, in nanoseconds; 0 until measured.
+    private long roundTripNanos;
+
+     // The average throughput of a single connection, in bytes per second.
+    private double connectionThroughput;
+
+     // The best total throughput measured so far, in bytes per second.
+    private double bestThroughput;
+
+     // The bytes sent, and the segments completed, since the number of
+     // connections last changed.
+    private long windowBytes;
+    private int windowSegments;
+
+     // When the number of connections last changed.
+    private long windowStartNanos = System.nanoTime();
+
+    /**
+     * @param maxConnections The most connections that may be used at the
+     *                       same time.
+     * @param initialSegmentSize The size of the first segments.
+     * @param minSegmentSize The smallest segment size.
+     * @param maxSegmentSize The largest segment size.
+     */
+    public SegmentTuner(int maxConnections, int initialSegmentSize, int minSegmentSize,
+            int maxSegmentSize) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.minSegmentSize = minSegmentSize;
+        this.maxSegmentSize = Math.max(minSegmentSize, maxSegmentSize);
+        this.segmentSize = clamp(initialSegmentSize);
+        this.connections = Math.min(2, this.maxConnections);
+    }
+
+    /**
+     * @return The number of connections to use now.
+     */
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return The size of the next segment.
+     */
+    public synchronized int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return The shortest round trip measured, in milliseconds.
+     */
+    public synchronized long getRoundTripMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(roundTripNanos);
+    }
+
+    /**
+     * Records the time taken by a request with little or no body, which is
+     * close to one round trip.
+     *
+     * @param nanos The time taken by the request.
+     */
+    public synchronized void recordRoundTrip(long nanos) {
+        if (nanos > 0 && (roundTripNanos == 0 || nanos < roundTripNanos)) {
+            roundTripNanos = nanos;
+        }
+    }
+
+    /**
+     * Records a segment that has been sent, and adapts the segment size and
+     * the number of connections.
+     *
+     * @param bytes The size of the segment.
+     * @param nanos The time taken to send it, including the response.
+     */
+    public synchronized void recordSegment(int bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double throughput = bytes * 1e9 / nanos;
+        connectionThroughput = connectionThroughput == 0 ? throughput
+                : SMOOTHING * throughput + (1 - SMOOTHING) * connectionThroughput;
+        if (roundTripNanos > 0) {
+            segmentSize = clamp((long) (connectionThroughput * roundTripNanos / 1e9
+                    * ROUND_TRIPS_PER_SEGMENT));
+        }
+
+        windowBytes += bytes;
+        windowSegments++;
+        // Wait until each connection has sent a segment before judging the
+        // number of connections.
+        if (windowSegments < connections * 2) {
+            return;
+        }
+        long now = System.nanoTime();
+        double totalThroughput = windowBytes * 1e9 / Math.max(1, now - windowStartNanos);
+        if (totalThroughput > bestThroughput * (1 + IMPROVEMENT_THRESHOLD)) {
+            bestThroughput = totalThroughput;
+            if (connections < maxConnections) {
+                connections++;
+            }
+        } else if (totalThroughput < bestThroughput * (1 - IMPROVEMENT_THRESHOLD)
+                && connections > 1) {
+            // The last connection added did not help, or the link has slowed.
+            connections--;
+            bestThroughput = totalThroughput;
+        }
+        windowBytes = 0;
+        windowSegments = 0;
+        windowStartNanos = now;
+    }
+
+    /**
+     * Records a segment that failed to be sent.
+     */
+    public synchronized void recordFailure() {
+        connections = Math.max(1, connections / 2);
+        bestThroughput = 0;
+        windowBytes = 0;
+        windowSegments = 0;
+        windowStartNanos = System.nanoTime();
+    }
+
+    private int clamp(long size) {
+        long aligned = size / SEGMENT_ALIGNMENT * SEGMENT_ALIGNMENT;
+        return (int) Math.max(minSegmentSize, Math.min(maxSegmentSize, aligned));
+    }
+}
@@ -0,0 +1,300 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Uploads a SIP in segments that are sent over several connections at the
+ * same time, so that a link with a high latency is kept full. The size of
+ * the segments and the number of connections are adapted by a
+ * {@link SegmentTuner} to the round trip time and throughput measured
+ * during the upload.
+ *
+ * Segments are sent with the protocol of {@link ResumableUploader}, except
+ * that they are PUT to [session URL]/segments, which accepts them in any
+ * order. The server answers 204 No Content with the number of contiguous
+ * bytes it has received from the start of the SIP in the Upload-Offset
+ * header. The upload is completed the same way, once the server holds every
+ * byte of the SIP.
+ *
+ * The saved state of the upload holds the contiguous bytes acknowledged by
+ * the server, so a resumed upload may send again segments that were
+ * received after a gap.
+ *
+ * @author Keone Hiraide
+ */
+public class SegmentedUploader extends ResumableUploader {
+
+     // The default most connections used at the same time.
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+     // The default bounds of the segment size.
+    public static final int DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+     // The most connections used at the same time.
+    private final int maxConnections;
+
+     // The bounds of the segment size.
+    private int minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private int maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(SegmentedUploader.class);
+
+    /**
+     * @param uploadsURL The URL to the servlet that creates upload sessions.
+     * @param maxConnections The most connections used at the same time.
+     */
+    public SegmentedUploader(String uploadsURL, int maxConnections) {
+        super(uploadsURL);
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * @param minSegmentSize The smallest segment that is sent, except for the
+     *                       last segment of a SIP.
+     */
+    public void setMinSegmentSize(int minSegmentSize) {
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * @param maxSegmentSize The largest segment that is sent. At most this
+     *                       many bytes are held in memory per connection.
+     */
+    public void setMaxSegmentSize(int maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Uploads a SIP in segments, resuming its previous upload if it was
+     * interrupted. The size of the first segments is the chunk size.
+     *
+     * @param sipPath The SIP to upload.
+     * @param rtpId The ID of the records transmittal plan of the SIP.
+     * @param restTemplate Sends the requests. It is used by several threads
+     *                     at the same time.
+     *
+     * @return The response of the server to the completion of the upload.
+     *         If the upload fails, its state is kept so that it can be
+     *         resumed, and the failure is thrown.
+     */
+    @Override
+    public ResponseEntity<String> upload(Path sipPath, String rtpId,
+            final RestTemplate restTemplate) {
+        log.debug("Entering upload(sipPath={})", sipPath);
+        SegmentTuner tuner = new SegmentTuner(maxConnections, getChunkSize(),
+                minSegmentSize, maxSegmentSize);
+        ExecutorService connections = Executors.newFixedThreadPool(maxConnections,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "kukini-upload-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try (FileChannel sip = FileChannel.open(sipPath, StandardOpenOption.READ)) {
+            UploadSession session = UploadSession.load(sipPath);
+            if (session != null) {
+                long start = System.nanoTime();
+                session = resume(session, restTemplate);
+                tuner.recordRoundTrip(System.nanoTime() - start);
+            }
+            if (session == null) {
+                long start = System.nanoTime();
+                session = createSession(sipPath, rtpId, restTemplate);
+                tuner.recordRoundTrip(System.nanoTime() - start);
+            }
+
+            getTransferListener().transferred(TransferStage.UPLOADING, session.getOffset());
+            sendSegments(sip, session, tuner, restTemplate, connections);
+
+            ResponseEntity<String> response = restTemplate.postForEntity(
+                    session.getSessionUri() + "/complete", null, String.class);
+            session.delete();
+            log.info("Uploaded {} over at most {} connections, round trip {} ms",
+                    sipPath, maxConnections, tuner.getRoundTripMillis());
+            log.debug("Exiting upload(): {}", response);
+            return response;
+        } catch (IOException e) {
+            String errorMessage = "Failed to read the SIP " + sipPath;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        } finally {
+            // Stops the segments still queued or being read if the upload
+            // failed or was cancelled.
+            connections.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends every segment of the SIP from the offset of the session, keeping
+     * as many segments in flight as the tuner allows.
+     */
+    private void sendSegments(FileChannel sip, UploadSession session, SegmentTuner tuner,
+            RestTemplate restTemplate, ExecutorService connections) {
+        CompletionService<Segment> completion = new ExecutorCompletionService<>(connections);
+        Deque<Segment> retries = new ArrayDeque<>();
+        // The segments acknowledged past the contiguous bytes, keyed by their
+        // offsets.
+        Map<Long, Long> acknowledged = new TreeMap<>();
+        long nextOffset = session.getOffset();
+        int inFlight = 0;
+        while (session.getOffset() < session.getSipSize()) {
+            while (inFlight < tuner.getConnections()
+                    && (!retries.isEmpty() || nextOffset < session.getSipSize())) {
+                Segment segment = retries.poll();
+                if (segment == null) {
+                    segment = new Segment(nextOffset, (int) Math.min(tuner.getSegmentSize(),
+                            session.getSipSize() - nextOffset));
+                    nextOffset += segment.length;
+                }
+                completion.submit(new SegmentSender(sip, session, segment, restTemplate));
+                inFlight++;
+            }
+
+            Segment segment = take(completion);
+            inFlight--;
+            if (segment.failure != null) {
+                if (!isRetryable(segment.failure) || segment.failures >= getMaxRetries()) {
+                    throw segment.failure;
+                }
+                segment.failures++;
+                tuner.recordFailure();
+                log.warn("Failed to send the segment of {} at offset {}, retrying ({}/{}): {}",
+                        session.getSipPath(), segment.offset, segment.failures,
+                        getMaxRetries(), segment.failure.toString());
+                segment.failure = null;
+                retries.add(segment);
+                continue;
+            }
+
+            tuner.recordSegment(segment.length, segment.nanos);
+            getTransferListener().transferred(TransferStage.UPLOADING, segment.length);
+            acknowledged.put(segment.offset, segment.offset + segment.length);
+            long offset = session.getOffset();
+            Long end;
+            while ((end = acknowledged.remove(offset)) != null) {
+                offset = end;
+            }
+            if (offset != session.getOffset()) {
+                session.setOffset(offset);
+                session.save();
+            }
+        }
+    }
+
+    private Segment take(CompletionService<Segment> completion) {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HidaIOException("Interrupted while uploading the SIP", e);
+        } catch (ExecutionException e) {
+            // Failures to send a segment are returned within the segment.
+            throw new HidaIOException("Failed to send a segment of the SIP", e.getCause());
+        }
+    }
+
+    /**
+     * A range of bytes of the SIP.
+     */
+    private static class Segment {
+        private final long offset;
+        private final int length;
+
+         // The number of times that sending the segment has failed.
+        private int failures;
+
+         // Why the last attempt to send the segment failed, if it did.
+        private RuntimeException failure;
+
+         // How long the last successful attempt took.
+        private long nanos;
+
+        Segment(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reads a segment of the SIP and sends it.
+     */
+    private class SegmentSender implements Callable<Segment> {
+        private final FileChannel sip;
+        private final UploadSession session;
+        private final Segment segment;
+        private final RestTemplate restTemplate;
+
+        SegmentSender(FileChannel sip, UploadSession session, Segment segment,
+                RestTemplate restTemplate) {
+            this.sip = sip;
+            this.session = session;
+            this.segment = segment;
+            this.restTemplate = restTemplate;
+        }
+
+        @Override
+        public Segment call() throws IOException {
+            if (segment.failures > 0) {
+                sleep(segment.failures);
+            }
+            TransferEvent event = TransferEvents.begin(TransferEventType.CHUNK_SENT);
+            ByteBuffer body = ByteBuffer.allocate(segment.length);
+            while (body.hasRemaining()) {
+                if (sip.read(body, segment.offset + body.position()) == -1) {
+                    throw new IOException("The SIP " + session.getSipPath()
+                            + " is shorter than when its upload began");
+                }
+            }
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(OFFSET_HEADER, Long.toString(segment.offset));
+            headers.set(CHUNK_MD5_HEADER, md5(body.array()));
+            long start = System.nanoTime();
+            try {
+                restTemplate.exchange(session.getSessionUri() + "/segments", HttpMethod.PUT,
+                        new HttpEntity<>(body.array(), headers), String.class);
+                segment.nanos = System.nanoTime() - start;
+                if (event != null) {
+                    event.end(session.getSipPath().getFileName() + "@" + segment.offset,
+                            segment.length);
+                }
+            } catch (ResourceAccessException | HttpStatusCodeException e) {
+                segment.failure = e;
+            }
+            return segment;
+        }
+    }
+}
@@ -0,0 +1,665 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a SIP zip whose entries are deflated on several cores by a
+ * {@link ParallelDeflater}. The files are read, and checksummed, one after
+ * another on the calling thread, while their blocks are compressed in the
+ * background. The compressed blocks are written in order, so the result is
+ * a standard zip (with Zip64 extensions for large SIPs) that any zip reader
+ * can open.
+ *
+ * When the SIP is written to a file, the local header of each entry is
+ * updated once the entry has been written. When it is written to a stream,
+ * the sizes and checksum of each deflated entry follow its data in a data
+ * descriptor instead.
+ *
+ * Files that a {@link CompressionPolicy} deems incompressible are stored
+ * as they are. When writing to a stream, where the size of an entry cannot
+ * be written ahead of its data, they are wrapped in uncompressed deflate
+ * blocks instead, which costs no more CPU time than storing them.
+ *
+ * @author Keone Hiraide
+ */
+public class SipArchiveWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+     // General purpose flags: sizes follow the data, names are UTF-8.
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+     // Sizes and offsets from this value on are stored in Zip64 fields.
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+     // Entries that are expected to be at least this large are given Zip64
+     // local headers. This leaves room for deflate to expand a file slightly.
+    private static final long ZIP64_THRESHOLD = ZIP64_MAGIC - (64 * 1024 * 1024);
+
+     // Offset of the checksum within a local header.
+    private static final int LOCAL_HEADER_CRC_OFFSET = 14;
+
+     // Size of the local header, up to the file name.
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+     // Size of the output buffer.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+     // The most bytes that an uncompressed deflate block can hold.
+    private static final int MAX_STORED_BLOCK_SIZE = 0xFFFF;
+
+     // Compresses the blocks of the entries.
+    private final ParallelDeflater deflater;
+
+     // The SIP being written. Null when writing to a stream.
+    private final FileChannel file;
+
+     // Where the SIP is written.
+    private final OutputStream out;
+
+     // The number of bytes written so far.
+    private long position;
+
+     // The blocks that have been read but have not been written yet, in the
+     // order that they must be written.
+    private final Deque<Segment> pending = new ArrayDeque<>();
+
+     // The most blocks that are compressed or waiting to be written at once.
+     // Bounds the memory used while a SIP is written.
+    private final int maxPending;
+
+     // Every entry written so far, for the central directory.
+    private final List<Entry> entries = new ArrayList<>();
+
+     // Decides which files are deflated. Every file is deflated if null.
+    private CompressionPolicy compressionPolicy;
+
+     // Receives the number of bytes of the entries that have been written.
+    private TransferListener listener = TransferListener.NONE;
+
+    private boolean finished;
+
+    /**
+     * Creates a SIP file.
+     *
+     * @param sipPath The zip file to create. It must not already exist.
+     * @param deflater Compresses the entries.
+     */
+    public SipArchiveWriter(Path sipPath, ParallelDeflater deflater) throws IOException {
+        this.deflater = deflater;
+        this.file = FileChannel.open(sipPath, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(file), BUFFER_SIZE);
+        this.maxPending = deflater.getConcurrency() * 2;
+    }
+
+    /**
+     * Writes a SIP to a stream, e.g. straight to an upload.
+     *
+     * @param out Where to write the SIP. Closed when the writer is closed.
+     * @param deflater Compresses the entries.
+     */
+    public SipArchiveWriter(OutputStream out, ParallelDeflater deflater) {
+        this.deflater = deflater;
+        this.file = null;
+        this.out = out;
+        this.maxPending = deflater.getConcurrency() * 2;
+    }
+
+    /**
+     * Sets the policy which decides whether a file is deflated or stored.
+     *
+     * @param compressionPolicy The policy, or null to deflate every file.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets the listener which receives the number of bytes of the entries
+     * that have been compressed and written, as the 
+     * {@link TransferStage#COMPRESSING} stage.
+     *
+     * @param listener The listener.
+     */
+    public void setTransferListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Writes a file to the SIP, computing its checksums along the way.
+     * Returns once the whole file has been read; it may still be being
+     * compressed.
+     *
+     * @param name The name of the entry. E.g: accession/data/a.txt
+     * @param in The contents of the file. Not closed by this method.
+     * @param size The expected size of the file, used to decide whether the
+     *             entry needs Zip64 fields.
+     * @param lastModified The last modified time of the file in
+     *                     milliseconds, or -1 for the current time.
+     * @param digest Updated with the contents of the file, with every one of
+     *               its algorithms. May be null.
+     *
+     * @return The number of bytes read from the file.
+     */
+    public long writeEntry(String name, InputStream in, long size, long lastModified,
+            MultiDigest digest) throws IOException {
+        checkNotFinished();
+        TransferEvent event = TransferEvents.begin(TransferEventType.ZIP_ENTRY_WRITTEN);
+        int blockSize = deflater.getBlockSize();
+        CRC32 crc = new CRC32();
+        byte[] previous = null;
+        int previousLength = 0;
+        byte[] block = new byte[blockSize];
+        int length = readBlock(in, block);
+        boolean first = true;
+
+        // The format of the file is recognized from its first block.
+        boolean compressible = compressionPolicy == null
+                || compressionPolicy.isCompressible(name, block, length);
+        Entry entry = new Entry(name, compressible || file == null ? DEFLATED : STORED,
+                lastModified, size >= ZIP64_THRESHOLD);
+        while (true) {
+            crc.update(block, 0, length);
+            if (digest != null) {
+                digest.update(block, 0, length);
+            }
+            entry.size += length;
+
+            // Read ahead, since the last block of a file is compressed
+            // differently than the others.
+            byte[] next = null;
+            int nextLength = 0;
+            if (length == blockSize) {
+                next = new byte[blockSize];
+                nextLength = readBlock(in, next);
+            }
+            boolean last = nextLength == 0;
+            if (last) {
+                entry.crc = crc.getValue();
+            }
+            Future<byte[]> data;
+            if (compressible) {
+                data = deflater.deflate(block, length, previous, previousLength, last);
+            } else if (entry.method == STORED) {
+                data = completed(length == block.length ? block : Arrays.copyOf(block, length));
+            } else {
+                data = completed(toStoredBlocks(block, length, last));
+            }
+            enqueue(new Segment(entry, data, length, first, last));
+            if (last) {
+                if (event != null) {
+                    event.end(name, entry.size);
+                }
+                return entry.size;
+            }
+            previous = block;
+            previousLength = length;
+            block = next;
+            length = nextLength;
+            first = false;
+        }
+    }
+
+    /**
+     * Writes a file that is held in memory to the SIP, such as a tag file.
+     *
+     * @param name The name of the entry. E.g: accession/bagit.txt
+     * @param contents The contents of the file.
+     */
+    public void writeEntry(String name, byte[] contents) throws IOException {
+        checkNotFinished();
+        Entry entry = new Entry(name, DEFLATED, -1, false);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        entry.crc = crc.getValue();
+        entry.size = contents.length;
+        enqueue(new Segment(entry, deflater.deflate(contents, contents.length,
+                null, 0, true), contents.length, true, true));
+    }
+
+    /**
+     * Writes a directory entry to the SIP.
+     *
+     * @param name The name of the directory. A trailing '/' is added if it
+     *             is missing.
+     * @param lastModified The last modified time of the directory in
+     *                     milliseconds, or -1 for the current time.
+     */
+    public void writeDirectoryEntry(String name, long lastModified) throws IOException {
+        checkNotFinished();
+        Entry entry = new Entry(name.endsWith("/") ? name : name + "/", STORED,
+                lastModified, false);
+        enqueue(new Segment(entry, completed(new byte[0]), 0, true, true));
+    }
+
+    /**
+     * Writes every file and folder beneath a directory to the SIP. The
+     * entries are named relative to the directory, the same way that
+     * {@code ZipUtil.compress} names them.
+     *
+     * @param directory The directory to write.
+     */
+    public void writeDirectory(final Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                if (!dir.equals(directory)) {
+                    writeDirectoryEntry(toEntryName(directory, dir),
+                            attrs.lastModifiedTime().toMillis());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                try (InputStream in = Files.newInputStream(file)) {
+                    writeEntry(toEntryName(directory, file), in, attrs.size(),
+                            attrs.lastModifiedTime().toMillis(), null);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Waits for every entry to be compressed and written, then writes the
+     * central directory. Nothing may be written afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        while (!pending.isEmpty()) {
+            writeNextSegment();
+        }
+        writeCentralDirectory();
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Closes the SIP. An unfinished SIP is left incomplete.
+     */
+    @Override
+    public void close() throws IOException {
+        pending.clear();
+        finished = true;
+        out.close();
+    }
+
+    /**
+     * Queues a compressed block to be written, then writes the blocks at
+     * the head of the queue which have been compressed. Waits for the head
+     * of the queue if too many blocks are pending.
+     */
+    private void enqueue(Segment segment) throws IOException {
+        pending.addLast(segment);
+        while (pending.size() > maxPending
+                || (!pending.isEmpty() && pending.peekFirst().data.isDone())) {
+            writeNextSegment();
+        }
+    }
+
+    private void writeNextSegment() throws IOException {
+        Segment segment = pending.removeFirst();
+        byte[] data;
+        try {
+            data = segment.data.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress " + segment.entry.name, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + segment.entry.name, e);
+        }
+        Entry entry = segment.entry;
+        if (segment.first) {
+            writeLocalHeader(entry);
+        }
+        write(data, 0, data.length);
+        entry.compressedSize += data.length;
+        listener.transferred(TransferStage.COMPRESSING, segment.length);
+        if (segment.last) {
+            completeEntry(entry);
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        entry.offset = position;
+        if (file == null && entry.method == DEFLATED) {
+            entry.flags |= FLAG_DATA_DESCRIPTOR;
+        }
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + entry.nameBytes.length
+                + (entry.zip64 ? 20 : 0));
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) (entry.zip64 ? VERSION_ZIP64 : VERSION));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putInt((int) entry.dosTime);
+        // The checksum and sizes are filled in once the entry is written,
+        // except for directories, which are empty.
+        header.putInt(0);
+        header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+        header.putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) (entry.zip64 ? 20 : 0));
+        header.put(entry.nameBytes);
+        if (entry.zip64) {
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(0);
+            header.putLong(0);
+        }
+        write(header.array(), 0, header.position());
+    }
+
+    /**
+     * Records the checksum and sizes of an entry whose data has been
+     * written, either within its local header or in a data descriptor.
+     */
+    private void completeEntry(Entry entry) throws IOException {
+        if (!entry.zip64 && (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)) {
+            throw new IOException("The file " + entry.name + " grew beyond 4 GB "
+                    + "while it was being zipped");
+        }
+        if ((entry.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            ByteBuffer descriptor = newBuffer(24);
+            descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+            descriptor.putInt((int) entry.crc);
+            if (entry.zip64) {
+                descriptor.putLong(entry.compressedSize);
+                descriptor.putLong(entry.size);
+            } else {
+                descriptor.putInt((int) entry.compressedSize);
+                descriptor.putInt((int) entry.size);
+            }
+            write(descriptor.array(), 0, descriptor.position());
+        } else if (file != null) {
+            out.flush();
+            ByteBuffer sizes = newBuffer(12);
+            sizes.putInt((int) entry.crc);
+            sizes.putInt(entry.zip64 ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+            sizes.putInt(entry.zip64 ? (int) ZIP64_MAGIC : (int) entry.size);
+            writeAt(sizes, entry.offset + LOCAL_HEADER_CRC_OFFSET);
+            if (entry.zip64) {
+                ByteBuffer zip64Sizes = newBuffer(16);
+                zip64Sizes.putLong(entry.size);
+                zip64Sizes.putLong(entry.compressedSize);
+                writeAt(zip64Sizes, entry.offset + LOCAL_HEADER_SIZE
+                        + entry.nameBytes.length + 4);
+            }
+        }
+        entries.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = position;
+        for (Entry entry : entries) {
+            boolean zip64Size = entry.size >= ZIP64_MAGIC;
+            boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0)
+                    + (zip64Offset ? 8 : 0);
+            if (extraLength > 0) {
+                extraLength += 4;
+            }
+            int version = entry.zip64 || extraLength > 0 ? VERSION_ZIP64 : VERSION;
+
+            ByteBuffer header = newBuffer(46 + entry.nameBytes.length + extraLength);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) version);
+            header.putShort((short) version);
+            header.putShort((short) entry.flags);
+            header.putShort((short) entry.method);
+            header.putInt((int) entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt(zip64CompressedSize ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+            header.putInt(zip64Size ? (int) ZIP64_MAGIC : (int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            // The MS-DOS directory attribute.
+            header.putInt(entry.method == STORED && entry.name.endsWith("/") ? 0x10 : 0);
+            header.putInt(zip64Offset ? (int) ZIP64_MAGIC : (int) entry.offset);
+            header.put(entry.nameBytes);
+            if (extraLength > 0) {
+                header.putShort((short) ZIP64_EXTRA_ID);
+                header.putShort((short) (extraLength - 4));
+                if (zip64Size) {
+                    header.putLong(entry.size);
+                }
+                if (zip64CompressedSize) {
+                    header.putLong(entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    header.putLong(entry.offset);
+                }
+            }
+            write(header.array(), 0, header.position());
+        }
+        long centralDirectorySize = position - centralDirectoryOffset;
+
+        boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT
+                || centralDirectoryOffset >= ZIP64_MAGIC
+                || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position;
+            ByteBuffer end = newBuffer(76);
+            end.putInt(ZIP64_END_SIGNATURE);
+            end.putLong(44);
+            end.putShort((short) VERSION_ZIP64);
+            end.putShort((short) VERSION_ZIP64);
+            end.putInt(0);
+            end.putInt(0);
+            end.putLong(entries.size());
+            end.putLong(entries.size());
+            end.putLong(centralDirectorySize);
+            end.putLong(centralDirectoryOffset);
+            end.putInt(ZIP64_LOCATOR_SIGNATURE);
+            end.putInt(0);
+            end.putLong(zip64EndOffset);
+            end.putInt(1);
+            write(end.array(), 0, end.position());
+        }
+        ByteBuffer end = newBuffer(22);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+        end.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+        end.putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectorySize);
+        end.putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectoryOffset);
+        end.putShort((short) 0);
+        write(end.array(), 0, end.position());
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        position += length;
+    }
+
+    private void writeAt(ByteBuffer buffer, long offset) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            offset += file.write(buffer, offset);
+        }
+    }
+
+    private void checkNotFinished() throws IOException {
+        if (finished) {
+            throw new IOException("The SIP has already been finished");
+        }
+    }
+
+    /**
+     * Fills a block from a stream.
+     *
+     * @return The number of bytes read. Less than the size of the block
+     *         only once the end of the stream has been reached.
+     */
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            int read = in.read(block, length, block.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Wraps bytes in uncompressed deflate blocks.
+     *
+     * @param last Whether the bytes are the end of the deflate stream.
+     */
+    private static byte[] toStoredBlocks(byte[] bytes, int length, boolean last) {
+        int blockCount = Math.max(1, (length + MAX_STORED_BLOCK_SIZE - 1) / MAX_STORED_BLOCK_SIZE);
+        ByteBuffer blocks = newBuffer(length + blockCount * 5);
+        int offset = 0;
+        for (int i = 0; i < blockCount; i++) {
+            int blockLength = Math.min(MAX_STORED_BLOCK_SIZE, length - offset);
+            // The block header: the final block flag, then the block type,
+            // which is 0 for an uncompressed block.
+            blocks.put((byte) (last && i == blockCount - 1 ? 1 : 0));
+            blocks.putShort((short) blockLength);
+            blocks.putShort((short) ~blockLength);
+            blocks.put(bytes, offset, blockLength);
+            offset += blockLength;
+        }
+        return blocks.array();
+    }
+
+    private static String toEntryName(Path directory, Path path) {
+        StringBuilder name = new StringBuilder();
+        for (Path element : directory.relativize(path)) {
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(element.toString());
+        }
+        return name.toString();
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static Future<byte[]> completed(final byte[] data) {
+        FutureTask<byte[]> future = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return data;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /**
+     * Converts a time to the MS-DOS date and time used by zip headers.
+     */
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time < 0 ? System.currentTimeMillis() : time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25)
+                | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * An entry of the SIP.
+     */
+    private static class Entry {
+        private final String name;
+        private final byte[] nameBytes;
+        private final int method;
+        private final long dosTime;
+        private final boolean zip64;
+        private int flags = FLAG_UTF8;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+
+        Entry(String name, int method, long lastModified, boolean zip64) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.dosTime = toDosTime(lastModified);
+            this.zip64 = zip64;
+        }
+    }
+
+    /**
+     * A block of an entry, which is written once it has been compressed.
+     */
+    private static class Segment {
+        private final Entry entry;
+        private final Future<byte[]> data;
+        private final int length;
+        private final boolean first;
+        private final boolean last;
+
+        Segment(Entry entry, Future<byte[]> data, int length, boolean first, boolean last) {
+            this.entry = entry;
+            this.data = data;
+            this.length = length;
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
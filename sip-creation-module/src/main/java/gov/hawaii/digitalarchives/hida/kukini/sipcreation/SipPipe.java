@@ -0,0 +1,223 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded buffer that carries the bytes of a SIP from the thread that
+ * builds it to the thread that uploads it. The builder blocks while the
+ * buffer is full, so that it never runs further ahead of the upload than
+ * the size of the buffer, and the uploader blocks while the buffer is
+ * empty.
+ *
+ * The end of the SIP is marked with {@link #finish()}, rather than by
+ * closing the output stream, since writers close their streams whether or
+ * not they succeed. If the builder fails, the uploader fails too instead of
+ * reading the end of a truncated SIP, so that an incomplete SIP is never
+ * sent as if it were whole. If the uploader closes its end, e.g. because the upload failed,
+ * the builder fails at its next write.
+ *
+ * @author Keone Hiraide
+ */
+public class SipPipe {
+
+     // The bytes written and not yet read, in a ring.
+    private final byte[] buffer;
+
+     // The index of the next byte to read, and the number of bytes buffered.
+    private int readIndex;
+    private int count;
+
+     // Whether the builder has written the whole SIP.
+    private boolean writerClosed;
+
+     // Whether the uploader has stopped reading.
+    private boolean readerClosed;
+
+     // Why the builder failed, if it did.
+    private Throwable failure;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * @param bufferSize The most bytes held between the builder and the
+     *                   uploader.
+     */
+    public SipPipe(int bufferSize) {
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * @return The end of the pipe that the SIP is written to. Closing it
+     *         does nothing.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                SipPipe.this.write(b, off, len);
+            }
+
+        };
+    }
+
+    /**
+     * @return The end of the pipe that the SIP is read from. Closing it
+     *         cancels the pipe.
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return SipPipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                lock.lock();
+                try {
+                    return count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                cancel();
+            }
+        };
+    }
+
+    /**
+     * Marks the end of the SIP. The uploader reaches the end of its stream
+     * once it has read the bytes written so far.
+     */
+    public void finish() {
+        closeWriter(null);
+    }
+
+    /**
+     * Marks the SIP as incomplete. The uploader fails once it has read the
+     * bytes written so far.
+     *
+     * @param cause Why the SIP could not be built.
+     */
+    public void fail(Throwable cause) {
+        closeWriter(cause);
+    }
+
+    /**
+     * Stops the pipe from the side of the uploader, e.g. because the upload
+     * failed. The builder fails at its next write.
+     */
+    public void cancel() {
+        lock.lock();
+        try {
+            readerClosed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            while (len > 0) {
+                while (count == buffer.length && !readerClosed) {
+                    await(notFull);
+                }
+                if (readerClosed) {
+                    throw new IOException("The upload of the SIP has stopped");
+                }
+                if (writerClosed) {
+                    throw new IOException("The SIP has already been written");
+                }
+                int writeIndex = (readIndex + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count,
+                        buffer.length - writeIndex));
+                System.arraycopy(b, off, buffer, writeIndex, n);
+                count += n;
+                off += n;
+                len -= n;
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0 && !writerClosed && !readerClosed) {
+                await(notEmpty);
+            }
+            if (readerClosed) {
+                throw new IOException("The pipe has been closed");
+            }
+            if (count == 0) {
+                if (failure != null) {
+                    throw new IOException("Failed to build the SIP", failure);
+                }
+                return -1;
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - readIndex));
+            System.arraycopy(buffer, readIndex, b, off, n);
+            readIndex = (readIndex + n) % buffer.length;
+            count -= n;
+            notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeWriter(Throwable cause) {
+        lock.lock();
+        try {
+            if (!writerClosed) {
+                writerClosed = true;
+                failure = cause;
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a condition, failing if the thread is interrupted, e.g.
+     * when the transfer is cancelled.
+     */
+    private static void await(Condition condition) throws InterruptedIOException {
+        try {
+            condition.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the SIP");
+        }
+    }
+}
@@ -2,6 +2,7 @@ package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
 
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import org.openide.loaders.DataObject;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestTemplate;
@@ -41,6 +42,39 @@ public interface SipUploader {
      */
     public Path createSipFromContext(List<DataObject> selectedContext, Path destinationDirectory);
     
+    /**
+     * Creates a SIP, reporting the progress of each stage of its creation.
+     * The creation stops as soon as possible if the calling thread is 
+     * interrupted.
+     * 
+     * @param selectedContext The list of DataObjects which represent the files
+     *                        that the user currently has selected.
+     * @param destinationDirectory destinationDirectory The destination where 
+     *                             the SIP will be bagged in place to.
+     * @param listener Receives the progress of the creation.
+     * 
+     * @return  The path to the newly created SIP or the throwing
+     *          of an exception if this method failed to create the SIP.
+     */
+    public Path createSipFromContext(List<DataObject> selectedContext, Path destinationDirectory,
+            TransferListener listener);
+    
+    /**
+     * Creates a SIP from files and folders given by their paths, e.g. by a 
+     * batch transfer that runs without the NetBeans platform. Folders are
+     * walked and every file beneath them is included.
+     * 
+     * @param sources The files and folders to place within the payload.
+     * @param destinationDirectory The destination where the SIP will be 
+     *                             bagged in place to.
+     * @param listener Receives the progress of the creation.
+     * 
+     * @return The path to the newly created SIP or the throwing
+     *          of an exception if this method failed to create the SIP.
+     */
+    public Path createSipFromPaths(List<Path> sources, Path destinationDirectory,
+            TransferListener listener);
+    
     /**
      * Uploads the SIP to the Hawaii State Digital Archives.
      * 
@@ -53,4 +87,118 @@ public interface SipUploader {
      *         response, a message body, and headers. 
      */
     public ResponseEntity<String> uploadSip(Path sipPath, RestTemplate restTemplate);
+    
+    /**
+     * Uploads the SIP to the Hawaii State Digital Archives, reporting the 
+     * progress of the upload. The upload stops as soon as possible if the 
+     * calling thread is interrupted.
+     * 
+     * @param sipPath The path to the SIP that will be uploaded.
+     * @param restTemplate The {@link RestTemplate} that will be used in order
+     *                     to create and execute an uploadSip request.
+     * @param listener Receives the progress of the upload.
+     * 
+     * @return A {@link ResponseEntity} an instance which encapsulates 
+     *         information about the upload.
+     */
+    public ResponseEntity<String> uploadSip(Path sipPath, RestTemplate restTemplate,
+            TransferListener listener);
+    
+    /**
+     * @return True if SIPs are uploaded while they are being built, in 
+     *         which case they should be transferred with 
+     *         {@link #createAndUploadSip} rather than created and then 
+     *         uploaded.
+     */
+    public boolean isPipelined();
+    
+    /**
+     * Creates a SIP and uploads it to the Hawaii State Digital Archives. If
+     * SIPs are pipelined, the SIP is sent as it is being built and is never
+     * written to the disk; otherwise it is created within a temporary 
+     * workspace, uploaded, and deleted. The transfer stops as soon as 
+     * possible if the calling thread is interrupted.
+     * 
+     * @param selectedContext The list of DataObjects which represent the files
+     *                        that the user currently has selected.
+     * @param restTemplate The {@link RestTemplate} that will be used in order
+     *                     to create and execute an uploadSip request.
+     * @param listener Receives the progress of the transfer.
+     * 
+     * @return A {@link ResponseEntity} an instance which encapsulates 
+     *         information about the upload.
+     */
+    public ResponseEntity<String> createAndUploadSip(List<DataObject> selectedContext,
+            RestTemplate restTemplate, TransferListener listener);
+    
+    /**
+     * Creates a SIP within a given bag directory and uploads it, in the same
+     * way as {@link #createAndUploadSip}. The directory, and the SIP beside
+     * it, belong to the transfer from then on. The transfer is journaled, if
+     * there is a journal, so that one that fails part way, or is stopped by
+     * Kukini closing or the machine going to sleep, is resumed from its last
+     * finished stage the next time Kukini starts, and its bag or SIP is kept
+     * until then. A transfer stopped by interrupting the calling thread is
+     * cancelled: it is not resumed, and its files are deleted.
+     * 
+     * @param selectedContext The list of DataObjects which represent the files
+     *                        that the user currently has selected.
+     * @param destinationDirectory The empty directory in which the bag is 
+     *                             staged, or null to create one. It is not
+     *                             used if SIPs are pipelined.
+     * @param restTemplate The {@link RestTemplate} that will be used in order
+     *                     to create and execute an uploadSip request.
+     * @param listener Receives the progress of the transfer.
+     * 
+     * @return A {@link ResponseEntity} an instance which encapsulates 
+     *         information about the upload.
+     */
+    public ResponseEntity<String> createAndUploadSip(List<DataObject> selectedContext,
+            Path destinationDirectory, RestTemplate restTemplate, TransferListener listener);
+    
+    /**
+     * Creates a SIP from files and folders given by their paths and uploads
+     * it to the Hawaii State Digital Archives, in the same way as 
+     * {@link #createAndUploadSip}.
+     * 
+     * @param sources The files and folders to place within the payload.
+     * @param restTemplate The {@link RestTemplate} that will be used in order
+     *                     to create and execute an uploadSip request.
+     * @param listener Receives the progress of the transfer.
+     * 
+     * @return A {@link ResponseEntity} an instance which encapsulates 
+     *         information about the upload.
+     */
+    public ResponseEntity<String> createAndUploadSipFromPaths(List<Path> sources,
+            RestTemplate restTemplate, TransferListener listener);
+    
+    /**
+     * Resumes the transfers of createAndUploadSip that were interrupted by a
+     * crash, or by Kukini being closed, each from the last stage that it
+     * finished: a SIP that was zipped is uploaded, a bag that was staged is
+     * zipped, and otherwise the SIP is created again from the selected files.
+     * 
+     * @param restTemplate The {@link RestTemplate} that will be used in order
+     *                     to upload each SIP.
+     * 
+     * @return The response to each resumed transfer, keyed by the files 
+     *         and folders that were selected for it, or null for a transfer
+     *         that failed again, which is kept in the journal to be resumed 
+     *         the next time. Empty if transfers are not journaled.
+     */
+    public Map<List<Path>, ResponseEntity<String>> resumeInterruptedTransfers(
+            RestTemplate restTemplate);
+    
+    /**
+     * Resumes the uploads that were interrupted, e.g. because Kukini was 
+     * closed or the connection was lost part way. Each SIP whose upload 
+     * completes is deleted.
+     * 
+     * @param restTemplate The {@link RestTemplate} that will be used in order
+     *                     to send the remaining chunks of each SIP.
+     * 
+     * @return The response to each completed upload, keyed by the path to 
+     *         its SIP. Empty if SIPs are not uploaded in resumable chunks.
+     */
+    public Map<Path, ResponseEntity<String>> resumeInterruptedUploads(RestTemplate restTemplate);
 }
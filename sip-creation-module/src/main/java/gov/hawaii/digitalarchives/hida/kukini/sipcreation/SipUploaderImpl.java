@@ -1,34 +1,33 @@
 package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import gov.hawaii.digitalarchives.hida.bag.BagUtil;
 import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
 import gov.hawaii.digitalarchives.hida.core.model.accession.Accession;
 import gov.hawaii.digitalarchives.hida.core.model.record.Agent;
 import gov.hawaii.digitalarchives.hida.core.model.record.ProducerInfo;
-import gov.hawaii.digitalarchives.hida.core.util.ZipUtil;
 import gov.hawaii.digitalarchives.hida.kukini.provenance.MachineInfoExtractor;
 import gov.hawaii.digitalarchives.hida.kukini.provenance.UserInformation;
-import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import org.apache.commons.io.FileUtils;
-import org.openide.filesystems.FileObject;
-import org.openide.filesystems.FileUtil;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 import org.openide.loaders.DataObject;
-import org.openide.util.Exceptions;
 import org.openide.util.Lookup;
 import org.slf4j.Logger;
 import org.springbyexample.util.log.AutowiredLogger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.util.Assert;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
 /**
@@ -38,12 +37,52 @@ import org.springframework.web.client.RestTemplate;
  */
 public class SipUploaderImpl implements SipUploader {
     
+     // The default number of bytes of a pipelined SIP that may be built
+     // ahead of the upload.
+    public static final int DEFAULT_PIPELINE_BUFFER_SIZE = 4 * 1024 * 1024;
+    
+     // The default size of the smallest file that is sent as chunks.
+    public static final long DEFAULT_CHUNKING_THRESHOLD = 64 * 1024 * 1024;
+    
      // The URL to the servlet that will accept file uploads.
     private final String sipUploaderServletURL;
 
-     // Bag module.
+     // Copies the selected files into the temporary bag directory.
+    @Autowired
+    private PayloadStagingEngine stagingEngine;
+    
+     // Compresses SIPs on several cores.
+    @Autowired
+    private ParallelDeflater deflater;
+    
+     // Decides which files are stored within SIPs rather than deflated.
+    @Autowired
+    private CompressionPolicy compressionPolicy;
+    
+     // Remembers the checksums of files across SIPs. Every file is hashed
+     // if there is none.
+    @Autowired(required = false)
+    private DigestCache digestCache;
+    
+     // Hashes each file with every manifest algorithm at the same time.
+     // Files are hashed with one algorithm after another if there is none.
+    @Autowired(required = false)
+    private DigestEngine digestEngine;
+    
+     // Records the stages each transfer has finished, so that a transfer
+     // interrupted by a crash can be resumed from the last one. Transfers
+     // are not journaled if there is none.
+    @Autowired(required = false)
+    private TransferJournal transferJournal;
+    
+     // Measures each stage of the transfers. The measurements are only 
+     // kept here if there is none within the context.
+    @Autowired(required = false)
+    private TransferMetrics transferMetrics = new TransferMetrics();
+    
+     // Creates and deletes the temporary bag directories.
     @Autowired
-    private BagUtil bagUtil;
+    private TempWorkspaceManager workspaceManager;
     
      // Used for logging purposes.
     @AutowiredLogger
@@ -52,6 +91,45 @@ public class SipUploaderImpl implements SipUploader {
      // Used for json data binding for the creation of sip tags.
     private final ObjectMapper mapper = new ObjectMapper();
     
+     // Whether SIPs are zipped straight from the selected files instead of
+     // being copied into a temporary bag directory first.
+    private boolean streaming = false;
+    
+     // The BagIt names of the algorithms of the payload manifests.
+    private List<String> manifestAlgorithms = Collections.singletonList("md5");
+    
+     // The URL to the servlet that accepts SIPs in resumable chunks, or null
+     // to upload each SIP in a single multipart request.
+    private String resumableUploadURL;
+    
+     // The URL to the servlet that answers which payload files HiDA already
+     // holds, or null to send every file.
+    private String deltaURL;
+    
+     // The URL to the servlet that receives large files as chunks, or null
+     // to send them within the SIP.
+    private String chunksURL;
+    
+     // The smallest file that is sent as chunks.
+    private long chunkingThreshold = DEFAULT_CHUNKING_THRESHOLD;
+    
+     // The number of bytes sent by each request of a resumable upload.
+    private int chunkSize = ResumableUploader.DEFAULT_CHUNK_SIZE;
+    
+     // The most connections that send the segments of a SIP at the same
+     // time, when uploading in resumable chunks.
+    private int connections = 1;
+    
+     // Whether SIPs are uploaded while they are being built.
+    private boolean pipelined = false;
+    
+     // The most bytes of a pipelined SIP that are built ahead of the upload.
+    private int pipelineBufferSize = DEFAULT_PIPELINE_BUFFER_SIZE;
+    
+     // Sends SIPs that are uploaded in a single multipart request, or null
+     // to send them with the RestTemplate passed to uploadSip.
+    private RestTemplate uploadRestTemplate;
+    
 
     // The ID of the records transmittal plan associated with the
     // SIP that is created and uploaded.
@@ -72,15 +150,226 @@ public class SipUploaderImpl implements SipUploader {
     public SipUploaderImpl(String sipUploaderServletURL) {
         this.sipUploaderServletURL = sipUploaderServletURL;
     }
+    
+    /**
+     * Sets whether SIPs are built by streaming. A streamed SIP is zipped 
+     * straight from the selected files: each file is read once, and its
+     * checksum is computed while it is being compressed. No temporary bag 
+     * directory is created.
+     * 
+     * @param streaming True to build SIPs by streaming, false to copy the 
+     *                  selected files into a temporary bag directory first.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets the algorithms of the payload manifests of a SIP, which has a 
+     * manifest and a tag manifest for each of them. Every algorithm is 
+     * computed from the same read of each file.
+     * 
+     * @param manifestAlgorithms The BagIt names of the algorithms. 
+     *                           E.g: md5, sha256
+     */
+    public void setManifestAlgorithms(List<String> manifestAlgorithms) {
+        if (manifestAlgorithms.isEmpty()) {
+            throw new IllegalArgumentException("A SIP needs at least one manifest algorithm");
+        }
+        for (String algorithm : manifestAlgorithms) {
+            BagManifest.toJavaAlgorithm(algorithm);
+        }
+        this.manifestAlgorithms = new ArrayList<>(manifestAlgorithms);
+    }
+
+    /**
+     * Sets the URL to the servlet that accepts SIPs in resumable chunks. 
+     * When it is set, a SIP whose upload fails part way is resumed where it
+     * stopped instead of being sent again, even after Kukini is restarted.
+     * 
+     * @param resumableUploadURL The URL to the servlet that creates upload 
+     *                           sessions, or null to upload each SIP in a 
+     *                           single multipart request.
+     */
+    public void setResumableUploadURL(String resumableUploadURL) {
+        this.resumableUploadURL = resumableUploadURL;
+    }
+    
+    /**
+     * Sets the URL to the servlet that answers which payload files HiDA 
+     * already holds. When it is set, the selected files are checksummed
+     * before the SIP is built, and the files whose contents the archive
+     * holds are listed in the fetch.txt of the bag instead of being sent.
+     * With a {@link DigestCache}, the files that are sent are not hashed 
+     * again while the SIP is built. The servlet is asked with the 
+     * RestTemplate of the upload, so a SIP that is created apart from its 
+     * upload holds every file.
+     * 
+     * @param deltaURL The URL to the servlet, or null to send every file.
+     */
+    public void setDeltaURL(String deltaURL) {
+        this.deltaURL = deltaURL;
+    }
+    
+    /**
+     * Sets the URL to the servlet that receives large files as chunks. When
+     * it is set, each file of at least the chunking threshold that HiDA does
+     * not hold as a whole is split into content-defined chunks, and only the
+     * chunks that the archive has not seen are sent, e.g. the few that 
+     * changed in a database export since it was last sent. The archive 
+     * rebuilds the file, which is then listed in the fetch.txt of the bag. 
+     * A file whose chunks cannot be sent is sent within the SIP, as is every
+     * file of a SIP that is created apart from its upload.
+     * 
+     * @param chunksURL The URL to the servlet, or null to send every file 
+     *                  within the SIP.
+     */
+    public void setChunksURL(String chunksURL) {
+        this.chunksURL = chunksURL;
+    }
+    
+    /**
+     * @param chunkingThreshold The smallest file that is sent as chunks.
+     */
+    public void setChunkingThreshold(long chunkingThreshold) {
+        this.chunkingThreshold = chunkingThreshold;
+    }
+    
+    /**
+     * @param chunkSize The number of bytes sent by each request of a 
+     *                  resumable upload.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Sets the most connections that send the segments of a SIP at the same
+     * time, when uploading in resumable chunks. With more than one, the SIP
+     * is split into segments that are sent in parallel, and the segment size
+     * and the number of connections in use are adapted to the round trip 
+     * time and throughput of the link; the chunk size is then the size of
+     * the first segments.
+     * 
+     * @param connections The most connections used to upload a SIP.
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+    
+    /**
+     * Sets the request factory that sends SIPs uploaded in a single 
+     * multipart request, when it differs from that of the RestTemplate 
+     * passed to uploadSip. A {@link ChannelClientHttpRequestFactory} sends 
+     * them from the disk to the socket without copying them through the 
+     * heap, and through HttpURLConnections when a proxy must be used.
+     * 
+     * @param uploadRequestFactory The request factory, or null to send SIPs
+     *                             with the RestTemplate passed to uploadSip.
+     */
+    public void setUploadRequestFactory(ClientHttpRequestFactory uploadRequestFactory) {
+        this.uploadRestTemplate = uploadRequestFactory == null ? null 
+                : new RestTemplate(uploadRequestFactory);
+    }
+
+    /**
+     * Sets whether SIPs are uploaded while they are being built. A 
+     * pipelined SIP is zipped straight from the selected files, as when
+     * streaming, and its bytes are sent as soon as they are compressed in a 
+     * single multipart request with the chunked transfer encoding. The SIP
+     * is never written to the disk, and the transfer takes about as long as
+     * the longer of building and uploading the SIP rather than both.
+     * 
+     * Pipelined SIPs cannot be resumed, so this is ignored when SIPs are 
+     * uploaded in resumable chunks.
+     * 
+     * @param pipelined True to upload SIPs while they are being built.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+    
+    /**
+     * @param pipelineBufferSize The most bytes of a pipelined SIP that are 
+     *                           built ahead of the upload. Building waits 
+     *                           while the upload is this far behind.
+     */
+    public void setPipelineBufferSize(int pipelineBufferSize) {
+        this.pipelineBufferSize = pipelineBufferSize;
+    }
 
     @Override
     public Path createSipFromContext(List<DataObject> selectedContext, Path destinationDirectory) {
+        return createSipFromContext(selectedContext, destinationDirectory, 
+                TransferListener.NONE);
+    }
+
+    @Override
+    public Path createSipFromContext(List<DataObject> selectedContext, Path destinationDirectory,
+            TransferListener listener) {
         log.debug("Entering createSipFromContext(selectedContext={} destinationDirectory={})", 
                 selectedContext, destinationDirectory);
         Assert.notNull(selectedContext);
         Assert.notEmpty(selectedContext);
         
+        Path sipPath = createSip(PayloadFile.fromDataObjects(selectedContext), 
+                destinationDirectory, null, null, listener);
+        log.debug("Exiting createSipFromContext(): {}", sipPath);
+        return sipPath;
+    }
+    
+    @Override
+    public Path createSipFromPaths(List<Path> sources, Path destinationDirectory,
+            TransferListener listener) {
+        log.debug("Entering createSipFromPaths(sources={} destinationDirectory={})", 
+                sources, destinationDirectory);
+        Assert.notEmpty(sources);
+        
+        Path sipPath = createSip(PayloadFile.fromPaths(sources), destinationDirectory, 
+                null, null, listener);
+        log.debug("Exiting createSipFromPaths(): {}", sipPath);
+        return sipPath;
+    }
+    
+    /**
+     * Creates a SIP from the payload files, reporting the progress of each
+     * stage of its creation.
+     * 
+     * @param payload The files to place within the payload of the bag.
+     * @param destinationDirectory The destination where the SIP will be 
+     *                             bagged in place to.
+     * @param restTemplate Asks HiDA which files it already holds, or null 
+     *                     to send every file within the SIP.
+     * @param job Identifies the transfer in the journal, or null if it is 
+     *            not journaled.
+     * @param progress Receives the progress of the creation.
+     * 
+     * @return The path to the newly created SIP.
+     */
+    private Path createSip(List<PayloadFile> payload, Path destinationDirectory,
+            RestTemplate restTemplate, String job, TransferListener progress) {
+        MeteredTransferListener listener = transferMetrics.meter(progress);
+        // Whether the bag is journaled as staged, and the SIP has not yet
+        // been journaled as zipped from it.
+        boolean keepBag = false;
         try {
+            FetchList fetchList = negotiateDelta(payload, restTemplate, listener);
+            long payloadSize = -fetchList.getByteCount();
+            for (PayloadFile payloadFile : payload) {
+                payloadSize += payloadFile.getSize();
+            }
+            if (streaming) {
+                listener.stageStarted(TransferStage.COMPRESSING, payloadSize);
+                Path sipPath = createStreamedSip(payload, fetchList, destinationDirectory, 
+                        listener);
+                listener.stageFinished(TransferStage.COMPRESSING);
+                transferMetrics.filesProcessed(TransferStage.COMPRESSING, payload.size());
+                if (job != null) {
+                    transferJournal.zipped(job, sipPath);
+                }
+                return sipPath;
+            }
+            
            // Create the bag structure.
             try {
                 Path dataDirectory = Files.createDirectories(destinationDirectory
@@ -88,20 +377,39 @@ public class SipUploaderImpl implements SipUploader {
                 
                 Path rootDirectory = dataDirectory.getParent();
                 
-                // Copy selected files to "data" directory.
-                copySelectedFilesToDirectory(selectedContext, FileUtil.
-                        toFileObject(dataDirectory.toFile()));
-                
-                // Create sip tag within the "root" directory.
-                createAccessionMetadata(rootDirectory);
-                
-                bagUtil.makeComplete(rootDirectory);
+                // Copy selected files to "data" directory. Their checksums
+                // are computed while they are being copied so that the
+                // payload does not have to be read again to create the 
+                // manifest. The files that the archive already holds are 
+                // not copied.
+                listener.stageStarted(TransferStage.STAGING, payloadSize);
+                List<PayloadFile> staged = fetchList.exclude(payload);
+                List<BagManifest> manifests = copySelectedFilesToDirectory(staged, 
+                        rootDirectory, listener);
+                fetchList.addTo(manifests);
+                listener.stageFinished(TransferStage.STAGING);
+                transferMetrics.filesProcessed(TransferStage.STAGING, staged.size());
                 
+                // Create the sip tag and the BagIt tag files within the 
+                // "root" directory.
+                writeTagFiles(rootDirectory, manifests, fetchList);
+                // A linked file shares its contents with the selected file,
+                // which may change before an interrupted transfer resumes,
+                // so a bag that may hold links is staged again instead.
+                if (job != null && !stagingEngine.isLinking()) {
+                    transferJournal.staged(job, destinationDirectory);
+                    keepBag = true;
+                }
                 
                 // Make the bag in place at the destination directory.
-                Path sipPath = ZipUtil.compress(destinationDirectory);
-                    
-                log.debug("Exiting createSipFromContext(): {}", sipPath);
+                listener.stageStarted(TransferStage.COMPRESSING, payloadSize);
+                Path sipPath = compress(destinationDirectory, listener);
+                listener.stageFinished(TransferStage.COMPRESSING);
+                transferMetrics.filesProcessed(TransferStage.COMPRESSING, payload.size());
+                if (job != null) {
+                    transferJournal.zipped(job, sipPath);
+                }
+                keepBag = false;
                 return sipPath;
                           
             } catch (IOException e) {
@@ -110,22 +418,15 @@ public class SipUploaderImpl implements SipUploader {
                 log.error(errorMessage, e);
                 throw new HidaIOException(errorMessage, e);
             }           
+        } catch (RuntimeException e) {
+            listener.failed();
+            throw e;
         } finally {
-            try {
-                if (destinationDirectory != null) {
-                    System.gc();
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException ex) {
-                        Exceptions.printStackTrace(ex);
-                    }
-                    FileUtils.forceDelete(destinationDirectory.toFile());
-                }
-            } catch (IOException e) {
-                String errorMessage = "Failed to delete the temporary bag directory: '" 
-                        + destinationDirectory + "'";
-                log.error(errorMessage, e);
-                throw new HidaIOException(errorMessage, e);
+            // Every file within the bag directory has been closed by now, 
+            // so it is deleted in the background, unless the transfer is to
+            // be resumed from it.
+            if (!keepBag || Thread.currentThread().isInterrupted()) {
+                workspaceManager.release(destinationDirectory);
             }
         }
     }
@@ -135,55 +436,629 @@ public class SipUploaderImpl implements SipUploader {
     public Path createSipFromContext(List<DataObject> selectedContext) {
         log.debug("Entering createSipFromContext(selectedContext={})", selectedContext);
 
-        try {
-            Path temporaryDestinationDirectory = Files.createTempDirectory(null);
-            temporaryDestinationDirectory.toFile().deleteOnExit();
-            temporaryDestinationDirectory = Files
-                    .move(temporaryDestinationDirectory, temporaryDestinationDirectory
-                    .resolveSibling("record_series_" + new Date().getTime()));
-            
-            Path sipPath = createSipFromContext(selectedContext, 
-                temporaryDestinationDirectory);
-            
-            log.debug("Exiting createSipFromContext(): {}", sipPath);
-            return sipPath;
-        } catch (IOException e) {
-            String errorMessage = "Failed to create the "
-                    + "temporary destination directory.";
-            log.error(errorMessage, e);
-            throw new HidaIOException(errorMessage, e);
-        } 
+        Path sipPath = createSipFromContext(selectedContext, 
+                workspaceManager.createWorkspace());
+        
+        log.debug("Exiting createSipFromContext(): {}", sipPath);
+        return sipPath;
     }
     
     @Override
     public ResponseEntity<String> uploadSip(Path sipPath, RestTemplate restTemplate) {
+        return uploadSip(sipPath, restTemplate, TransferListener.NONE);
+    }
+    
+    @Override
+    public ResponseEntity<String> uploadSip(final Path sipPath, RestTemplate restTemplate,
+            final TransferListener listener) {
         log.debug("Entering upload(sipPath={}, restTemplate={}", sipPath, restTemplate);
         Assert.notNull(sipPath);
+        MeteredTransferListener metered = transferMetrics.meter(listener);
+        try {
+            ResponseEntity<String> response = upload(sipPath, restTemplate, metered);
+            log.debug("Exiting upload(): {}", response);
+            return response;
+        } catch (RuntimeException e) {
+            metered.failed();
+            throw e;
+        }
+    }
+    
+    /**
+     * Uploads a SIP in resumable chunks if there is a resumable upload URL,
+     * or else in a single multipart request.
+     * 
+     * @param sipPath The SIP.
+     * @param restTemplate Sends the SIP, unless there is an upload 
+     *                     RestTemplate of its own.
+     * @param listener Receives the number of bytes sent.
+     * 
+     * @return The response to the upload.
+     */
+    private ResponseEntity<String> upload(Path sipPath, RestTemplate restTemplate,
+            TransferListener listener) {
+        listener.stageStarted(TransferStage.UPLOADING, sipPath.toFile().length());
+        if (resumableUploadURL != null) {
+            ResumableUploader uploader = createResumableUploader();
+            uploader.setTransferListener(listener);
+            ResponseEntity<String> response = uploader.upload(sipPath, this.rtpId, restTemplate);
+            listener.stageFinished(TransferStage.UPLOADING);
+            return response;
+        }
         // Send a POST request to a servlet in order to upload the SIP to HiDA.
-        MultiValueMap<String, Object> parts = new LinkedMultiValueMap<>();
-        parts.add("file", new FileSystemResource(sipPath.toFile()));
-        parts.add("rtpId", this.rtpId);
-        ResponseEntity<String> response = restTemplate
-            .postForEntity(this.sipUploaderServletURL, parts, 
-                    String.class);
+        // The SIP is streamed to the connection rather than read into memory.
+        StreamingMultipartRequest request = new StreamingMultipartRequest();
+        request.setTransferListener(listener);
+        try {
+            // Make sure that the SIP is closed before it is deleted, even if
+            // the upload fails part way.
+            FileChannel sip = workspaceManager.track(sipPath, 
+                    FileChannel.open(sipPath, StandardOpenOption.READ));
+            request.addFile("file", sipPath.getFileName().toString(), sip, sip.size());
+        } catch (IOException e) {
+            String errorMessage = "Failed to read the SIP " + sipPath;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        }
+        request.addField("rtpId", this.rtpId);
+        ResponseEntity<String> response = request.post(getUploadRestTemplate(restTemplate), 
+                this.sipUploaderServletURL);
+        listener.stageFinished(TransferStage.UPLOADING);
+        return response;
+    }
+    
+    /**
+     * @param restTemplate The RestTemplate passed in by the caller.
+     * @return The RestTemplate that sends a SIP in a single multipart 
+     *         request: that of the uploadRequestFactory, unless it is unset.
+     */
+    private RestTemplate getUploadRestTemplate(RestTemplate restTemplate) {
+        return uploadRestTemplate != null ? uploadRestTemplate : restTemplate;
+    }
+    
+    @Override
+    public boolean isPipelined() {
+        return pipelined && resumableUploadURL == null;
+    }
+    
+    @Override
+    public ResponseEntity<String> createAndUploadSip(List<DataObject> selectedContext,
+            RestTemplate restTemplate, TransferListener listener) {
+        return createAndUploadSip(selectedContext, null, restTemplate, listener);
+    }
+    
+    @Override
+    public ResponseEntity<String> createAndUploadSip(List<DataObject> selectedContext,
+            Path destinationDirectory, RestTemplate restTemplate, TransferListener listener) {
+        log.debug("Entering createAndUploadSip(selectedContext={} destinationDirectory={})", 
+                selectedContext, destinationDirectory);
+        Assert.notNull(selectedContext);
+        Assert.notEmpty(selectedContext);
         
-        log.debug("Exiting upload(): {}", response);
+        ResponseEntity<String> response = createAndUpload(PayloadFile.toPaths(selectedContext), 
+                destinationDirectory, restTemplate, listener);
+        log.debug("Exiting createAndUploadSip(): {}", response);
+        return response;
+    }
+    
+    @Override
+    public ResponseEntity<String> createAndUploadSipFromPaths(List<Path> sources,
+            RestTemplate restTemplate, TransferListener listener) {
+        log.debug("Entering createAndUploadSipFromPaths(sources={})", sources);
+        Assert.notEmpty(sources);
+        
+        ResponseEntity<String> response = createAndUpload(sources, null, restTemplate, 
+                listener);
+        log.debug("Exiting createAndUploadSipFromPaths(): {}", response);
         return response;
     }
     
+    /**
+     * Creates a SIP from the selected files and uploads it, journaling the
+     * transfer if there is a journal.
+     * 
+     * @param sources The files and folders to place within the payload.
+     * @param destinationDirectory The directory in which the bag is staged,
+     *                             or null to create one.
+     * @param restTemplate Sends the SIP.
+     * @param listener Receives the progress of the transfer.
+     * 
+     * @return The response to the upload.
+     */
+    private ResponseEntity<String> createAndUpload(List<Path> sources, 
+            Path destinationDirectory, RestTemplate restTemplate, TransferListener listener) {
+        String job = transferJournal != null ? transferJournal.submitted(sources) : null;
+        return transfer(sources, job, destinationDirectory, null, null, restTemplate, listener);
+    }
+    
+    /**
+     * Carries a transfer on from its last finished stage: uploads its SIP if
+     * it has been zipped, zips its bag directory if it has been staged, or 
+     * else creates a SIP from the selected files, and uploads it while it is 
+     * being built if SIPs are pipelined. A journaled transfer is finished in
+     * the journal, and its SIP deleted, only once it has succeeded or been
+     * cancelled by interrupting the calling thread. One that fails otherwise
+     * is kept, along with its bag or SIP, to be resumed the next time Kukini
+     * starts.
+     * 
+     * @param sources The files and folders to place within the payload.
+     * @param job Identifies the transfer in the journal, or null if it is 
+     *            not journaled.
+     * @param destinationDirectory The directory in which the bag is staged,
+     *                             or null to create one.
+     * @param bagDirectory The staged bag directory, or null if the payload
+     *                     has not been staged.
+     * @param sipPath The SIP, or null if it has not been zipped.
+     * @param restTemplate Sends the SIP.
+     * @param progress Receives the progress of the transfer.
+     * 
+     * @return The response to the upload.
+     */
+    private ResponseEntity<String> transfer(List<Path> sources, String job, 
+            Path destinationDirectory, Path bagDirectory, Path sipPath, 
+            RestTemplate restTemplate, TransferListener progress) {
+        MeteredTransferListener listener = transferMetrics.meter(progress);
+        // Whether the transfer has succeeded or been cancelled, so that it
+        // is not resumed.
+        boolean ended = false;
+        try {
+            ResponseEntity<String> response;
+            if (sipPath == null && bagDirectory == null && isPipelined()) {
+                response = createAndUploadPipelined(PayloadFile.fromPaths(sources), 
+                        restTemplate, listener);
+            } else {
+                if (sipPath == null && bagDirectory != null) {
+                    sipPath = compressStaged(bagDirectory, job, listener);
+                } else if (sipPath == null) {
+                    sipPath = createSipFromSources(sources, destinationDirectory != null 
+                            ? destinationDirectory : workspaceManager.createWorkspace(), 
+                            restTemplate, job, listener);
+                }
+                response = uploadSip(sipPath, restTemplate, listener);
+            }
+            ended = true;
+            return response;
+        } catch (RuntimeException e) {
+            listener.failed();
+            ended = Thread.currentThread().isInterrupted();
+            throw e;
+        } finally {
+            if (job != null && ended) {
+                transferJournal.finished(job);
+            }
+            // A SIP that is not journaled is kept only if its resumable 
+            // upload was interrupted, so that its upload can be resumed.
+            if (sipPath != null && (ended || job == null && !UploadSession.exists(sipPath))) {
+                discard(sipPath);
+            }
+        }
+    }
+    
+    /**
+     * Creates a SIP from the selected files within a bag directory.
+     * 
+     * @param sources The files and folders to place within the payload.
+     * @param destinationDirectory The directory in which the bag is staged.
+     * @param restTemplate Asks HiDA which files it already holds.
+     * @param job Identifies the transfer in the journal, or null if it is 
+     *            not journaled.
+     * @param listener Receives the progress of the creation.
+     * 
+     * @return The path to the newly created SIP.
+     */
+    private Path createSipFromSources(List<Path> sources, Path destinationDirectory, 
+            RestTemplate restTemplate, String job, TransferListener listener) {
+        List<PayloadFile> payload;
+        try {
+            payload = PayloadFile.fromPaths(sources);
+        } catch (RuntimeException e) {
+            workspaceManager.release(destinationDirectory);
+            throw e;
+        }
+        return createSip(payload, destinationDirectory, restTemplate, job, listener);
+    }
+    
+    /**
+     * Deletes a SIP that is no longer needed, along with the state of its 
+     * resumable upload if it was cancelled part way.
+     * 
+     * @param sipPath The SIP.
+     */
+    private void discard(Path sipPath) {
+        try {
+            Files.deleteIfExists(UploadSession.getStatePath(sipPath));
+        } catch (IOException e) {
+            log.warn("Failed to delete the upload state of " + sipPath, e);
+        }
+        workspaceManager.release(sipPath);
+    }
+    
+    /**
+     * Zips a bag directory that was staged before the transfer was 
+     * interrupted. The bag is deleted once the SIP has been journaled, or
+     * if the transfer is cancelled; if the compression fails otherwise, it
+     * is kept so that the transfer is resumed from it.
+     * 
+     * @param bagDirectory The bag directory.
+     * @param job Identifies the transfer in the journal.
+     * @param listener Receives the number of bytes compressed.
+     * 
+     * @return The path to the SIP.
+     */
+    private Path compressStaged(Path bagDirectory, String job, TransferListener listener) {
+        boolean zipped = false;
+        try {
+            listener.stageStarted(TransferStage.COMPRESSING, -1);
+            Path sipPath = compress(bagDirectory, listener);
+            listener.stageFinished(TransferStage.COMPRESSING);
+            transferJournal.zipped(job, sipPath);
+            zipped = true;
+            return sipPath;
+        } finally {
+            if (zipped || Thread.currentThread().isInterrupted()) {
+                workspaceManager.release(bagDirectory);
+            }
+        }
+    }
+    
+    /**
+     * Creates a SIP from the payload files and uploads it while it is being
+     * built.
+     * 
+     * @param payload The files to place within the payload of the bag.
+     * @param restTemplate Sends the SIP.
+     * @param listener Receives the progress of the transfer.
+     * 
+     * @return The response to the upload.
+     */
+    private ResponseEntity<String> createAndUploadPipelined(List<PayloadFile> payload,
+            RestTemplate restTemplate, TransferListener listener) {
+        FetchList fetchList = negotiateDelta(payload, restTemplate, listener);
+        long payloadSize = -fetchList.getByteCount();
+        for (PayloadFile payloadFile : payload) {
+            payloadSize += payloadFile.getSize();
+        }
+        // The upload trails the compression by at most the pipe buffer, so
+        // the progress of the compression is that of the whole transfer.
+        listener.stageStarted(TransferStage.COMPRESSING, payloadSize);
+        SipPipe pipe = new SipPipe(pipelineBufferSize);
+        FutureTask<Void> building = buildInBackground(payload, fetchList, pipe, listener);
+        try {
+            StreamingMultipartRequest request = new StreamingMultipartRequest();
+            request.addFile("file", "record_series_" + new Date().getTime() + ".zip", 
+                    pipe.getInputStream(), -1);
+            request.addField("rtpId", this.rtpId);
+            ResponseEntity<String> response = request.post(getUploadRestTemplate(restTemplate), 
+                    this.sipUploaderServletURL);
+            listener.stageFinished(TransferStage.COMPRESSING);
+            transferMetrics.filesProcessed(TransferStage.COMPRESSING, payload.size());
+            return response;
+        } finally {
+            // Stops the building if the upload failed or was cancelled.
+            pipe.cancel();
+            building.cancel(true);
+        }
+    }
+    
+    @Override
+    public Map<List<Path>, ResponseEntity<String>> resumeInterruptedTransfers(
+            RestTemplate restTemplate) {
+        log.debug("Entering resumeInterruptedTransfers(restTemplate={})", restTemplate);
+        Map<List<Path>, ResponseEntity<String>> responses = new LinkedHashMap<>();
+        if (transferJournal == null) {
+            log.debug("Exiting resumeInterruptedTransfers(): {}", responses);
+            return responses;
+        }
+        for (TransferJob job : transferJournal.getInterruptedJobs()) {
+            if (!transferJournal.resume(job.getId())) {
+                // Another thread is resuming it.
+                continue;
+            }
+            Path bagDirectory = job.getBagDirectory();
+            if (bagDirectory != null && !Files.isDirectory(bagDirectory)) {
+                bagDirectory = null;
+            }
+            Path sipPath = job.getSipPath();
+            if (sipPath != null && !Files.isRegularFile(sipPath)) {
+                sipPath = null;
+            }
+            log.info("Resuming the interrupted transfer {} from {}", job, sipPath != null 
+                    ? sipPath : bagDirectory != null ? bagDirectory : "the selected files");
+            try {
+                responses.put(job.getSources(), transfer(job.getSources(), job.getId(), null,
+                        bagDirectory, sipPath, restTemplate, TransferListener.NONE));
+            } catch (RuntimeException e) {
+                // It is kept in the journal, so it is resumed again the next
+                // time Kukini starts.
+                log.error("Failed to resume the transfer " + job, e);
+                responses.put(job.getSources(), null);
+            }
+        }
+        log.debug("Exiting resumeInterruptedTransfers(): {}", responses);
+        return responses;
+    }
+    
+    @Override
+    public Map<Path, ResponseEntity<String>> resumeInterruptedUploads(RestTemplate restTemplate) {
+        log.debug("Entering resumeInterruptedUploads(restTemplate={})", restTemplate);
+        Map<Path, ResponseEntity<String>> responses = new LinkedHashMap<>();
+        if (resumableUploadURL == null) {
+            log.debug("Exiting resumeInterruptedUploads(): {}", responses);
+            return responses;
+        }
+        for (Path sipPath : UploadSession.findInterrupted(workspaceManager
+                .getTemporaryDirectory())) {
+            if (transferJournal != null && transferJournal.getWorkspaces().contains(sipPath)) {
+                // It is resumed along with the rest of its transfer.
+                continue;
+            }
+            log.info("Resuming the interrupted upload of {}", sipPath);
+            try {
+                ResponseEntity<String> response = createResumableUploader()
+                        .upload(sipPath, this.rtpId, restTemplate);
+                responses.put(sipPath, response);
+                workspaceManager.release(sipPath);
+            } catch (RuntimeException e) {
+                // The upload state is kept, so the upload is tried again the
+                // next time Kukini starts.
+                log.error("Failed to resume the upload of " + sipPath, e);
+            }
+        }
+        log.debug("Exiting resumeInterruptedUploads(): {}", responses);
+        return responses;
+    }
+    
+    /**
+     * @return An uploader that sends SIPs in resumable chunks.
+     */
+    private ResumableUploader createResumableUploader() {
+        ResumableUploader uploader = connections > 1 
+                ? new SegmentedUploader(resumableUploadURL, connections)
+                : new ResumableUploader(resumableUploadURL);
+        uploader.setChunkSize(chunkSize);
+        return uploader;
+    }
+    
+    /**
+     * Asks HiDA which of the selected files it already holds, once they have
+     * been checksummed, and sends the large files that it does not hold as
+     * chunks, unless neither a delta URL nor a chunks URL is set.
+     * 
+     * @param payload The selected files.
+     * @param restTemplate Sends the requests, or null to send every file 
+     *                     within the SIP.
+     * @param listener Receives the number of bytes checksummed, and of 
+     *                 chunks sent.
+     * 
+     * @return The files that are listed in fetch.txt rather than sent within
+     *         the SIP. Empty if every file is sent within the SIP.
+     */
+    private FetchList negotiateDelta(List<PayloadFile> payload, RestTemplate restTemplate,
+            TransferListener listener) {
+        if (restTemplate == null || (deltaURL == null && chunksURL == null)) {
+            return new FetchList();
+        }
+        long payloadSize = 0;
+        for (PayloadFile payloadFile : payload) {
+            payloadSize += payloadFile.getSize();
+        }
+        listener.stageStarted(TransferStage.CHECKSUMMING, payloadSize);
+        List<BagManifest> manifests = stagingEngine.checksum(payload, manifestAlgorithms, 
+                listener);
+        listener.stageFinished(TransferStage.CHECKSUMMING);
+        transferMetrics.filesProcessed(TransferStage.CHECKSUMMING, payload.size());
+        FetchList fetchList = deltaURL != null 
+                ? new DeltaNegotiator(deltaURL).negotiate(payload, manifests, restTemplate) 
+                : new FetchList();
+        if (chunksURL != null) {
+            sendChunked(payload, manifests, fetchList, restTemplate, listener);
+        }
+        return fetchList;
+    }
+    
+    /**
+     * Sends the files of at least the chunking threshold that are not yet 
+     * fetched as chunks, and adds those that the archive rebuilt to the 
+     * fetch list.
+     * 
+     * @param payload The selected files.
+     * @param manifests The checksums of the selected files.
+     * @param fetchList The files that are not sent within the SIP.
+     * @param restTemplate Sends the chunks.
+     * @param listener Receives the number of bytes of chunks sent.
+     */
+    private void sendChunked(List<PayloadFile> payload, List<BagManifest> manifests,
+            FetchList fetchList, RestTemplate restTemplate, TransferListener listener) {
+        List<PayloadFile> largeFiles = new ArrayList<>();
+        for (PayloadFile payloadFile : payload) {
+            if (payloadFile.getSize() >= chunkingThreshold && !fetchList.contains(payloadFile)) {
+                largeFiles.add(payloadFile);
+            }
+        }
+        if (largeFiles.isEmpty()) {
+            return;
+        }
+        BagManifest manifest = DeltaNegotiator.strongest(manifests);
+        ChunkedUploader uploader = new ChunkedUploader(chunksURL);
+        uploader.setTransferListener(listener);
+        // Only the chunks that the archive has not seen are sent, so the 
+        // number of bytes to send is not known up front.
+        listener.stageStarted(TransferStage.UPLOADING, -1);
+        for (PayloadFile payloadFile : largeFiles) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new HidaIOException("The transfer was cancelled");
+            }
+            try {
+                String url = uploader.upload(payloadFile, manifest.getAlgorithm(), 
+                        manifest.getChecksum(payloadFile.getBagPath()), restTemplate);
+                fetchList.add(payloadFile, url, manifests);
+            } catch (RuntimeException e) {
+                log.warn("Sending " + payloadFile.getSource() 
+                        + " within the SIP, since its chunks could not be sent", e);
+            }
+        }
+        listener.stageFinished(TransferStage.UPLOADING);
+    }
+    
+    /**
+     * Starts building a SIP into a pipe on a thread of its own.
+     * 
+     * @param payload The files to place within the payload of the bag.
+     * @param fetchList The files of the payload that are not sent.
+     * @param pipe Receives the SIP. It is finished once the SIP has been 
+     *             built, or failed if the SIP cannot be built.
+     * @param listener Receives the number of bytes compressed.
+     * 
+     * @return The building, which may be cancelled.
+     */
+    private FutureTask<Void> buildInBackground(final List<PayloadFile> payload, 
+            final FetchList fetchList, final SipPipe pipe, final TransferListener listener) {
+        final Map<String, byte[]> sipTags = createAccessionMetadata();
+        FutureTask<Void> building = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    createSipBuilder().build(payload, fetchList, sipTags, 
+                            pipe.getOutputStream(), listener);
+                    pipe.finish();
+                } catch (RuntimeException | Error e) {
+                    pipe.fail(e);
+                    throw e;
+                }
+                return null;
+            }
+        });
+        Thread thread = new Thread(building, "kukini-pipeline");
+        thread.setDaemon(true);
+        thread.start();
+        return building;
+    }
+    
+    /**
+     * Zips the payload straight into a SIP without staging it in a 
+     * temporary bag directory.
+     * 
+     * @param payload The files to place within the payload of the bag.
+     * @param fetchList The files of the payload that are not sent.
+     * @param destinationDirectory The SIP is created next to this directory 
+     *                             and named after it. The directory itself
+     *                             is not created.
+     * @param listener Receives the number of bytes compressed.
+     * 
+     * @return The path to the newly created SIP.
+     */
+    private Path createStreamedSip(List<PayloadFile> payload, FetchList fetchList, 
+            Path destinationDirectory, TransferListener listener) {
+        Path sipPath = destinationDirectory.resolveSibling(destinationDirectory
+                .getFileName() + ".zip");
+        return createSipBuilder().build(payload, fetchList, createAccessionMetadata(), sipPath, 
+                listener);
+    }
+    
+    /**
+     * @return A builder of streamed SIPs.
+     */
+    private StreamingSipBuilder createSipBuilder() {
+        StreamingSipBuilder builder = new StreamingSipBuilder(manifestAlgorithms, deflater, 
+                compressionPolicy);
+        builder.setDigestCache(digestCache);
+        builder.setDigestEngine(digestEngine);
+        return builder;
+    }
+    
+    /**
+     * Zips a staged bag directory. The entries of the SIP are compressed on
+     * several cores, and files that are already compressed are stored.
+     * 
+     * @param destinationDirectory The directory holding the bag. The SIP is 
+     *                             created next to it and named after it.
+     * @param listener Receives the number of bytes compressed.
+     * 
+     * @return The path to the newly created SIP.
+     */
+    private Path compress(Path destinationDirectory, TransferListener listener) {
+        log.debug("Entering compress(destinationDirectory={})", destinationDirectory);
+        Path sipPath = destinationDirectory.resolveSibling(destinationDirectory
+                .getFileName() + ".zip");
+        boolean compressed = false;
+        try (SipArchiveWriter zip = new SipArchiveWriter(sipPath, deflater)) {
+            zip.setCompressionPolicy(compressionPolicy);
+            zip.setTransferListener(listener);
+            zip.writeDirectory(destinationDirectory);
+            zip.finish();
+            compressed = true;
+        } catch (IOException e) {
+            String errorMessage = "Failed to compress the bag directory " 
+                    + destinationDirectory;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        } finally {
+            if (!compressed) {
+                workspaceManager.release(sipPath);
+            }
+        }
+        log.debug("Exiting compress(): {}", sipPath);
+        return sipPath;
+    }
+    
+    /**
+     * Writes the accession metadata sip tag and the BagIt tag files 
+     * (bagit.txt, bag-info.txt, fetch.txt if some files are not sent, the 
+     * payload manifests and the tag manifests) to the root directory of a 
+     * staged bag.
+     * 
+     * @param rootDirectory The root directory of the bag.
+     * @param manifests The checksums of the payload files of the bag, one
+     *                  manifest per algorithm.
+     * @param fetchList The files of the payload that are not sent.
+     */
+    private void writeTagFiles(Path rootDirectory, List<BagManifest> manifests, 
+            FetchList fetchList) {
+        log.debug("Entering writeTagFiles(rootDirectory={})", rootDirectory);
+        Map<String, byte[]> sipTags = new LinkedHashMap<>(fetchList.toTagFiles());
+        sipTags.putAll(createAccessionMetadata());
+        Map<String, byte[]> tagFiles = BagTagFiles.create(manifests, sipTags, new Date());
+        for (Map.Entry<String, byte[]> tagFile : tagFiles.entrySet()) {
+            try {
+                Files.write(rootDirectory.resolve(tagFile.getKey()), tagFile.getValue());
+            } catch (IOException e) {
+                String errorMessage = "Failed to write the tag file " + tagFile.getKey();
+                log.error(errorMessage, e);
+                throw new HidaIOException(errorMessage, e);
+            }
+        }
+        log.debug("Exiting writeTagFiles()");
+    }
+    
     /**
      * Creates an accession metadata sip tag that will be contained with
      * the SIP bag. This accession metadata sip tag is created by the 
      * serialization of an Accession Model Object in JSON format.
      * 
-     * @param destinationDirectory The directory that the created 
-     *                             accession metadata sip tag will reside in.
+     * @return The accession metadata sip tag keyed by its file name,
+     *         accession.json.
+     */
+    private Map<String, byte[]> createAccessionMetadata() {
+        log.debug("Entering createAccessionMetadata()");
+        try {
+            Map<String, byte[]> sipTags = Collections.singletonMap("accession.json", 
+                    mapper.writeValueAsBytes(createAccession()));
+            log.debug("Exiting createAccessionMetadata()");
+            return sipTags;
+        } catch (IOException e) {
+            String errorMessage = "Failed to serialize accession model object";
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        }
+    }
+    
+    /**
+     * Creates the Accession Model Object that describes the SIP, using the 
+     * information of the user that is currently logged in to Kukini.
      * 
-     * @return The path to the accession metadata sip tag. 
+     * @return The accession. 
      */
-    private Path createAccessionMetadata(Path destinationDirectory) {
-        log.debug("Entering createAccessionMetadata(destinationDirectory = {})", 
-                destinationDirectory);
+    private Accession createAccession() {
         UserInformation userInformation = Lookup.getDefault().lookup(UserInformation.class);
         String department = userInformation.getDepartment();
         String division = userInformation.getDivision();
@@ -199,51 +1074,30 @@ public class SipUploaderImpl implements SipUploader {
         accession.setAccessionCreationDate(new Date());
         accession.setTransferMethod("Kukini HTTPS");
         accession.setCreator(new Agent(department + ", " + division, "Records submitted to HIDA"));
-        
-        try {
-            Path sipTagPath = destinationDirectory.resolve("accession.json");
-            mapper.writeValue(sipTagPath.toFile(), accession);
-            log.debug("Exiting createAccessionMetadata(): {}", sipTagPath);
-            return sipTagPath;
-            
-        } catch (IOException e) {
-            String errorMessage = "Failed to serialize accession model object";
-            log.error(errorMessage, e);
-            throw new HidaIOException(errorMessage, e);
-        }
+        return accession;
     }
     
     
     
     /**
-     * Copies the files that the user has selected to a directory.
+     * Copies the files that the user has selected to a bag directory,
+     * computing the checksum of each file while it is being copied. The
+     * files are copied concurrently by the staging engine.
+     * 
+     * @param payload The selected files.
+     * @param rootDirectory The root directory of the bag. The files are 
+     *                      copied beneath its "data" directory.
+     * @param listener Receives the number of bytes copied.
      * 
-     * @param selectedContext A list containing the selected files.
-     * @param destinationDirectory The directory to copy the selected files to. 
+     * @return The checksums of the copied files, one manifest per algorithm.
      */
-    private void copySelectedFilesToDirectory(List<DataObject> selectedContext,
-            FileObject destinationDirectory) {
-        log.debug("Entering copySelectedFilesToDirectory(selectedContext={}, "
-                + "destinationDirectory={})", selectedContext, destinationDirectory);
-        for (DataObject dataObject : selectedContext) {
-            FileObject selectedFile = dataObject.getPrimaryFile();        
-            try {
-                // Create the parent folder of the selected file within the
-                // directory. The parent folders of the parent
-                // folder is also created if they don't exist.
-                FileObject parentOfFile = FileUtil.createFolder(new File(destinationDirectory.getPath() + 
-                        FileUtil.normalizePath(selectedFile.getParent().getPath())
-                                .replaceFirst("([a-zA-Z]):","/$1_Hida_Volume")));
-           
-                // Copy the file within the temporaryb ag directory.
-                FileUtil.copyFile(selectedFile, parentOfFile, selectedFile.getName());
-            } catch (IOException e) {
-                String errorMessage = "Failed to copy the file " + selectedFile.getPath()
-                        + " to " + destinationDirectory.getPath();
-                log.error(errorMessage, e);
-                throw new HidaIOException(errorMessage, e);
-            }
-            log.debug("Exiting copySelectedFilesToDirectory()");
-        }
+    private List<BagManifest> copySelectedFilesToDirectory(List<PayloadFile> payload,
+            Path rootDirectory, TransferListener listener) {
+        log.debug("Entering copySelectedFilesToDirectory(payload={}, "
+                + "rootDirectory={})", payload, rootDirectory);
+        List<BagManifest> manifests = stagingEngine.stage(payload, rootDirectory, 
+                manifestAlgorithms, listener);
+        log.debug("Exiting copySelectedFilesToDirectory()");
+        return manifests;
     }
 }
\ No newline at end of file
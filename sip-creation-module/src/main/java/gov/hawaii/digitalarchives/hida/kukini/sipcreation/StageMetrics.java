@@ -0,0 +1,157 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures one stage of the transfers: how often it runs and fails, how
+ * long it takes, and how many bytes and files it processes. It is updated
+ * by {@link MeteredTransferListener} and published as a platform MBean.
+ *
+ * @author Keone Hiraide
+ */
+public class StageMetrics implements StageMetricsMBean {
+
+    private final TransferStage stage;
+
+     // Updated by every thread that reports bytes, so kept apart from the
+     // measurements of the runs.
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger activeRuns = new AtomicInteger();
+
+     // The measurements of the finished runs, guarded by this.
+    private long runs;
+    private long errors;
+    private long totalNanos;
+    private long lastNanos;
+    private long maxNanos;
+    private long finishedBytes;
+    private long lastBytes;
+    private long files;
+
+    /**
+     * @param stage The stage that is measured.
+     */
+    public StageMetrics(TransferStage stage) {
+        this.stage = stage;
+    }
+
+    @Override
+    public String getStage() {
+        return stage.name();
+    }
+
+    @Override
+    public synchronized long getRuns() {
+        return runs;
+    }
+
+    @Override
+    public int getActiveRuns() {
+        return activeRuns.get();
+    }
+
+    @Override
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public synchronized long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    @Override
+    public synchronized long getLastMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastNanos);
+    }
+
+    @Override
+    public synchronized long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public synchronized long getFiles() {
+        return files;
+    }
+
+    @Override
+    public synchronized long getBytesPerSecond() {
+        return totalNanos == 0 ? 0 : finishedBytes * TimeUnit.SECONDS.toNanos(1) / totalNanos;
+    }
+
+    @Override
+    public synchronized long getLastBytesPerSecond() {
+        return lastNanos == 0 ? 0 : lastBytes * TimeUnit.SECONDS.toNanos(1) / lastNanos;
+    }
+
+    @Override
+    public synchronized double getFilesPerSecond() {
+        return totalNanos == 0 ? 0 : files * 1e9 / totalNanos;
+    }
+
+    @Override
+    public synchronized void reset() {
+        bytes.set(0);
+        runs = 0;
+        errors = 0;
+        totalNanos = 0;
+        lastNanos = 0;
+        maxNanos = 0;
+        finishedBytes = 0;
+        lastBytes = 0;
+        files = 0;
+    }
+
+    /**
+     * Called when a run of the stage starts.
+     */
+    void started() {
+        activeRuns.incrementAndGet();
+    }
+
+    /**
+     * Called as the bytes of a run are processed.
+     */
+    void transferred(long count) {
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Called when a run of the stage has finished.
+     *
+     * @param nanos The time the run took.
+     * @param runBytes The number of bytes the run processed.
+     */
+    synchronized void finished(long nanos, long runBytes) {
+        activeRuns.decrementAndGet();
+        runs++;
+        totalNanos += nanos;
+        lastNanos = nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+        finishedBytes += runBytes;
+        lastBytes = runBytes;
+    }
+
+    /**
+     * Called when a run of the stage has failed.
+     */
+    synchronized void failed() {
+        activeRuns.decrementAndGet();
+        errors++;
+    }
+
+    /**
+     * Called once the files of a run have been processed.
+     */
+    synchronized void filesProcessed(int count) {
+        files += count;
+    }
+}
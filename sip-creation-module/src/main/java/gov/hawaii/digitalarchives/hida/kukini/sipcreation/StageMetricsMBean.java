@@ -0,0 +1,77 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * The measurements of one stage of the transfers, as shown over JMX. Times
+ * and rates are those of the runs of the stage that have finished.
+ *
+ * @author Keone Hiraide
+ */
+public interface StageMetricsMBean {
+
+    /**
+     * @return The name of the stage, e.g. STAGING.
+     */
+    public String getStage();
+
+    /**
+     * @return The number of runs of the stage that have finished.
+     */
+    public long getRuns();
+
+    /**
+     * @return The number of runs of the stage in progress now.
+     */
+    public int getActiveRuns();
+
+    /**
+     * @return The number of runs of the stage that failed.
+     */
+    public long getErrors();
+
+    /**
+     * @return The time taken by every finished run together, in
+     *         milliseconds.
+     */
+    public long getTotalMillis();
+
+    /**
+     * @return The time taken by the last finished run, in milliseconds.
+     */
+    public long getLastMillis();
+
+    /**
+     * @return The time taken by the slowest run, in milliseconds.
+     */
+    public long getMaxMillis();
+
+    /**
+     * @return The number of bytes processed by every run, including those
+     *         in progress or that failed.
+     */
+    public long getBytes();
+
+    /**
+     * @return The number of files processed by the finished runs.
+     */
+    public long getFiles();
+
+    /**
+     * @return The bytes processed per second by the finished runs.
+     */
+    public long getBytesPerSecond();
+
+    /**
+     * @return The bytes processed per second by the last finished run.
+     */
+    public long getLastBytesPerSecond();
+
+    /**
+     * @return The files processed per second by the finished runs.
+     */
+    public double getFilesPerSecond();
+
+    /**
+     * Starts the measurements over.
+     */
+    public void reset();
+}
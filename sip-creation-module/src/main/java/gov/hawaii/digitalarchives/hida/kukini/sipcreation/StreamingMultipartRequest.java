@@ -0,0 +1,304 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * A multipart/form-data request whose file parts are copied from their
+ * streams to the connection through a single fixed-size buffer, so that the
+ * memory used to send a SIP does not depend on its size.
+ *
+ * When the size of every part is known beforehand, the request declares
+ * its Content-Length and is sent in fixed-length streaming mode; otherwise
+ * it is sent in chunked streaming mode, e.g. while the SIP is still being
+ * built. Requests
+ * larger than 2 GB are sent in chunked streaming mode instead, since the
+ * request factories of Spring 3.2 cannot declare longer lengths; a
+ * {@link ChannelClientHttpRequestFactory} can. Either way,
+ * the RestTemplate must use a request factory that does not buffer request
+ * bodies, e.g. a SimpleClientHttpRequestFactory whose bufferRequestBody is
+ * false.
+ *
+ * Files added as {@link FileChannel}s are sent without passing through the
+ * buffer when the request is created by a
+ * {@link ChannelClientHttpRequestFactory}.
+ *
+ * @author Keone Hiraide
+ */
+public class StreamingMultipartRequest implements RequestCallback {
+
+     // The default size of the buffer through which file parts are copied.
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+     // The most bytes of a file sent by each zero-copy transfer, so that
+     // progress is reported at least this often.
+    private static final int TRANSFER_SIZE = 1024 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final String CRLF = "\r\n";
+
+     // Separates the parts of the request.
+    private final String boundary = "kukini-" + UUID.randomUUID();
+
+     // The parts of the request, in the order they are sent.
+    private final List<Part> parts = new ArrayList<>();
+
+     // The size of the buffer through which file parts are copied.
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+     // Receives the number of bytes of the files added as channels that
+     // have been sent.
+    private TransferListener transferListener = TransferListener.NONE;
+
+    /**
+     * Adds a text field to the request.
+     *
+     * @param name The name of the field.
+     * @param value Its value, which is sent in UTF-8.
+     */
+    public void addField(String name, String value) {
+        byte[] content = value.getBytes(UTF_8);
+        parts.add(new Part(header(name, null, "text/plain;charset=UTF-8"), null, null,
+                content, content.length));
+    }
+
+    /**
+     * Adds a file to the request. The stream is read when the request is
+     * sent, and closed once it has been copied.
+     *
+     * @param name The name of the field.
+     * @param fileName The name of the file.
+     * @param content The content of the file.
+     * @param length The number of bytes read from the stream, or -1 to read
+     *               it to its end.
+     */
+    public void addFile(String name, String fileName, InputStream content, long length) {
+        parts.add(new Part(header(name, fileName, "application/octet-stream"), content,
+                null, null, length));
+    }
+
+    /**
+     * Adds a file to the request, which is sent from the start of the
+     * channel when the request is sent. The channel is closed once the file
+     * has been sent, and the bytes sent are reported to the transfer
+     * listener as {@link TransferStage#UPLOADING}.
+     *
+     * @param name The name of the field.
+     * @param fileName The name of the file.
+     * @param file The file.
+     * @param length The number of bytes sent from the file.
+     */
+    public void addFile(String name, String fileName, FileChannel file, long length) {
+        parts.add(new Part(header(name, fileName, "application/octet-stream"), null, file,
+                null, length));
+    }
+
+    /**
+     * @param bufferSize The size of the buffer through which file parts are
+     *                   copied.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param transferListener Receives the number of bytes of the files
+     *                         added as channels that have been sent.
+     */
+    public void setTransferListener(TransferListener transferListener) {
+        this.transferListener = transferListener;
+    }
+
+    /**
+     * @return The size of the request body, in bytes, or -1 if it is
+     *         unknown.
+     */
+    public long getContentLength() {
+        long length = 0;
+        for (Part part : parts) {
+            if (part.length < 0) {
+                return -1;
+            }
+            length += part.header.length + part.length + CRLF.length();
+        }
+        return length + closingDelimiter().length;
+    }
+
+    /**
+     * Posts the request.
+     *
+     * @param restTemplate Sends the request.
+     * @param url The URL to post the request to.
+     *
+     * @return The response of the server.
+     */
+    public ResponseEntity<String> post(RestTemplate restTemplate, String url) {
+        return restTemplate.execute(url, HttpMethod.POST, this, new StringResponseExtractor());
+    }
+
+    @Override
+    public void doWithRequest(ClientHttpRequest request) throws IOException {
+        request.getHeaders().setContentType(new MediaType("multipart", "form-data",
+                Collections.singletonMap("boundary", boundary)));
+        long contentLength = getContentLength();
+        if (contentLength >= 0 && (contentLength <= Integer.MAX_VALUE
+                || request instanceof ChannelClientHttpRequest)) {
+            request.getHeaders().setContentLength(contentLength);
+        }
+        OutputStream body = request.getBody();
+        byte[] buffer = new byte[bufferSize];
+        for (Part part : parts) {
+            body.write(part.header);
+            if (part.content != null) {
+                body.write(part.content);
+            } else if (part.file != null && body instanceof ChannelOutputStream) {
+                transfer(part, (ChannelOutputStream) body);
+            } else if (part.file != null) {
+                copyFile(part, body, buffer);
+            } else {
+                copy(part, body, buffer);
+            }
+            body.write(CRLF.getBytes(ASCII));
+        }
+        body.write(closingDelimiter());
+        body.flush();
+    }
+
+    /**
+     * Copies exactly the length of a file part from its stream, or the whole
+     * stream if its length is unknown.
+     */
+    private void copy(Part part, OutputStream body, byte[] buffer) throws IOException {
+        try (InputStream in = part.in) {
+            if (part.length < 0) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+                return;
+            }
+            long remaining = part.length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("The file is " + remaining
+                            + " bytes shorter than when the request was created");
+                }
+                body.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Sends a file part straight from its channel to the connection.
+     */
+    private void transfer(Part part, ChannelOutputStream body) throws IOException {
+        try (FileChannel file = part.file) {
+            long position = 0;
+            while (position < part.length) {
+                long count = Math.min(TRANSFER_SIZE, part.length - position);
+                body.transferFrom(file, position, count);
+                position += count;
+                transferListener.transferred(TransferStage.UPLOADING, count);
+            }
+        }
+    }
+
+    /**
+     * Copies a file part from its channel through the buffer.
+     */
+    private void copyFile(Part part, OutputStream body, byte[] buffer) throws IOException {
+        try (FileChannel file = part.file) {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long position = 0;
+            while (position < part.length) {
+                wrapped.clear();
+                wrapped.limit((int) Math.min(buffer.length, part.length - position));
+                int read = file.read(wrapped, position);
+                if (read == -1) {
+                    throw new IOException("The file is " + (part.length - position)
+                            + " bytes shorter than when the request was created");
+                }
+                body.write(buffer, 0, read);
+                position += read;
+                transferListener.transferred(TransferStage.UPLOADING, read);
+            }
+        }
+    }
+
+    private byte[] header(String name, String fileName, String contentType) {
+        StringBuilder header = new StringBuilder("--").append(boundary).append(CRLF)
+                .append("Content-Disposition: form-data; name=\"").append(name).append('"');
+        if (fileName != null) {
+            header.append("; filename=\"").append(fileName).append('"');
+        }
+        header.append(CRLF).append("Content-Type: ").append(contentType).append(CRLF)
+                .append(CRLF);
+        return header.toString().getBytes(UTF_8);
+    }
+
+    private byte[] closingDelimiter() {
+        return ("--" + boundary + "--" + CRLF).getBytes(ASCII);
+    }
+
+    /**
+     * A part of the request, whose content is either held in memory, read
+     * from a stream, or sent from a file.
+     */
+    private static class Part {
+        private final byte[] header;
+        private final InputStream in;
+        private final FileChannel file;
+        private final byte[] content;
+        private final long length;
+
+        Part(byte[] header, InputStream in, FileChannel file, byte[] content, long length) {
+            this.header = header;
+            this.in = in;
+            this.file = file;
+            this.content = content;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reads the body of a response as text, in the charset of its content
+     * type or ISO-8859-1, like the StringHttpMessageConverter of RestTemplate.
+     */
+    private static class StringResponseExtractor
+            implements ResponseExtractor<ResponseEntity<String>> {
+
+        @Override
+        public ResponseEntity<String> extractData(ClientHttpResponse response)
+                throws IOException {
+            MediaType contentType = response.getHeaders().getContentType();
+            Charset charset = contentType != null && contentType.getCharSet() != null
+                    ? contentType.getCharSet() : ISO_8859_1;
+            String body = FileCopyUtils.copyToString(new InputStreamReader(
+                    response.getBody(), charset));
+            return new ResponseEntity<>(body, response.getHeaders(),
+                    response.getStatusCode());
+        }
+    }
+}
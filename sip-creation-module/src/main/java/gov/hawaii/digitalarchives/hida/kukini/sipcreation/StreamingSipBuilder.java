@@ -0,0 +1,335 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a zipped SIP bag directly from the user's files. Each source file
+ * is read exactly once: its bytes are checksummed and written to the zip
+ * in the same pass, and the BagIt tag files are created from the collected
+ * checksums afterwards. No staging directory is needed, so building a SIP
+ * takes a single read of the payload and no extra disk space beyond the
+ * zip itself.
+ *
+ * The layout of the zip is the same as a bag that was staged, completed
+ * and zipped: every entry resides within an "accession" directory. The
+ * entries are compressed on several cores by a {@link ParallelDeflater},
+ * except for the files that a {@link CompressionPolicy} deems
+ * incompressible, which are stored as they are.
+ *
+ * The bag may have a payload manifest for each of several algorithms. Each
+ * file is still read once, and is hashed with every algorithm from the same
+ * buffer, on several cores when a {@link DigestEngine} is set.
+ *
+ * With a {@link DigestCache}, files whose checksums are cached from an
+ * earlier SIP, and that have not changed since, are zipped without being
+ * hashed with the cached algorithms.
+ *
+ * The files of a {@link FetchList}, whose contents HiDA already holds, are
+ * listed within the manifests and fetch.txt instead of being zipped.
+ *
+ * @author Keone Hiraide
+ */
+public class StreamingSipBuilder {
+
+     // Name of the root directory of the bag within the SIP.
+    public static final String BAG_DIRECTORY = "accession";
+
+     // The BagIt names of the algorithms of the payload manifests.
+    private final List<String> manifestAlgorithms;
+
+     // Compresses the entries of the SIP.
+    private final ParallelDeflater deflater;
+
+     // Decides which files are deflated. Every file is deflated if null.
+    private final CompressionPolicy compressionPolicy;
+
+     // Remembers the checksums of files across SIPs, or null to hash every
+     // file.
+    private DigestCache digestCache;
+
+     // Hashes files with several algorithms at the same time, or null to
+     // hash them on the calling thread.
+    private DigestEngine digestEngine;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(StreamingSipBuilder.class);
+
+    /**
+     * Creates a builder which writes an MD5 payload manifest and compresses
+     * the SIP on the calling thread.
+     */
+    public StreamingSipBuilder() {
+        this("md5", new ParallelDeflater(1), null);
+    }
+
+    /**
+     * @param manifestAlgorithm The BagIt name of the algorithm used for the
+     *                          payload manifest. E.g: md5
+     * @param deflater Compresses the entries of the SIP.
+     * @param compressionPolicy Decides which files are deflated, or null to
+     *                          deflate every file.
+     */
+    public StreamingSipBuilder(String manifestAlgorithm, ParallelDeflater deflater,
+            CompressionPolicy compressionPolicy) {
+        this(Collections.singletonList(manifestAlgorithm), deflater, compressionPolicy);
+    }
+
+    /**
+     * @param manifestAlgorithms The BagIt names of the algorithms of the
+     *                           payload manifests, one manifest each.
+     *                           E.g: md5, sha256
+     * @param deflater Compresses the entries of the SIP.
+     * @param compressionPolicy Decides which files are deflated, or null to
+     *                          deflate every file.
+     */
+    public StreamingSipBuilder(List<String> manifestAlgorithms, ParallelDeflater deflater,
+            CompressionPolicy compressionPolicy) {
+        this.manifestAlgorithms = new ArrayList<>(manifestAlgorithms);
+        this.deflater = deflater;
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets the cache that checksums are looked up in before files are
+     * hashed, and that the checksums of hashed files are added to.
+     *
+     * @param digestCache The cache, or null to hash every file.
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * Sets the engine that hashes each block of a file with every manifest
+     * algorithm at the same time.
+     *
+     * @param digestEngine The engine, or null to hash files on the calling
+     *                     thread.
+     */
+    public void setDigestEngine(DigestEngine digestEngine) {
+        this.digestEngine = digestEngine;
+    }
+
+    /**
+     * Builds a SIP.
+     *
+     * @param payload The files to place within the payload of the bag.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name.
+     * @param sipPath The zip file to create. It must not already exist.
+     *
+     * @return The path to the newly created SIP.
+     */
+    public Path build(List<PayloadFile> payload, Map<String, byte[]> sipTags, Path sipPath) {
+        return build(payload, sipTags, sipPath, TransferListener.NONE);
+    }
+
+    /**
+     * Builds a SIP, reporting the bytes of the payload and tag files that
+     * have been compressed as the {@link TransferStage#COMPRESSING} stage.
+     *
+     * @param payload The files to place within the payload of the bag.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name.
+     * @param sipPath The zip file to create. It must not already exist.
+     * @param listener Receives the number of bytes compressed.
+     *
+     * @return The path to the newly created SIP.
+     */
+    public Path build(List<PayloadFile> payload, Map<String, byte[]> sipTags, Path sipPath,
+            TransferListener listener) {
+        return build(payload, null, sipTags, sipPath, listener);
+    }
+
+    /**
+     * Builds a SIP that leaves out the payload files that HiDA already 
+     * holds, reporting the bytes of the payload and tag files that have 
+     * been compressed as the {@link TransferStage#COMPRESSING} stage.
+     *
+     * @param payload The files to place within the payload of the bag.
+     * @param fetchList The files of the payload that are listed in
+     *                  fetch.txt rather than zipped, or null to zip every
+     *                  file. Their checksums must be known for every
+     *                  manifest algorithm.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name.
+     * @param sipPath The zip file to create. It must not already exist.
+     * @param listener Receives the number of bytes compressed.
+     *
+     * @return The path to the newly created SIP.
+     */
+    public Path build(List<PayloadFile> payload, FetchList fetchList, 
+            Map<String, byte[]> sipTags, Path sipPath, TransferListener listener) {
+        log.debug("Entering build(payload={}, sipPath={})", payload.size(), sipPath);
+        boolean built = false;
+        try (SipArchiveWriter zip = new SipArchiveWriter(sipPath, deflater)) {
+            write(zip, payload, fetchList, sipTags, listener);
+            built = true;
+            log.debug("Exiting build(): {}", sipPath);
+            return sipPath;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            String errorMessage = "Failed to build the SIP " + sipPath;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        } finally {
+            if (!built) {
+                deleteQuietly(sipPath);
+            }
+        }
+    }
+
+    /**
+     * Builds a SIP into a stream, e.g. straight into an upload, reporting
+     * the bytes of the payload and tag files that have been compressed as
+     * the {@link TransferStage#COMPRESSING} stage. The entries are written
+     * with data descriptors, since the stream cannot be rewound.
+     *
+     * @param payload The files to place within the payload of the bag.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name.
+     * @param out Where to write the SIP. It is closed once the SIP has been
+     *            written, or has failed to be.
+     * @param listener Receives the number of bytes compressed.
+     */
+    public void build(List<PayloadFile> payload, Map<String, byte[]> sipTags, OutputStream out,
+            TransferListener listener) {
+        build(payload, null, sipTags, out, listener);
+    }
+
+    /**
+     * Builds a SIP that leaves out the payload files that HiDA already 
+     * holds into a stream, reporting the bytes of the payload and tag files
+     * that have been compressed as the {@link TransferStage#COMPRESSING} 
+     * stage.
+     *
+     * @param payload The files to place within the payload of the bag.
+     * @param fetchList The files of the payload that are listed in
+     *                  fetch.txt rather than zipped, or null to zip every
+     *                  file. Their checksums must be known for every
+     *                  manifest algorithm.
+     * @param sipTags Additional tag files, such as accession.json, keyed by
+     *                their name.
+     * @param out Where to write the SIP. It is closed once the SIP has been
+     *            written, or has failed to be.
+     * @param listener Receives the number of bytes compressed.
+     */
+    public void build(List<PayloadFile> payload, FetchList fetchList, 
+            Map<String, byte[]> sipTags, OutputStream out, TransferListener listener) {
+        log.debug("Entering build(payload={}, out={})", payload.size(), out);
+        try (SipArchiveWriter zip = new SipArchiveWriter(out, deflater)) {
+            write(zip, payload, fetchList, sipTags, listener);
+            log.debug("Exiting build()");
+        } catch (IOException | NoSuchAlgorithmException e) {
+            String errorMessage = "Failed to build the SIP";
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Writes the payload, except for the files to fetch, followed by the 
+     * tag files, and finishes the SIP.
+     */
+    private void write(SipArchiveWriter zip, List<PayloadFile> payload, FetchList fetchList,
+            Map<String, byte[]> sipTags, TransferListener listener)
+            throws IOException, NoSuchAlgorithmException {
+        zip.setCompressionPolicy(compressionPolicy);
+        zip.setTransferListener(listener);
+        List<BagManifest> manifests = new ArrayList<>(manifestAlgorithms.size());
+        for (String algorithm : manifestAlgorithms) {
+            manifests.add(new BagManifest(algorithm));
+        }
+
+        for (PayloadFile payloadFile : payload) {
+            if (fetchList != null && fetchList.contains(payloadFile)) {
+                continue;
+            }
+            Path source = payloadFile.getSource();
+            Map<String, byte[]> cached = new HashMap<>();
+            List<String> missing = new ArrayList<>(manifestAlgorithms.size());
+            for (String algorithm : manifestAlgorithms) {
+                byte[] checksum = digestCache != null 
+                        ? digestCache.get(payloadFile, algorithm) : null;
+                if (checksum != null) {
+                    cached.put(algorithm, checksum);
+                } else {
+                    missing.add(algorithm);
+                }
+            }
+            MultiDigest digest = missing.isEmpty() ? null
+                    : digestEngine != null ? digestEngine.create(missing)
+                    : new MultiDigest(missing);
+            long size;
+            try (InputStream in = Files.newInputStream(source)) {
+                size = zip.writeEntry(BAG_DIRECTORY + "/" + payloadFile.getBagPath(), 
+                        in, payloadFile.getSize(), lastModified(payloadFile), digest);
+            }
+            boolean unchanged = size == payloadFile.getSize() && payloadFile.isUnchanged();
+            if (!cached.isEmpty() && !unchanged) {
+                // The bytes zipped are not those whose checksums are
+                // cached, and they cannot be read again.
+                throw new IOException("The file " + source 
+                        + " changed while it was being zipped");
+            }
+            Map<String, byte[]> checksums = new HashMap<>(cached);
+            if (digest != null) {
+                for (Map.Entry<String, byte[]> checksum : digest.digest().entrySet()) {
+                    if (digestCache != null && unchanged) {
+                        digestCache.put(payloadFile, checksum.getKey(), checksum.getValue());
+                    }
+                    checksums.put(checksum.getKey(), checksum.getValue());
+                }
+            }
+            for (BagManifest manifest : manifests) {
+                manifest.add(payloadFile.getBagPath(), 
+                        checksums.get(manifest.getAlgorithm()), size);
+            }
+        }
+
+        if (fetchList != null && !fetchList.isEmpty()) {
+            fetchList.addTo(manifests);
+            Map<String, byte[]> tags = new LinkedHashMap<>(fetchList.toTagFiles());
+            tags.putAll(sipTags);
+            sipTags = tags;
+        }
+        Map<String, byte[]> tagFiles = BagTagFiles.create(manifests, sipTags, new Date());
+        for (Map.Entry<String, byte[]> tagFile : tagFiles.entrySet()) {
+            zip.writeEntry(BAG_DIRECTORY + "/" + tagFile.getKey(), tagFile.getValue());
+        }
+        zip.finish();
+    }
+
+    /**
+     * @return The last modified time of a file in milliseconds, as it was
+     *         listed if it is known.
+     */
+    private static long lastModified(PayloadFile payloadFile) throws IOException {
+        return payloadFile.getLastModified() != -1
+                ? TimeUnit.NANOSECONDS.toMillis(payloadFile.getLastModified())
+                : Files.getLastModifiedTime(payloadFile.getSource()).toMillis();
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete the incomplete SIP " + path, e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+
+/**
+ * Manages the temporary directories and files that are created while SIPs
+ * are built and uploaded. Every handle opened on a temporary file can be 
+ * tracked so that it is closed before the file is deleted, and deletions
+ * happen in the background so that a transfer never waits on the disk (or
+ * on a virus scanner holding a file open) to finish cleaning up.
+ * 
+ * @author Keone Hiraide
+ */
+public interface TempWorkspaceManager {
+    
+    /**
+     * Creates a new, empty "record_series_[timestamp]" directory within the
+     * default temporary-file directory. The directory and its SIP belong to 
+     * this Kukini until both are released.
+     * 
+     * @return The path to the newly created directory.
+     */
+    public Path createWorkspace();
+    
+    /**
+     * @return The directory in which workspaces and SIPs are created.
+     */
+    public Path getTemporaryDirectory();
+    
+    /**
+     * Tracks a handle that was opened on a temporary file or directory. The 
+     * handle is closed, if it still is open, when the path is released.
+     * 
+     * @param path The temporary file or directory that the handle belongs to.
+     * @param handle The handle to track.
+     * @return The handle.
+     */
+    public <T extends Closeable> T track(Path path, T handle);
+    
+    /**
+     * Closes every handle tracked for a temporary file or directory and 
+     * deletes it in the background. Deletions that fail are retried a few 
+     * times; anything left behind is removed the next time Kukini starts.
+     * 
+     * @param path The temporary file or directory to delete.
+     */
+    public void release(Path path);
+    
+    /**
+     * Deletes the "record_series_*" directories and SIPs that were left 
+     * within the default temporary-file directory by a Kukini that crashed
+     * or was killed before it could clean up. The deletion happens in the 
+     * background. Those of another Kukini that is still running are kept,
+     * as are SIPs whose uploads were interrupted, so that their uploads can
+     * be resumed, and workspaces without a lock file that were modified 
+     * within the last day.
+     */
+    public void deleteOrphans();
+}
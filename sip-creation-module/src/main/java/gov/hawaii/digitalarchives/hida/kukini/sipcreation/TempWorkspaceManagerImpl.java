@@ -0,0 +1,430 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the "record_series_*" directories and SIPs that Kukini creates 
+ * within the default temporary-file directory.
+ * <p>
+ * Each workspace has a "record_series_*.lock" file beside it, which the 
+ * Kukini that created the workspace keeps locked until the workspace and its
+ * SIP are deleted. The lock is released by the operating system when that
+ * Kukini exits or crashes, so a workspace whose lock can be acquired is no
+ * longer in use, while those of another Kukini that is still running are 
+ * left alone. A workspace without a lock file, e.g. one left by a Kukini 
+ * that did not lock its workspaces, is only deleted once it has not been
+ * modified for a day, since whoever created it may still be using it.
+ * 
+ * @author Keone Hiraide
+ */
+public class TempWorkspaceManagerImpl implements TempWorkspaceManager {
+    
+     // Matches the temporary bag directories and SIPs created by Kukini, 
+     // and their lock files. The first group is the name of the workspace.
+    private static final Pattern WORKSPACE_NAME = Pattern
+            .compile("(record_series_\\d+)(\\.zip|\\.lock)?");
+    
+     // The extension of the lock file of a workspace.
+    private static final String LOCK_FILE_EXTENSION = ".lock";
+    
+     // Matches the saved states of interrupted SIP uploads.
+    private static final Pattern UPLOAD_STATE_NAME = Pattern
+            .compile("record_series_\\d+\\.zip\\" + UploadSession.STATE_FILE_EXTENSION);
+    
+     // The number of times a failed deletion is retried.
+    private static final int MAX_DELETE_RETRIES = 5;
+    
+     // How long to wait before the first retry of a failed deletion. The
+     // delay is doubled with every retry.
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    
+     // How long to wait for pending deletions when Kukini shuts down.
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    
+     // How long a workspace without a lock file must have gone unmodified
+     // before it is deleted as an orphan.
+    private static final long UNLOCKED_GRACE_PERIOD_MILLIS = TimeUnit.DAYS.toMillis(1);
+    
+     // The directory in which workspaces are created.
+    private final Path temporaryDirectory;
+    
+     // Records the bag directories and SIPs of the transfers that were 
+     // interrupted, which are kept so that the transfers can be resumed.
+     // May be null.
+    private TransferJournal transferJournal;
+    
+     // The open handles of each temporary file or directory.
+    private final Map<Path, List<Closeable>> handles = new HashMap<>();
+    
+     // The locked lock files of the workspaces owned by this Kukini, by the
+     // names of the workspaces. Closing a channel releases its lock.
+    private final Map<String, FileChannel> locks = new HashMap<>();
+    
+     // Deletes temporary files and directories in the background.
+    private final ScheduledExecutorService deleter = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "kukini-workspace-cleaner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(TempWorkspaceManagerImpl.class);
+    
+    /**
+     * Creates workspaces within the default temporary-file directory.
+     */
+    public TempWorkspaceManagerImpl() {
+        this(Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+    
+    /**
+     * @param temporaryDirectory The directory in which workspaces are created.
+     */
+    public TempWorkspaceManagerImpl(Path temporaryDirectory) {
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    /**
+     * @param transferJournal Records the bag directories and SIPs of the 
+     *                        transfers that were interrupted, which are not
+     *                        deleted as orphans. May be null.
+     */
+    public void setTransferJournal(TransferJournal transferJournal) {
+        this.transferJournal = transferJournal;
+    }
+
+    @Override
+    public Path createWorkspace() {
+        long timestamp = new Date().getTime();
+        while (true) {
+            String name = "record_series_" + timestamp;
+            Path lockFile = temporaryDirectory.resolve(name + LOCK_FILE_EXTENSION);
+            FileChannel lock = null;
+            try {
+                // The lock file is created before the directory, so that a
+                // workspace is never seen without its lock.
+                lock = FileChannel.open(lockFile, StandardOpenOption.CREATE_NEW, 
+                        StandardOpenOption.WRITE);
+                lock.lock();
+                // A Kukini that was starting may have taken the new lock file
+                // for that of an orphan and deleted it before it was locked.
+                if (Files.exists(lockFile)) {
+                    Path workspace = temporaryDirectory.resolve(name);
+                    Files.createDirectory(workspace);
+                    synchronized (locks) {
+                        locks.put(name, lock);
+                    }
+                    log.debug("Created workspace {}", workspace);
+                    return workspace;
+                }
+            } catch (FileAlreadyExistsException | OverlappingFileLockException e) {
+                // Another SIP is being built within the same millisecond.
+            } catch (IOException e) {
+                closeQuietly(lock);
+                String errorMessage = "Failed to create the "
+                        + "temporary destination directory.";
+                log.error(errorMessage, e);
+                throw new HidaIOException(errorMessage, e);
+            }
+            closeQuietly(lock);
+            timestamp++;
+        }
+    }
+
+    @Override
+    public Path getTemporaryDirectory() {
+        return temporaryDirectory;
+    }
+
+    @Override
+    public <T extends Closeable> T track(Path path, T handle) {
+        synchronized (handles) {
+            List<Closeable> pathHandles = handles.get(path);
+            if (pathHandles == null) {
+                pathHandles = new ArrayList<>();
+                handles.put(path, pathHandles);
+            }
+            pathHandles.add(handle);
+        }
+        return handle;
+    }
+
+    @Override
+    public void release(final Path path) {
+        if (path == null) {
+            return;
+        }
+        List<Closeable> pathHandles;
+        synchronized (handles) {
+            pathHandles = handles.remove(path);
+        }
+        if (pathHandles != null) {
+            for (Closeable handle : pathHandles) {
+                closeQuietly(handle);
+            }
+        }
+        deleteLater(path, 0);
+    }
+
+    @Override
+    public void deleteOrphans() {
+        Set<Path> journaled = transferJournal != null ? transferJournal.getWorkspaces()
+                : Collections.<Path>emptySet();
+        Set<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(temporaryDirectory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                Matcher matcher = WORKSPACE_NAME.matcher(name);
+                if (UPLOAD_STATE_NAME.matcher(name).matches()
+                        && !Files.exists(UploadSession.getSipPath(entry))) {
+                    log.info("Deleting the upload state of a missing SIP {}", entry);
+                    deleteLater(entry, 0);
+                } else if (matcher.matches()) {
+                    names.add(matcher.group(1));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to look for orphaned workspaces within " 
+                    + temporaryDirectory, e);
+        }
+        for (String name : names) {
+            if (!acquire(name)) {
+                log.debug("Keeping the workspace {} of a running Kukini", name);
+                continue;
+            }
+            Path workspace = temporaryDirectory.resolve(name);
+            for (Path entry : new Path[] {workspace, getSipPath(workspace)}) {
+                // SIPs whose uploads were interrupted, and the bags and
+                // SIPs of journaled transfers, are kept so that they can
+                // be resumed.
+                if (Files.exists(entry) && !UploadSession.exists(entry) 
+                        && !journaled.contains(entry)) {
+                    log.info("Deleting the orphaned workspace {}", entry);
+                    deleteLater(entry, 0);
+                }
+            }
+            unlockLater(name);
+        }
+    }
+    
+    /**
+     * Waits for pending deletions to finish, then releases the locks of the
+     * workspaces that are left. Called when the spring context is closed.
+     */
+    public void shutdown() {
+        deleter.shutdown();
+        try {
+            if (!deleter.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Temporary files are still being deleted; they will be "
+                        + "removed the next time Kukini starts.");
+                deleter.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (locks) {
+            for (FileChannel lock : locks.values()) {
+                closeQuietly(lock);
+            }
+            locks.clear();
+        }
+    }
+    
+    /**
+     * Takes over the lock of a workspace that may have been orphaned.
+     * 
+     * @param name The name of the workspace.
+     * @return True if its lock was acquired, or if it has no lock file and
+     *         has not been modified within the grace period; false if it is
+     *         locked by a running Kukini, this one included, or may still be
+     *         in use.
+     */
+    private boolean acquire(String name) {
+        FileChannel lock = null;
+        try {
+            lock = FileChannel.open(temporaryDirectory.resolve(name + LOCK_FILE_EXTENSION), 
+                    StandardOpenOption.WRITE);
+            if (lock.tryLock() == null) {
+                closeQuietly(lock);
+                return false;
+            }
+            synchronized (locks) {
+                locks.put(name, lock);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            // Workspaces are created after their lock files, and their lock
+            // files are deleted after them, so the workspace was not created
+            // by a Kukini that locks its workspaces. It may still be in use 
+            // by the one that created it, unless it has been left alone.
+            if (isRecentlyModified(temporaryDirectory.resolve(name))) {
+                log.debug("Keeping the unlocked workspace {} that was modified recently", 
+                        name);
+                return false;
+            }
+            return true;
+        } catch (OverlappingFileLockException e) {
+            closeQuietly(lock);
+            return false;
+        } catch (IOException e) {
+            log.warn("Failed to lock the workspace " + name, e);
+            closeQuietly(lock);
+            return false;
+        }
+    }
+    
+    /**
+     * Schedules the deletion of the lock file of a workspace once its bag
+     * directory and SIP are gone, after the deletions already scheduled.
+     * 
+     * @param name The name of the workspace.
+     */
+    private void unlockLater(final String name) {
+        try {
+            deleter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    unlock(name);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.debug("Could not schedule the unlocking of {}", name);
+        }
+    }
+    
+    /**
+     * Deletes the lock file of a workspace and releases its lock, if its bag
+     * directory and SIP are gone and this Kukini holds the lock.
+     * 
+     * @param name The name of the workspace.
+     */
+    private void unlock(String name) {
+        Path workspace = temporaryDirectory.resolve(name);
+        if (Files.exists(workspace) || Files.exists(getSipPath(workspace))) {
+            return;
+        }
+        FileChannel lock;
+        synchronized (locks) {
+            lock = locks.remove(name);
+        }
+        if (lock == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(temporaryDirectory.resolve(name + LOCK_FILE_EXTENSION));
+        } catch (IOException e) {
+            // The lock file cannot be deleted while it is open on Windows; it
+            // is removed the next time Kukini starts.
+            log.debug("Failed to delete the lock file of {}", name);
+        }
+        closeQuietly(lock);
+    }
+    
+    /**
+     * @param workspace The bag directory of a workspace.
+     * @return True if the bag directory or the SIP of the workspace was 
+     *         modified within the grace period of unlocked workspaces, or if
+     *         that cannot be told.
+     */
+    private boolean isRecentlyModified(Path workspace) {
+        long cutoff = System.currentTimeMillis() - UNLOCKED_GRACE_PERIOD_MILLIS;
+        for (Path entry : new Path[] {workspace, getSipPath(workspace)}) {
+            try {
+                if (Files.getLastModifiedTime(entry).toMillis() > cutoff) {
+                    return true;
+                }
+            } catch (NoSuchFileException e) {
+                // The workspace has no bag directory, or no SIP.
+            } catch (IOException e) {
+                log.warn("Failed to read when " + entry + " was modified", e);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static Path getSipPath(Path workspace) {
+        return workspace.resolveSibling(workspace.getFileName() + ".zip");
+    }
+    
+    /**
+     * Schedules the deletion of a temporary file or directory.
+     * 
+     * @param path The file or directory to delete.
+     * @param attempt The number of times the deletion has already failed.
+     */
+    private void deleteLater(final Path path, final int attempt) {
+        Runnable deletion = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (Files.exists(path)) {
+                        FileUtils.forceDelete(path.toFile());
+                    }
+                    log.debug("Deleted {}", path);
+                    Matcher matcher = WORKSPACE_NAME.matcher(path.getFileName().toString());
+                    if (matcher.matches()) {
+                        unlock(matcher.group(1));
+                    }
+                } catch (IOException e) {
+                    if (attempt < MAX_DELETE_RETRIES) {
+                        deleteLater(path, attempt + 1);
+                    } else {
+                        log.error("Failed to delete the temporary file: '" + path + "'", e);
+                    }
+                }
+            }
+        };
+        try {
+            deleter.schedule(deletion, attempt == 0 ? 0 : RETRY_DELAY_MILLIS << (attempt - 1), 
+                    TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Kukini is shutting down; the file is removed the next time
+            // Kukini starts.
+            log.debug("Could not schedule the deletion of {}", path);
+        }
+    }
+    
+    private void closeQuietly(Closeable handle) {
+        if (handle == null) {
+            return;
+        }
+        try {
+            handle.close();
+        } catch (IOException e) {
+            log.warn("Failed to close " + handle, e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS connection over a blocking {@link SocketChannel}. Data written to it
+ * is encrypted by an {@link SSLEngine} into a direct buffer that is written
+ * straight to the socket, so that bytes read from a file into a direct
+ * buffer are never copied onto the heap on their way out.
+ *
+ * Data read from it is decrypted from the input stream of the socket, which
+ * honours its read timeout. Responses are small, so they are read through
+ * heap buffers.
+ *
+ * @author Keone Hiraide
+ */
+class TlsChannel implements WritableByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+     // The connection to the server.
+    private final SocketChannel channel;
+
+     // Reads the encrypted bytes sent by the server.
+    private final InputStream socketIn;
+
+     // Encrypts and decrypts the data.
+    private final SSLEngine engine;
+
+     // The encrypted bytes to send.
+    private final ByteBuffer netOut;
+
+     // The encrypted bytes received and not yet decrypted, in write mode.
+    private final ByteBuffer netIn;
+
+     // The decrypted bytes not yet read, in read mode.
+    private final ByteBuffer appIn;
+
+    /**
+     * @param channel A connected, blocking channel.
+     * @param engine The engine in client mode that secures the connection.
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.socketIn = channel.socket().getInputStream();
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        appIn.flip();
+    }
+
+    /**
+     * Performs the TLS handshake.
+     */
+    void handshake() throws IOException {
+        engine.beginHandshake();
+        continueHandshake();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += wrap(src);
+            continueHandshake();
+        }
+        return written;
+    }
+
+    /**
+     * @return A stream of the data sent by the server.
+     */
+    InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (!appIn.hasRemaining()) {
+                    if (unwrap() == -1) {
+                        return -1;
+                    }
+                    continueHandshake();
+                }
+                int read = Math.min(len, appIn.remaining());
+                appIn.get(b, off, read);
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends the TLS close notification, and closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (channel.isOpen()) {
+                wrap(EMPTY);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Carries out the steps of a handshake, if one is in progress.
+     */
+    private void continueHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    return;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                default:
+                    // NEED_UNWRAP, as well as NEED_UNWRAP_AGAIN on newer
+                    // Javas, which unwrap() handles the same way.
+                    if (unwrap() == -1) {
+                        throw new EOFException("The server closed the connection during "
+                                + "the TLS handshake");
+                    }
+            }
+        }
+    }
+
+    /**
+     * Encrypts bytes and sends them.
+     *
+     * @return The number of bytes of src that were encrypted.
+     */
+    private int wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(src, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+            throw new IOException("The TLS connection has been closed");
+        }
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Decrypts the bytes received, reading more from the socket if a whole
+     * TLS record has not been received yet.
+     *
+     * @return The number of bytes decrypted, which may be 0, or -1 if the
+     *         connection has been closed.
+     */
+    private int unwrap() throws IOException {
+        appIn.compact();
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                int read = socketIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(),
+                        netIn.remaining());
+                if (read == -1) {
+                    return -1;
+                }
+                netIn.position(netIn.position() + read);
+                return 0;
+            case BUFFER_OVERFLOW:
+                // Only happens if decrypted bytes are left unread while the
+                // server renegotiates.
+                throw new IOException("Received a TLS record while the decrypted "
+                        + "bytes before it were still unread");
+            case CLOSED:
+                return -1;
+            default:
+                return result.bytesProduced();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A budget of CPU and I/O shared by every SIP of a batch transfer, so that
+ * a nightly run of many SIPs at once neither starves the machine of cores
+ * nor saturates its disks and link.
+ *
+ * The CPU budget is a number of slots: a SIP holds one while its files are
+ * checksummed, staged or compressed, which are the stages that keep the
+ * shared digest, staging and compression pools busy. The I/O budget is a 
+ * number of bytes per second across every stage of every SIP, enforced by
+ * making the threads that read and send the bytes wait once the budget is
+ * spent.
+ *
+ * @author Keone Hiraide
+ */
+public class TransferBudget {
+
+     // The slots held by the SIPs that are using the CPU.
+    private final Semaphore cpuSlots;
+
+     // The most bytes per second, or 0 for no limit.
+    private final long bytesPerSecond;
+
+     // The bytes that may be processed without waiting. Negative when the
+     // budget has been overspent, in which case the next bytes wait until
+     // it has been paid back.
+    private double available;
+
+     // When the available bytes were last replenished.
+    private long replenishedNanos = System.nanoTime();
+
+    /**
+     * @param cpuSlots The number of SIPs that may use the CPU at the same
+     *                 time.
+     * @param bytesPerSecond The most bytes per second processed by every
+     *                       SIP together, or 0 for no limit.
+     */
+    public TransferBudget(int cpuSlots, long bytesPerSecond) {
+        this.cpuSlots = new Semaphore(Math.max(1, cpuSlots), true);
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.available = this.bytesPerSecond;
+    }
+
+    /**
+     * Waits for a CPU slot.
+     */
+    public void acquireCpu() throws InterruptedException {
+        cpuSlots.acquire();
+    }
+
+    /**
+     * Gives back a CPU slot.
+     */
+    public void releaseCpu() {
+        cpuSlots.release();
+    }
+
+    /**
+     * @return The most bytes per second, or 0 for no limit.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Spends bytes of the I/O budget, waiting as long as it takes to 
+     * process them at the budgeted rate. Up to a second's worth of bytes
+     * that were not spent may be processed at once.
+     *
+     * @param bytes The number of bytes processed.
+     */
+    public void consume(long bytes) throws InterruptedException {
+        if (bytesPerSecond == 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double elapsedSeconds = (now - replenishedNanos) / 1e9;
+            available = Math.min(bytesPerSecond, available + elapsedSeconds * bytesPerSecond);
+            replenishedNanos = now;
+            available -= bytes;
+            waitNanos = available < 0 ? (long) (-available / bytesPerSecond * 1e9) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
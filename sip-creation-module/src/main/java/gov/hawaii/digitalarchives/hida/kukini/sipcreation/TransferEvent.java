@@ -0,0 +1,21 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * A unit of work within a transfer that is being recorded, begun by 
+ * {@link TransferEvents#begin(TransferEventType)}. It is ended by the 
+ * thread that began it, which is recorded along with how long it took.
+ *
+ * @author Keone Hiraide
+ */
+public interface TransferEvent {
+
+    /**
+     * Ends the event and records it.
+     *
+     * @param name What the work was done to, as described by the type of 
+     *             the event.
+     * @param size The number of bytes of the file, entry or chunk, or of 
+     *             every tag file together.
+     */
+    public void end(String name, long size);
+}
@@ -0,0 +1,23 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * Records {@link TransferEvent}s, e.g. into a flight recording. A sink is
+ * registered as a service, in META-INF/services, and found through the
+ * default lookup; the events are not recorded if none is registered.
+ * 
+ * Events are begun on the hot paths of a transfer, once per file or chunk,
+ * so a sink should answer null straight away when it is not recording.
+ *
+ * @author Keone Hiraide
+ */
+public interface TransferEventSink {
+
+    /**
+     * Begins an event on the calling thread.
+     *
+     * @param type The type of the event.
+     * @return The event, to be ended once the work is done, or null if
+     *         events of the type are not being recorded.
+     */
+    public TransferEvent begin(TransferEventType type);
+}
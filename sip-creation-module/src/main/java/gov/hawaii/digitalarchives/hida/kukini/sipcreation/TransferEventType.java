@@ -0,0 +1,44 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * The units of work within a transfer that are recorded as 
+ * {@link TransferEvent}s, so that the one slow file or chunk among 
+ * thousands can be found in a recording.
+ *
+ * @author Keone Hiraide
+ */
+public enum TransferEventType {
+
+    /**
+     * A payload file was copied, or hard linked, into the bag directory
+     * while being checksummed. Its name is the path of the selected file.
+     */
+    FILE_STAGED,
+
+    /**
+     * A payload file was read only to checksum it, before the SIP was 
+     * built. Its name is the path of the selected file.
+     */
+    FILE_DIGESTED,
+
+    /**
+     * A file was read into the SIP, and handed to the deflater, while
+     * being checksummed. Its name is the name of the entry within the SIP.
+     */
+    ZIP_ENTRY_WRITTEN,
+
+    /**
+     * A chunk or segment of a SIP, or a chunk of a large payload file, was
+     * sent and acknowledged. Its name is the file name of the SIP followed
+     * by the offset of the chunk, or the checksum of the chunk of a payload
+     * file.
+     */
+    CHUNK_SENT,
+
+    /**
+     * The BagIt tag files and tag manifests of a bag were created, which
+     * {@code BagUtil.makeComplete} did before. Its name is the Payload-Oxum
+     * of the bag.
+     */
+    BAG_TAG_FILES_CREATED
+}
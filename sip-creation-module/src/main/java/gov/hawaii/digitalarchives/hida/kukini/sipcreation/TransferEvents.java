@@ -0,0 +1,39 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import org.openide.util.Lookup;
+
+/**
+ * Begins {@link TransferEvent}s with the {@link TransferEventSink} that is
+ * registered, if any. The sink is looked up once, so that an event which is
+ * not recorded costs a single null check:
+ *
+ * <pre>
+ * TransferEvent event = TransferEvents.begin(TransferEventType.FILE_STAGED);
+ * ...
+ * if (event != null) {
+ *     event.end(source.toString(), size);
+ * }
+ * </pre>
+ *
+ * @author Keone Hiraide
+ */
+public final class TransferEvents {
+
+     // The registered sink, or null to record nothing.
+    private static final TransferEventSink SINK = Lookup.getDefault()
+            .lookup(TransferEventSink.class);
+
+    private TransferEvents() {
+    }
+
+    /**
+     * Begins an event on the calling thread.
+     *
+     * @param type The type of the event.
+     * @return The event, to be ended by the calling thread once the work is
+     *         done, or null if it is not being recorded.
+     */
+    public static TransferEvent begin(TransferEventType type) {
+        return SINK == null ? null : SINK.begin(type);
+    }
+}
@@ -0,0 +1,77 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A transfer recorded in a {@link TransferJournal}: the files and folders
+ * selected for a SIP, and the last stage of its creation that finished.
+ *
+ * @author Keone Hiraide
+ */
+public final class TransferJob {
+
+    private final String id;
+
+     // The files and folders placed within the SIP.
+    private final List<Path> sources;
+
+     // The bag directory once the payload has been staged into it, or null.
+    private Path bagDirectory;
+
+     // The SIP once it has been zipped, or null.
+    private Path sipPath;
+
+    /**
+     * @param id Identifies the transfer within its journal.
+     * @param sources The files and folders placed within the SIP.
+     */
+    TransferJob(String id, List<Path> sources) {
+        this.id = id;
+        this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+    }
+
+    /**
+     * @return Identifies the transfer within its journal.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The files and folders placed within the SIP.
+     */
+    public List<Path> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return The bag directory holding the staged payload and tag files, 
+     *         or null if the payload was not staged.
+     */
+    public Path getBagDirectory() {
+        return bagDirectory;
+    }
+
+    void setBagDirectory(Path bagDirectory) {
+        this.bagDirectory = bagDirectory;
+    }
+
+    /**
+     * @return The SIP, or null if it was not zipped.
+     */
+    public Path getSipPath() {
+        return sipPath;
+    }
+
+    void setSipPath(Path sipPath) {
+        this.sipPath = sipPath;
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + sources;
+    }
+}
@@ -0,0 +1,372 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of the transfers that are under way and of the
+ * stages each of them has finished, so that a transfer interrupted by a 
+ * crash, or by the machine going to sleep, is resumed from its last 
+ * finished stage the next time Kukini starts rather than from scratch.
+ *
+ * Each checkpoint is a line of JSON preceded by its CRC-32, and is forced
+ * to the disk before the transfer goes on. A line torn by a crash fails 
+ * its check and is skipped. When the journal is opened, it is rewritten 
+ * with the checkpoints of the unfinished transfers only, so it never holds
+ * more than the transfers that were under way.
+ *
+ * The file is locked while it is open. If another Kukini holds it, or it
+ * cannot be opened, transfers are not journaled, and an interrupted 
+ * transfer has to be started again.
+ *
+ * @author Keone Hiraide
+ */
+public class TransferJournal {
+
+     // The checkpoints of a transfer.
+    private static final String SUBMITTED = "submitted";
+    private static final String STAGED = "staged";
+    private static final String ZIPPED = "zipped";
+    private static final String FINISHED = "finished";
+
+     // The file holding the journal, and the lock that keeps other Kukinis
+     // out of it.
+    private final Path file;
+    private FileChannel channel;
+    private FileLock lock;
+
+     // The transfers that have not finished, keyed by their ids.
+    private final Map<String, TransferJob> jobs = new LinkedHashMap<>();
+
+     // The transfers that were interrupted before the journal was opened.
+    private final List<TransferJob> interrupted = new ArrayList<>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(TransferJournal.class);
+
+    /**
+     * Opens the journal of the user, ".kukini/transfer-journal" within their
+     * home directory.
+     */
+    public TransferJournal() {
+        this(Paths.get(System.getProperty("user.home"), ".kukini", "transfer-journal"));
+    }
+
+    /**
+     * @param file The file holding the journal. It is created if it does not
+     *             exist.
+     */
+    public TransferJournal(Path file) {
+        this.file = file;
+        open();
+    }
+
+    /**
+     * Records that a transfer has started.
+     *
+     * @param sources The files and folders placed within the SIP.
+     *
+     * @return Identifies the transfer in its other checkpoints.
+     */
+    public synchronized String submitted(List<Path> sources) {
+        String id = UUID.randomUUID().toString();
+        TransferJob job = new TransferJob(id, sources);
+        jobs.put(id, job);
+        append(submittedRecord(job));
+        return id;
+    }
+
+    /**
+     * Records that the payload and tag files of a transfer have been staged
+     * into a bag directory.
+     *
+     * @param id Identifies the transfer.
+     * @param bagDirectory The bag directory.
+     */
+    public synchronized void staged(String id, Path bagDirectory) {
+        TransferJob job = jobs.get(id);
+        if (job != null) {
+            job.setBagDirectory(bagDirectory);
+            append(record(id, STAGED, bagDirectory));
+        }
+    }
+
+    /**
+     * Records that the SIP of a transfer has been zipped.
+     *
+     * @param id Identifies the transfer.
+     * @param sipPath The SIP.
+     */
+    public synchronized void zipped(String id, Path sipPath) {
+        TransferJob job = jobs.get(id);
+        if (job != null) {
+            job.setBagDirectory(null);
+            job.setSipPath(sipPath);
+            append(record(id, ZIPPED, sipPath));
+        }
+    }
+
+    /**
+     * Records that a transfer has ended, by succeeding or by being 
+     * cancelled, so that it is not resumed. A transfer that failed is not
+     * finished, so that it is resumed the next time Kukini starts.
+     *
+     * @param id Identifies the transfer.
+     */
+    public synchronized void finished(String id) {
+        if (jobs.remove(id) != null) {
+            append(record(id, FINISHED, null));
+        }
+        interrupted.remove(findInterrupted(id));
+    }
+
+    /**
+     * @return The transfers that were interrupted before the journal was 
+     *         opened and have not been resumed or finished since, in the
+     *         order they were started.
+     */
+    public synchronized List<TransferJob> getInterruptedJobs() {
+        return new ArrayList<>(interrupted);
+    }
+
+    /**
+     * Takes a transfer that was interrupted, so that it is resumed only 
+     * once.
+     *
+     * @param id Identifies the transfer.
+     * 
+     * @return True if the transfer was interrupted and had not been taken.
+     */
+    public synchronized boolean resume(String id) {
+        return interrupted.remove(findInterrupted(id));
+    }
+
+    /**
+     * @return The bag directories and SIPs of the transfers that have not 
+     *         finished, which must be kept until they have.
+     */
+    public synchronized Set<Path> getWorkspaces() {
+        Set<Path> workspaces = new HashSet<>();
+        for (TransferJob job : jobs.values()) {
+            if (job.getBagDirectory() != null) {
+                workspaces.add(job.getBagDirectory());
+            }
+            if (job.getSipPath() != null) {
+                workspaces.add(job.getSipPath());
+            }
+        }
+        return workspaces;
+    }
+
+    /**
+     * Closes the journal. Transfers are no longer journaled. Called when the
+     * spring context is closed.
+     */
+    public synchronized void close() {
+        try {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close the transfer journal " + file, e);
+        }
+    }
+
+    private TransferJob findInterrupted(String id) {
+        for (TransferJob job : interrupted) {
+            if (job.getId().equals(id)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replays the checkpoints of the journal, and rewrites it with those of
+     * the transfers that did not finish.
+     */
+    private void open() {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                log.warn("Transfers are not journaled, since {} is in use by another Kukini", 
+                        file);
+                channel.close();
+                channel = null;
+                return;
+            }
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                replay(line);
+            }
+            interrupted.addAll(jobs.values());
+            compact();
+            if (!interrupted.isEmpty()) {
+                log.info("{} transfers were interrupted: {}", interrupted.size(), interrupted);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Transfers are not journaled, since " + file + " could not be opened", e);
+            jobs.clear();
+            interrupted.clear();
+            close();
+        }
+    }
+
+    /**
+     * Applies a checkpoint read from the journal, unless it is torn.
+     */
+    private void replay(String line) throws IOException {
+        int separator = line.indexOf(' ');
+        if (separator < 0 || !line.substring(0, separator).equals(crc(line.substring(
+                separator + 1)))) {
+            log.warn("Skipping a torn checkpoint of the transfer journal: {}", line);
+            return;
+        }
+        Map<?, ?> record = mapper.readValue(line.substring(separator + 1), Map.class);
+        String id = (String) record.get("id");
+        String checkpoint = (String) record.get("checkpoint");
+        Object path = record.get("path");
+        if (SUBMITTED.equals(checkpoint)) {
+            List<Path> sources = new ArrayList<>();
+            for (Object source : (List<?>) record.get("sources")) {
+                sources.add(Paths.get((String) source));
+            }
+            jobs.put(id, new TransferJob(id, sources));
+        } else if (FINISHED.equals(checkpoint)) {
+            jobs.remove(id);
+        } else if (jobs.containsKey(id) && path != null) {
+            TransferJob job = jobs.get(id);
+            if (STAGED.equals(checkpoint)) {
+                job.setBagDirectory(Paths.get((String) path));
+            } else if (ZIPPED.equals(checkpoint)) {
+                job.setBagDirectory(null);
+                job.setSipPath(Paths.get((String) path));
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with the checkpoints of the unfinished transfers.
+     * The new journal is written next to the old one and moved over it, so
+     * a crash leaves one or the other.
+     */
+    private void compact() throws IOException {
+        StringBuilder checkpoints = new StringBuilder();
+        for (TransferJob job : jobs.values()) {
+            checkpoints.append(submittedRecord(job));
+            if (job.getBagDirectory() != null) {
+                checkpoints.append(record(job.getId(), STAGED, job.getBagDirectory()));
+            }
+            if (job.getSipPath() != null) {
+                checkpoints.append(record(job.getId(), ZIPPED, job.getSipPath()));
+            }
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, 
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap(checkpoints.toString().getBytes(StandardCharsets.UTF_8)));
+            out.force(true);
+        }
+        // The lock is held on the file that is replaced, so it is taken
+        // again on the new one.
+        lock.release();
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, 
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        lock = channel.tryLock();
+        if (lock == null) {
+            throw new IOException(file + " was taken by another Kukini");
+        }
+    }
+
+    private String submittedRecord(TransferJob job) {
+        List<String> sources = new ArrayList<>();
+        for (Path source : job.getSources()) {
+            sources.add(source.toAbsolutePath().toString());
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", job.getId());
+        record.put("checkpoint", SUBMITTED);
+        record.put("sources", sources);
+        return toLine(record);
+    }
+
+    private String record(String id, String checkpoint, Path path) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", id);
+        record.put("checkpoint", checkpoint);
+        if (path != null) {
+            record.put("path", path.toAbsolutePath().toString());
+        }
+        return toLine(record);
+    }
+
+    private String toLine(Map<String, Object> record) {
+        try {
+            String json = mapper.writeValueAsString(record);
+            return crc(json) + " " + json + "\n";
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write a checkpoint", e);
+        }
+    }
+
+    /**
+     * Appends a checkpoint to the journal and forces it to the disk. A 
+     * checkpoint that cannot be written is logged, and the transfer goes on
+     * as if it were not journaled.
+     */
+    private void append(String line) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            log.warn("Failed to journal the checkpoint " + line.trim(), e);
+        }
+    }
+
+    private static String crc(String json) {
+        CRC32 crc = new CRC32();
+        crc.update(json.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
@@ -0,0 +1,52 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * Receives the progress of the creation and upload of a SIP. The bytes of
+ * a stage may be reported by several threads at the same time, so 
+ * implementations must be thread safe.
+ *
+ * @author Keone Hiraide
+ */
+public interface TransferListener {
+
+    /**
+     * A listener which ignores the progress.
+     */
+    TransferListener NONE = new TransferListener() {
+        @Override
+        public void stageStarted(TransferStage stage, long totalBytes) {
+        }
+
+        @Override
+        public void transferred(TransferStage stage, long bytes) {
+        }
+
+        @Override
+        public void stageFinished(TransferStage stage) {
+        }
+    };
+
+    /**
+     * Called when a stage starts.
+     *
+     * @param stage The stage.
+     * @param totalBytes The number of bytes that the stage is expected to
+     *                   process, or -1 if it is unknown.
+     */
+    public void stageStarted(TransferStage stage, long totalBytes);
+
+    /**
+     * Called as the bytes of a stage are processed.
+     *
+     * @param stage The stage.
+     * @param bytes The number of bytes processed since the last call.
+     */
+    public void transferred(TransferStage stage, long bytes);
+
+    /**
+     * Called when a stage has completed.
+     *
+     * @param stage The stage.
+     */
+    public void stageFinished(TransferStage stage);
+}
@@ -0,0 +1,172 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Measures the transfers and each of their stages, so that a slow transfer
+ * can be put down to the disk, the hashing, the compression or the network.
+ * The transfers are measured by {@link SipUploaderImpl} and 
+ * {@link TransferTask}, and the measurements published as platform MBeans 
+ * by the spring context, to be watched with JConsole.
+ *
+ * @author Keone Hiraide
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+     // The workers whose queues are shown, when they are in the context.
+    @Autowired(required = false)
+    private PayloadStagingEngine stagingEngine;
+
+    @Autowired(required = false)
+    private DigestEngine digestEngine;
+
+    @Autowired(required = false)
+    private ParallelDeflater deflater;
+
+     // The measurements of each stage.
+    private final Map<TransferStage, StageMetrics> stages = new EnumMap<>(TransferStage.class);
+
+    private final AtomicInteger transfersQueued = new AtomicInteger();
+    private final AtomicInteger transfersActive = new AtomicInteger();
+    private final AtomicLong transfersSucceeded = new AtomicLong();
+    private final AtomicLong transfersFailed = new AtomicLong();
+    private final AtomicLong transfersCancelled = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Creates the measurements of every stage.
+     */
+    public TransferMetrics() {
+        for (TransferStage stage : TransferStage.values()) {
+            stages.put(stage, new StageMetrics(stage));
+        }
+    }
+
+    /**
+     * @param stage A stage of the transfers.
+     * @return The measurements of the stage.
+     */
+    public StageMetrics getStage(TransferStage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * Measures the stages reported to a listener. A listener that is already
+     * measured is returned as it is, so that each stage is measured once.
+     *
+     * @param listener Receives the progress of a transfer.
+     * @return A listener that measures the progress and passes it on.
+     */
+    MeteredTransferListener meter(TransferListener listener) {
+        if (listener instanceof MeteredTransferListener) {
+            return (MeteredTransferListener) listener;
+        }
+        return new MeteredTransferListener(this, listener);
+    }
+
+    /**
+     * Counts the files processed by a run of a stage.
+     */
+    void filesProcessed(TransferStage stage, int count) {
+        stages.get(stage).filesProcessed(count);
+    }
+
+    /**
+     * Counts a failure to create or upload a SIP.
+     */
+    void failed() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Called when a transfer is started from the Upload action.
+     */
+    void transferQueued() {
+        transfersQueued.incrementAndGet();
+    }
+
+    /**
+     * Called when a queued transfer starts running.
+     */
+    void transferStarted() {
+        transfersQueued.decrementAndGet();
+        transfersActive.incrementAndGet();
+    }
+
+    /**
+     * Called when a running transfer has ended.
+     *
+     * @param succeeded Whether HiDA accepted the SIP.
+     * @param cancelled Whether the user cancelled the transfer.
+     */
+    void transferFinished(boolean succeeded, boolean cancelled) {
+        transfersActive.decrementAndGet();
+        if (cancelled) {
+            transfersCancelled.incrementAndGet();
+        } else if (succeeded) {
+            transfersSucceeded.incrementAndGet();
+        } else {
+            transfersFailed.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int getTransfersQueued() {
+        return transfersQueued.get();
+    }
+
+    @Override
+    public int getTransfersActive() {
+        return transfersActive.get();
+    }
+
+    @Override
+    public long getTransfersSucceeded() {
+        return transfersSucceeded.get();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return transfersFailed.get();
+    }
+
+    @Override
+    public long getTransfersCancelled() {
+        return transfersCancelled.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public int getStagingQueueDepth() {
+        return stagingEngine == null ? 0 : stagingEngine.getQueueDepth();
+    }
+
+    @Override
+    public int getDigestQueueDepth() {
+        return digestEngine == null ? 0 : digestEngine.getQueueDepth();
+    }
+
+    @Override
+    public int getDeflaterQueueDepth() {
+        return deflater == null ? 0 : deflater.getQueueDepth();
+    }
+
+    @Override
+    public void reset() {
+        transfersSucceeded.set(0);
+        transfersFailed.set(0);
+        transfersCancelled.set(0);
+        errors.set(0);
+        for (StageMetrics stage : stages.values()) {
+            stage.reset();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+/**
+ * The measurements of the transfers as a whole, and the depths of the
+ * queues of the workers that they share, as shown over JMX. The stages of
+ * the transfers are measured by {@link StageMetricsMBean}s of their own.
+ *
+ * @author Keone Hiraide
+ */
+public interface TransferMetricsMBean {
+
+    /**
+     * @return The number of transfers started from the Upload action that
+     *         are waiting for the transfer before them to finish.
+     */
+    public int getTransfersQueued();
+
+    /**
+     * @return The number of transfers started from the Upload action that
+     *         are running now.
+     */
+    public int getTransfersActive();
+
+    /**
+     * @return The number of transfers started from the Upload action that
+     *         HiDA accepted.
+     */
+    public long getTransfersSucceeded();
+
+    /**
+     * @return The number of transfers started from the Upload action that
+     *         failed or that HiDA refused.
+     */
+    public long getTransfersFailed();
+
+    /**
+     * @return The number of transfers started from the Upload action that
+     *         the user cancelled.
+     */
+    public long getTransfersCancelled();
+
+    /**
+     * @return The number of times that creating or uploading a SIP failed,
+     *         within any stage or between them.
+     */
+    public long getErrors();
+
+    /**
+     * @return The number of files waiting to be copied or hashed.
+     */
+    public int getStagingQueueDepth();
+
+    /**
+     * @return The number of blocks waiting to be hashed.
+     */
+    public int getDigestQueueDepth();
+
+    /**
+     * @return The number of blocks waiting to be compressed.
+     */
+    public int getDeflaterQueueDepth();
+
+    /**
+     * Starts the measurements of the transfers, and of their stages, over.
+     */
+    public void reset();
+}
@@ -0,0 +1,55 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import org.openide.util.NbBundle.Messages;
+
+/**
+ * The stages that the selected files go through to reach HiDA.
+ *
+ * @author Keone Hiraide
+ */
+@Messages({
+    "CHECKSUMMING=Checksumming files",
+    "STAGING=Copying files",
+    "COMPRESSING=Compressing",
+    "UPLOADING=Uploading"
+})
+public enum TransferStage {
+
+    /**
+     * The selected files are checksummed before the SIP is built, so that
+     * the files that HiDA already holds can be left out of it.
+     */
+    CHECKSUMMING,
+
+    /**
+     * The selected files are copied into a temporary bag directory.
+     */
+    STAGING,
+
+    /**
+     * The bag is compressed into a SIP. When SIPs are built by streaming,
+     * the selected files are read during this stage instead.
+     */
+    COMPRESSING,
+
+    /**
+     * The SIP is uploaded.
+     */
+    UPLOADING;
+
+    /**
+     * @return The name of the stage shown to the user.
+     */
+    public String getDisplayName() {
+        switch (this) {
+            case CHECKSUMMING:
+                return Bundle.CHECKSUMMING();
+            case STAGING:
+                return Bundle.STAGING();
+            case COMPRESSING:
+                return Bundle.COMPRESSING();
+            default:
+                return Bundle.UPLOADING();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.netbeans.api.progress.ProgressHandle;
+import org.netbeans.api.progress.ProgressHandleFactory;
+import org.openide.DialogDisplayer;
+import org.openide.NotifyDescriptor;
+import org.openide.loaders.DataObject;
+import org.openide.util.Cancellable;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Creates a SIP from the files that the user has selected and uploads it to
+ * HiDA in the background, so that the user interface stays responsive. The
+ * progress and throughput of each stage are shown in the NetBeans progress
+ * bar, from which the transfer can be cancelled.
+ *
+ * A cancelled transfer is interrupted, which closes the channels that it
+ * reads and writes, so that it stops at its next read or write instead of
+ * once the stage in progress has finished. Its bag directory and SIP are
+ * deleted once it has stopped, by the thread that ran it.
+ *
+ * Transfers are journaled by the uploader, which owns the bag directory 
+ * and the SIP once the transfer has started: one that fails or is stopped
+ * part way by a crash keeps them, and is resumed from its last finished 
+ * stage when Kukini starts again, while one that is cancelled is not.
+ *
+ * @author Keone Hiraide
+ */
+@Messages({
+    "# {0} - number of files",
+    "transferTask=Transferring {0} file(s) to HiDA",
+    "# {0} - response",
+    "unsuccessfulMessage=Could not transfer your records at this time. "
+            + "We apologize for inconvenience. "
+            + "\n Please contact the Hawaii State Digital Archives at 'hiraide@hawaii.edu' "
+            + "for support. \n Error: {0}",
+    "successfulMessage=Your records have been successfully transferred. Thank you."
+})
+public class TransferTask implements Runnable, Cancellable {
+
+     // Runs the transfers one at a time. Cancelling a transfer interrupts
+     // its thread.
+    private static final RequestProcessor TRANSFERS = new RequestProcessor(
+            "kukini-transfer", 1, true);
+
+     // The files that the user has selected.
+    private final List<DataObject> selectedContext;
+
+     // Used in order to create and upload SIPS to HiDA.
+    private final SipUploader sipUploader;
+
+     // Used to send the upload requests.
+    private final RestTemplate restTemplate;
+
+     // Creates the bag directory and deletes it, along with the SIP.
+    private final TempWorkspaceManager workspaceManager;
+
+     // The progress bar of the transfer.
+    private final ProgressHandle handle;
+
+     // The transfer running in the background.
+    private volatile RequestProcessor.Task task;
+
+     // The bag directory of the transfer, once created. The SIP is created
+     // beside it.
+    private volatile Path workspace;
+
+     // Whether the user has cancelled the transfer.
+    private volatile boolean cancelled;
+
+     // Whether the transfer has left the queue, by running or by being
+     // cancelled before it ran.
+    private final AtomicBoolean dequeued = new AtomicBoolean();
+
+     // Counts the transfer as it is queued, runs and ends, if set.
+    private TransferMetrics transferMetrics;
+
+     // Used for logging.
+    private final Logger log = LoggerFactory.getLogger(TransferTask.class);
+
+    /**
+     * @param selectedContext The files that the user has selected.
+     * @param sipUploader Used in order to create and upload SIPS to HiDA.
+     * @param restTemplate Used to send the upload requests.
+     * @param workspaceManager Creates the bag directory and deletes it, along
+     *                         with the SIP.
+     */
+    public TransferTask(List<DataObject> selectedContext, SipUploader sipUploader,
+            RestTemplate restTemplate, TempWorkspaceManager workspaceManager) {
+        this.selectedContext = selectedContext;
+        this.sipUploader = sipUploader;
+        this.restTemplate = restTemplate;
+        this.workspaceManager = workspaceManager;
+        this.handle = ProgressHandleFactory.createHandle(
+                Bundle.transferTask(selectedContext.size()), this);
+    }
+
+    /**
+     * Counts the transfer as it is queued, runs and ends.
+     *
+     * @param transferMetrics The measurements of the transfers.
+     */
+    public void setTransferMetrics(TransferMetrics transferMetrics) {
+        this.transferMetrics = transferMetrics;
+    }
+
+    /**
+     * Starts the transfer in the background and returns straight away.
+     */
+    public void start() {
+        if (transferMetrics != null) {
+            transferMetrics.transferQueued();
+        }
+        task = TRANSFERS.post(this);
+    }
+
+    /**
+     * Waits for the transfer to finish.
+     */
+    public void waitFinished() {
+        task.waitFinished();
+    }
+
+    @Override
+    public void run() {
+        log.debug("Entering run()");
+        if (!dequeued.compareAndSet(false, true)) {
+            log.debug("Exiting run(): cancelled before it started");
+            return;
+        }
+        if (transferMetrics != null) {
+            transferMetrics.transferStarted();
+        }
+        boolean succeeded = false;
+        handle.start();
+        try {
+            TransferListener listener = new ProgressHandleListener(handle);
+            // A pipelined SIP is sent as it is built, and never reaches the
+            // disk.
+            if (!sipUploader.isPipelined()) {
+                workspace = workspaceManager.createWorkspace();
+            }
+            ResponseEntity<String> response = sipUploader.createAndUploadSip(selectedContext,
+                    workspace, restTemplate, listener);
+
+            // Were we able to successfully upload the SIP?
+            if (response.getStatusCode() == HttpStatus.CREATED) {
+                succeeded = true;
+                notifyUser(Bundle.successfulMessage(), NotifyDescriptor.INFORMATION_MESSAGE);
+            } else {
+                notifyUser(Bundle.unsuccessfulMessage(response), NotifyDescriptor.ERROR_MESSAGE);
+                log.error("Upload failed with a response of: " + response);
+            }
+        } catch (RuntimeException e) {
+            if (cancelled) {
+                log.info("The transfer was cancelled");
+            } else {
+                log.error("The transfer failed", e);
+                notifyUser(Bundle.unsuccessfulMessage(e.getMessage()),
+                        NotifyDescriptor.ERROR_MESSAGE);
+            }
+        } finally {
+            handle.finish();
+            release();
+            if (transferMetrics != null) {
+                transferMetrics.transferFinished(succeeded, cancelled);
+            }
+            log.debug("Exiting run()");
+        }
+    }
+
+    /**
+     * Cancels the transfer. Called when the user cancels the progress bar,
+     * on the event dispatch thread, so it only interrupts the transfer; the
+     * files of the transfer are deleted by {@link #run()} once it has
+     * stopped writing them.
+     *
+     * @return Always true; the transfer stops at its next read or write.
+     */
+    @Override
+    public boolean cancel() {
+        log.info("Cancelling the transfer");
+        cancelled = true;
+        if (dequeued.compareAndSet(false, true) && transferMetrics != null) {
+            // It is counted as having ended without running.
+            transferMetrics.transferStarted();
+            transferMetrics.transferFinished(false, true);
+        }
+        RequestProcessor.Task running = task;
+        if (running != null) {
+            running.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the bag directory and the SIP of a cancelled transfer in the
+     * background. Called once the transfer has stopped. The uploader deletes
+     * those of a transfer that ends otherwise, unless they are kept so that
+     * the transfer can be resumed.
+     */
+    private void release() {
+        Path bag = workspace;
+        if (bag == null || !cancelled) {
+            return;
+        }
+        workspaceManager.release(bag);
+        // The SIP is named after the bag directory, and may be partly
+        // written.
+        Path sip = bag.resolveSibling(bag.getFileName() + ".zip");
+        try {
+            Files.deleteIfExists(UploadSession.getStatePath(sip));
+        } catch (IOException e) {
+            log.warn("Failed to delete the upload state of " + sip, e);
+        }
+        workspaceManager.release(sip);
+    }
+
+    private void notifyUser(String message, int messageType) {
+        DialogDisplayer.getDefault().notifyLater(new NotifyDescriptor.Message(message,
+                messageType));
+    }
+}
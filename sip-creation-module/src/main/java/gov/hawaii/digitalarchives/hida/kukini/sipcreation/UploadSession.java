@@ -0,0 +1,234 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state of a resumable upload, which is saved next to the SIP being
+ * uploaded (e.g. "record_series_123.zip.upload") after every chunk that the
+ * server acknowledges. If the upload fails, or Kukini is closed part way,
+ * the upload resumes from the saved state instead of starting over.
+ *
+ * The state is discarded if the SIP has changed since it was saved.
+ *
+ * @author Keone Hiraide
+ */
+public class UploadSession {
+
+     // The extension added to the name of a SIP to name its state file.
+    public static final String STATE_FILE_EXTENSION = ".upload";
+
+    private static final String SESSION_KEY = "session";
+    private static final String SIZE_KEY = "size";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String OFFSET_KEY = "offset";
+
+     // The SIP being uploaded.
+    private final Path sipPath;
+
+     // The URL of the upload session on the server.
+    private final URI sessionUri;
+
+     // The size of the SIP when the session was created.
+    private final long sipSize;
+
+     // The last modified time of the SIP when the session was created.
+    private final long sipLastModified;
+
+     // The number of bytes of the SIP that the server has acknowledged.
+    private long offset;
+
+    private static final Logger log = LoggerFactory.getLogger(UploadSession.class);
+
+    /**
+     * Creates the state of a new upload session.
+     *
+     * @param sipPath The SIP being uploaded.
+     * @param sessionUri The URL of the upload session on the server.
+     */
+    public UploadSession(Path sipPath, URI sessionUri) throws IOException {
+        this(sipPath, sessionUri, Files.size(sipPath),
+                Files.getLastModifiedTime(sipPath).toMillis(), 0);
+    }
+
+    private UploadSession(Path sipPath, URI sessionUri, long sipSize,
+            long sipLastModified, long offset) {
+        this.sipPath = sipPath;
+        this.sessionUri = sessionUri;
+        this.sipSize = sipSize;
+        this.sipLastModified = sipLastModified;
+        this.offset = offset;
+    }
+
+    /**
+     * Loads the saved state of the upload of a SIP.
+     *
+     * @param sipPath The SIP being uploaded.
+     * @return The state of the upload, or null if the upload of the SIP
+     *         has not been started, or the SIP has changed since.
+     */
+    public static UploadSession load(Path sipPath) {
+        Path statePath = getStatePath(sipPath);
+        if (!Files.exists(statePath)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(statePath)) {
+            Properties state = new Properties();
+            state.load(in);
+            UploadSession session = new UploadSession(sipPath,
+                    URI.create(state.getProperty(SESSION_KEY)),
+                    Long.parseLong(state.getProperty(SIZE_KEY)),
+                    Long.parseLong(state.getProperty(LAST_MODIFIED_KEY)),
+                    Long.parseLong(state.getProperty(OFFSET_KEY)));
+            if (Files.size(sipPath) == session.sipSize && Files.getLastModifiedTime(sipPath)
+                    .toMillis() == session.sipLastModified) {
+                return session;
+            }
+            log.info("Discarding the upload state of {} since it has changed", sipPath);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Discarding the unreadable upload state " + statePath, e);
+        }
+        deleteState(sipPath);
+        return null;
+    }
+
+    /**
+     * @param sipPath A SIP.
+     * @return True if the upload of the SIP was interrupted and can be
+     *         resumed.
+     */
+    public static boolean exists(Path sipPath) {
+        return sipPath != null && Files.exists(getStatePath(sipPath));
+    }
+
+    /**
+     * Finds the SIPs whose uploads were interrupted.
+     *
+     * @param directory The directory holding the SIPs.
+     * @return The SIPs, each of which has a saved upload state.
+     */
+    public static List<Path> findInterrupted(Path directory) {
+        List<Path> sipPaths = new ArrayList<>();
+        try (DirectoryStream<Path> states = Files.newDirectoryStream(directory,
+                "*" + STATE_FILE_EXTENSION)) {
+            for (Path statePath : states) {
+                Path sipPath = getSipPath(statePath);
+                if (Files.exists(sipPath)) {
+                    sipPaths.add(sipPath);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to look for interrupted uploads within " + directory, e);
+        }
+        return sipPaths;
+    }
+
+    /**
+     * @param sipPath A SIP.
+     * @return The path to the file holding the upload state of the SIP.
+     */
+    public static Path getStatePath(Path sipPath) {
+        return sipPath.resolveSibling(sipPath.getFileName() + STATE_FILE_EXTENSION);
+    }
+
+    /**
+     * @param statePath The path to the file holding the upload state of a
+     *                  SIP.
+     * @return The path to the SIP.
+     */
+    public static Path getSipPath(Path statePath) {
+        String name = statePath.getFileName().toString();
+        return statePath.resolveSibling(name.substring(0,
+                name.length() - STATE_FILE_EXTENSION.length()));
+    }
+
+    /**
+     * Saves the state of the upload. The state file is replaced atomically
+     * so that a crash never leaves it half written.
+     */
+    public void save() {
+        Properties state = new Properties();
+        state.setProperty(SESSION_KEY, sessionUri.toString());
+        state.setProperty(SIZE_KEY, Long.toString(sipSize));
+        state.setProperty(LAST_MODIFIED_KEY, Long.toString(sipLastModified));
+        state.setProperty(OFFSET_KEY, Long.toString(offset));
+        Path statePath = getStatePath(sipPath);
+        Path temporaryPath = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporaryPath)) {
+                state.store(out, "Kukini upload state of " + sipPath.getFileName());
+            }
+            Files.move(temporaryPath, statePath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            String errorMessage = "Failed to save the upload state " + statePath;
+            log.error(errorMessage, e);
+            throw new HidaIOException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Deletes the saved state, once the upload has completed or can no
+     * longer be resumed.
+     */
+    public void delete() {
+        deleteState(sipPath);
+    }
+
+    private static void deleteState(Path sipPath) {
+        try {
+            Files.deleteIfExists(getStatePath(sipPath));
+        } catch (IOException e) {
+            log.warn("Failed to delete the upload state of " + sipPath, e);
+        }
+    }
+
+    /**
+     * @return The SIP being uploaded.
+     */
+    public Path getSipPath() {
+        return sipPath;
+    }
+
+    /**
+     * @return The URL of the upload session on the server.
+     */
+    public URI getSessionUri() {
+        return sessionUri;
+    }
+
+    /**
+     * @return The size of the SIP.
+     */
+    public long getSipSize() {
+        return sipSize;
+    }
+
+    /**
+     * @return The number of bytes of the SIP that the server has
+     *         acknowledged.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @param offset The number of bytes of the SIP that the server has
+     *               acknowledged.
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+}
@@ -1,13 +1,8 @@
 package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
 
-import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.IOException;
-import java.nio.file.Path;
 import java.util.List;
-import javax.swing.JOptionPane;
-import org.apache.commons.io.FileUtils;
 import org.openide.loaders.DataObject;
 import org.openide.awt.ActionID;
 import org.openide.awt.ActionReference;
@@ -15,12 +10,8 @@ import org.openide.awt.ActionRegistration;
 import org.openide.util.NbBundle.Messages;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestTemplate;
-import static gov.hawaii.digitalarchives.hida.kukini.sipcreation.Bundle.*;
 import gov.hawaii.digitalarchives.hida.kukini.springservice.SpringServiceProvider;
-import org.openide.util.Exceptions;
 import org.openide.util.Lookup;
 
 @ActionID(
@@ -36,7 +27,7 @@ import org.openide.util.Lookup;
  * Creates an action which will be activated when the user selects
  * DataObjects. These DataObjects represent the files that the user currently
  * has selected. If the action has been executed, the selected DataObjects
- * will be copied, bagged, and then uploaded to HiDA.
+ * will be copied, bagged, and then uploaded to HiDA in the background.
  */
 public class UploadSipAction implements ActionListener {
 
@@ -50,6 +41,12 @@ public class UploadSipAction implements ActionListener {
      // in order to upload files.
     private final RestTemplate restTemplate;
     
+     // Creates the bag directory and deletes it, along with the SIP.
+    private final TempWorkspaceManager workspaceManager;
+    
+     // Counts the transfers that are queued, running and ended.
+    private final TransferMetrics transferMetrics;
+    
      // Used for logging.
     private final Logger log = LoggerFactory.getLogger(UploadSipAction.class);
     
@@ -65,57 +62,37 @@ public class UploadSipAction implements ActionListener {
         SpringServiceProvider ssp = Lookup.getDefault().lookup(SpringServiceProvider.class);
         this.sipUploader = (SipUploader) ssp.getBean("upload");
         this.restTemplate =(RestTemplate) ssp.getBean("restTemplate");
+        this.workspaceManager = (TempWorkspaceManager) ssp.getBean("workspaceManager");
+        this.transferMetrics = (TransferMetrics) ssp.getBean("transferMetrics");
     }
     
 
     /**
-     * Uploads the files that are currently selected to HiDA.
+     * Uploads the files that are currently selected to HiDA. The SIP is 
+     * created and uploaded in the background, and its progress is shown in
+     * the progress bar, so this method returns straight away.
      * 
      * @param ev A semantic event which indicates that a component-defined 
      *            action occurred.
      */
     @Override
-    @Messages({
-         "# {0} - response",
-         "unsuccessfulMessage=Could not transfer your records at this time. "
-                 + "We apologize for inconvenience. "
-                 + "\n Please contact the Hawaii State Digital Archives at 'hiraide@hawaii.edu' "
-                 + "for support. \n Error: {0}",
-         "successfulMessage=Your records have been successfully transferred. Thank you."
-    })
     public void actionPerformed(ActionEvent ev) {
         log.debug("Entering actionPerformed(ev={})", ev);
-       
-        Path sipPath = null;
-        try {
-            sipPath = sipUploader.createSipFromContext(selectedContext);
-            ResponseEntity<String> response = sipUploader.uploadSip(sipPath, restTemplate);
- 
-            // Were we able to successfully upload the SIP?
-            if (response.getStatusCode() == HttpStatus.CREATED) {
-                JOptionPane.showMessageDialog(null, successfulMessage());
-            }
-            else {
-                JOptionPane.showMessageDialog(null,  unsuccessfulMessage(response));
-                log.error("Upload failed with a response of: " + response);
-            }
-        } finally {
-            try {
-                if (sipPath != null) {
-                    System.gc();
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException ex) {
-                        Exceptions.printStackTrace(ex);
-                    }
-                    FileUtils.forceDelete(sipPath.toFile());
-                }
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(null, unsuccessfulMessage(e));
-                String errorMessage = "Failed to delete the sip.";
-                log.error(errorMessage, e);
-                throw new HidaIOException(errorMessage, e);
-            }
-        }
+        transfer();
+        log.debug("Exiting actionPerformed()");
     }    
+    
+    /**
+     * Starts uploading the files that are currently selected to HiDA in the
+     * background, the same way as when the action is performed.
+     * 
+     * @return The transfer, which can be waited for.
+     */
+    public TransferTask transfer() {
+        TransferTask task = new TransferTask(selectedContext, sipUploader, restTemplate, 
+                workspaceManager);
+        task.setTransferMetrics(transferMetrics);
+        task.start();
+        return task;
+    }
 }
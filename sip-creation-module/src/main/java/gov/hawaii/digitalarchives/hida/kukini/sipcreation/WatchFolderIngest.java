@@ -0,0 +1,422 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Watches folders that agencies drop batches into, and transfers each batch
+ * as a SIP of its own as soon as it has been completely written.
+ *
+ * Every file or folder placed directly within a watched folder is a batch.
+ * A batch is complete once nothing within it has changed for a quiet 
+ * period, and its files then keep the same sizes and modification times 
+ * between two looks, which catches writers whose changes are not reported,
+ * e.g. over network shares. Once a batch has been transferred it
+ * is moved into the {@value #TRANSFERRED_FOLDER} folder of the watched 
+ * folder, or the {@value #FAILED_FOLDER} folder if it failed, so that it is
+ * not transferred again. Files and folders whose names start with a dot 
+ * are not batches.
+ *
+ * @author Keone Hiraide
+ */
+public class WatchFolderIngest {
+
+    /**
+     * The folder, within each watched folder, that batches are moved into
+     * once they have been transferred.
+     */
+    public static final String TRANSFERRED_FOLDER = ".transferred";
+
+    /**
+     * The folder, within each watched folder, that batches are moved into 
+     * if they failed to be transferred.
+     */
+    public static final String FAILED_FOLDER = ".failed";
+
+    /**
+     * Receives the result of each batch.
+     */
+    public interface Listener {
+
+        /**
+         * Called, on a thread of the ingest, once a batch has been 
+         * transferred or has failed, and has been moved away.
+         *
+         * @param batch Where the batch was dropped.
+         * @param result The result of the SIP of the batch.
+         */
+        public void batchTransferred(Path batch, BatchResult result);
+    }
+
+     // For logging.
+    private static final Logger log = LoggerFactory.getLogger(WatchFolderIngest.class);
+
+     // Transfers each batch.
+    private final BatchTransfer batchTransfer;
+
+     // The folders that batches are dropped into.
+    private final List<Path> folders;
+
+     // How long nothing within a batch must change before it is complete.
+    private final long quietNanos;
+
+    private final Listener listener;
+
+     // The folder watched by each key.
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<>();
+
+     // The batches that are still being written, keyed by their path.
+    private final Map<Path, PendingBatch> pending = new HashMap<>();
+
+     // The batches being transferred. Changes to them are not watched.
+    private final Set<Path> transferring = Collections.newSetFromMap(
+            new ConcurrentHashMap<Path, Boolean>());
+
+    /**
+     * @param batchTransfer Transfers each batch, as many at the same time
+     *                      as its concurrency allows.
+     * @param folders The folders that batches are dropped into.
+     * @param quietMillis How long nothing within a batch must change 
+     *                    before it is complete.
+     * @param listener Receives the result of each batch.
+     */
+    public WatchFolderIngest(BatchTransfer batchTransfer, List<Path> folders, long quietMillis,
+            Listener listener) {
+        Assert.notNull(batchTransfer);
+        Assert.notEmpty(folders);
+        Assert.isTrue(quietMillis >= 0, "The quiet period must not be negative");
+        Assert.notNull(listener);
+        this.batchTransfer = batchTransfer;
+        this.folders = new ArrayList<>();
+        for (Path folder : folders) {
+            this.folders.add(folder.toAbsolutePath().normalize());
+        }
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.listener = listener;
+    }
+
+    /**
+     * Moves a batch that was transferred by other means, e.g. resumed after
+     * a crash, into the {@value #TRANSFERRED_FOLDER} folder, so that it is
+     * not transferred again. Called before the ingest is run.
+     *
+     * @param source A file or folder that was transferred.
+     *
+     * @return True if the source was a batch within a watched folder.
+     */
+    public boolean retire(Path source) {
+        Path batch = toBatch(source.toAbsolutePath().normalize());
+        if (batch == null || !batch.equals(source.toAbsolutePath().normalize())
+                || !Files.exists(batch, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        Path folder = batch.resolveSibling(TRANSFERRED_FOLDER);
+        try {
+            Files.createDirectories(folder);
+            moveInto(batch, folder);
+            return true;
+        } catch (IOException e) {
+            throw new HidaIOException("Failed to move " + batch + " into " + folder, e);
+        }
+    }
+
+    /**
+     * Watches the folders and transfers the batches dropped into them until
+     * the calling thread is interrupted. Batches that are already in the
+     * folders are transferred too. Transfers that are still running when 
+     * the thread is interrupted are interrupted as well.
+     */
+    public void run() {
+        log.debug("Entering run(folders={})", folders);
+        ExecutorService workers = Executors.newFixedThreadPool(batchTransfer.getConcurrency(), 
+                new WorkerThreadFactory());
+        long pollMillis = Math.max(50, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(quietNanos) / 2));
+        try (WatchService watcher = folders.get(0).getFileSystem().newWatchService()) {
+            for (Path folder : folders) {
+                Files.createDirectories(folder.resolve(TRANSFERRED_FOLDER));
+                Files.createDirectories(folder.resolve(FAILED_FOLDER));
+                watchedFolders.put(watch(folder, watcher), folder);
+                scan(folder, watcher);
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handle(key, watcher);
+                    key = watcher.poll();
+                }
+                transferCompleted(workers);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new HidaIOException("Failed to watch " + folders, e);
+        } finally {
+            workers.shutdownNow();
+        }
+        log.debug("Exiting run()");
+    }
+
+    /**
+     * Treats every file and folder within a watched folder as a batch that
+     * may still be being written.
+     */
+    private void scan(Path folder, WatchService watcher) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                changed(entry, watcher);
+            }
+        }
+    }
+
+    /**
+     * Records the changes reported by a key.
+     */
+    private void handle(WatchKey key, WatchService watcher) throws IOException {
+        Path watchedFolder = watchedFolders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Changes were lost, so every batch is checked again.
+                log.warn("Missed changes within {}", watchedFolder);
+                for (Path folder : folders) {
+                    scan(folder, watcher);
+                }
+            } else if (watchedFolder != null) {
+                changed(watchedFolder.resolve((Path) event.context()), watcher);
+            }
+        }
+        if (!key.reset()) {
+            watchedFolders.remove(key);
+        }
+    }
+
+    /**
+     * Records that a path within a watched folder has changed, and watches
+     * the folders within it if it is a new folder.
+     */
+    private void changed(Path path, WatchService watcher) throws IOException {
+        Path batch = toBatch(path);
+        if (batch == null || transferring.contains(batch)) {
+            return;
+        }
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            watchTree(path, watcher);
+        }
+        PendingBatch pendingBatch = pending.get(batch);
+        if (pendingBatch == null) {
+            pending.put(batch, new PendingBatch());
+        } else {
+            pendingBatch.changedNanos = System.nanoTime();
+            pendingBatch.snapshot = null;
+        }
+    }
+
+    /**
+     * @return The batch a path lies within, or null if it does not lie
+     *         within a batch.
+     */
+    private Path toBatch(Path path) {
+        for (Path folder : folders) {
+            if (path.startsWith(folder) && !path.equals(folder)) {
+                Path name = folder.relativize(path).getName(0);
+                return name.toString().startsWith(".") ? null : folder.resolve(name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Watches a folder and every folder within it.
+     */
+    private void watchTree(Path root, final WatchService watcher) throws IOException {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                        throws IOException {
+                    watchedFolders.put(watch(dir, watcher), dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // The file was removed or replaced while it was visited,
+                    // which is reported as a change of its own.
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            log.debug("{} was removed before it could be watched", root);
+        }
+    }
+
+    /**
+     * Stops watching the folders within a batch, which are moved away once
+     * the batch has been transferred.
+     */
+    private void unwatchTree(Path batch) {
+        Iterator<Map.Entry<WatchKey, Path>> keys = watchedFolders.entrySet().iterator();
+        while (keys.hasNext()) {
+            Map.Entry<WatchKey, Path> key = keys.next();
+            if (key.getValue().startsWith(batch)) {
+                key.getKey().cancel();
+                keys.remove();
+            }
+        }
+    }
+
+    private static WatchKey watch(Path folder, WatchService watcher) throws IOException {
+        return folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, 
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Starts transferring each batch that has been quiet for long enough
+     * and has not changed since it was last looked at.
+     */
+    private void transferCompleted(ExecutorService workers) {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, PendingBatch>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, PendingBatch> entry = entries.next();
+            final Path batch = entry.getKey();
+            PendingBatch pendingBatch = entry.getValue();
+            if (now - pendingBatch.changedNanos < quietNanos) {
+                continue;
+            }
+            if (!Files.exists(batch, LinkOption.NOFOLLOW_LINKS)) {
+                entries.remove();
+                continue;
+            }
+            String snapshot = snapshot(batch);
+            if (snapshot == null || !snapshot.equals(pendingBatch.snapshot)) {
+                // The first look is compared with the next one; a batch 
+                // that differs from the last look must be quiet again.
+                if (snapshot == null || pendingBatch.snapshot != null) {
+                    pendingBatch.changedNanos = now;
+                }
+                pendingBatch.snapshot = snapshot;
+                continue;
+            }
+            entries.remove();
+            transferring.add(batch);
+            unwatchTree(batch);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transfer(batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The path, size and modification time of every file within a
+     *         batch, or null if the batch could not be read, e.g. because
+     *         it changed while it was read.
+     */
+    private static String snapshot(Path batch) {
+        final StringBuilder snapshot = new StringBuilder();
+        try {
+            Files.walkFileTree(batch, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    snapshot.append(file).append('\t').append(attrs.size()).append('\t')
+                            .append(attrs.lastModifiedTime().toMillis()).append('\n');
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return snapshot.toString();
+        } catch (IOException e) {
+            log.debug("Failed to look at " + batch, e);
+            return null;
+        }
+    }
+
+    /**
+     * Transfers a batch, moves it away and reports its result.
+     */
+    private void transfer(Path batch) {
+        try {
+            BatchResult result = batchTransfer.transfer(Collections.singletonList(batch));
+            Path folder = batch.resolveSibling(result.isSucceeded() ? TRANSFERRED_FOLDER 
+                    : FAILED_FOLDER);
+            try {
+                moveInto(batch, folder);
+            } catch (IOException e) {
+                log.error("Failed to move " + batch + " into " + folder 
+                        + ", so it will be transferred again once the ingest restarts", e);
+            }
+            listener.batchTransferred(batch, result);
+        } finally {
+            transferring.remove(batch);
+        }
+    }
+
+    /**
+     * Moves a batch into a folder, renaming it if a batch of the same name
+     * was moved there before.
+     */
+    private static void moveInto(Path batch, Path folder) throws IOException {
+        Path target = folder.resolve(batch.getFileName());
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            target = folder.resolve(batch.getFileName() + "-" + System.currentTimeMillis());
+        }
+        Files.move(batch, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A batch that may still be being written.
+     */
+    private static class PendingBatch {
+
+         // When a change within the batch was last seen.
+        long changedNanos = System.nanoTime();
+
+         // The files of the batch when it was last looked at, or null if it
+         // has not been looked at yet.
+        String snapshot;
+    }
+
+    /**
+     * Creates the daemon threads that transfer the batches.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "kukini-watch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.bag.BagUtilImpl;
+import gov.loc.repository.bagit.utilities.SizeHelper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link BagTagFiles} class against the tag files that
+ * {@link BagUtilImpl#makeComplete} writes for the same payload.
+ *
+ * @author Keone Hiraide
+ */
+public class BagTagFilesTest {
+
+     // The payload, and the tag file of the SIP, of the bags compared.
+    private static final String[] PAYLOAD = {"data/report.pdf", "data/records/birth 1901.tif",
+        "data/records/empty.txt", "data/notes/minutes.txt"};
+    private static final int[] SIZES = {1536, 2 * 1024 * 1024 + 17, 0, 700};
+    private static final byte[] ACCESSION = "{\"rtpId\":\"ark:/0000/Stub\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+     // The bag completed by the bag module.
+    private Path bagDirectory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        bagDirectory = Files.createTempDirectory("record_series_");
+        Random random = new Random(42);
+        for (int i = 0; i < PAYLOAD.length; i++) {
+            byte[] contents = new byte[SIZES[i]];
+            random.nextBytes(contents);
+            Path file = bagDirectory.resolve(PAYLOAD[i]);
+            Files.createDirectories(file.getParent());
+            Files.write(file, contents);
+        }
+        Files.write(bagDirectory.resolve("accession.json"), ACCESSION);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(bagDirectory.toFile());
+    }
+
+    /**
+     * Tests that the tag files created from the checksums of the payload
+     * are those that the bag module writes, byte for byte apart from the
+     * Bagging-Date. The bag module lists the files of a manifest in the
+     * order of a hash map, so the payload is checksummed in that order, and
+     * the lines of the tag manifest are compared regardless of their order.
+     */
+    @Test
+    public void makeCompleteTest() throws IOException, NoSuchAlgorithmException {
+        BagUtilImpl bagUtil = new BagUtilImpl();
+        bagUtil.setLogger(LoggerFactory.getLogger(BagUtilImpl.class));
+        bagUtil.makeComplete(bagDirectory);
+
+        BagManifest manifest = new BagManifest("md5");
+        for (String line : Files.readAllLines(bagDirectory.resolve("manifest-md5.txt"),
+                StandardCharsets.UTF_8)) {
+            String bagPath = line.substring(line.indexOf("  ") + 2);
+            byte[] contents = Files.readAllBytes(bagDirectory.resolve(bagPath));
+            manifest.add(bagPath, MessageDigest.getInstance("MD5").digest(contents),
+                    contents.length);
+        }
+        Assert.assertEquals(manifest.getPayloadFileCount(), PAYLOAD.length);
+        Map<String, byte[]> tagFiles = BagTagFiles.create(manifest,
+                Collections.singletonMap("accession.json", ACCESSION), new Date());
+
+        for (Map.Entry<String, byte[]> tagFile : tagFiles.entrySet()) {
+            Path written = bagDirectory.resolve(tagFile.getKey());
+            Assert.assertTrue(Files.exists(written), tagFile.getKey());
+            String expected = withoutBaggingDate(Files.readAllBytes(written));
+            String actual = withoutBaggingDate(tagFile.getValue());
+            if (tagFile.getKey().startsWith("tagmanifest-")) {
+                expected = sortLines(expected);
+                actual = sortLines(actual);
+            }
+            Assert.assertEquals(actual, expected, tagFile.getKey());
+        }
+        try (DirectoryStream<Path> written = Files.newDirectoryStream(bagDirectory, "*.*")) {
+            for (Path tagFile : written) {
+                Assert.assertTrue(tagFiles.containsKey(tagFile.getFileName().toString()),
+                        tagFile.getFileName().toString());
+            }
+        }
+    }
+
+    /**
+     * Tests that Bag-Size is written as the bag module writes it, whatever
+     * the unit and the number of decimal places. The bag module never 
+     * returns for sizes such as exactly 10 MB, so those are left out.
+     */
+    @Test
+    public void bagSizeTest() {
+        long[] sizes = {0, 1, 700, 1023, 1536, 1048575, 1048576, 2099405, 10747904,
+            5L * 1024 * 1024 * 1024 + 12345, 123456789012L, 3L << 40};
+        for (long size : sizes) {
+            if (size == 0) {
+                Assert.assertEquals(BagTagFiles.toBagSize(size), "0 KB");
+            } else {
+                Assert.assertEquals(BagTagFiles.toBagSize(size), SizeHelper.getSize(size),
+                        Long.toString(size));
+            }
+        }
+    }
+
+    /**
+     * @return The contents of a tag file without its Bagging-Date line.
+     */
+    private static String withoutBaggingDate(byte[] contents) {
+        return new String(contents, StandardCharsets.UTF_8)
+                .replaceAll("(?m)^Bagging-Date: .*\n", "");
+    }
+
+    /**
+     * @return The lines of a manifest in sorted order.
+     */
+    private static String sortLines(String manifest) {
+        String[] lines = manifest.split("\n", -1);
+        Arrays.sort(lines);
+        StringBuilder sorted = new StringBuilder();
+        for (String line : lines) {
+            sorted.append(line).append('\n');
+        }
+        return sorted.toString();
+    }
+}
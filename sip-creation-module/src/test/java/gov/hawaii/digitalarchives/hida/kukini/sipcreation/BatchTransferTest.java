@@ -0,0 +1,138 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link BatchTransfer} class with an uploader that only reports
+ * its stages.
+ *
+ * @author Keone Hiraide
+ */
+public class BatchTransferTest {
+
+     // The bytes each SIP reports for each of its stages.
+    private static final long STAGE_BYTES = 100 * 1024;
+
+     // The SIPs of each test.
+    private final List<List<Path>> sips = new ArrayList<>();
+
+     // The most SIPs that were compressing at the same time.
+    private final AtomicInteger compressing = new AtomicInteger();
+    private final AtomicInteger mostCompressing = new AtomicInteger();
+
+    @BeforeMethod
+    public void setUp() {
+        sips.clear();
+        compressing.set(0);
+        mostCompressing.set(0);
+    }
+
+    /**
+     * Tests that the result of every SIP is returned in the order of the
+     * SIPs, and that a SIP that fails does not stop the others.
+     */
+    @Test
+    public void resultsTest() {
+        addSips("first", "broken", "third");
+        List<BatchResult> results = new BatchTransfer(createUploader(), new RestTemplate(), 2,
+                new TransferBudget(2, 0)).run(sips);
+
+        Assert.assertEquals(results.size(), 3);
+        Assert.assertTrue(results.get(0).isSucceeded());
+        Assert.assertEquals(results.get(0).getSources(), 
+                Collections.singletonList(Paths.get("first").toString()));
+        Assert.assertEquals(results.get(0).getHttpStatus(), 201);
+        Assert.assertEquals(results.get(0).getResponse(), "first");
+        Assert.assertEquals(results.get(0).getStageBytes().get("UPLOADING"), 
+                Long.valueOf(STAGE_BYTES));
+        Assert.assertFalse(results.get(1).isSucceeded());
+        Assert.assertEquals(results.get(1).getError(), "Failed to stage broken");
+        Assert.assertTrue(results.get(2).isSucceeded());
+        Assert.assertEquals(results.get(2).getResponse(), "third");
+    }
+
+    /**
+     * Tests that no more SIPs are compressed at the same time than there
+     * are CPU slots, however many SIPs are transferred at the same time.
+     */
+    @Test
+    public void cpuBudgetTest() {
+        addSips("a", "b", "c", "d");
+        List<BatchResult> results = new BatchTransfer(createUploader(), new RestTemplate(), 4,
+                new TransferBudget(1, 0)).run(sips);
+
+        for (BatchResult result : results) {
+            Assert.assertTrue(result.isSucceeded());
+        }
+        Assert.assertEquals(mostCompressing.get(), 1);
+    }
+
+    /**
+     * Tests that the SIPs together process no more bytes per second than
+     * the I/O budget allows.
+     */
+    @Test
+    public void ioBudgetTest() {
+        addSips("a", "b", "c");
+        long start = System.nanoTime();
+        new BatchTransfer(createUploader(), new RestTemplate(), 3,
+                new TransferBudget(3, 2 * STAGE_BYTES)).run(sips);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // Six stages of 100 KiB at 200 KiB a second, of which the first 
+        // second's worth may be processed at once.
+        Assert.assertTrue(elapsedMillis >= 1900, "Took only " + elapsedMillis + " ms");
+    }
+
+    private void addSips(String... names) {
+        for (String name : names) {
+            sips.add(Collections.singletonList(Paths.get(name)));
+        }
+    }
+
+    /**
+     * @return An uploader that compresses and uploads a SIP by reporting
+     *         both stages, and fails to stage any SIP named "broken".
+     */
+    private SipUploader createUploader() {
+        return (SipUploader) Proxy.newProxyInstance(SipUploader.class.getClassLoader(),
+                new Class<?>[] {SipUploader.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                Assert.assertEquals(method.getName(), "createAndUploadSipFromPaths");
+                @SuppressWarnings("unchecked")
+                String name = ((List<Path>) args[0]).get(0).toString();
+                TransferListener listener = (TransferListener) args[2];
+                if (name.equals("broken")) {
+                    listener.stageStarted(TransferStage.STAGING, STAGE_BYTES);
+                    throw new IllegalStateException("Failed to stage " + name);
+                }
+                listener.stageStarted(TransferStage.COMPRESSING, STAGE_BYTES);
+                mostCompressing.set(Math.max(mostCompressing.get(), 
+                        compressing.incrementAndGet()));
+                Thread.sleep(50);
+                listener.transferred(TransferStage.COMPRESSING, STAGE_BYTES);
+                compressing.decrementAndGet();
+                listener.stageFinished(TransferStage.COMPRESSING);
+                listener.stageStarted(TransferStage.UPLOADING, STAGE_BYTES);
+                listener.transferred(TransferStage.UPLOADING, STAGE_BYTES);
+                listener.stageFinished(TransferStage.UPLOADING);
+                return new ResponseEntity<>(name, HttpStatus.CREATED);
+            }
+        });
+    }
+}
@@ -0,0 +1,450 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.apache.commons.io.IOUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link ChannelClientHttpRequestFactory} class against servers
+ * that record the requests they receive, over plain HTTP and over TLS.
+ *
+ * @author Keone Hiraide
+ */
+public class ChannelClientHttpRequestFactoryTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+     // The keystore holding the self-signed certificate of localhost.
+    private static final String KEYSTORE = "/localhost.jks";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+     // Records the last request it receives.
+    private HttpServer server;
+
+     // The client ports of the connections that requests arrived on.
+    private final Set<Integer> clientPorts =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+     // The headers and body of the last request.
+    private volatile String contentLength;
+    private volatile String transferEncoding;
+    private volatile byte[] body;
+
+     // The SIP uploaded by each test.
+    private Path sipPath;
+    private byte[] sip;
+
+     // Sends requests over socket channels.
+    private ChannelClientHttpRequestFactory requestFactory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        sip = new byte[5 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(sip);
+        sipPath = Files.createTempFile("record_series_", ".zip");
+        Files.write(sipPath, sip);
+        requestFactory = new ChannelClientHttpRequestFactory();
+        requestFactory.setReadTimeout(30000);
+        server = null;
+        clientPorts.clear();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        requestFactory.shutdown();
+        if (server != null) {
+            server.stop(0);
+        }
+        Files.deleteIfExists(sipPath);
+    }
+
+    /**
+     * Tests that a SIP is sent over plain HTTP with its Content-Length, and
+     * that every byte of it is reported.
+     */
+    @Test
+    public void uploadTest() throws IOException {
+        startServer(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+        final AtomicLong uploaded = new AtomicLong();
+        StreamingMultipartRequest request = createRequest(uploaded);
+
+        ResponseEntity<String> response = request.post(new RestTemplate(requestFactory),
+                getURL("http", "/accessions"));
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(response.getBody(), "Created");
+        Assert.assertNull(transferEncoding);
+        Assert.assertEquals(Long.parseLong(contentLength), request.getContentLength());
+        assertReceived(uploaded);
+    }
+
+    /**
+     * Tests that a SIP is sent over TLS, and that the certificate of the
+     * server is checked against its host name.
+     */
+    @Test
+    public void tlsTest() throws Exception {
+        startHttpsServer();
+        final AtomicLong uploaded = new AtomicLong();
+        StreamingMultipartRequest request = createRequest(uploaded);
+
+        ResponseEntity<String> response = request.post(new RestTemplate(requestFactory),
+                getURL("https", "/accessions"));
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(response.getBody(), "Created");
+        assertReceived(uploaded);
+    }
+
+    /**
+     * Tests that a body of unknown length is sent with the chunked transfer
+     * coding.
+     */
+    @Test
+    public void chunkedTest() throws IOException {
+        startServer(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+
+        String response = new RestTemplate(requestFactory).execute(getURL("http", "/accessions"),
+                HttpMethod.POST, new RequestCallback() {
+                    @Override
+                    public void doWithRequest(ClientHttpRequest request) throws IOException {
+                        OutputStream out = request.getBody();
+                        out.write(Arrays.copyOfRange(sip, 0, 1000));
+                        out.write(Arrays.copyOfRange(sip, 1000, 70000));
+                    }
+                }, new ResponseExtractor<String>() {
+                    @Override
+                    public String extractData(ClientHttpResponse response) throws IOException {
+                        return IOUtils.toString(response.getBody(), "UTF-8");
+                    }
+                });
+
+        Assert.assertEquals(response, "Created");
+        Assert.assertEquals(transferEncoding, "chunked");
+        Assert.assertEquals(body, Arrays.copyOfRange(sip, 0, 70000));
+    }
+
+    /**
+     * Tests that an error status is thrown by the RestTemplate.
+     */
+    @Test
+    public void errorTest() throws IOException {
+        startServer(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+        server.createContext("/full", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    IOUtils.toByteArray(in);
+                }
+                byte[] response = "The archive is full".getBytes(UTF_8);
+                exchange.sendResponseHeaders(HttpStatus.INSUFFICIENT_STORAGE.value(),
+                        response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        });
+
+        try {
+            createRequest(new AtomicLong()).post(new RestTemplate(requestFactory),
+                    getURL("http", "/full"));
+            Assert.fail("The error status was not thrown");
+        } catch (HttpServerErrorException e) {
+            Assert.assertEquals(e.getStatusCode(), HttpStatus.INSUFFICIENT_STORAGE);
+            Assert.assertEquals(e.getResponseBodyAsString(), "The archive is full");
+        }
+    }
+
+    /**
+     * Tests that a SIP is sent through the proxy chosen by the default proxy
+     * selector, outside of the pool of connections.
+     */
+    @Test
+    public void proxyTest() throws IOException {
+        startServer(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+        final Proxy proxy = new Proxy(Proxy.Type.HTTP, server.getAddress());
+        ProxySelector defaultSelector = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(proxy);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException e) {
+            }
+        });
+        try {
+            final AtomicLong uploaded = new AtomicLong();
+            StreamingMultipartRequest request = createRequest(uploaded);
+
+            // Only the proxy can reach the .invalid domain.
+            ResponseEntity<String> response = request.post(new RestTemplate(requestFactory),
+                    "http://archives.invalid/accessions");
+
+            Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+            Assert.assertEquals(response.getBody(), "Created");
+            assertReceived(uploaded);
+            Assert.assertEquals(requestFactory.getOpenConnections(), 0);
+        } finally {
+            ProxySelector.setDefault(defaultSelector);
+        }
+    }
+
+    /**
+     * Tests that requests to the same server, over plain HTTP and over TLS,
+     * are sent over a single connection that is kept alive between them.
+     */
+    @Test
+    public void keepAliveTest() throws Exception {
+        startServer(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(createRequest(new AtomicLong()).post(restTemplate,
+                    getURL("http", "/accessions")).getBody(), "Created");
+            Assert.assertEquals(get(restTemplate, getURL("http", "/accessions")), "Created");
+        }
+        Assert.assertEquals(clientPorts.size(), 1);
+        Assert.assertEquals(requestFactory.getOpenConnections(), 1);
+        server.stop(0);
+
+        startHttpsServer();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(get(restTemplate, getURL("https", "/accessions")), "Created");
+        }
+        Assert.assertEquals(clientPorts.size(), 2);
+    }
+
+    /**
+     * Tests that no more connections are opened to a server than its limit,
+     * however many requests are sent at once.
+     */
+    @Test
+    public void routeLimitTest() throws Exception {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        startServer(httpServer);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger mostActive = new AtomicInteger();
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int now = active.incrementAndGet();
+                int most;
+                while ((most = mostActive.get()) < now && !mostActive.compareAndSet(most, now)) {
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+                byte[] response = "Done".getBytes(UTF_8);
+                exchange.sendResponseHeaders(HttpStatus.OK.value(), response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        });
+        requestFactory.setRouteLimits(Collections.singletonMap(
+                "LOCALHOST:" + server.getAddress().getPort(), 2));
+        final RestTemplate restTemplate = new RestTemplate(requestFactory);
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                responses.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return get(restTemplate, getURL("http", "/slow"));
+                    }
+                }));
+            }
+            for (Future<String> response : responses) {
+                Assert.assertEquals(response.get(), "Done");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(mostActive.get(), 2);
+        Assert.assertEquals(requestFactory.getOpenConnections(), 2);
+    }
+
+    /**
+     * Tests that a connection the server closed while it was idle is not
+     * reused.
+     */
+    @Test
+    public void staleConnectionTest() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Answers one request on each connection, without asking
+                // for it to be closed, and then closes it.
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        accepted.incrementAndGet();
+                        InputStream in = socket.getInputStream();
+                        int last = 0;
+                        int b;
+                        while ((b = in.read()) != -1 && !(last == '\n' && b == '\r')) {
+                            last = b == '\r' ? last : b;
+                        }
+                        in.read();
+                        socket.getOutputStream().write(("HTTP/1.1 200 OK\r\n"
+                                + "Content-Length: 2\r\n\r\nOK").getBytes(UTF_8));
+                    } catch (IOException e) {
+                        // The test has finished.
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            String url = "http://localhost:" + serverSocket.getLocalPort() + "/status";
+            Assert.assertEquals(get(restTemplate, url), "OK");
+            Thread.sleep(200);
+            Assert.assertEquals(get(restTemplate, url), "OK");
+            Assert.assertEquals(accepted.get(), 2);
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private void startHttpsServer() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = getClass().getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        HttpsServer httpsServer = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpsServer.setHttpsConfigurator(new HttpsConfigurator(context));
+        startServer(httpsServer);
+        requestFactory.setSslContext(context);
+    }
+
+    private String get(RestTemplate restTemplate, String url) {
+        return restTemplate.execute(url, HttpMethod.GET, null,
+                new ResponseExtractor<String>() {
+                    @Override
+                    public String extractData(ClientHttpResponse response) throws IOException {
+                        return IOUtils.toString(response.getBody(), "UTF-8");
+                    }
+                });
+    }
+
+    private void startServer(HttpServer server) {
+        this.server = server;
+        server.createContext("/accessions", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                try (InputStream in = exchange.getRequestBody()) {
+                    body = IOUtils.toByteArray(in);
+                }
+                // The response is sent with the chunked transfer coding.
+                exchange.sendResponseHeaders(HttpStatus.CREATED.value(), 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write("Created".getBytes(UTF_8));
+                }
+            }
+        });
+        server.start();
+    }
+
+    private StreamingMultipartRequest createRequest(final AtomicLong uploaded)
+            throws IOException {
+        StreamingMultipartRequest request = new StreamingMultipartRequest();
+        request.setTransferListener(new TransferListener() {
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+                uploaded.addAndGet(bytes);
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        });
+        request.addFile("file", sipPath.getFileName().toString(),
+                FileChannel.open(sipPath, StandardOpenOption.READ), sip.length);
+        request.addField("rtpId", "ark:/0000/Stub");
+        return request;
+    }
+
+    private void assertReceived(AtomicLong uploaded) {
+        Assert.assertEquals(uploaded.get(), sip.length);
+        String text = new String(body, Charset.forName("ISO-8859-1"));
+        int start = text.indexOf("\r\n\r\n") + 4;
+        Assert.assertEquals(Arrays.copyOfRange(body, start, start + sip.length), sip);
+        Assert.assertTrue(text.contains("name=\"rtpId\""));
+    }
+
+    private String getURL(String scheme, String path) {
+        return scheme + "://localhost:" + server.getAddress().getPort() + path;
+    }
+}
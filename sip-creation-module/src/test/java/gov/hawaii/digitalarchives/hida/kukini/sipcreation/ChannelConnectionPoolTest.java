@@ -0,0 +1,181 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link ChannelConnectionPool} class with connections to a 
+ * server that accepts them and sends nothing.
+ *
+ * @author Keone Hiraide
+ */
+public class ChannelConnectionPoolTest {
+
+     // The routes the connections are pooled under. Both lead to the server.
+    private static final String ROUTE = "archives:80";
+    private static final String OTHER_ROUTE = "archives:443";
+
+     // Accepts the connections.
+    private ServerSocket server;
+
+     // The server side of each connection, in the order they were opened.
+    private final List<Socket> accepted = new ArrayList<>();
+
+     // Provides the limits of the pool.
+    private ChannelClientHttpRequestFactory factory;
+
+    private ChannelConnectionPool pool;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        accepted.clear();
+        factory = new ChannelClientHttpRequestFactory();
+        pool = new ChannelConnectionPool(factory);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        factory.shutdown();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Tests that a released connection is reused, most recently released 
+     * first, and that the pool counts it once.
+     */
+    @Test
+    public void reuseTest() throws IOException {
+        ChannelConnection first = open(ROUTE);
+        ChannelConnection second = open(ROUTE);
+        pool.release(first);
+        pool.release(second);
+
+        Assert.assertSame(pool.acquire(ROUTE), second);
+        Assert.assertSame(pool.acquire(ROUTE), first);
+        Assert.assertEquals(pool.getOpenConnections(), 2);
+    }
+
+    /**
+     * Tests that a request waits while its route has as many connections
+     * open as its limit, and takes the connection that is released.
+     */
+    @Test
+    public void routeLimitTest() throws Exception {
+        factory.setMaxConnectionsPerRoute(1);
+        ChannelConnection connection = open(ROUTE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ChannelConnection> waiting = executor.submit(
+                    new Callable<ChannelConnection>() {
+                        @Override
+                        public ChannelConnection call() throws IOException {
+                            return pool.acquire(ROUTE);
+                        }
+                    });
+            Thread.sleep(200);
+            Assert.assertFalse(waiting.isDone());
+            Assert.assertNull(pool.acquire(OTHER_ROUTE));
+
+            pool.release(connection);
+            Assert.assertSame(waiting.get(5, TimeUnit.SECONDS), connection);
+            Assert.assertEquals(pool.getOpenConnections(), 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that the connection of another route that has been idle longest
+     * is closed to make room once the pool is full.
+     */
+    @Test
+    public void evictionTest() throws Exception {
+        factory.setMaxConnections(2);
+        ChannelConnection eldest = open(OTHER_ROUTE);
+        ChannelConnection other = open(OTHER_ROUTE);
+        pool.release(eldest);
+        Thread.sleep(20);
+        pool.release(other);
+
+        Assert.assertNull(pool.acquire(ROUTE));
+        Assert.assertFalse(eldest.isUsable());
+        Assert.assertEquals(pool.getOpenConnections(), 2);
+        Assert.assertSame(pool.acquire(OTHER_ROUTE), other);
+    }
+
+    /**
+     * Tests that idle connections that the server has closed, or that have
+     * been idle longer than the keep-alive timeout, are closed instead of
+     * being reused.
+     */
+    @Test
+    public void staleConnectionTest() throws Exception {
+        factory.setKeepAliveTimeout(100);
+        ChannelConnection closedByServer = open(ROUTE);
+        ChannelConnection expired = open(ROUTE);
+        pool.release(expired);
+        Thread.sleep(200);
+        pool.release(closedByServer);
+        accepted.get(0).close();
+        Thread.sleep(50);
+
+        Assert.assertNull(pool.acquire(ROUTE));
+        Assert.assertFalse(closedByServer.isUsable());
+        Assert.assertFalse(expired.isUsable());
+        Assert.assertEquals(pool.getOpenConnections(), 1);
+    }
+
+    /**
+     * Tests that shutting the pool down closes its idle connections, closes
+     * those in use once they are released, and refuses new requests.
+     */
+    @Test
+    public void shutdownTest() throws IOException {
+        ChannelConnection idle = open(ROUTE);
+        ChannelConnection inUse = open(ROUTE);
+        pool.release(idle);
+
+        pool.shutdown();
+        Assert.assertFalse(idle.isUsable());
+        Assert.assertEquals(pool.getOpenConnections(), 1);
+        pool.release(inUse);
+        Assert.assertFalse(inUse.isUsable());
+        Assert.assertEquals(pool.getOpenConnections(), 0);
+        try {
+            pool.acquire(ROUTE);
+            Assert.fail("A connection was acquired from a pool that was shut down");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("shut down"), e.getMessage());
+        }
+    }
+
+    /**
+     * Reserves room for a new connection and opens it, as the request
+     * factory does.
+     */
+    private ChannelConnection open(String route) throws IOException {
+        Assert.assertNull(pool.acquire(route));
+        SocketChannel channel = SocketChannel.open(server.getLocalSocketAddress());
+        accepted.add(server.accept());
+        return new ChannelConnection(route, channel, null);
+    }
+}
@@ -0,0 +1,140 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link ChunkedUploader} and {@link ContentDefinedChunker}
+ * classes against a {@link SipUploaderStandIn}.
+ *
+ * @author Keone Hiraide
+ */
+public class ChunkedUploaderTest {
+
+     // Splits files into chunks of 16 KB on average.
+    private final ContentDefinedChunker chunker = new ContentDefinedChunker(4 * 1024, 
+            16 * 1024, 64 * 1024);
+
+     // Directory holding the file of each test.
+    private Path outputDirectory;
+
+     // A 2 MB database export, and its contents.
+    private Path export;
+    private byte[] contents;
+
+     // Receives the chunks.
+    private SipUploaderStandIn server;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        outputDirectory = Files.createTempDirectory("chunked-upload");
+        contents = new byte[2 * 1024 * 1024];
+        new Random(42).nextBytes(contents);
+        export = Files.write(outputDirectory.resolve("export.sql"), contents);
+        server = new SipUploaderStandIn();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        server.stop();
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+
+    /**
+     * Tests that the chunks cover the file, are within the size limits, and
+     * mostly keep their checksums when bytes are inserted into the file.
+     */
+    @Test
+    public void chunkTest() throws IOException {
+        List<ContentDefinedChunker.Chunk> chunks = chunker.split(export);
+        long offset = 0;
+        Set<String> checksums = new HashSet<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            ContentDefinedChunker.Chunk chunk = chunks.get(i);
+            Assert.assertEquals(chunk.getOffset(), offset);
+            Assert.assertTrue(chunk.getLength() <= 64 * 1024);
+            Assert.assertTrue(chunk.getLength() >= 4 * 1024 || i == chunks.size() - 1);
+            offset += chunk.getLength();
+            checksums.add(chunk.getChecksum());
+        }
+        Assert.assertEquals(offset, contents.length);
+        
+        byte[] inserted = new byte[contents.length + 100];
+        System.arraycopy(contents, 0, inserted, 0, contents.length / 2);
+        System.arraycopy(contents, contents.length / 2, inserted, contents.length / 2 + 100,
+                contents.length / 2);
+        Files.write(export, inserted);
+        int unchanged = 0;
+        List<ContentDefinedChunker.Chunk> insertedChunks = chunker.split(export);
+        for (ContentDefinedChunker.Chunk chunk : insertedChunks) {
+            if (checksums.contains(chunk.getChecksum())) {
+                unchanged++;
+            }
+        }
+        Assert.assertTrue(unchanged >= insertedChunks.size() - 3, 
+                unchanged + " of " + insertedChunks.size() + " chunks were unchanged");
+    }
+
+    /**
+     * Tests that a file is rebuilt by the server, and that only the chunks
+     * around a change are sent again once the file has been modified.
+     */
+    @Test
+    public void uploadTest() throws Exception {
+        ChunkedUploader uploader = new ChunkedUploader(server.getChunksURL());
+        uploader.setChunker(chunker);
+        
+        String url = uploader.upload(list(export), "sha256", sha256(contents), restTemplate);
+        
+        Assert.assertEquals(server.getChunkBytesReceived(), contents.length);
+        Assert.assertEquals(server.getRebuilt().get(url.substring(url.indexOf("/sipuploader"))),
+                contents);
+        
+        for (int i = 0; i < 1024; i++) {
+            contents[contents.length / 3 + i] ^= 0x5a;
+        }
+        Files.write(export, contents);
+        url = uploader.upload(list(export), "sha256", sha256(contents), restTemplate);
+        
+        Assert.assertTrue(server.getChunkBytesReceived() - contents.length < 3 * 64 * 1024, 
+                "Sent " + (server.getChunkBytesReceived() - contents.length) + " bytes again");
+        Assert.assertEquals(server.getRebuilt().get(url.substring(url.indexOf("/sipuploader"))),
+                contents);
+    }
+
+    /**
+     * Tests that a file whose rebuilt contents do not have the checksum of
+     * the manifest is refused.
+     */
+    @Test(expectedExceptions = HttpClientErrorException.class)
+    public void checksumMismatchTest() throws Exception {
+        ChunkedUploader uploader = new ChunkedUploader(server.getChunksURL());
+        uploader.setChunker(chunker);
+        
+        uploader.upload(list(export), "sha256", sha256(new byte[1]), restTemplate);
+    }
+
+    private PayloadFile list(Path path) {
+        return PayloadFile.fromPaths(Collections.singletonList(path)).get(0);
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        return BagManifest.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+}
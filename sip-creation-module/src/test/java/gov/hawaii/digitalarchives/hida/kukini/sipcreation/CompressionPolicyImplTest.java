@@ -0,0 +1,75 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link CompressionPolicyImpl} class.
+ *
+ * @author Keone Hiraide
+ */
+public class CompressionPolicyImplTest {
+
+    /**
+     * Tests that already-compressed formats are stored and that text is
+     * deflated.
+     */
+    @Test
+    public void isCompressibleTest() {
+        CompressionPolicyImpl policy = new CompressionPolicyImpl();
+        Assert.assertFalse(isCompressible(policy, bytes(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10)));
+        Assert.assertFalse(isCompressible(policy, bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)));
+        Assert.assertFalse(isCompressible(policy, "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertFalse(isCompressible(policy, bytes('P', 'K', 0x03, 0x04, 0x14, 0x00)));
+        Assert.assertTrue(isCompressible(policy, "<?xml version=\"1.0\"?>"
+                .getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertTrue(isCompressible(policy, "Aloha".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertTrue(isCompressible(policy, new byte[0]));
+    }
+
+    /**
+     * Tests that TIFF images are only stored when they are compressed.
+     */
+    @Test
+    public void tiffTest() {
+        CompressionPolicyImpl policy = new CompressionPolicyImpl();
+        // A little endian TIFF whose only directory entry is its compression
+        // scheme: 1 (uncompressed) or 5 (LZW).
+        byte[] uncompressed = bytes('I', 'I', 42, 0, 8, 0, 0, 0, 1, 0, 
+                0x03, 0x01, 3, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0);
+        byte[] lzw = Arrays.copyOf(uncompressed, uncompressed.length);
+        lzw[18] = 5;
+        Assert.assertTrue(isCompressible(policy, uncompressed));
+        Assert.assertFalse(isCompressible(policy, lzw));
+    }
+
+    /**
+     * Tests that only the configured formats are stored.
+     */
+    @Test
+    public void storedFormatsTest() {
+        CompressionPolicyImpl policy = new CompressionPolicyImpl();
+        policy.setStoredFormats(Arrays.asList("pdf", " ZIP "));
+        Assert.assertTrue(isCompressible(policy, bytes(0xFF, 0xD8, 0xFF, 0xE0)));
+        Assert.assertFalse(isCompressible(policy, bytes('P', 'K', 0x03, 0x04)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void unknownFormatTest() {
+        new CompressionPolicyImpl().setStoredFormats(Arrays.asList("docx"));
+    }
+
+    private boolean isCompressible(CompressionPolicy policy, byte[] header) {
+        return policy.isCompressible("accession/data/file", header, header.length);
+    }
+
+    private byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,135 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link DeltaNegotiator} class against a
+ * {@link SipUploaderStandIn}.
+ *
+ * @author Keone Hiraide
+ */
+public class DeltaNegotiatorTest {
+
+     // The manifest algorithms of the SIP.
+    private static final List<String> ALGORITHMS = Arrays.asList("md5", "sha256");
+
+     // Directory holding the payload and the SIP of each test.
+    private Path outputDirectory;
+
+     // The payload of the SIP: a report that the archive holds, and a scan
+     // that it does not.
+    private Path report;
+    private Path scan;
+    private List<PayloadFile> payload;
+
+     // Answers which files the archive holds.
+    private SipUploaderStandIn server;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        outputDirectory = Files.createTempDirectory("delta");
+        Path payloadDirectory = Files.createDirectory(outputDirectory.resolve("payload"));
+        Random random = new Random(42);
+        byte[] contents = new byte[64 * 1024];
+        random.nextBytes(contents);
+        report = Files.write(payloadDirectory.resolve("report.pdf"), contents);
+        random.nextBytes(contents);
+        scan = Files.write(payloadDirectory.resolve("scan.tif"), contents);
+        payload = PayloadFile.fromPaths(Collections.singletonList(payloadDirectory));
+        server = new SipUploaderStandIn();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        server.stop();
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+
+    /**
+     * Tests that a file the archive holds is matched by its SHA-256
+     * checksum, left out of the SIP and listed in fetch.txt, and that the
+     * manifests still list every file.
+     */
+    @Test
+    public void deltaTest() throws Exception {
+        String sha256 = BagManifest.toHex(MessageDigest.getInstance("SHA-256")
+                .digest(Files.readAllBytes(report)));
+        server.hold(sha256, "https://hida.example/content/" + sha256);
+        PayloadStagingEngine stagingEngine = new PayloadStagingEngine(1);
+        List<BagManifest> manifests = stagingEngine.checksum(payload, ALGORITHMS, 
+                TransferListener.NONE);
+
+        FetchList fetchList = new DeltaNegotiator(server.getHoldingsURL())
+                .negotiate(payload, manifests, restTemplate);
+
+        Assert.assertEquals(server.getManifestAlgorithm(), "sha256");
+        Assert.assertEquals(fetchList.getFileCount(), 1);
+        Assert.assertEquals(fetchList.getByteCount(), Files.size(report));
+        Assert.assertEquals(fetchList.exclude(payload).size(), 1);
+        
+        Path sipPath = new StreamingSipBuilder(ALGORITHMS, new ParallelDeflater(1), null)
+                .build(payload, fetchList, Collections.<String, byte[]>emptyMap(), 
+                outputDirectory.resolve("record_series_1.zip"), TransferListener.NONE);
+        
+        String reportPath = PayloadFile.toBagPath(report);
+        String scanPath = PayloadFile.toBagPath(scan);
+        try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+            Assert.assertNull(sip.getEntry("accession/" + reportPath));
+            Assert.assertNotNull(sip.getEntry("accession/" + scanPath));
+            Assert.assertEquals(read(sip, "accession/fetch.txt"), "https://hida.example/content/"
+                    + sha256 + " 65536 " + reportPath + "\n");
+            for (String algorithm : ALGORITHMS) {
+                String manifest = read(sip, "accession/manifest-" + algorithm + ".txt");
+                Assert.assertTrue(manifest.contains("  " + reportPath + "\n"));
+                Assert.assertTrue(manifest.contains("  " + scanPath + "\n"));
+                Assert.assertTrue(read(sip, "accession/tagmanifest-" + algorithm + ".txt")
+                        .contains("fetch.txt"));
+            }
+            Assert.assertTrue(read(sip, "accession/manifest-sha256.txt")
+                    .contains(sha256 + "  " + reportPath));
+            Assert.assertTrue(read(sip, "accession/bag-info.txt")
+                    .contains("Payload-Oxum: 131072.2"));
+        }
+    }
+
+    /**
+     * Tests that every file is sent when the archive cannot be asked.
+     */
+    @Test
+    public void unavailableTest() {
+        String holdingsURL = server.getHoldingsURL();
+        server.stop();
+        List<BagManifest> manifests = new PayloadStagingEngine(1).checksum(payload, 
+                ALGORITHMS, TransferListener.NONE);
+
+        FetchList fetchList = new DeltaNegotiator(holdingsURL).negotiate(payload, manifests,
+                restTemplate);
+
+        Assert.assertTrue(fetchList.isEmpty());
+        Assert.assertEquals(fetchList.exclude(payload), payload);
+    }
+
+    private String read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return IOUtils.toString(in, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link DigestCacheImpl} class.
+ *
+ * @author Keone Hiraide
+ */
+public class DigestCacheImplTest {
+
+    private static final byte[] DIGEST = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+     // Holds the cache and the file whose checksum is cached.
+    private Path directory;
+    private Path cacheFile;
+    private Path file;
+
+    private DigestCacheImpl cache;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("digest-cache");
+        cacheFile = directory.resolve("digest-cache");
+        file = directory.resolve("report.pdf");
+        Files.write(file, "The annual report".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        cache = new DigestCacheImpl(cacheFile, 1024);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        cache.close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    /**
+     * Tests that a checksum is found again, even after the cache is
+     * reopened, but not for another algorithm.
+     */
+    @Test
+    public void putTest() throws IOException {
+        cache.put(list(file), "md5", DIGEST);
+
+        Assert.assertEquals(cache.get(list(file), "md5"), DIGEST);
+        Assert.assertNull(cache.get(list(file), "sha256"));
+        cache.close();
+        cache = new DigestCacheImpl(cacheFile, 1024);
+        Assert.assertEquals(cache.get(list(file), "md5"), DIGEST);
+    }
+
+    /**
+     * Tests that a checksum is not returned once the file has changed, nor
+     * remembered for a file that was modified a moment ago.
+     */
+    @Test
+    public void changedFileTest() throws IOException {
+        cache.put(list(file), "md5", DIGEST);
+        Files.write(file, "The amended report".getBytes(StandardCharsets.UTF_8));
+
+        PayloadFile changed = list(file);
+        Assert.assertNull(cache.get(changed, "md5"));
+        cache.put(changed, "md5", DIGEST);
+        Assert.assertNull(cache.get(changed, "md5"));
+    }
+
+    /**
+     * Tests that a slot that was only partly written is not trusted.
+     */
+    @Test
+    public void tornSlotTest() throws IOException {
+        cache.put(list(file), "md5", DIGEST);
+        cache.close();
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer table = ByteBuffer.allocate((int) channel.size());
+            channel.read(table, 0);
+            byte[] bytes = table.array();
+            for (int i = 64; i < bytes.length; i++) {
+                if (bytes[i] == DIGEST[15] && bytes[i - 1] == DIGEST[14]) {
+                    channel.write(ByteBuffer.wrap(new byte[] {0}), i);
+                }
+            }
+        }
+
+        cache = new DigestCacheImpl(cacheFile, 1024);
+        Assert.assertNull(cache.get(list(file), "md5"));
+    }
+
+    /**
+     * Tests that a cache held by another instance is not used.
+     */
+    @Test
+    public void lockedTest() throws IOException {
+        DigestCacheImpl other = new DigestCacheImpl(cacheFile, 1024);
+        try {
+            other.put(list(file), "md5", DIGEST);
+            Assert.assertNull(other.get(list(file), "md5"));
+        } finally {
+            other.close();
+        }
+    }
+
+    private PayloadFile list(Path path) {
+        List<PayloadFile> payload = PayloadFile.fromPaths(Collections.singletonList(path));
+        return payload.get(0);
+    }
+}
@@ -0,0 +1,33 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.kukini.provenance.MachineInfoExtractor;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the machine information of the user, which cannot be 
+ * extracted without the native Sigar libraries. It is registered ahead of 
+ * the extractor of the provenance module for the tests.
+ *
+ * @author Keone Hiraide
+ */
+public class MachineInfoStandIn implements MachineInfoExtractor {
+
+     // The machine information placed within the accession record.
+    private Map<String, String> machineInfoPair = new HashMap<>();
+
+    public MachineInfoStandIn() {
+        machineInfoPair.put("systemName", System.getProperty("os.name"));
+        machineInfoPair.put("hostName", "localhost");
+    }
+
+    @Override
+    public Map<String, String> getMachineInfoPair() {
+        return machineInfoPair;
+    }
+
+    @Override
+    public void setMachineInfoPair(Map<String, String> machineInfoPair) {
+        this.machineInfoPair = machineInfoPair;
+    }
+}
@@ -0,0 +1,307 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link PayloadStagingEngine} class.
+ *
+ * @author Keone Hiraide
+ */
+public class PayloadStagingEngineTest {
+
+     // Directory holding the payload and the bag of each test.
+    private Path outputDirectory;
+    private Path payloadDirectory;
+    private Path rootDirectory;
+
+     // Copies the files of each test.
+    private PayloadStagingEngine engine;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        outputDirectory = Files.createTempDirectory("staging");
+        payloadDirectory = Files.createDirectory(outputDirectory.resolve("payload"));
+        rootDirectory = Files.createDirectory(outputDirectory.resolve("accession"));
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        if (engine != null) {
+            engine.shutdown();
+            engine = null;
+        }
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+
+    /**
+     * Tests that the failure of a file is the one reported, rather than the
+     * failure of a file after it within the payload that failed sooner.
+     */
+    @Test
+    public void failureOrderTest() throws IOException {
+        engine = new PayloadStagingEngine(3);
+        engine.setLinking(false);
+        final Path missing = payloadDirectory.resolve("missing.txt");
+        final CountDownLatch missingFailing = new CountDownLatch(1);
+        // The missing file is looked up in the cache just before it fails
+        // to be read.
+        engine.setDigestCache(new DigestCache() {
+            @Override
+            public byte[] get(PayloadFile file, String algorithm) {
+                if (file.getSource().equals(missing)) {
+                    missingFailing.countDown();
+                }
+                return null;
+            }
+
+            @Override
+            public void put(PayloadFile file, String algorithm, byte[] digest) {
+            }
+        });
+        List<PayloadFile> payload = new ArrayList<>();
+        payload.add(createFile("slow.txt", 1234));
+        payload.add(createFile("fine.txt", 10));
+        payload.add(new PayloadFile(missing, "data/missing.txt", 10));
+
+        // The first file fails only once the missing file has failed.
+        TransferListener listener = new TransferListener() {
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+                if (bytes != 1234) {
+                    return;
+                }
+                try {
+                    Assert.assertTrue(missingFailing.await(10, TimeUnit.SECONDS));
+                    TimeUnit.MILLISECONDS.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("The slow file failed");
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        };
+
+        try {
+            engine.stage(payload, rootDirectory, Collections.singletonList("md5"), listener);
+            Assert.fail("The payload was staged");
+        } catch (HidaIOException e) {
+            Assert.assertNotNull(e.getCause());
+            Assert.assertEquals(e.getCause().getMessage(), "The slow file failed");
+        }
+    }
+
+    /**
+     * Tests that the files after a failed file are not copied, and that no
+     * copy is still running once the failure is reported.
+     */
+    @Test
+    public void abortTest() throws IOException, InterruptedException {
+        engine = new PayloadStagingEngine(2);
+        engine.setLinking(false);
+        Path missing = payloadDirectory.resolve("missing.txt");
+        List<PayloadFile> payload = new ArrayList<>();
+        payload.add(new PayloadFile(missing, "data/missing.txt", 10));
+        for (int i = 0; i < 40; i++) {
+            payload.add(createFile("file" + i + ".txt", 1024));
+        }
+        final AtomicInteger copied = new AtomicInteger();
+        TransferListener listener = new TransferListener() {
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+                copied.incrementAndGet();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        };
+
+        try {
+            engine.stage(payload, rootDirectory, Collections.singletonList("md5"), listener);
+            Assert.fail("The payload was staged");
+        } catch (HidaIOException e) {
+            Assert.assertTrue(e.getMessage().contains(missing.toString()), e.getMessage());
+        }
+        int copiedWhenFailed = copied.get();
+        Assert.assertTrue(copiedWhenFailed < 10, copiedWhenFailed + " files were copied");
+        TimeUnit.MILLISECONDS.sleep(200);
+        Assert.assertEquals(copied.get(), copiedWhenFailed);
+    }
+
+    /**
+     * Tests that a file on the same volume as the bag is hard linked into
+     * the bag, and is still checksummed.
+     */
+    @Test
+    public void linkTest() throws IOException {
+        engine = new PayloadStagingEngine(1);
+        engine.setLinking(true);
+        PayloadFile payloadFile = createFile("report.pdf", 1234);
+
+        BagManifest manifest = engine.stage(Collections.singletonList(payloadFile), 
+                rootDirectory, "md5");
+
+        Path target = payloadFile.resolveIn(rootDirectory);
+        Assert.assertTrue(Files.isSameFile(target, payloadFile.getSource()));
+        Assert.assertEquals(manifest.getChecksum(payloadFile.getBagPath()), md5(1234));
+    }
+
+    /**
+     * Tests that the files of a directory on another volume than the bag
+     * are copied rather than linked.
+     */
+    @Test
+    public void crossVolumeTest() throws IOException {
+        Path otherVolume = findOtherVolume();
+        Path otherDirectory = Files.createTempDirectory(otherVolume, "staging");
+        try {
+            engine = new PayloadStagingEngine(1);
+            engine.setLinking(true);
+            List<PayloadFile> payload = new ArrayList<>();
+            payload.add(createFile(otherDirectory.resolve("a.txt"), 1234));
+            payload.add(createFile(otherDirectory.resolve("b.txt"), 1234));
+
+            BagManifest manifest = engine.stage(payload, rootDirectory, "md5");
+
+            for (PayloadFile payloadFile : payload) {
+                Path target = payloadFile.resolveIn(rootDirectory);
+                Assert.assertFalse(Files.isSameFile(target, payloadFile.getSource()));
+                Assert.assertEquals(Files.size(target), 1234);
+                Assert.assertEquals(manifest.getChecksum(payloadFile.getBagPath()), md5(1234));
+            }
+        } finally {
+            FileUtils.deleteDirectory(otherDirectory.toFile());
+        }
+    }
+
+    /**
+     * Tests that a linked file whose checksum is cached is not hashed, and
+     * that it is hashed once it has changed.
+     */
+    @Test
+    public void cachedLinkTest() throws IOException {
+        engine = new PayloadStagingEngine(1);
+        engine.setLinking(true);
+        MapDigestCache cache = new MapDigestCache();
+        engine.setDigestCache(cache);
+        PayloadFile payloadFile = createFile("report.pdf", 1234);
+        // A checksum the file does not have shows that it was not hashed.
+        byte[] cached = new byte[16];
+        cache.put(payloadFile, "md5", cached);
+
+        BagManifest manifest = engine.stage(Collections.singletonList(payloadFile), 
+                rootDirectory, "md5");
+        Assert.assertTrue(Files.isSameFile(payloadFile.resolveIn(rootDirectory), 
+                payloadFile.getSource()));
+        Assert.assertEquals(manifest.getChecksum(payloadFile.getBagPath()), 
+                BagManifest.toHex(cached));
+
+        // The file was modified after it was listed.
+        FileUtils.deleteDirectory(rootDirectory.toFile());
+        Files.setLastModifiedTime(payloadFile.getSource(), FileTime.fromMillis(
+                Files.getLastModifiedTime(payloadFile.getSource()).toMillis() - 60000));
+        manifest = engine.stage(Collections.singletonList(payloadFile), rootDirectory, "md5");
+        Assert.assertEquals(manifest.getChecksum(payloadFile.getBagPath()), md5(1234));
+    }
+
+    /**
+     * Creates a payload file of zeros within the payload directory.
+     */
+    private PayloadFile createFile(String name, int size) throws IOException {
+        Path file = Files.write(payloadDirectory.resolve(name), new byte[size]);
+        return PayloadFile.fromPaths(Collections.singletonList(file)).get(0);
+    }
+
+    /**
+     * Creates a file of zeros.
+     */
+    private PayloadFile createFile(Path file, int size) throws IOException {
+        Files.write(file, new byte[size]);
+        return PayloadFile.fromPaths(Collections.singletonList(file)).get(0);
+    }
+
+    /**
+     * @return A writable directory on another volume than the temporary
+     *         directory, e.g. a RAM disk.
+     */
+    private Path findOtherVolume() throws IOException {
+        FileStore store = Files.getFileStore(outputDirectory);
+        for (String candidate : new String[] {"/dev/shm", "/run/shm", "/Volumes/RAMDisk"}) {
+            Path directory = Paths.get(candidate);
+            if (Files.isDirectory(directory) && Files.isWritable(directory)
+                    && !Files.getFileStore(directory).equals(store)) {
+                return directory;
+            }
+        }
+        throw new SkipException("There is no writable volume besides that of "
+                + outputDirectory);
+    }
+
+    /**
+     * @return The md5 checksum of a number of zeros, in hex.
+     */
+    private static String md5(int size) {
+        try {
+            return BagManifest.toHex(MessageDigest.getInstance("MD5")
+                    .digest(new byte[size]));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A digest cache held in memory, which leaves it to the engine to check
+     * whether a file has changed.
+     */
+    private static class MapDigestCache implements DigestCache {
+        private final Map<String, byte[]> checksums = new HashMap<>();
+
+        @Override
+        public byte[] get(PayloadFile file, String algorithm) {
+            return checksums.get(file.getBagPath() + algorithm);
+        }
+
+        @Override
+        public void put(PayloadFile file, String algorithm, byte[] digest) {
+            checksums.put(file.getBagPath() + algorithm, digest);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link ResumableUploader} class against a
+ * {@link SipUploaderStandIn}.
+ *
+ * @author Keone Hiraide
+ */
+public class ResumableUploaderTest {
+
+     // The number of bytes sent by each request.
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+     // Directory holding the SIP uploaded by each test.
+    private Path outputDirectory;
+
+     // The SIP uploaded by each test.
+    private Path sipPath;
+
+     // The contents of the SIP.
+    private byte[] sip;
+
+     // Accepts the uploads.
+    private SipUploaderStandIn server;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        outputDirectory = Files.createTempDirectory("resumable-upload");
+        sip = new byte[10 * CHUNK_SIZE + 123];
+        new Random(42).nextBytes(sip);
+        sipPath = Files.write(outputDirectory.resolve("record_series_1.zip"), sip);
+        server = new SipUploaderStandIn();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        server.stop();
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+
+    /**
+     * Tests that a SIP is sent in chunks and that its upload state is
+     * deleted once the upload has completed.
+     */
+    @Test
+    public void uploadTest() {
+        ResponseEntity<String> response = createUploader().upload(sipPath, "ark:/0000/Stub",
+                restTemplate);
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+        Assert.assertEquals(server.getBytesReceived(), sip.length);
+        Assert.assertFalse(UploadSession.exists(sipPath));
+    }
+
+    /**
+     * Tests that an upload that was given up part way is resumed where it
+     * stopped, without sending the acknowledged chunks again.
+     */
+    @Test
+    public void resumeTest() {
+        server.setUnavailableAfter(4 * CHUNK_SIZE);
+        ResumableUploader uploader = createUploader();
+        uploader.setMaxRetries(0);
+        try {
+            uploader.upload(sipPath, "ark:/0000/Stub", restTemplate);
+            Assert.fail("The upload should have failed");
+        } catch (HttpServerErrorException e) {
+            Assert.assertEquals(e.getStatusCode(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        Assert.assertTrue(UploadSession.exists(sipPath));
+        Assert.assertEquals(UploadSession.load(sipPath).getOffset(), 4 * CHUNK_SIZE);
+
+        server.recover();
+        ResponseEntity<String> response = createUploader().upload(sipPath, "ark:/0000/Stub",
+                restTemplate);
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(server.getSessionCount(), 1);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+        Assert.assertEquals(server.getBytesReceived(), sip.length);
+        Assert.assertFalse(UploadSession.exists(sipPath));
+    }
+
+    /**
+     * Tests that a chunk that was received by the server, but whose
+     * acknowledgement was lost, is not sent again.
+     */
+    @Test
+    public void lostAcknowledgementTest() {
+        server.loseAcknowledgements(2);
+        ResponseEntity<String> response = createUploader().upload(sipPath, "ark:/0000/Stub",
+                restTemplate);
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+        Assert.assertEquals(server.getBytesReceived(), sip.length);
+    }
+
+    /**
+     * Tests that the bytes acknowledged by the server are reported, and that
+     * interrupting the uploading thread stops the upload between two chunks
+     * while keeping its state.
+     */
+    @Test
+    public void cancelTest() {
+        final AtomicLong uploaded = new AtomicLong();
+        ResumableUploader uploader = createUploader();
+        uploader.setTransferListener(new TransferListener() {
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+                if (uploaded.addAndGet(bytes) >= 3 * CHUNK_SIZE) {
+                    // The user cancels the transfer.
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        });
+        try {
+            uploader.upload(sipPath, "ark:/0000/Stub", restTemplate);
+            Assert.fail("The upload should have been cancelled");
+        } catch (HidaIOException e) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+        Assert.assertEquals(uploaded.get(), 3 * CHUNK_SIZE);
+        Assert.assertEquals(server.getBytesReceived(), 3 * CHUNK_SIZE);
+        Assert.assertEquals(UploadSession.load(sipPath).getOffset(), 3 * CHUNK_SIZE);
+    }
+
+    /**
+     * Tests that a saved upload state is discarded once the SIP has changed.
+     */
+    @Test
+    public void changedSipTest() throws IOException {
+        new UploadSession(sipPath, URI.create(server.getUploadsURL() + "/1")).save();
+        Files.write(sipPath, new byte[] {1, 2, 3});
+
+        Assert.assertNull(UploadSession.load(sipPath));
+        Assert.assertFalse(UploadSession.exists(sipPath));
+    }
+
+    private ResumableUploader createUploader() {
+        ResumableUploader uploader = new ResumableUploader(server.getUploadsURL());
+        uploader.setChunkSize(CHUNK_SIZE);
+        uploader.setRetryDelayMillis(1);
+        return uploader;
+    }
+}
@@ -0,0 +1,77 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SegmentTuner} class.
+ *
+ * @author Keone Hiraide
+ */
+public class SegmentTunerTest {
+
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Tests that segments are sized to take 16 round trips at the measured
+     * throughput of a connection, within the bounds of the segment size.
+     */
+    @Test
+    public void segmentSizeTest() {
+        SegmentTuner tuner = new SegmentTuner(4, MIN_SEGMENT_SIZE, MIN_SEGMENT_SIZE,
+                MAX_SEGMENT_SIZE);
+        Assert.assertEquals(tuner.getSegmentSize(), MIN_SEGMENT_SIZE);
+
+        // 10 MB/s with a 50 ms round trip: 16 round trips carry 8 MB.
+        tuner.recordRoundTrip(TimeUnit.MILLISECONDS.toNanos(50));
+        tuner.recordSegment(1000 * 1000, TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertEquals(tuner.getRoundTripMillis(), 50);
+        Assert.assertEquals(tuner.getSegmentSize(), 8000000 / (64 * 1024) * (64 * 1024));
+
+        // A link so fast that the segment size reaches its bound.
+        tuner.recordRoundTrip(TimeUnit.MILLISECONDS.toNanos(60));
+        for (int i = 0; i < 20; i++) {
+            tuner.recordSegment(100 * 1000 * 1000, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        Assert.assertEquals(tuner.getRoundTripMillis(), 50);
+        Assert.assertEquals(tuner.getSegmentSize(), MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Tests that the number of connections is halved whenever a segment
+     * fails, down to a single connection.
+     */
+    @Test
+    public void failureTest() {
+        SegmentTuner tuner = new SegmentTuner(8, MIN_SEGMENT_SIZE, MIN_SEGMENT_SIZE,
+                MAX_SEGMENT_SIZE);
+        Assert.assertEquals(tuner.getConnections(), 2);
+        tuner.recordFailure();
+        Assert.assertEquals(tuner.getConnections(), 1);
+        tuner.recordFailure();
+        Assert.assertEquals(tuner.getConnections(), 1);
+    }
+
+    /**
+     * Tests that connections are added while they raise the throughput, up
+     * to the most connections allowed.
+     */
+    @Test
+    public void connectionsTest() throws InterruptedException {
+        SegmentTuner tuner = new SegmentTuner(3, MIN_SEGMENT_SIZE, MIN_SEGMENT_SIZE,
+                MAX_SEGMENT_SIZE);
+        long bytes = 1000;
+        for (int window = 0; window < 4; window++) {
+            // Each window sends twice the bytes of the last in the same time.
+            Thread.sleep(20);
+            int segments = tuner.getConnections() * 2;
+            for (int i = 0; i < segments; i++) {
+                tuner.recordSegment((int) (bytes / segments), 1000);
+            }
+            bytes *= 2;
+        }
+        Assert.assertEquals(tuner.getConnections(), 3);
+    }
+}
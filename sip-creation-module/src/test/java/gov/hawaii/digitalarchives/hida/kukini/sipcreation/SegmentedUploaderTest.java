@@ -0,0 +1,123 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SegmentedUploader} class against a
+ * {@link SipUploaderStandIn}.
+ *
+ * @author Keone Hiraide
+ */
+public class SegmentedUploaderTest {
+
+     // The smallest segment sent by the tests.
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+     // Directory holding the SIP uploaded by each test.
+    private Path outputDirectory;
+
+     // The SIP uploaded by each test.
+    private Path sipPath;
+
+     // The contents of the SIP.
+    private byte[] sip;
+
+     // Accepts the uploads.
+    private SipUploaderStandIn server;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        outputDirectory = Files.createTempDirectory("segmented-upload");
+        sip = new byte[40 * SEGMENT_SIZE + 321];
+        new Random(42).nextBytes(sip);
+        sipPath = Files.write(outputDirectory.resolve("record_series_1.zip"), sip);
+        server = new SipUploaderStandIn();
+        server.setLatencyMillis(20);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        server.stop();
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+
+    /**
+     * Tests that the segments of a SIP are sent over several connections at
+     * the same time, and are reassembled by the server.
+     */
+    @Test
+    public void uploadTest() {
+        ResponseEntity<String> response = createUploader().upload(sipPath, "ark:/0000/Stub",
+                restTemplate);
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+        Assert.assertEquals(server.getBytesReceived(), sip.length);
+        Assert.assertTrue(server.getMaxActiveChunks() > 1);
+        Assert.assertFalse(UploadSession.exists(sipPath));
+    }
+
+    /**
+     * Tests that segments whose requests fail are sent again.
+     */
+    @Test
+    public void failedSegmentTest() {
+        server.loseAcknowledgements(3);
+        ResponseEntity<String> response = createUploader().upload(sipPath, "ark:/0000/Stub",
+                restTemplate);
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+    }
+
+    /**
+     * Tests that an upload that was given up part way is resumed from the
+     * contiguous bytes acknowledged by the server.
+     */
+    @Test
+    public void resumeTest() {
+        server.setUnavailableAfter(sip.length / 2);
+        SegmentedUploader uploader = createUploader();
+        uploader.setMaxRetries(0);
+        try {
+            uploader.upload(sipPath, "ark:/0000/Stub", restTemplate);
+            Assert.fail("The upload should have failed");
+        } catch (HttpServerErrorException e) {
+            Assert.assertEquals(e.getStatusCode(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        long offset = UploadSession.load(sipPath).getOffset();
+        Assert.assertTrue(offset > 0 && offset <= server.getBytesReceived());
+
+        server.recover();
+        ResponseEntity<String> response = createUploader().upload(sipPath, "ark:/0000/Stub",
+                restTemplate);
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(server.getSessionCount(), 1);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+        Assert.assertFalse(UploadSession.exists(sipPath));
+    }
+
+    private SegmentedUploader createUploader() {
+        SegmentedUploader uploader = new SegmentedUploader(server.getUploadsURL(), 4);
+        uploader.setChunkSize(SEGMENT_SIZE);
+        uploader.setMinSegmentSize(SEGMENT_SIZE);
+        uploader.setMaxSegmentSize(4 * SEGMENT_SIZE);
+        uploader.setRetryDelayMillis(1);
+        return uploader;
+    }
+}
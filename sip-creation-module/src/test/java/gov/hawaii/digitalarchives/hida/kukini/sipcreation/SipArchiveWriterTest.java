@@ -0,0 +1,198 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SipArchiveWriter} class.
+ *
+ * @author Keone Hiraide
+ */
+public class SipArchiveWriterTest {
+
+     // Directory holding the SIP created by each test.
+    private Path outputDirectory;
+
+     // Compresses the entries on several threads, in blocks small enough
+     // that every large entry is split.
+    private ParallelDeflater deflater;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        outputDirectory = Files.createTempDirectory("sip-archive");
+        deflater = new ParallelDeflater(4);
+        deflater.setBlockSize(32 * 1024);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        deflater.shutdown();
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+
+    /**
+     * Tests that a SIP written to a file can be read by {@link ZipFile} and
+     * {@link ZipInputStream}, and that entries split into several blocks are
+     * inflated back to their original contents.
+     */
+    @Test
+    public void writeFileTest() throws Exception {
+        Map<String, byte[]> contents = createContents();
+        Path sipPath = outputDirectory.resolve("record_series_1.zip");
+        try (SipArchiveWriter zip = new SipArchiveWriter(sipPath, deflater)) {
+            write(zip, contents);
+        }
+
+        try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+            Assert.assertNotNull(sip.getEntry("accession/"));
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                ZipEntry zipEntry = sip.getEntry(entry.getKey());
+                Assert.assertEquals(zipEntry.getSize(), entry.getValue().length);
+                try (InputStream in = sip.getInputStream(zipEntry)) {
+                    Assert.assertEquals(IOUtils.toByteArray(in), entry.getValue());
+                }
+            }
+        }
+        try (InputStream in = Files.newInputStream(sipPath)) {
+            assertStreamContents(in, contents);
+        }
+    }
+
+    /**
+     * Tests that a SIP written to a stream, whose entries are followed by
+     * data descriptors, can be read back.
+     */
+    @Test
+    public void writeStreamTest() throws Exception {
+        Map<String, byte[]> contents = createContents();
+        Path sipPath = outputDirectory.resolve("record_series_2.zip");
+        try (OutputStream out = Files.newOutputStream(sipPath);
+                SipArchiveWriter zip = new SipArchiveWriter(out, deflater)) {
+            write(zip, contents);
+        }
+
+        try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                try (InputStream in = sip.getInputStream(sip.getEntry(entry.getKey()))) {
+                    Assert.assertEquals(IOUtils.toByteArray(in), entry.getValue());
+                }
+            }
+        }
+        try (InputStream in = Files.newInputStream(sipPath)) {
+            assertStreamContents(in, contents);
+        }
+    }
+
+    /**
+     * Tests that files deemed incompressible are stored when writing to a
+     * file, are wrapped in uncompressed deflate blocks when writing to a
+     * stream, and can be read back either way.
+     */
+    @Test
+    public void storeIncompressibleTest() throws Exception {
+        Map<String, byte[]> contents = createContents();
+        byte[] jpeg = new byte[100 * 1024];
+        new Random(7).nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        contents.put("accession/data/photo.jpg", jpeg);
+
+        Path filePath = outputDirectory.resolve("record_series_3.zip");
+        try (SipArchiveWriter zip = new SipArchiveWriter(filePath, deflater)) {
+            zip.setCompressionPolicy(new CompressionPolicyImpl());
+            write(zip, contents);
+        }
+        Path streamPath = outputDirectory.resolve("record_series_4.zip");
+        try (OutputStream out = Files.newOutputStream(streamPath);
+                SipArchiveWriter zip = new SipArchiveWriter(out, deflater)) {
+            zip.setCompressionPolicy(new CompressionPolicyImpl());
+            write(zip, contents);
+        }
+
+        try (ZipFile sip = new ZipFile(filePath.toFile())) {
+            Assert.assertEquals(sip.getEntry("accession/data/photo.jpg").getMethod(), ZipEntry.STORED);
+            Assert.assertEquals(sip.getEntry("accession/data/records.txt").getMethod(), ZipEntry.DEFLATED);
+        }
+        for (Path sipPath : new Path[] {filePath, streamPath}) {
+            try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+                try (InputStream in = sip.getInputStream(sip.getEntry("accession/data/photo.jpg"))) {
+                    Assert.assertEquals(IOUtils.toByteArray(in), jpeg);
+                }
+            }
+            try (InputStream in = Files.newInputStream(sipPath)) {
+                assertStreamContents(in, contents);
+            }
+        }
+    }
+
+    private void write(SipArchiveWriter zip, Map<String, byte[]> contents) throws IOException {
+        zip.writeDirectoryEntry("accession", -1);
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            byte[] bytes = entry.getValue();
+            Assert.assertEquals(zip.writeEntry(entry.getKey(), new ByteArrayInputStream(bytes),
+                    bytes.length, -1, null), bytes.length);
+        }
+        zip.finish();
+    }
+
+    private void assertStreamContents(InputStream in, Map<String, byte[]> contents)
+            throws IOException {
+        int count = 0;
+        try (ZipInputStream zip = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    Assert.assertEquals(IOUtils.toByteArray(zip), contents.get(entry.getName()));
+                    count++;
+                }
+            }
+        }
+        Assert.assertEquals(count, contents.size());
+    }
+
+    /**
+     * @return Entries of various sizes: empty, smaller than a block, an
+     *         exact number of blocks, and several blocks of text and of
+     *         random (incompressible) bytes.
+     */
+    private Map<String, byte[]> createContents() {
+        Random random = new Random(42);
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("accession/data/empty.txt", new byte[0]);
+        contents.put("accession/data/small.txt", "Aloha".getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 300 * 1024) {
+            text.append("Line ").append(random.nextInt(1000)).append(" of the record series\n");
+        }
+        contents.put("accession/data/records.txt", text.toString()
+                .getBytes(StandardCharsets.UTF_8));
+
+        byte[] exact = new byte[64 * 1024];
+        random.nextBytes(exact);
+        contents.put("accession/data/exact.bin", exact);
+
+        byte[] image = new byte[200 * 1024 + 17];
+        random.nextBytes(image);
+        contents.put("accession/data/image.bin", image);
+        return contents;
+    }
+}
@@ -0,0 +1,113 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SipPipe} class.
+ *
+ * @author Keone Hiraide
+ */
+public class SipPipeTest {
+
+    /**
+     * Tests that bytes written faster than they are read arrive whole and
+     * in order, and that the writer waits while the buffer is full.
+     */
+    @Test
+    public void transferTest() throws Exception {
+        final byte[] sip = new byte[100000];
+        new Random(42).nextBytes(sip);
+        final SipPipe pipe = new SipPipe(1024);
+        FutureTask<Void> writer = start(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                OutputStream out = pipe.getOutputStream();
+                for (int offset = 0; offset < sip.length; offset += 3000) {
+                    out.write(sip, offset, Math.min(3000, sip.length - offset));
+                }
+                pipe.finish();
+                return null;
+            }
+        });
+
+        // The writer cannot get further than the buffer until it is read.
+        try {
+            writer.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("The writer did not wait for the reader");
+        } catch (TimeoutException e) {
+            Assert.assertEquals(pipe.getInputStream().available(), 1024);
+        }
+
+        byte[] received = IOUtils.toByteArray(pipe.getInputStream());
+        writer.get();
+        Assert.assertEquals(received, sip);
+    }
+
+    /**
+     * Tests that the reader fails, after reading the bytes that were
+     * written, when the writer fails.
+     */
+    @Test
+    public void failureTest() throws IOException {
+        SipPipe pipe = new SipPipe(1024);
+        pipe.getOutputStream().write(new byte[] {1, 2, 3});
+        pipe.fail(new IllegalStateException("Disk error"));
+
+        InputStream in = pipe.getInputStream();
+        byte[] read = new byte[10];
+        Assert.assertEquals(in.read(read), 3);
+        Assert.assertEquals(Arrays.copyOf(read, 3), new byte[] {1, 2, 3});
+        try {
+            in.read(read);
+            Assert.fail("A truncated SIP was read as a whole one");
+        } catch (IOException e) {
+            Assert.assertEquals(e.getCause().getMessage(), "Disk error");
+        }
+    }
+
+    /**
+     * Tests that a writer waiting for room fails when the reader cancels
+     * the pipe.
+     */
+    @Test
+    public void cancelTest() throws Exception {
+        final SipPipe pipe = new SipPipe(16);
+        FutureTask<Void> writer = start(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                pipe.getOutputStream().write(new byte[64]);
+                return null;
+            }
+        });
+        Thread.sleep(100);
+
+        pipe.cancel();
+
+        try {
+            writer.get(5, TimeUnit.SECONDS);
+            Assert.fail("The writer did not stop");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static FutureTask<Void> start(Callable<Void> callable) {
+        FutureTask<Void> task = new FutureTask<>(callable);
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+}
@@ -0,0 +1,290 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.kukini.provenance.UserInformation;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.openide.filesystems.FileUtil;
+import org.openide.loaders.DataObject;
+import org.openide.util.Lookup;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SipUploaderImpl} class through 
+ * {@link SipUploader#createAndUploadSip(List, Path, RestTemplate, TransferListener)},
+ * the entry point used by the {@link TransferTask} of the user interface, 
+ * against a {@link SipUploaderStandIn}. Each uploader stands in for a 
+ * Kukini; a Kukini that crashes is stood in for by a listener that throws.
+ *
+ * @author Keone Hiraide
+ */
+public class SipUploaderImplTest {
+
+     // The number of bytes sent by each request.
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+     // Holds the selected files, the workspaces and the journal.
+    private Path directory;
+
+     // The files that the user has selected.
+    private List<DataObject> selectedContext;
+
+     // Accepts the uploads.
+    private SipUploaderStandIn server;
+
+     // The journal and workspaces of the running Kukini.
+    private TransferJournal transferJournal;
+    private TempWorkspaceManagerImpl workspaceManager;
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sip-uploader");
+        Path records = Files.createDirectory(directory.resolve("records"));
+        Random random = new Random(42);
+        selectedContext = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] contents = new byte[4 * CHUNK_SIZE];
+            random.nextBytes(contents);
+            Path file = Files.write(records.resolve("record" + i + ".bin"), contents);
+            selectedContext.add(DataObject.find(FileUtil.toFileObject(
+                    FileUtil.normalizeFile(file.toFile()))));
+        }
+        UserInformation userInformation = Lookup.getDefault().lookup(UserInformation.class);
+        userInformation.setFullName("Keone Hiraide");
+        userInformation.setDepartment("Accounting and General Services");
+        userInformation.setDivision("Archives");
+        userInformation.setBranch("Digital Archives");
+        server = new SipUploaderStandIn();
+        start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        stop();
+        server.stop();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    /**
+     * Tests that a transfer started from the user interface is journaled, 
+     * that its SIP is kept when Kukini crashes part way through its upload,
+     * and that the next Kukini resumes the upload where it stopped.
+     */
+    @Test
+    public void resumeTest() throws IOException {
+        SipUploader sipUploader = createUploader();
+        try {
+            sipUploader.createAndUploadSip(selectedContext, workspaceManager.createWorkspace(),
+                    restTemplate, new CrashingListener(2 * CHUNK_SIZE));
+            Assert.fail("The transfer should have failed");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Kukini crashed");
+        }
+        Path sipPath = getSipPath();
+        Assert.assertTrue(UploadSession.exists(sipPath));
+        byte[] sip = Files.readAllBytes(sipPath);
+
+        stop();
+        start();
+        workspaceManager.deleteOrphans();
+        Assert.assertEquals(transferJournal.getInterruptedJobs().size(), 1);
+        Map<List<Path>, ResponseEntity<String>> responses = createUploader()
+                .resumeInterruptedTransfers(restTemplate);
+
+        assertResumed(responses, sipPath, sip);
+    }
+
+    /**
+     * Tests that a transfer whose SIP could not be sent because the server
+     * was down is kept, along with its SIP, when resuming it fails because 
+     * the server is still down, and that it is resumed the time after.
+     */
+    @Test
+    public void resumeFailedTest() throws IOException {
+        server.setUnavailableAfter(0);
+        try {
+            createUploader().createAndUploadSip(selectedContext, 
+                    workspaceManager.createWorkspace(), restTemplate, TransferListener.NONE);
+            Assert.fail("The transfer should have failed");
+        } catch (HttpServerErrorException e) {
+            Assert.assertEquals(e.getStatusCode(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        Path sipPath = getSipPath();
+        Assert.assertFalse(UploadSession.exists(sipPath));
+        byte[] sip = Files.readAllBytes(sipPath);
+
+        stop();
+        start();
+        workspaceManager.deleteOrphans();
+        Map<List<Path>, ResponseEntity<String>> responses = createUploader()
+                .resumeInterruptedTransfers(restTemplate);
+
+        Assert.assertEquals(responses.size(), 1);
+        Assert.assertTrue(responses.containsKey(PayloadFile.toPaths(selectedContext)));
+        Assert.assertNull(responses.get(PayloadFile.toPaths(selectedContext)));
+        Assert.assertEquals(transferJournal.getWorkspaces(), Collections.singleton(sipPath));
+
+        stop();
+        start();
+        workspaceManager.deleteOrphans();
+        Assert.assertEquals(transferJournal.getInterruptedJobs().size(), 1);
+        server.recover();
+        responses = createUploader().resumeInterruptedTransfers(restTemplate);
+
+        assertResumed(responses, sipPath, sip);
+    }
+
+    /**
+     * Tests that a transfer that the user cancels is finished in the 
+     * journal, and that its SIP is deleted rather than kept for resuming.
+     */
+    @Test
+    public void cancelTest() {
+        TransferListener cancelling = new TransferListener() {
+
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+                if (stage == TransferStage.UPLOADING) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        };
+        Path workspace = workspaceManager.createWorkspace();
+        try {
+            createUploader().createAndUploadSip(selectedContext, workspace, restTemplate, 
+                    cancelling);
+            Assert.fail("The transfer should have been cancelled");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+        Assert.assertTrue(transferJournal.getWorkspaces().isEmpty());
+        workspaceManager.shutdown();
+        Assert.assertFalse(Files.exists(workspace.resolveSibling(workspace.getFileName() 
+                + ".zip")));
+    }
+
+    /**
+     * @return The SIP of the only transfer that is kept in the journal, 
+     *         once it has been zipped.
+     */
+    private Path getSipPath() {
+        Set<Path> workspaces = transferJournal.getWorkspaces();
+        Assert.assertEquals(workspaces.size(), 1);
+        Path sipPath = workspaces.iterator().next();
+        Assert.assertTrue(Files.isRegularFile(sipPath));
+        return sipPath;
+    }
+
+    /**
+     * Asserts that the only transfer kept in the journal has been resumed,
+     * that its SIP was uploaded once, and that it has been finished.
+     */
+    private void assertResumed(Map<List<Path>, ResponseEntity<String>> responses, 
+            Path sipPath, byte[] sip) {
+        Assert.assertEquals(responses.size(), 1);
+        Assert.assertEquals(responses.get(PayloadFile.toPaths(selectedContext)).getStatusCode(),
+                HttpStatus.CREATED);
+        Assert.assertEquals(server.getSessionCount(), 1);
+        Assert.assertEquals(server.getCompleted().get("1"), sip);
+        Assert.assertTrue(transferJournal.getWorkspaces().isEmpty());
+        workspaceManager.shutdown();
+        Assert.assertFalse(Files.exists(sipPath));
+    }
+
+    /**
+     * Opens the journal and workspaces of a Kukini that is starting.
+     */
+    private void start() {
+        transferJournal = new TransferJournal(directory.resolve("transfer-journal"));
+        workspaceManager = new TempWorkspaceManagerImpl(directory);
+        workspaceManager.setTransferJournal(transferJournal);
+    }
+
+    /**
+     * Closes the journal and workspaces of the running Kukini.
+     */
+    private void stop() {
+        workspaceManager.shutdown();
+        transferJournal.close();
+    }
+
+    /**
+     * @return An uploader wired as Spring wires it, sending SIPs in small 
+     *         resumable chunks.
+     */
+    private SipUploaderImpl createUploader() {
+        SipUploaderImpl sipUploader = new SipUploaderImpl(server.getUploadsURL());
+        ReflectionTestUtils.setField(sipUploader, "stagingEngine", new PayloadStagingEngine(2));
+        ReflectionTestUtils.setField(sipUploader, "deflater", new ParallelDeflater(1));
+        ReflectionTestUtils.setField(sipUploader, "compressionPolicy", 
+                new CompressionPolicyImpl());
+        ReflectionTestUtils.setField(sipUploader, "transferJournal", transferJournal);
+        ReflectionTestUtils.setField(sipUploader, "workspaceManager", workspaceManager);
+        ReflectionTestUtils.setField(sipUploader, "log", 
+                LoggerFactory.getLogger(SipUploaderImpl.class));
+        sipUploader.setResumableUploadURL(server.getUploadsURL());
+        sipUploader.setChunkSize(CHUNK_SIZE);
+        return sipUploader;
+    }
+
+    /**
+     * Throws once a number of bytes of the SIP have been uploaded, as if 
+     * Kukini had crashed.
+     */
+    private static class CrashingListener implements TransferListener {
+
+         // The number of bytes uploaded before the crash.
+        private final long crashAfter;
+
+         // The number of bytes uploaded so far.
+        private long uploaded;
+
+        CrashingListener(long crashAfter) {
+            this.crashAfter = crashAfter;
+        }
+
+        @Override
+        public void stageStarted(TransferStage stage, long totalBytes) {
+        }
+
+        @Override
+        public void transferred(TransferStage stage, long bytes) {
+            if (stage == TransferStage.UPLOADING) {
+                uploaded += bytes;
+                if (uploaded >= crashAfter) {
+                    throw new IllegalStateException("Kukini crashed");
+                }
+            }
+        }
+
+        @Override
+        public void stageFinished(TransferStage stage) {
+        }
+    }
+}
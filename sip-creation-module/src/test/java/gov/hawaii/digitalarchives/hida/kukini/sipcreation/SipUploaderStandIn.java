@@ -0,0 +1,477 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A stand-in for the SIP uploader servlet that implements the resumable
+ * upload protocol described by {@link ResumableUploader}, and the
+ * out-of-order segments of {@link SegmentedUploader}, along with the 
+ * delta protocol of {@link DeltaNegotiator} and the chunks of
+ * {@link ChunkedUploader}. It runs within the
+ * test on an embedded HTTP server, and can be told to fail, or to answer
+ * slowly, so that interrupted uploads and high latency links can be tested.
+ *
+ * @author Keone Hiraide
+ */
+public class SipUploaderStandIn implements HttpHandler {
+
+     // The path to which upload sessions are created.
+    private static final String UPLOADS_PATH = "/sipuploader/uploads";
+
+     // The path to which payload manifests are sent to find the files the
+     // archive holds.
+    private static final String HOLDINGS_PATH = "/sipuploader/holdings";
+
+     // The path to which chunks are sent, and from which rebuilt files are
+     // fetched.
+    private static final String CHUNKS_PATH = "/sipuploader/chunks";
+    private static final String CONTENT_PATH = "/sipuploader/content/";
+
+     // The HTTP server the stand-in runs on.
+    private final HttpServer server;
+
+     // Handles the requests, several at a time.
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+     // The upload sessions, keyed by their IDs.
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+     // The SIPs whose uploads have completed, keyed by the session ID.
+    private final Map<String, byte[]> completed = new ConcurrentHashMap<>();
+
+     // Used to number the upload sessions.
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+     // The number of bytes of chunks that have been received.
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+     // Once this many bytes of chunks have been received, every request
+     // fails with 503 Service Unavailable.
+    private volatile long unavailableAfter = Long.MAX_VALUE;
+
+     // The number of chunks whose acknowledgement is lost: the chunk is
+     // kept, but the request fails with 500 Internal Server Error.
+    private final AtomicInteger lostAcknowledgements = new AtomicInteger();
+
+     // How long to wait before answering each request.
+    private volatile long latencyMillis;
+
+     // The number of chunks being received now, and the most that have
+     // been received at the same time.
+    private final AtomicInteger activeChunks = new AtomicInteger();
+    private final AtomicInteger maxActiveChunks = new AtomicInteger();
+
+     // The URLs of the contents that the archive holds, keyed by their
+     // checksums.
+    private final Map<String, String> holdings = new ConcurrentHashMap<>();
+
+     // The algorithm of the last manifest received by the holdings.
+    private volatile String manifestAlgorithm;
+
+     // The chunks received, keyed by their SHA-256 checksums.
+    private final Map<String, byte[]> chunks = new ConcurrentHashMap<>();
+
+     // The number of bytes of chunks received.
+    private final AtomicLong chunkBytesReceived = new AtomicLong();
+
+     // The files rebuilt from chunks, keyed by the URL they are fetched from.
+    private final Map<String, byte[]> rebuilt = new ConcurrentHashMap<>();
+
+    /**
+     * Starts the stand-in on a free port of the loopback interface.
+     */
+    public SipUploaderStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(UPLOADS_PATH, this);
+        server.createContext(HOLDINGS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answerHoldings(exchange);
+            }
+        });
+        server.createContext(CHUNKS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                receiveChunks(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return The URL to which upload sessions are created.
+     */
+    public String getUploadsURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + UPLOADS_PATH;
+    }
+
+    /**
+     * @return The URL to which payload manifests are sent.
+     */
+    public String getHoldingsURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + HOLDINGS_PATH;
+    }
+
+    /**
+     * Makes the archive hold the contents with a checksum.
+     */
+    public void hold(String checksum, String url) {
+        holdings.put(checksum, url);
+    }
+
+    /**
+     * @return The URL to which chunks are sent.
+     */
+    public String getChunksURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + CHUNKS_PATH;
+    }
+
+    /**
+     * @return The number of bytes of chunks that have been received.
+     */
+    public long getChunkBytesReceived() {
+        return chunkBytesReceived.get();
+    }
+
+    /**
+     * @return The files rebuilt from chunks, keyed by the URL they are
+     *         fetched from.
+     */
+    public Map<String, byte[]> getRebuilt() {
+        return rebuilt;
+    }
+
+    /**
+     * @return The algorithm of the last manifest received, or null.
+     */
+    public String getManifestAlgorithm() {
+        return manifestAlgorithm;
+    }
+
+    /**
+     * Makes every request fail once this many bytes of chunks have been
+     * received, as if the server had gone down.
+     */
+    public void setUnavailableAfter(long bytes) {
+        this.unavailableAfter = bytes;
+    }
+
+    /**
+     * Makes the server available again.
+     */
+    public void recover() {
+        this.unavailableAfter = Long.MAX_VALUE;
+    }
+
+    /**
+     * Loses the acknowledgements of the next chunks that are received.
+     */
+    public void loseAcknowledgements(int count) {
+        lostAcknowledgements.set(count);
+    }
+
+    /**
+     * Delays every answer, as if the server were far away.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return The most chunks or segments received at the same time.
+     */
+    public int getMaxActiveChunks() {
+        return maxActiveChunks.get();
+    }
+
+    /**
+     * @return The number of bytes of chunks that have been received,
+     *         including those that were sent more than once.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return The number of upload sessions that have been created.
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * @return The SIPs whose uploads have completed, keyed by session ID.
+     */
+    public Map<String, byte[]> getCompleted() {
+        return completed;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring(UPLOADS_PATH.length());
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (bytesReceived.get() >= unavailableAfter) {
+                respond(exchange, 503);
+            } else if (path.isEmpty() && method.equals("POST")) {
+                createSession(exchange, body);
+            } else if (path.endsWith("/complete") && method.equals("POST")) {
+                complete(exchange, path.substring(1, path.length() - "/complete".length()));
+            } else if (path.endsWith("/segments") && method.equals("PUT")) {
+                receiveChunk(exchange, path.substring(1, path.length() - "/segments".length()),
+                        body, false);
+            } else if (!sessions.containsKey(path.substring(1))) {
+                respond(exchange, 404);
+            } else if (method.equals("HEAD")) {
+                exchange.getResponseHeaders().set(ResumableUploader.OFFSET_HEADER,
+                        Long.toString(sessions.get(path.substring(1)).getContiguous()));
+                respond(exchange, 200);
+            } else if (method.equals("PUT")) {
+                receiveChunk(exchange, path.substring(1), body, true);
+            } else {
+                respond(exchange, 405);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers the checksums of a manifest whose contents the archive holds.
+     */
+    private void answerHoldings(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            manifestAlgorithm = exchange.getRequestHeaders()
+                    .getFirst(DeltaNegotiator.ALGORITHM_HEADER);
+            StringBuilder held = new StringBuilder();
+            for (String line : new String(body, StandardCharsets.UTF_8).split("\n")) {
+                String checksum = line.split("  ", 2)[0];
+                if (holdings.containsKey(checksum)) {
+                    held.append(checksum).append(' ').append(holdings.get(checksum))
+                            .append('\n');
+                }
+            }
+            byte[] message = held.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, message.length == 0 ? -1 : message.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(message);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers the chunks it does not hold, receives a chunk, or rebuilds a
+     * file from its chunks.
+     */
+    private void receiveChunks(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring(CHUNKS_PATH.length());
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            if (path.isEmpty() && method.equals("POST")) {
+                StringBuilder missing = new StringBuilder();
+                for (String checksum : lines(body)) {
+                    if (!chunks.containsKey(checksum)) {
+                        missing.append(checksum).append('\n');
+                    }
+                }
+                byte[] message = missing.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, message.length == 0 ? -1 : message.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(message);
+                }
+            } else if (path.equals("/files") && method.equals("POST")) {
+                ByteArrayOutputStream file = new ByteArrayOutputStream();
+                for (String checksum : lines(body)) {
+                    if (!chunks.containsKey(checksum)) {
+                        respond(exchange, 400);
+                        return;
+                    }
+                    file.write(chunks.get(checksum));
+                }
+                String algorithm = exchange.getRequestHeaders()
+                        .getFirst(DeltaNegotiator.ALGORITHM_HEADER);
+                String checksum = BagManifest.toHex(MessageDigest.getInstance(
+                        BagManifest.toJavaAlgorithm(algorithm)).digest(file.toByteArray()));
+                if (!checksum.equals(exchange.getRequestHeaders()
+                        .getFirst(ChunkedUploader.CONTENT_CHECKSUM_HEADER))) {
+                    respond(exchange, 422);
+                    return;
+                }
+                String url = CONTENT_PATH + checksum;
+                rebuilt.put(url, file.toByteArray());
+                exchange.getResponseHeaders().set("Location", url);
+                respond(exchange, 201);
+            } else if (method.equals("PUT")) {
+                String checksum = path.substring(1);
+                chunkBytesReceived.addAndGet(body.length);
+                if (!BagManifest.toHex(MessageDigest.getInstance("SHA-256").digest(body))
+                        .equals(checksum)) {
+                    respond(exchange, 400);
+                    return;
+                }
+                chunks.put(checksum, body);
+                respond(exchange, 204);
+            } else {
+                respond(exchange, 405);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            respond(exchange, 400);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static List<String> lines(byte[] body) {
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(body, StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private void createSession(HttpExchange exchange, byte[] body) throws IOException {
+        Map<String, String> form = new HashMap<>();
+        for (String field : new String(body, StandardCharsets.UTF_8).split("&")) {
+            String[] pair = field.split("=", 2);
+            form.put(URLDecoder.decode(pair[0], "UTF-8"), URLDecoder.decode(pair[1], "UTF-8"));
+        }
+        String id = Integer.toString(sessionCount.incrementAndGet());
+        sessions.put(id, new Session(Integer.parseInt(form.get("size"))));
+        exchange.getResponseHeaders().set("Location", UPLOADS_PATH + "/" + id);
+        respond(exchange, 201);
+    }
+
+    /**
+     * Receives a chunk, which must follow the bytes already received when
+     * the chunks are sequential, or a segment, which may be anywhere.
+     */
+    private void receiveChunk(HttpExchange exchange, String id, byte[] body,
+            boolean sequential) throws IOException {
+        Session session = sessions.get(id);
+        if (session == null) {
+            respond(exchange, 404);
+            return;
+        }
+        int active = activeChunks.incrementAndGet();
+        try {
+            int max;
+            while (active > (max = maxActiveChunks.get())
+                    && !maxActiveChunks.compareAndSet(max, active)) {
+                // Another chunk raised the maximum at the same time.
+            }
+            long offset = Long.parseLong(exchange.getRequestHeaders()
+                    .getFirst(ResumableUploader.OFFSET_HEADER));
+            bytesReceived.addAndGet(body.length);
+            if (!md5(body).equals(exchange.getRequestHeaders()
+                    .getFirst(ResumableUploader.CHUNK_MD5_HEADER))) {
+                respond(exchange, 400);
+                return;
+            }
+            if (!session.write(offset, body, sequential)) {
+                respond(exchange, 409);
+                return;
+            }
+            if (lostAcknowledgements.getAndDecrement() > 0) {
+                respond(exchange, 500);
+                return;
+            }
+            exchange.getResponseHeaders().set(ResumableUploader.OFFSET_HEADER,
+                    Long.toString(session.getContiguous()));
+            respond(exchange, 204);
+        } finally {
+            activeChunks.decrementAndGet();
+        }
+    }
+
+    private void complete(HttpExchange exchange, String id) throws IOException {
+        Session session = sessions.get(id);
+        if (session == null || session.getContiguous() != session.data.length) {
+            respond(exchange, 400);
+            return;
+        }
+        completed.put(id, session.data);
+        byte[] message = ("Accession " + id + " created").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(201, message.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(message);
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * The bytes of a SIP received by an upload session.
+     */
+    private static class Session {
+        private final byte[] data;
+        private final BitSet received;
+
+        Session(int size) {
+            data = new byte[size];
+            received = new BitSet(size);
+        }
+
+        synchronized long getContiguous() {
+            return Math.min(received.nextClearBit(0), data.length);
+        }
+
+        synchronized boolean write(long offset, byte[] bytes, boolean sequential) {
+            if ((sequential && offset != getContiguous()) || offset < 0
+                    || offset + bytes.length > data.length) {
+                return false;
+            }
+            System.arraycopy(bytes, 0, data, (int) offset, bytes.length);
+            received.set((int) offset, (int) offset + bytes.length);
+            return true;
+        }
+    }
+
+    private static String md5(byte[] bytes) {
+        try {
+            return BagManifest.toHex(MessageDigest.getInstance("MD5").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
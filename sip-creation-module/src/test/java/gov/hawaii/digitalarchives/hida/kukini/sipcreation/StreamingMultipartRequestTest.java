@@ -0,0 +1,175 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link StreamingMultipartRequest} class against a server that
+ * records the requests it receives.
+ *
+ * @author Keone Hiraide
+ */
+public class StreamingMultipartRequestTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+     // Records the last request it receives.
+    private HttpServer server;
+
+     // The headers and body of the last request.
+    private volatile String contentType;
+    private volatile String contentLength;
+    private volatile String transferEncoding;
+    private volatile byte[] body;
+
+     // Streams request bodies to the connection.
+    private RestTemplate restTemplate;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        contentType = null;
+        contentLength = null;
+        transferEncoding = null;
+        body = null;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/accessions", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                try (InputStream in = exchange.getRequestBody()) {
+                    body = IOUtils.toByteArray(in);
+                }
+                byte[] response = "Created".getBytes(UTF_8);
+                exchange.sendResponseHeaders(HttpStatus.CREATED.value(), response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        });
+        server.start();
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setBufferRequestBody(false);
+        restTemplate = new RestTemplate(requestFactory);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * Tests that a file and a field are sent with a Content-Length that
+     * matches the body, and that every byte of the file is reported.
+     */
+    @Test
+    public void uploadTest() {
+        byte[] sip = new byte[3 * StreamingMultipartRequest.DEFAULT_BUFFER_SIZE + 123];
+        new Random(42).nextBytes(sip);
+        final AtomicLong uploaded = new AtomicLong();
+        TransferListener listener = new TransferListener() {
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+                uploaded.addAndGet(bytes);
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        };
+        StreamingMultipartRequest request = new StreamingMultipartRequest();
+        request.addFile("file", "record_series_1.zip", new ProgressInputStream(
+                new ByteArrayInputStream(sip), TransferStage.UPLOADING, listener), sip.length);
+        request.addField("rtpId", "ark:/0000/Stub");
+
+        ResponseEntity<String> response = request.post(restTemplate, getURL());
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(response.getBody(), "Created");
+        Assert.assertEquals(uploaded.get(), sip.length);
+        Assert.assertNull(transferEncoding);
+        Assert.assertEquals(Long.parseLong(contentLength), request.getContentLength());
+        Assert.assertEquals(body.length, request.getContentLength());
+
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
+        String text = new String(body, Charset.forName("ISO-8859-1"));
+        Assert.assertTrue(text.startsWith("--" + boundary + "\r\n"));
+        Assert.assertTrue(text.endsWith("--" + boundary + "--\r\n"));
+        Assert.assertTrue(text.contains("name=\"file\"; filename=\"record_series_1.zip\""));
+        Assert.assertTrue(text.contains("name=\"rtpId\"\r\nContent-Type: "
+                + "text/plain;charset=UTF-8\r\n\r\nark:/0000/Stub\r\n"));
+        int start = text.indexOf("\r\n\r\n") + 4;
+        Assert.assertEquals(Arrays.copyOfRange(body, start, start + sip.length), sip);
+        Assert.assertEquals(text.substring(start + sip.length, start + sip.length + 2
+                + boundary.length() + 2), "\r\n--" + boundary);
+    }
+
+    /**
+     * Tests that a file of unknown length, such as a SIP that is still being
+     * built, is sent with the chunked transfer coding.
+     */
+    @Test
+    public void unknownLengthTest() {
+        byte[] sip = new byte[2 * StreamingMultipartRequest.DEFAULT_BUFFER_SIZE + 45];
+        new Random(42).nextBytes(sip);
+        StreamingMultipartRequest request = new StreamingMultipartRequest();
+        request.addFile("file", "record_series_1.zip", new ByteArrayInputStream(sip), -1);
+
+        ResponseEntity<String> response = request.post(restTemplate, getURL());
+
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(request.getContentLength(), -1);
+        Assert.assertEquals(transferEncoding, "chunked");
+        String text = new String(body, Charset.forName("ISO-8859-1"));
+        int start = text.indexOf("\r\n\r\n") + 4;
+        Assert.assertEquals(Arrays.copyOfRange(body, start, start + sip.length), sip);
+    }
+
+    /**
+     * Tests that the request fails, rather than sending a short body, when
+     * the file is shorter than the length it was added with.
+     */
+    @Test
+    public void shortFileTest() {
+        StreamingMultipartRequest request = new StreamingMultipartRequest();
+        request.addFile("file", "record_series_1.zip", new ByteArrayInputStream(new byte[100]),
+                200);
+
+        try {
+            request.post(restTemplate, getURL());
+            Assert.fail("A short file was sent");
+        } catch (ResourceAccessException e) {
+            Assert.assertTrue(e.getMessage().contains("shorter"), e.getMessage());
+        }
+        Assert.assertNull(body);
+    }
+
+    private String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/accessions";
+    }
+}
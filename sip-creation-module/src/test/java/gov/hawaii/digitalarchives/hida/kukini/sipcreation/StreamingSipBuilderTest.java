@@ -0,0 +1,239 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link StreamingSipBuilder} class.
+ * 
+ * @author Keone Hiraide
+ */
+public class StreamingSipBuilderTest {
+    
+     // Directory holding the SIP created by each test.
+    private Path outputDirectory;
+    
+    @BeforeMethod
+    public void createOutputDirectory() throws IOException {
+        outputDirectory = Files.createTempDirectory("streaming-sip");
+    }
+    
+    @AfterMethod
+    public void deleteOutputDirectory() throws IOException {
+        FileUtils.deleteDirectory(outputDirectory.toFile());
+    }
+    
+    /**
+     * Tests that every payload file is zipped beneath the "accession/data"
+     * directory and that the payload manifest holds the checksum of each 
+     * of them.
+     */
+    @Test
+    public void buildTest() throws Exception {
+        List<PayloadFile> payload = PayloadFile.fromPaths(Collections
+                .singletonList(Paths.get("src/test/resources/testfiles")));
+        Assert.assertEquals(payload.size(), 3);
+        Map<String, byte[]> sipTags = Collections.singletonMap("accession.json", 
+                "{}".getBytes(StandardCharsets.UTF_8));
+        
+        Path sipPath = new StreamingSipBuilder().build(payload, sipTags, 
+                outputDirectory.resolve("record_series_1.zip"));
+        
+        try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+            String manifest = read(sip, "accession/manifest-md5.txt");
+            for (PayloadFile payloadFile : payload) {
+                ZipEntry entry = sip.getEntry("accession/" + payloadFile.getBagPath());
+                Assert.assertNotNull(entry, "The SIP did not contain " + payloadFile);
+                String checksum = BagManifest.toHex(MessageDigest.getInstance("MD5")
+                        .digest(Files.readAllBytes(payloadFile.getSource())));
+                Assert.assertTrue(manifest.contains(checksum + "  " + payloadFile.getBagPath()));
+            }
+            Assert.assertEquals(read(sip, "accession/accession.json"), "{}");
+            Assert.assertTrue(read(sip, "accession/bag-info.txt").contains("Payload-Oxum: 57.3"));
+            Assert.assertTrue(read(sip, "accession/tagmanifest-md5.txt").contains("manifest-md5.txt"));
+        }
+    }
+    
+    /**
+     * Tests that the bytes of every payload file are reported as the
+     * compressing stage.
+     */
+    @Test
+    public void progressTest() {
+        List<PayloadFile> payload = PayloadFile.fromPaths(Collections
+                .singletonList(Paths.get("src/test/resources/testfiles")));
+        final AtomicLong compressed = new AtomicLong();
+        TransferListener listener = new TransferListener() {
+            @Override
+            public void stageStarted(TransferStage stage, long totalBytes) {
+            }
+
+            @Override
+            public void transferred(TransferStage stage, long bytes) {
+                Assert.assertEquals(stage, TransferStage.COMPRESSING);
+                compressed.addAndGet(bytes);
+            }
+
+            @Override
+            public void stageFinished(TransferStage stage) {
+            }
+        };
+        
+        new StreamingSipBuilder().build(payload, Collections.<String, byte[]>emptyMap(),
+                outputDirectory.resolve("record_series_1.zip"), listener);
+        
+        // The payload is 57 bytes; the tag files are reported as well.
+        Assert.assertTrue(compressed.get() > 57);
+    }
+    
+    /**
+     * Tests that a SIP built into a pipe whose buffer is much smaller than
+     * the SIP is read whole from the other end.
+     */
+    @Test
+    public void pipeTest() throws Exception {
+        final List<PayloadFile> payload = PayloadFile.fromPaths(Collections
+                .singletonList(Paths.get("src/test/resources/testfiles")));
+        final SipPipe pipe = new SipPipe(64);
+        Thread builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new StreamingSipBuilder().build(payload, Collections.<String, byte[]>emptyMap(),
+                        pipe.getOutputStream(), TransferListener.NONE);
+                pipe.finish();
+            }
+        });
+        builder.start();
+        
+        Path sipPath = outputDirectory.resolve("record_series_1.zip");
+        try (InputStream in = pipe.getInputStream()) {
+            Files.copy(in, sipPath);
+        }
+        builder.join();
+        
+        try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+            for (PayloadFile payloadFile : payload) {
+                Assert.assertEquals(read(sip, "accession/" + payloadFile.getBagPath()),
+                        new String(Files.readAllBytes(payloadFile.getSource()), "UTF-8"));
+            }
+            Assert.assertTrue(read(sip, "accession/bag-info.txt").contains("Payload-Oxum: 57.3"));
+        }
+    }
+    
+    /**
+     * Tests that the checksums of files are remembered by a digest cache,
+     * and that a cached checksum is written to the manifest instead of
+     * hashing the file again.
+     */
+    @Test
+    public void digestCacheTest() throws Exception {
+        Path payloadDirectory = Files.createDirectory(outputDirectory.resolve("payload"));
+        Path report = payloadDirectory.resolve("report.txt");
+        Files.write(report, "The annual report".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(report, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        List<PayloadFile> payload = PayloadFile.fromPaths(Collections.singletonList(report));
+        DigestCacheImpl digestCache = new DigestCacheImpl(outputDirectory.resolve("cache"), 1024);
+        try {
+            StreamingSipBuilder builder = new StreamingSipBuilder();
+            builder.setDigestCache(digestCache);
+            builder.build(payload, Collections.<String, byte[]>emptyMap(), 
+                    outputDirectory.resolve("record_series_1.zip"));
+            Assert.assertEquals(digestCache.get(payload.get(0), "md5"), MessageDigest
+                    .getInstance("MD5").digest(Files.readAllBytes(report)));
+            
+            byte[] cached = new byte[16];
+            digestCache.put(payload.get(0), "md5", cached);
+            Path sipPath = builder.build(payload, Collections.<String, byte[]>emptyMap(), 
+                    outputDirectory.resolve("record_series_2.zip"));
+            
+            try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+                Assert.assertTrue(read(sip, "accession/manifest-md5.txt").contains(
+                        BagManifest.toHex(cached) + "  " + payload.get(0).getBagPath()));
+            }
+        } finally {
+            digestCache.close();
+        }
+    }
+    
+    /**
+     * Tests that a SIP built with several manifest algorithms holds a 
+     * manifest and a tag manifest for each of them, whether the files are
+     * hashed on the calling thread or by a digest engine, and that a file
+     * whose checksum is cached for one algorithm is hashed with the other.
+     */
+    @Test
+    public void manifestAlgorithmsTest() throws Exception {
+        Path payloadDirectory = Files.createDirectory(outputDirectory.resolve("payload"));
+        Path scan = payloadDirectory.resolve("scan.bin");
+        byte[] contents = new byte[1024 * 1024];
+        new Random(42).nextBytes(contents);
+        Files.write(scan, contents);
+        Files.setLastModifiedTime(scan, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        List<PayloadFile> payload = PayloadFile.fromPaths(Collections.singletonList(scan));
+        String md5 = BagManifest.toHex(MessageDigest.getInstance("MD5").digest(contents));
+        String sha256 = BagManifest.toHex(MessageDigest.getInstance("SHA-256").digest(contents));
+        DigestEngine digestEngine = new DigestEngine(2);
+        DigestCacheImpl digestCache = new DigestCacheImpl(outputDirectory.resolve("cache"), 1024);
+        try {
+            for (int i = 0; i < 3; i++) {
+                StreamingSipBuilder builder = new StreamingSipBuilder(
+                        Arrays.asList("md5", "sha256"), new ParallelDeflater(1), null);
+                if (i > 0) {
+                    builder.setDigestEngine(digestEngine);
+                }
+                if (i > 1) {
+                    digestCache.put(payload.get(0), "md5", 
+                            MessageDigest.getInstance("MD5").digest(contents));
+                    builder.setDigestCache(digestCache);
+                }
+                Path sipPath = builder.build(payload, Collections.<String, byte[]>emptyMap(), 
+                        outputDirectory.resolve("record_series_" + i + ".zip"));
+                
+                try (ZipFile sip = new ZipFile(sipPath.toFile())) {
+                    String bagPath = payload.get(0).getBagPath();
+                    Assert.assertEquals(read(sip, "accession/manifest-md5.txt"), 
+                            md5 + "  " + bagPath + "\n");
+                    Assert.assertEquals(read(sip, "accession/manifest-sha256.txt"), 
+                            sha256 + "  " + bagPath + "\n");
+                    Assert.assertTrue(read(sip, "accession/tagmanifest-md5.txt")
+                            .contains("manifest-sha256.txt"));
+                    Assert.assertTrue(read(sip, "accession/tagmanifest-sha256.txt")
+                            .contains("manifest-md5.txt"));
+                    Assert.assertFalse(read(sip, "accession/tagmanifest-sha256.txt")
+                            .contains("tagmanifest-md5.txt"));
+                }
+            }
+            Assert.assertEquals(BagManifest.toHex(digestCache.get(payload.get(0), "sha256")), 
+                    sha256);
+        } finally {
+            digestCache.close();
+            digestEngine.shutdown();
+        }
+    }
+    
+    private String read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return IOUtils.toString(in, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link TempWorkspaceManagerImpl} class. Each manager stands in 
+ * for a Kukini; one that has been shut down stands in for one that exited 
+ * or crashed.
+ *
+ * @author Keone Hiraide
+ */
+public class TempWorkspaceManagerImplTest {
+
+     // The temporary directory shared by the managers.
+    private Path directory;
+
+    private TempWorkspaceManagerImpl running;
+    private TempWorkspaceManagerImpl starting;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("workspaces");
+        running = new TempWorkspaceManagerImpl(directory);
+        starting = new TempWorkspaceManagerImpl(directory);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        running.shutdown();
+        starting.shutdown();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    /**
+     * Tests that the bag directories, SIPs and lock files left by a Kukini 
+     * that has exited are deleted, along with workspaces that were never 
+     * locked and have been left alone for days, and upload states whose 
+     * SIPs are gone.
+     */
+    @Test
+    public void orphanTest() throws IOException {
+        Path workspace = createWorkspace(running);
+        running.shutdown();
+        Path unlocked = Files.createDirectory(directory.resolve("record_series_1"));
+        Files.setLastModifiedTime(unlocked, FileTime.fromMillis(
+                System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+        Path state = Files.createFile(directory.resolve("record_series_2.zip.upload"));
+        Path other = Files.createFile(directory.resolve("report.txt"));
+
+        starting.deleteOrphans();
+        starting.shutdown();
+        Assert.assertFalse(Files.exists(workspace));
+        Assert.assertFalse(Files.exists(getSipPath(workspace)));
+        Assert.assertFalse(Files.exists(getLockFile(workspace)));
+        Assert.assertFalse(Files.exists(unlocked));
+        Assert.assertFalse(Files.exists(state));
+        Assert.assertTrue(Files.exists(other));
+    }
+
+    /**
+     * Tests that workspaces that were never locked are kept while they have
+     * been modified within the last day, since the Kukini that created them
+     * may still be using them.
+     */
+    @Test
+    public void unlockedTest() throws IOException {
+        Path unlocked = Files.createDirectory(directory.resolve("record_series_1"));
+        Path sip = Files.createFile(directory.resolve("record_series_2.zip"));
+        Path staleBag = Files.createDirectory(directory.resolve("record_series_2"));
+        Files.setLastModifiedTime(staleBag, FileTime.fromMillis(
+                System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+        starting.deleteOrphans();
+        starting.shutdown();
+        Assert.assertTrue(Files.exists(unlocked));
+        Assert.assertTrue(Files.exists(sip));
+        Assert.assertTrue(Files.exists(staleBag));
+    }
+
+    /**
+     * Tests that the workspaces of a Kukini that is still running are kept,
+     * and that their lock files are deleted once they have been released.
+     */
+    @Test
+    public void liveTest() throws IOException {
+        Path workspace = createWorkspace(running);
+
+        starting.deleteOrphans();
+        starting.shutdown();
+        Assert.assertTrue(Files.exists(workspace.resolve("bagit.txt")));
+        Assert.assertTrue(Files.exists(getSipPath(workspace)));
+        Assert.assertTrue(Files.exists(getLockFile(workspace)));
+
+        running.release(workspace);
+        running.release(getSipPath(workspace));
+        running.shutdown();
+        Assert.assertFalse(Files.exists(workspace));
+        Assert.assertFalse(Files.exists(getSipPath(workspace)));
+        Assert.assertFalse(Files.exists(getLockFile(workspace)));
+    }
+
+    /**
+     * Tests that the bag directories and SIPs of journaled transfers are kept
+     * so that the transfers can be resumed, and that the Kukini resuming them
+     * takes over their locks.
+     */
+    @Test
+    public void journaledTest() throws IOException {
+        Path staged = createWorkspace(running);
+        Path zipped = createWorkspace(running);
+        running.shutdown();
+        TransferJournal journal = new TransferJournal(directory.resolve("transfer-journal"));
+        try {
+            journal.staged(journal.submitted(Collections.singletonList(directory)), staged);
+            journal.zipped(journal.submitted(Collections.singletonList(directory)), 
+                    getSipPath(zipped));
+            starting.setTransferJournal(journal);
+            starting.deleteOrphans();
+
+            TempWorkspaceManagerImpl other = new TempWorkspaceManagerImpl(directory);
+            other.deleteOrphans();
+            other.shutdown();
+            starting.shutdown();
+        } finally {
+            journal.close();
+        }
+        Assert.assertTrue(Files.exists(staged.resolve("bagit.txt")));
+        Assert.assertFalse(Files.exists(getSipPath(staged)));
+        Assert.assertFalse(Files.exists(zipped));
+        Assert.assertTrue(Files.exists(getSipPath(zipped)));
+    }
+
+    /**
+     * Tests that a SIP whose resumable upload was interrupted is kept along
+     * with its upload state, while its bag directory is deleted.
+     */
+    @Test
+    public void uploadSessionTest() throws IOException {
+        Path workspace = createWorkspace(running);
+        new UploadSession(getSipPath(workspace), URI.create("http://localhost/uploads/1"))
+                .save();
+        running.shutdown();
+
+        starting.deleteOrphans();
+        starting.shutdown();
+        Assert.assertFalse(Files.exists(workspace));
+        Assert.assertTrue(Files.exists(getSipPath(workspace)));
+        Assert.assertTrue(UploadSession.exists(getSipPath(workspace)));
+    }
+
+    /**
+     * Creates a workspace holding a file, and its SIP.
+     */
+    private Path createWorkspace(TempWorkspaceManagerImpl manager) throws IOException {
+        Path workspace = manager.createWorkspace();
+        Files.write(workspace.resolve("bagit.txt"), new byte[] {1, 2, 3});
+        Files.write(getSipPath(workspace), new byte[] {4, 5, 6});
+        return workspace;
+    }
+
+    private Path getSipPath(Path workspace) {
+        return workspace.resolveSibling(workspace.getFileName() + ".zip");
+    }
+
+    private Path getLockFile(Path workspace) {
+        return workspace.resolveSibling(workspace.getFileName() + ".lock");
+    }
+}
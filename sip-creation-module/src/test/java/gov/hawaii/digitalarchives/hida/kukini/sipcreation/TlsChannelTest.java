@@ -0,0 +1,153 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link TlsChannel} class against a TLS server that echoes what
+ * it receives.
+ *
+ * @author Keone Hiraide
+ */
+public class TlsChannelTest {
+
+     // The keystore holding the self-signed certificate of localhost.
+    private static final String KEYSTORE = "/localhost.jks";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+     // Trusts the certificate of localhost, and serves it.
+    private SSLContext sslContext;
+
+     // Runs the server.
+    private ExecutorService executor;
+
+    private ServerSocket server;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = getClass().getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        executor = Executors.newSingleThreadExecutor();
+        server = null;
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Tests that data written from a direct buffer, in more bytes than a TLS
+     * record holds, reaches the server intact, that its reply is read back,
+     * and that closing the channel sends the close notification.
+     */
+    @Test
+    public void echoTest() throws Exception {
+        server = sslContext.getServerSocketFactory().createServerSocket(0, 50, 
+                InetAddress.getLoopbackAddress());
+        final byte[] data = new byte[1024 * 1024 + 123];
+        new Random(42).nextBytes(data);
+        Future<Integer> received = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                try (Socket socket = server.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] echo = new byte[data.length];
+                    in.readFully(echo);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(echo);
+                    out.flush();
+                    return in.read();
+                }
+            }
+        });
+
+        TlsChannel channel = connect();
+        ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+        src.put(data).flip();
+        Assert.assertEquals(channel.write(src), data.length);
+        byte[] echo = new byte[data.length];
+        new DataInputStream(channel.getInputStream()).readFully(echo);
+        Assert.assertEquals(echo, data);
+
+        channel.close();
+        Assert.assertFalse(channel.isOpen());
+        Assert.assertEquals(received.get(5, TimeUnit.SECONDS).intValue(), -1);
+    }
+
+    /**
+     * Tests that the handshake fails, rather than hanging, when the server
+     * closes the connection instead of answering.
+     */
+    @Test
+    public void closedHandshakeTest() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                server.accept().close();
+                return null;
+            }
+        });
+
+        try {
+            connect();
+            Assert.fail("The handshake succeeded without a server");
+        } catch (IOException e) {
+            // Expected: either an end of stream or a reset connection.
+        }
+    }
+
+    /**
+     * Opens a channel to the server and performs the handshake.
+     */
+    private TlsChannel connect() throws IOException {
+        SocketChannel socketChannel = SocketChannel.open(server.getLocalSocketAddress());
+        socketChannel.socket().setSoTimeout(5000);
+        SSLEngine engine = sslContext.createSSLEngine("localhost", server.getLocalPort());
+        engine.setUseClientMode(true);
+        TlsChannel channel = new TlsChannel(socketChannel, engine);
+        try {
+            channel.handshake();
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,132 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link TransferJournal} class.
+ *
+ * @author Keone Hiraide
+ */
+public class TransferJournalTest {
+
+     // Holds the journal, and the paths recorded in it.
+    private Path directory;
+    private Path journalFile;
+
+    private TransferJournal journal;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transfer-journal");
+        journalFile = directory.resolve("transfer-journal");
+        journal = new TransferJournal(journalFile);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        journal.close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    /**
+     * Tests that the transfers that did not finish are found again, each at
+     * its last checkpoint, once the journal is reopened, and that only they
+     * are kept in it.
+     */
+    @Test
+    public void replayTest() throws IOException {
+        List<Path> reports = Collections.singletonList(directory.resolve("reports"));
+        List<Path> scans = Arrays.asList(directory.resolve("scan 1.tif"), 
+                directory.resolve("scan 2.tif"));
+        Path bag = directory.resolve("record_series_1");
+        Path sip = directory.resolve("record_series_2.zip");
+        String submitted = journal.submitted(reports);
+        String zipped = journal.submitted(scans);
+        String finished = journal.submitted(reports);
+        journal.staged(zipped, directory.resolve("record_series_2"));
+        journal.zipped(zipped, sip);
+        journal.staged(finished, bag);
+        journal.finished(finished);
+        Assert.assertTrue(journal.getInterruptedJobs().isEmpty());
+        Assert.assertEquals(journal.getWorkspaces(), Collections.singleton(sip));
+        journal.close();
+
+        journal = new TransferJournal(journalFile);
+        List<TransferJob> jobs = journal.getInterruptedJobs();
+        Assert.assertEquals(jobs.size(), 2);
+        Assert.assertEquals(jobs.get(0).getId(), submitted);
+        Assert.assertEquals(jobs.get(0).getSources(), reports);
+        Assert.assertNull(jobs.get(0).getBagDirectory());
+        Assert.assertNull(jobs.get(0).getSipPath());
+        Assert.assertEquals(jobs.get(1).getId(), zipped);
+        Assert.assertEquals(jobs.get(1).getSources(), scans);
+        Assert.assertNull(jobs.get(1).getBagDirectory());
+        Assert.assertEquals(jobs.get(1).getSipPath(), sip);
+        Assert.assertEquals(Files.readAllLines(journalFile, StandardCharsets.UTF_8).size(), 3);
+
+        Assert.assertTrue(journal.resume(submitted));
+        Assert.assertFalse(journal.resume(submitted));
+        journal.finished(submitted);
+        journal.close();
+        journal = new TransferJournal(journalFile);
+        Assert.assertEquals(journal.getInterruptedJobs().size(), 1);
+        Assert.assertEquals(journal.getInterruptedJobs().get(0).getId(), zipped);
+    }
+
+    /**
+     * Tests that a checkpoint torn by a crash is skipped, and the transfer
+     * resumed from the checkpoint before it.
+     */
+    @Test
+    public void tornCheckpointTest() throws IOException {
+        Path bag = directory.resolve("record_series_1");
+        String id = journal.submitted(Collections.singletonList(directory.resolve("reports")));
+        journal.staged(id, bag);
+        journal.close();
+        byte[] journaled = Files.readAllBytes(journalFile);
+        String torn = new String(journaled, StandardCharsets.UTF_8).split("\n")[1]
+                .replace("staged", "zipped");
+        Files.write(journalFile, (torn.substring(0, torn.length() - 5) + "\n")
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        journal = new TransferJournal(journalFile);
+        List<TransferJob> jobs = journal.getInterruptedJobs();
+        Assert.assertEquals(jobs.size(), 1);
+        Assert.assertEquals(jobs.get(0).getBagDirectory(), bag);
+        Assert.assertNull(jobs.get(0).getSipPath());
+        Assert.assertEquals(journal.getWorkspaces(), new HashSet<>(Arrays.asList(bag)));
+    }
+
+    /**
+     * Tests that a journal held by another instance is not used.
+     */
+    @Test
+    public void lockedTest() throws IOException {
+        journal.submitted(Collections.singletonList(directory.resolve("reports")));
+        TransferJournal other = new TransferJournal(journalFile);
+        try {
+            other.submitted(Collections.singletonList(directory.resolve("scans")));
+            Assert.assertTrue(other.getInterruptedJobs().isEmpty());
+        } finally {
+            other.close();
+        }
+        journal.close();
+        journal = new TransferJournal(journalFile);
+        Assert.assertEquals(journal.getInterruptedJobs().size(), 1);
+        Assert.assertEquals(journal.getInterruptedJobs().get(0).getSources(), 
+                Collections.singletonList(directory.resolve("reports")));
+    }
+}
@@ -0,0 +1,98 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link TransferMetrics} class, along with the listener that 
+ * measures the stages of each transfer.
+ *
+ * @author Keone Hiraide
+ */
+public class TransferMetricsTest {
+
+    /**
+     * Tests that the runs of a stage are timed, and their bytes and files
+     * counted, once the stage has finished.
+     */
+    @Test
+    public void stageTest() throws InterruptedException {
+        TransferMetrics metrics = new TransferMetrics();
+        MeteredTransferListener listener = metrics.meter(TransferListener.NONE);
+        Assert.assertSame(metrics.meter(listener), listener);
+        StageMetrics staging = metrics.getStage(TransferStage.STAGING);
+
+        listener.stageStarted(TransferStage.STAGING, 3000);
+        // A stage reported twice is a single run.
+        listener.stageStarted(TransferStage.STAGING, 3000);
+        Assert.assertEquals(staging.getActiveRuns(), 1);
+        listener.transferred(TransferStage.STAGING, 1000);
+        listener.transferred(TransferStage.STAGING, 2000);
+        TimeUnit.MILLISECONDS.sleep(20);
+        listener.stageFinished(TransferStage.STAGING);
+        metrics.filesProcessed(TransferStage.STAGING, 3);
+
+        Assert.assertEquals(staging.getActiveRuns(), 0);
+        Assert.assertEquals(staging.getRuns(), 1);
+        Assert.assertEquals(staging.getBytes(), 3000);
+        Assert.assertEquals(staging.getFiles(), 3);
+        Assert.assertTrue(staging.getLastMillis() >= 20);
+        Assert.assertEquals(staging.getMaxMillis(), staging.getLastMillis());
+        Assert.assertTrue(staging.getBytesPerSecond() > 0);
+        Assert.assertTrue(staging.getFilesPerSecond() > 0);
+        Assert.assertEquals(metrics.getStage(TransferStage.UPLOADING).getRuns(), 0);
+
+        metrics.reset();
+        Assert.assertEquals(staging.getRuns(), 0);
+        Assert.assertEquals(staging.getBytes(), 0);
+        Assert.assertEquals(staging.getFiles(), 0);
+    }
+
+    /**
+     * Tests that a failed transfer is counted once, against the stage that
+     * was in progress.
+     */
+    @Test
+    public void failureTest() {
+        TransferMetrics metrics = new TransferMetrics();
+        MeteredTransferListener listener = metrics.meter(TransferListener.NONE);
+        listener.stageStarted(TransferStage.COMPRESSING, -1);
+        listener.stageFinished(TransferStage.COMPRESSING);
+        listener.stageStarted(TransferStage.UPLOADING, 1000);
+        listener.failed();
+        listener.failed();
+
+        Assert.assertEquals(metrics.getErrors(), 1);
+        Assert.assertEquals(metrics.getStage(TransferStage.COMPRESSING).getErrors(), 0);
+        StageMetrics uploading = metrics.getStage(TransferStage.UPLOADING);
+        Assert.assertEquals(uploading.getErrors(), 1);
+        Assert.assertEquals(uploading.getActiveRuns(), 0);
+        Assert.assertEquals(uploading.getRuns(), 0);
+    }
+
+    /**
+     * Tests that the transfers are counted as they are queued, run and end.
+     */
+    @Test
+    public void transferTest() {
+        TransferMetrics metrics = new TransferMetrics();
+        metrics.transferQueued();
+        metrics.transferQueued();
+        Assert.assertEquals(metrics.getTransfersQueued(), 2);
+        metrics.transferStarted();
+        Assert.assertEquals(metrics.getTransfersQueued(), 1);
+        Assert.assertEquals(metrics.getTransfersActive(), 1);
+        metrics.transferFinished(true, false);
+        metrics.transferStarted();
+        metrics.transferFinished(false, true);
+
+        Assert.assertEquals(metrics.getTransfersQueued(), 0);
+        Assert.assertEquals(metrics.getTransfersActive(), 0);
+        Assert.assertEquals(metrics.getTransfersSucceeded(), 1);
+        Assert.assertEquals(metrics.getTransfersCancelled(), 1);
+        Assert.assertEquals(metrics.getTransfersFailed(), 0);
+        // There are no pools outside of a spring context.
+        Assert.assertEquals(metrics.getStagingQueueDepth(), 0);
+    }
+}
@@ -0,0 +1,160 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import gov.hawaii.digitalarchives.hida.core.exception.HidaIOException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.io.FileUtils;
+import org.openide.loaders.DataObject;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link TransferTask} class with an uploader that writes into
+ * the bag directory of the transfer until it is interrupted.
+ *
+ * @author Keone Hiraide
+ */
+public class TransferTaskTest {
+
+     // The temporary directory of the workspaces.
+    private Path directory;
+
+    private TempWorkspaceManagerImpl workspaceManager;
+
+     // Counted down once the uploader is writing into the bag directory.
+    private CountDownLatch writing;
+
+     // The bag directory of the transfer, and whether it was still there
+     // when the uploader stopped writing into it.
+    private final AtomicReference<Path> workspace = new AtomicReference<>();
+    private final AtomicReference<Boolean> keptWhileWriting = new AtomicReference<>();
+
+     // What stopped the uploader.
+    private final AtomicReference<Throwable> stoppedBy = new AtomicReference<>();
+
+     // The threads that released workspaces.
+    private final Set<Thread> releasedBy =
+            Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("workspaces");
+        workspaceManager = new TempWorkspaceManagerImpl(directory);
+        writing = new CountDownLatch(1);
+        workspace.set(null);
+        keptWhileWriting.set(null);
+        stoppedBy.set(null);
+        releasedBy.clear();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        workspaceManager.shutdown();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    /**
+     * Tests that a transfer cancelled while it writes into its bag
+     * directory is interrupted, that the directory is kept until it has
+     * stopped and deleted once it has, along with the SIP, by the thread of
+     * the transfer rather than the one that cancelled it, and that the
+     * failure of the interrupted transfer does not reach the caller.
+     */
+    @Test
+    public void cancelTest() throws Exception {
+        TransferTask task = new TransferTask(Collections.<DataObject>emptyList(),
+                createUploader(), new RestTemplate(), recordReleases(workspaceManager));
+        task.start();
+        Assert.assertTrue(writing.await(10, TimeUnit.SECONDS), "The transfer never started");
+
+        Assert.assertTrue(task.cancel());
+        Assert.assertFalse(releasedBy.contains(Thread.currentThread()));
+        task.waitFinished();
+        workspaceManager.shutdown();
+
+        Assert.assertTrue(stoppedBy.get() instanceof ClosedByInterruptException,
+                String.valueOf(stoppedBy.get()));
+        Assert.assertEquals(keptWhileWriting.get(), Boolean.TRUE);
+        Path bag = workspace.get();
+        Assert.assertFalse(Files.exists(bag));
+        Assert.assertFalse(Files.exists(bag.resolveSibling(bag.getFileName() + ".zip")));
+        Assert.assertEquals(releasedBy.size(), 1);
+        Assert.assertFalse(releasedBy.contains(Thread.currentThread()));
+    }
+
+    /**
+     * @return A workspace manager that records the threads that release
+     *         workspaces through it.
+     */
+    private TempWorkspaceManager recordReleases(final TempWorkspaceManager manager) {
+        return (TempWorkspaceManager) Proxy.newProxyInstance(
+                TempWorkspaceManager.class.getClassLoader(),
+                new Class<?>[] {TempWorkspaceManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                if (method.getName().equals("release")) {
+                    releasedBy.add(Thread.currentThread());
+                }
+                try {
+                    return method.invoke(manager, args);
+                } catch (InvocationTargetException e) {
+                    throw (Exception) e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return An uploader that stages a file into the bag directory it is
+     *         given, rewriting it until the transfer is interrupted.
+     */
+    private SipUploader createUploader() {
+        return (SipUploader) Proxy.newProxyInstance(SipUploader.class.getClassLoader(),
+                new Class<?>[] {SipUploader.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                if (method.getName().equals("isPipelined")) {
+                    return false;
+                }
+                Assert.assertEquals(method.getName(), "createAndUploadSip");
+                Path bag = (Path) args[1];
+                TransferListener listener = (TransferListener) args[3];
+                workspace.set(bag);
+                listener.stageStarted(TransferStage.STAGING, -1);
+                Path file = Files.createDirectories(bag.resolve("data")).resolve("report.pdf");
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                try (FileChannel channel = workspaceManager.track(bag, FileChannel.open(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                    while (true) {
+                        buffer.clear();
+                        channel.write(buffer, 0);
+                        listener.transferred(TransferStage.STAGING, buffer.capacity());
+                        writing.countDown();
+                    }
+                } catch (IOException e) {
+                    stoppedBy.set(e);
+                    keptWhileWriting.set(Files.isDirectory(bag.resolve("data")));
+                    throw new HidaIOException("Failed to stage " + file, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+package gov.hawaii.digitalarchives.hida.kukini.sipcreation;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link WatchFolderIngest} class with an uploader that only 
+ * records the batches it is given.
+ *
+ * @author Keone Hiraide
+ */
+public class WatchFolderIngestTest {
+
+     // How long a batch must be left alone before it is transferred.
+    private static final long QUIET_MILLIS = 300;
+
+     // The folder that batches are dropped into.
+    private Path folder;
+
+     // Runs the ingest.
+    private Thread ingestThread;
+
+     // The results of the batches, in the order they were transferred.
+    private final BlockingQueue<BatchResult> results = new LinkedBlockingQueue<>();
+
+     // When each batch was given to the uploader.
+    private final Map<String, Long> transferredNanos = new ConcurrentHashMap<>();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("watch");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        ingestThread.interrupt();
+        ingestThread.join(5000);
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    /**
+     * Tests that batches already in the folder and batches dropped into it 
+     * are transferred, and moved away according to their results.
+     */
+    @Test
+    public void ingestTest() throws Exception {
+        Files.write(folder.resolve("existing.pdf"), new byte[] {1, 2, 3});
+        startIngest();
+        BatchResult existing = results.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(existing);
+        Assert.assertTrue(existing.isSucceeded());
+        Assert.assertTrue(Files.exists(folder.resolve(WatchFolderIngest.TRANSFERRED_FOLDER)
+                .resolve("existing.pdf")));
+
+        Path broken = Files.createDirectory(folder.resolve("broken"));
+        Files.write(broken.resolve("scan.tif"), new byte[] {4, 5, 6});
+        BatchResult failed = results.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(failed);
+        Assert.assertFalse(failed.isSucceeded());
+        Assert.assertTrue(Files.exists(folder.resolve(WatchFolderIngest.FAILED_FOLDER)
+                .resolve("broken").resolve("scan.tif")));
+        Assert.assertFalse(Files.exists(broken));
+        Assert.assertNull(results.poll(3 * QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that a batch still being written is not transferred until it
+     * has been left alone for the quiet period.
+     */
+    @Test
+    public void debounceTest() throws Exception {
+        startIngest();
+        Path batch = Files.createDirectory(folder.resolve("batch"));
+        Path nested = Files.createDirectory(batch.resolve("box 1"));
+        long lastWriteNanos = 0;
+        for (int i = 0; i < 10; i++) {
+            Files.write(nested.resolve("page" + i + ".tif"), new byte[i + 1]);
+            lastWriteNanos = System.nanoTime();
+            Thread.sleep(QUIET_MILLIS / 3);
+        }
+        BatchResult result = results.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(result);
+        Assert.assertEquals(result.getSources(), Collections.singletonList(batch.toString()));
+        Assert.assertTrue(transferredNanos.get("batch") - lastWriteNanos 
+                >= TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS));
+        Assert.assertTrue(Files.exists(folder.resolve(WatchFolderIngest.TRANSFERRED_FOLDER)
+                .resolve("batch").resolve("box 1").resolve("page9.tif")));
+        Assert.assertNull(results.poll(3 * QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private void startIngest() {
+        BatchTransfer batchTransfer = new BatchTransfer(createUploader(), new RestTemplate(), 2,
+                new TransferBudget(2, 0));
+        final WatchFolderIngest ingest = new WatchFolderIngest(batchTransfer, 
+                Collections.singletonList(folder), QUIET_MILLIS, 
+                new WatchFolderIngest.Listener() {
+            @Override
+            public void batchTransferred(Path batch, BatchResult result) {
+                results.add(result);
+            }
+        });
+        ingestThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ingest.run();
+            }
+        });
+        ingestThread.start();
+    }
+
+    /**
+     * @return An uploader that records when it is given each batch, and 
+     *         fails to upload any batch named "broken".
+     */
+    private SipUploader createUploader() {
+        return (SipUploader) Proxy.newProxyInstance(SipUploader.class.getClassLoader(),
+                new Class<?>[] {SipUploader.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                @SuppressWarnings("unchecked")
+                String name = ((List<Path>) args[0]).get(0).getFileName().toString();
+                transferredNanos.put(name, System.nanoTime());
+                if (name.equals("broken")) {
+                    throw new IllegalStateException("Failed to upload " + name);
+                }
+                return new ResponseEntity<>(name, HttpStatus.CREATED);
+            }
+        });
+    }
+}